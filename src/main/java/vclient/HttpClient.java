@@ -24,6 +24,10 @@ public interface HttpClient {
         return new Http1ClientImpl(l4addr);
     }
 
+    static HttpClient to(InetSocketAddress l4addr, Options opts) {
+        return new Http1ClientImpl(l4addr, null, opts);
+    }
+
     default HttpRequest get(String uri) {
         return request(HttpMethod.GET, uri);
     }
@@ -43,4 +47,76 @@ public interface HttpClient {
     HttpRequest request(HttpMethod method, String uri);
 
     void close();
+
+    /**
+     * Options of the connections of a client.<br>
+     * Connections are kept alive and reused by later requests,
+     * and requests are queued when all connections are busy.
+     */
+    class Options {
+        private int timeout = 10_000;
+        private int maxConnections = 8;
+        private int idleTimeout = 60_000;
+        private int pipelineDepth = 1;
+
+        public Options() {
+        }
+
+        /**
+         * a connection is closed when nothing is sent or received for <code>timeout</code> milliseconds
+         */
+        public Options setTimeout(int timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * max number of connections to the remote, including the busy and idle ones
+         */
+        public Options setMaxConnections(int maxConnections) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("maxConnections should be at least 1");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * an idle connection is closed after <code>idleTimeout</code> milliseconds
+         */
+        public Options setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * max number of requests sent on one connection without waiting for the responses,
+         * 1 means pipelining is disabled.<br>
+         * Requests are only pipelined on connections which the server already kept alive,
+         * and only when no more connections can be created.
+         */
+        public Options setPipelineDepth(int pipelineDepth) {
+            if (pipelineDepth < 1) {
+                throw new IllegalArgumentException("pipelineDepth should be at least 1");
+            }
+            this.pipelineDepth = pipelineDepth;
+            return this;
+        }
+
+        public int getTimeout() {
+            return timeout;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public int getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public int getPipelineDepth() {
+            return pipelineDepth;
+        }
+    }
 }
@@ -10,7 +10,7 @@ public interface HttpRequest {
         send((ByteArray) null, handler);
     }
 
-    default void send(JSON.Instance inst, ResponseHandler handler) {
+    default void send(JSON.Instance<?> inst, ResponseHandler handler) {
         header("Content-Type", "application/json").
             send(inst.stringify(), handler);
     }
@@ -20,4 +20,13 @@ public interface HttpRequest {
     }
 
     void send(ByteArray body, ResponseHandler handler);
+
+    default void send(StreamingResponseHandler handler) {
+        send((ByteArray) null, handler);
+    }
+
+    /**
+     * send the request and read the response as a stream
+     */
+    void send(ByteArray body, StreamingResponseHandler handler);
 }
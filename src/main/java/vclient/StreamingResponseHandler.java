@@ -0,0 +1,29 @@
+package vclient;
+
+import vproxy.util.ByteArray;
+
+import java.io.IOException;
+
+/**
+ * Receives the response part by part, so the body is never buffered as a whole.<br>
+ * The methods are called on the event loop of the client,
+ * and the connection does not read more data before they return.
+ */
+public interface StreamingResponseHandler {
+    /**
+     * the status and headers are received, the body of the response is always null
+     */
+    void headers(HttpResponse response);
+
+    void chunk(ByteArray data);
+
+    /**
+     * the whole response is received
+     */
+    void end();
+
+    /**
+     * the request failed, no other method is called after this
+     */
+    void exception(IOException err);
+}
@@ -4,6 +4,9 @@ import vclient.HttpClient;
 import vclient.HttpRequest;
 import vclient.HttpResponse;
 import vclient.ResponseHandler;
+import vclient.StreamingResponseHandler;
+import vjson.JSON;
+import vjson.util.StreamingSerializer;
 import vproxy.app.Application;
 import vproxy.connection.*;
 import vproxy.http.HttpRespParser;
@@ -11,34 +14,52 @@ import vproxy.processor.http1.entity.Header;
 import vproxy.processor.http1.entity.Request;
 import vproxy.processor.http1.entity.Response;
 import vproxy.selector.SelectorEventLoop;
+import vproxy.selector.TimerEvent;
 import vproxy.util.*;
 import vserver.HttpMethod;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
 
+/**
+ * Connections are pooled and kept alive, so a client should be reused for requests to the same remote.<br>
+ * The pool is only accessed on the event loop of the client.
+ */
 public class Http1ClientImpl implements HttpClient {
+    private static final int BUFFER_SIZE = 4096;
+    // only these requests may be sent again when the reused connection is closed before responding
+    private static final Set<HttpMethod> IDEMPOTENT_METHODS = EnumSet.of(
+        HttpMethod.GET, HttpMethod.HEAD, HttpMethod.PUT, HttpMethod.DELETE, HttpMethod.OPTIONS, HttpMethod.TRACE);
+
     private final InetSocketAddress remote;
     private final boolean noInputLoop;
     private NetEventLoop loop;
-    private final int timeout;
-    private boolean closed = false;
+    private final Options opts;
+    private volatile boolean closed = false;
+
+    // the following fields are only accessed on the loop
+    private final List<Conn> conns = new ArrayList<>(); // all connections, including connecting and idle ones
+    private final Deque<Conn> idle = new ArrayDeque<>(); // the most recently used one is the first
+    private final Deque<Exchange> pending = new ArrayDeque<>(); // requests waiting for a connection
 
     public Http1ClientImpl(InetSocketAddress remote) {
-        this(remote, null, 10_000);
+        this(remote, null, new Options());
     }
 
     public Http1ClientImpl(InetSocketAddress remote, NetEventLoop loop, int timeout) {
+        this(remote, loop, new Options().setTimeout(timeout));
+    }
+
+    public Http1ClientImpl(InetSocketAddress remote, NetEventLoop loop, Options opts) {
         this.remote = remote;
         this.loop = loop;
-        this.timeout = timeout;
+        this.opts = opts;
         noInputLoop = (loop == null);
     }
 
-    private void initLoop() {
+    private synchronized void initLoop() {
         if (loop != null) {
             return;
         }
@@ -73,8 +94,25 @@ public class Http1ClientImpl implements HttpClient {
                 return this;
             }
 
+            @Override
+            public void send(JSON.Instance<?> inst, ResponseHandler handler) {
+                header("Content-Type", "application/json");
+                // serialize into the out buffer directly
+                // so large bodies do not have to be built in memory
+                send(null, inst, StreamingSerializer.length(inst), collect(handler));
+            }
+
             @Override
             public void send(ByteArray body, ResponseHandler handler) {
+                send(body, null, 0, collect(handler));
+            }
+
+            @Override
+            public void send(ByteArray body, StreamingResponseHandler handler) {
+                send(body, null, 0, handler);
+            }
+
+            private void send(ByteArray body, JSON.Instance<?> json, long jsonLength, StreamingResponseHandler handler) {
                 request.headers = new ArrayList<>(headers.size() + 2);
                 for (Map.Entry<String, String> entry : headers.entrySet()) {
                     request.headers.add(new Header(entry.getKey(), entry.getValue()));
@@ -85,102 +123,403 @@ public class Http1ClientImpl implements HttpClient {
                 if (body != null) {
                     request.headers.add(new Header("Content-Length", Integer.toString(body.length())));
                     request.body = body;
+                } else if (json != null) {
+                    request.headers.add(new Header("Content-Length", Long.toString(jsonLength)));
                 }
                 assert Logger.lowLevelDebug("http client sending request to " + remote + " with " + request.toString());
 
-                ByteArray array = request.toByteArray();
-                ByteArrayChannel chnl = ByteArrayChannel.fromFull(array);
-
+                Exchange ex = new Exchange(request.toByteArray(), json, IDEMPOTENT_METHODS.contains(method), handler);
+                if (closed) {
+                    ex.failed(new IOException("the http client is closed"));
+                    return;
+                }
                 initLoop();
+                loop.getSelectorEventLoop().runOnLoop(() -> {
+                    pending.add(ex);
+                    dispatch();
+                });
+            }
+        };
+    }
+
+    // one request and its response
+    private static class Exchange {
+        final ByteArray request; // the head and the body if it's not json
+        final JSON.Instance<?> json; // serialized when writing, so it's not built in memory
+        final boolean idempotent;
+        final StreamingResponseHandler handler;
+        boolean retried = false;
+        private boolean done = false;
+
+        Exchange(ByteArray request, JSON.Instance<?> json, boolean idempotent, StreamingResponseHandler handler) {
+            this.request = request;
+            this.json = json;
+            this.idempotent = idempotent;
+            this.handler = handler;
+        }
+
+        void succeeded() {
+            if (done) {
+                return;
+            }
+            done = true;
+            assert Logger.lowLevelDebug("http request succeeded");
+            handler.end();
+        }
+
+        void failed(IOException err) {
+            if (done) {
+                return;
+            }
+            done = true;
+            assert Logger.lowLevelDebug("http request failed with err: " + err);
+            handler.exception(err);
+        }
+    }
 
+    // send pending requests on idle or new connections
+    // or pipeline them on the least loaded connection
+    private void dispatch() {
+        if (closed) {
+            Exchange ex;
+            while ((ex = pending.poll()) != null) {
+                ex.failed(new IOException("the http client is closed"));
+            }
+            return;
+        }
+        while (!pending.isEmpty()) {
+            Conn conn = idle.pollFirst();
+            if (conn == null && conns.size() < opts.getMaxConnections()) {
                 try {
-                    loop.addConnectableConnection(
-                        ConnectableConnection.create(remote, new ConnectionOpts().setTimeout(timeout),
-                            RingBuffer.allocate(1024), RingBuffer.allocate(1024)),
-                        null,
-                        new ConnectableConnectionHandler() {
-                            private final HttpRespParser parser = new HttpRespParser(true);
-                            private final Callback<HttpResponse, IOException> cb = new Callback<>() {
-                                @Override
-                                protected void onSucceeded(HttpResponse value) {
-                                    assert Logger.lowLevelDebug("http request succeeded with: " + value);
-                                    handler.accept(null, value);
-                                }
-
-                                @Override
-                                protected void onFailed(IOException err) {
-                                    assert Logger.lowLevelDebug("http request failed with err: " + err);
-                                    handler.accept(err, null);
-                                }
-                            };
-
-                            private void write(ConnectionHandlerContext ctx) {
-                                ctx.connection.getOutBuffer().storeBytesFrom(chnl);
-                            }
-
-                            @Override
-                            public void connected(ConnectableConnectionHandlerContext ctx) {
-                                // write data when connected
-                                write(ctx);
-                            }
-
-                            @Override
-                            public void readable(ConnectionHandlerContext ctx) {
-                                int res = parser.feed(ctx.connection.getInBuffer());
-                                if (res == -1) {
-                                    String msg = parser.getErrorMessage();
-                                    if (msg == null) {
-                                        // want more data
-                                        return;
-                                    }
-                                    // error, close connection
-                                    ctx.connection.close();
-                                    cb.failed(new IOException("external data is not HTTP/1.x format"));
-                                    return;
-                                }
-                                Response resp = parser.getResult();
-                                cb.succeeded(new HttpResponseImpl(resp));
-                                ctx.connection.close();
-                            }
-
-                            @Override
-                            public void writable(ConnectionHandlerContext ctx) {
-                                write(ctx);
-                            }
-
-                            @Override
-                            public void exception(ConnectionHandlerContext ctx, IOException err) {
-                                cb.failed(err);
-                                ctx.connection.close(true);
-                            }
-
-                            @Override
-                            public void remoteClosed(ConnectionHandlerContext ctx) {
-                                ctx.connection.close();
-                                closed(ctx);
-                            }
-
-                            @Override
-                            public void closed(ConnectionHandlerContext ctx) {
-                                if (!cb.isCalled()) {
-                                    cb.failed(new IOException("connection closed before receiving the response"));
-                                }
-                            }
-
-                            @Override
-                            public void removed(ConnectionHandlerContext ctx) {
-                                ctx.connection.close();
-                                if (!cb.isCalled()) {
-                                    cb.failed(new IOException("removed from event loop"));
-                                }
-                            }
-                        }
-                    );
+                    conn = connect();
                 } catch (IOException e) {
-                    assert Logger.lowLevelDebug("http client failed to send request to " + remote + ", " + e);
-                    handler.accept(e, null);
+                    assert Logger.lowLevelDebug("http client failed to connect to " + remote + ", " + e);
+                    pending.poll().failed(e);
+                    continue;
                 }
             }
+            if (conn == null && opts.getPipelineDepth() > 1) {
+                conn = leastLoaded();
+            }
+            if (conn == null) {
+                return; // wait until a connection is available
+            }
+            conn.send(pending.poll());
+        }
+    }
+
+    private Conn connect() throws IOException {
+        ConnectableConnection connection = ConnectableConnection.create(remote, new ConnectionOpts().setTimeout(opts.getTimeout()),
+            RingBuffer.allocate(BUFFER_SIZE), RingBuffer.allocate(BUFFER_SIZE));
+        Conn conn = new Conn(connection);
+        try {
+            loop.addConnectableConnection(connection, null, conn);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        conns.add(conn);
+        assert Logger.lowLevelDebug("http client creates connection " + connection + ", total " + conns.size());
+        return conn;
+    }
+
+    private Conn leastLoaded() {
+        Conn ret = null;
+        for (Conn c : conns) {
+            // only pipeline on connections proved to be kept alive by the server
+            if (!c.reused || !c.keepAlive || c.inflight.size() >= opts.getPipelineDepth()) {
+                continue;
+            }
+            if (ret == null || c.inflight.size() < ret.inflight.size()) {
+                ret = c;
+            }
+        }
+        return ret;
+    }
+
+    private static boolean drained(ReadableByteChannel chnl) {
+        if (chnl instanceof ByteArrayChannel) {
+            return ((ByteArrayChannel) chnl).used() == 0;
+        }
+        return !chnl.isOpen();
+    }
+
+    // the connection may be closed after the response
+    private static boolean isKeepAlive(Response resp) {
+        boolean close = resp.version != null && resp.version.equalsIgnoreCase("HTTP/1.0");
+        boolean delimited = resp.statusCode < 200 || resp.statusCode == 204 || resp.statusCode == 304;
+        if (resp.headers != null) {
+            for (Header h : resp.headers) {
+                String key = h.key.trim();
+                if (key.equalsIgnoreCase("connection")) {
+                    for (String token : h.value.split(",")) {
+                        token = token.trim();
+                        if (token.equalsIgnoreCase("close")) {
+                            return false;
+                        } else if (token.equalsIgnoreCase("keep-alive")) {
+                            close = false;
+                        }
+                    }
+                } else if (key.equalsIgnoreCase("content-length") || key.equalsIgnoreCase("transfer-encoding")) {
+                    delimited = true;
+                }
+            }
+        }
+        // otherwise the body ends when the connection closes
+        return !close && delimited;
+    }
+
+    private class Conn implements ConnectableConnectionHandler {
+        private final ConnectableConnection connection;
+        private boolean connected = false;
+        private boolean reused = false; // at least one response is received
+        private boolean keepAlive = true;
+        private boolean released = false;
+        private final Deque<Exchange> inflight = new ArrayDeque<>(); // requests written or being written, in order
+        private final Deque<ReadableByteChannel> toWrite = new ArrayDeque<>();
+        private boolean writing = false;
+        private boolean writeAgain = false;
+        private HttpRespParser parser = new HttpRespParser(false);
+        private boolean headersReceived = false;
+        private boolean responding = false; // data of the first in-flight response is received
+        private TimerEvent idleTimer;
+
+        Conn(ConnectableConnection connection) {
+            this.connection = connection;
+        }
+
+        void send(Exchange ex) {
+            if (idleTimer != null) {
+                idleTimer.cancel();
+                idleTimer = null;
+            }
+            inflight.add(ex);
+            toWrite.add(ByteArrayChannel.fromFull(ex.request));
+            if (ex.json != null) {
+                toWrite.add(new StreamingSerializer(ex.json));
+            }
+            if (connected) {
+                write();
+            }
+        }
+
+        private void write() {
+            // storing into the out buffer may trigger the writable event
+            if (writing) {
+                writeAgain = true;
+                return;
+            }
+            writing = true;
+            try {
+                do {
+                    writeAgain = false;
+                    write0();
+                } while (writeAgain);
+            } finally {
+                writing = false;
+            }
+        }
+
+        private void write0() {
+            RingBuffer out = connection.getOutBuffer();
+            ReadableByteChannel chnl;
+            while ((chnl = toWrite.peek()) != null) {
+                if (!drained(chnl)) {
+                    int size;
+                    try {
+                        size = out.storeBytesFrom(chnl);
+                    } catch (IOException e) {
+                        // it's memory operation, should not happen
+                        throw new RuntimeException(e);
+                    }
+                    if (!drained(chnl)) {
+                        if (size == 0) {
+                            return; // the out buffer is full, wait for the writable event
+                        }
+                        continue;
+                    }
+                }
+                toWrite.poll();
+            }
+        }
+
+        private void becomeIdle() {
+            idle.addFirst(this);
+            idleTimer = loop.getSelectorEventLoop().delay(opts.getIdleTimeout(), () -> {
+                idleTimer = null;
+                assert Logger.lowLevelDebug("http client connection " + connection + " idle timeout");
+                connection.close();
+                release(new IOException("idle timeout"));
+            });
+        }
+
+        private void responseReceived(Exchange ex) {
+            inflight.poll();
+            parser = new HttpRespParser(false);
+            headersReceived = false;
+            responding = false;
+            reused = true;
+            ex.succeeded();
+            if (released) {
+                return; // the client is closed by the handler
+            }
+            if (!keepAlive) {
+                connection.close();
+                release(new IOException("connection closed by the server"));
+                return;
+            }
+            if (inflight.isEmpty()) {
+                becomeIdle();
+            }
+            dispatch();
+        }
+
+        // the connection is closed, requests not processed by the server are sent again
+        private void release(IOException err) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (idleTimer != null) {
+                idleTimer.cancel();
+                idleTimer = null;
+            }
+            conns.remove(this);
+            idle.remove(this);
+            toWrite.clear();
+
+            List<Exchange> retry = new ArrayList<>();
+            boolean first = true;
+            for (Exchange ex : inflight) {
+                boolean answered = first && responding;
+                first = false;
+                // requests after a response which closes the connection are never processed,
+                // and an idempotent request may fail because the server just closed the reused connection
+                if (!answered && !ex.retried && (!keepAlive || (reused && ex.idempotent))) {
+                    ex.retried = true;
+                    retry.add(ex);
+                } else {
+                    ex.failed(err);
+                }
+            }
+            inflight.clear();
+            for (int i = retry.size() - 1; i >= 0; --i) {
+                pending.addFirst(retry.get(i));
+            }
+            dispatch();
+        }
+
+        @Override
+        public void connected(ConnectableConnectionHandlerContext ctx) {
+            connected = true;
+            // write data when connected
+            write();
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            RingBuffer in = connection.getInBuffer();
+            // pipelined responses may be in the buffer together
+            while (in.used() > 0 && !released) {
+                Exchange ex = inflight.peek();
+                if (ex == null) {
+                    Logger.warn(LogType.INVALID_EXTERNAL_DATA, "unexpected data from " + remote + " when no request is sent");
+                    connection.close();
+                    release(new IOException("unexpected data"));
+                    return;
+                }
+                responding = true;
+                if (!headersReceived) {
+                    if (parser.feed(in) == -1) {
+                        failedIfError();
+                        return;
+                    }
+                    headersReceived = true;
+                    Response resp = parser.getResult();
+                    if (!isKeepAlive(resp)) {
+                        keepAlive = false;
+                    }
+                    ex.handler.headers(new HttpResponseImpl(resp, null));
+                }
+                if (parser.isBodyPending()) {
+                    int res = parser.feedBody(in, data -> {
+                        ex.handler.chunk(data);
+                        return true;
+                    });
+                    if (res == -1) {
+                        failedIfError();
+                        return;
+                    }
+                }
+                responseReceived(ex);
+            }
+        }
+
+        private void failedIfError() {
+            String msg = parser.getErrorMessage();
+            if (msg == null) {
+                // want more data
+                return;
+            }
+            // error, close connection
+            connection.close();
+            release(new IOException("external data is not HTTP/1.x format"));
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            write();
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            connection.close(true);
+            release(err);
+        }
+
+        @Override
+        public void remoteClosed(ConnectionHandlerContext ctx) {
+            connection.close();
+            closed(ctx);
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            release(new IOException("connection closed before receiving the response"));
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            connection.close();
+            release(new IOException("removed from event loop"));
+        }
+    }
+
+    // read the whole body before calling the handler
+    private static StreamingResponseHandler collect(ResponseHandler handler) {
+        return new StreamingResponseHandler() {
+            private HttpResponseImpl headers;
+            private ByteArray body = null;
+
+            @Override
+            public void headers(HttpResponse response) {
+                headers = (HttpResponseImpl) response;
+            }
+
+            @Override
+            public void chunk(ByteArray data) {
+                body = body == null ? data : body.concat(data);
+            }
+
+            @Override
+            public void end() {
+                handler.accept(null, new HttpResponseImpl(headers.getResponse(), body));
+            }
+
+            @Override
+            public void exception(IOException err) {
+                handler.accept(err, null);
+            }
         };
     }
 
@@ -190,6 +529,16 @@ public class Http1ClientImpl implements HttpClient {
             return;
         }
         closed = true;
+        if (loop == null) {
+            return; // nothing sent
+        }
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            for (Conn conn : new ArrayList<>(conns)) {
+                conn.connection.close();
+                conn.release(new IOException("the http client is closed"));
+            }
+            dispatch(); // fail the pending requests
+        });
         if (noInputLoop) {
             // should close the input loop because it's created by the lib
             try {
@@ -7,9 +7,15 @@ import vproxy.util.ByteArray;
 
 public class HttpResponseImpl implements HttpResponse {
     private final Response response;
+    private final ByteArray body;
 
     public HttpResponseImpl(Response response) {
+        this(response, response.body);
+    }
+
+    public HttpResponseImpl(Response response, ByteArray body) {
         this.response = response;
+        this.body = body;
     }
 
     @Override
@@ -32,7 +38,11 @@ public class HttpResponseImpl implements HttpResponse {
 
     @Override
     public ByteArray body() {
-        return response.body;
+        return body;
+    }
+
+    Response getResponse() {
+        return response;
     }
 
     @Override
@@ -12,9 +12,11 @@
 
 package vjson;
 
+import vjson.cs.ByteBufferCharStream;
 import vjson.cs.CharArrayCharStream;
 import vjson.parser.ParserUtils;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 public interface CharStream extends Iterator<Character>, Iterable<Character> {
@@ -26,6 +28,10 @@ public interface CharStream extends Iterator<Character>, Iterable<Character> {
         return from(string.toCharArray());
     }
 
+    static CharStream from(ByteBuffer utf8) {
+        return new ByteBufferCharStream(utf8);
+    }
+
     boolean hasNext(int i);
 
     char moveNextAndGet();
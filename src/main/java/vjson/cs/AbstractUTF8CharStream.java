@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 wkgcass (https://github.com/wkgcass)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package vjson.cs;
+
+import vjson.CharStream;
+import vjson.simple.LazyString;
+
+/**
+ * A char stream which decodes utf-8 bytes on the fly.<br>
+ * The bytes should not be modified while the stream is still in use, the lazy strings built from it copy their bytes.<br>
+ * Malformed sequences are decoded as U+FFFD, and a character is never split between two streams.
+ */
+public abstract class AbstractUTF8CharStream implements CharStream {
+    private int pos = 0; // index of the next byte to read
+    private char pendingLow = 0; // the low surrogate to return when the last code point is supplementary
+
+    protected abstract int byteLength();
+
+    protected abstract byte byteAt(int idx);
+
+    protected abstract byte[] copyBytes(int from, int len);
+
+    // the length of the sequence starting with b, or 0 if b cannot start a sequence
+    private static int sequenceLength(int b) {
+        if ((b & 0b1110_0000) == 0b1100_0000) {
+            return 2;
+        } else if ((b & 0b1111_0000) == 0b1110_0000) {
+            return 3;
+        } else if ((b & 0b1111_1000) == 0b1111_0000) {
+            return 4;
+        } else {
+            return 0;
+        }
+    }
+
+    // decode one code point at pos, return the code point and set `decodedLen`
+    private int decodedLen;
+
+    private int decodeAt(int pos) {
+        int b = byteAt(pos);
+        if (b >= 0) {
+            decodedLen = 1;
+            return b;
+        }
+        b &= 0xff;
+        int n = sequenceLength(b);
+        if (n == 0 || pos + n > byteLength()) {
+            decodedLen = 1;
+            return 0xFFFD;
+        }
+        int cp = b & (0xff >> (n + 1));
+        for (int i = 1; i < n; ++i) {
+            int x = byteAt(pos + i) & 0xff;
+            if ((x & 0b1100_0000) != 0b1000_0000) {
+                decodedLen = i;
+                return 0xFFFD;
+            }
+            cp = (cp << 6) | (x & 0b0011_1111);
+        }
+        decodedLen = n;
+        return cp;
+    }
+
+    @Override
+    public boolean hasNext(int i) {
+        if (i == 1) {
+            return pendingLow != 0 || pos < byteLength();
+        }
+        int p = pos;
+        if (pendingLow != 0) {
+            --i;
+        }
+        while (i > 0) {
+            if (p >= byteLength()) {
+                return false;
+            }
+            int cp = decodeAt(p);
+            p += decodedLen;
+            i -= Character.charCount(cp);
+        }
+        return true;
+    }
+
+    @Override
+    public char moveNextAndGet() {
+        if (pendingLow != 0) {
+            char c = pendingLow;
+            pendingLow = 0;
+            return c;
+        }
+        int cp = decodeAt(pos);
+        pos += decodedLen;
+        if (Character.isBmpCodePoint(cp)) {
+            return (char) cp;
+        }
+        pendingLow = Character.lowSurrogate(cp);
+        return Character.highSurrogate(cp);
+    }
+
+    @Override
+    public char peekNext(int i) {
+        if (pendingLow != 0) {
+            if (i == 1) {
+                return pendingLow;
+            }
+            --i;
+        }
+        int p = pos;
+        while (true) {
+            int cp = decodeAt(p);
+            p += decodedLen;
+            if (Character.isBmpCodePoint(cp)) {
+                if (i == 1) {
+                    return (char) cp;
+                }
+                --i;
+            } else {
+                if (i == 1) {
+                    return Character.highSurrogate(cp);
+                } else if (i == 2) {
+                    return Character.lowSurrogate(cp);
+                }
+                i -= 2;
+            }
+        }
+    }
+
+    /**
+     * Read the rest of a string if it's closed by `quote` in this stream
+     * and does not contain escaped or control characters.
+     * The stream moves past the closing quote if succeeded.
+     *
+     * @return the string, or null if it cannot be read in this way, in which case nothing is consumed
+     */
+    public LazyString readPlainString(char quote) {
+        if (pendingLow != 0) {
+            return null;
+        }
+        int len = byteLength();
+        for (int i = pos; i < len; ++i) {
+            byte b = byteAt(i);
+            if (b == quote) {
+                LazyString s = new LazyString(copyBytes(pos, i - pos));
+                pos = i + 1;
+                return s;
+            }
+            if (b == '\\' || (b >= 0 && b < 32)) {
+                return null;
+            }
+            // other ascii or bytes of multi-byte sequences
+            // quotes never appear inside multi-byte sequences
+        }
+        return null;
+    }
+}
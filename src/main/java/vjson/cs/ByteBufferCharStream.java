@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 wkgcass (https://github.com/wkgcass)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package vjson.cs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class ByteBufferCharStream extends AbstractUTF8CharStream {
+    private final ByteBuffer buffer;
+    private final byte[] array; // the backing array, or null if not accessible
+    private final int offset;
+    private final int length;
+
+    /**
+     * bytes from position to limit of the buffer will be used,
+     * the position and limit of the buffer will not be modified
+     */
+    public ByteBufferCharStream(ByteBuffer buffer) throws NullPointerException {
+        if (buffer == null) {
+            throw new NullPointerException();
+        }
+        this.buffer = buffer;
+        this.length = buffer.limit() - buffer.position();
+        if (buffer.hasArray()) {
+            // reading the array directly is much faster than calling buffer.get(idx)
+            this.array = buffer.array();
+            this.offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            this.array = null;
+            this.offset = buffer.position();
+        }
+    }
+
+    @Override
+    protected int byteLength() {
+        return length;
+    }
+
+    @Override
+    protected byte byteAt(int idx) {
+        if (array != null) {
+            return array[offset + idx];
+        }
+        return buffer.get(offset + idx);
+    }
+
+    @Override
+    protected byte[] copyBytes(int from, int len) {
+        if (array != null) {
+            return Arrays.copyOfRange(array, offset + from, offset + from + len);
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            bytes[i] = buffer.get(offset + from + i);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufferCharStream(" + buffer + ")";
+    }
+}
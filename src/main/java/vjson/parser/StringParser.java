@@ -16,7 +16,10 @@ import vjson.CharStream;
 import vjson.JSON;
 import vjson.Parser;
 import vjson.ex.JsonParseException;
+import vjson.cs.AbstractUTF8CharStream;
 import vjson.ex.ParserFinishedException;
+import vjson.listener.EmptyParserListener;
+import vjson.simple.LazyString;
 import vjson.simple.SimpleString;
 import vjson.util.TextBuilder;
 
@@ -38,6 +41,7 @@ public class StringParser implements Parser<JSON.String> {
     private int u2 = -1;
     private int u3 = -1;
     // u4 can be local variable
+    private LazyString lazy; // read from utf-8 bytes without going through the state machine
 
     public StringParser() {
         this(ParserOptions.DEFAULT);
@@ -55,6 +59,7 @@ public class StringParser implements Parser<JSON.String> {
     public void reset() {
         state = 0;
         builder.clear();
+        lazy = null;
         // start/u1/2/3 can keep their values
     }
 
@@ -79,6 +84,26 @@ public class StringParser implements Parser<JSON.String> {
         opts.getListener().onStringChar(this, c);
     }
 
+    // the whole string can be read at once if it's in a utf-8 stream and has no escaped characters
+    private boolean tryReadPlainString(CharStream cs) {
+        if (!(cs instanceof AbstractUTF8CharStream)) {
+            return false;
+        }
+        LazyString s = ((AbstractUTF8CharStream) cs).readPlainString(beginning);
+        if (s == null) {
+            return false;
+        }
+        if (opts.getListener() == EmptyParserListener.INSTANCE) {
+            lazy = s;
+        } else {
+            // the listener may care about the chars
+            for (char c : s.toJavaObject().toCharArray()) {
+                append(c);
+            }
+        }
+        return true;
+    }
+
     private boolean tryParse(CharStream cs, boolean isComplete) {
         char c;
         String err;
@@ -96,9 +121,12 @@ public class StringParser implements Parser<JSON.String> {
                     throw ParserUtils.err(opts, err);
                 }
                 ++state;
+                if (tryReadPlainString(cs)) {
+                    state = 7;
+                }
             }
         }
-        while (cs.hasNext()) {
+        while (state != 7 && cs.hasNext()) {
             if (state == 1) {
                 c = cs.moveNextAndGet();
                 if (c == '\\') {
@@ -248,7 +276,13 @@ public class StringParser implements Parser<JSON.String> {
         }
         if (tryParse(cs, isComplete)) {
             opts.getListener().onStringEnd(this);
-            SimpleString ret = new SimpleString(builder.toString());
+            JSON.String ret;
+            if (lazy != null) {
+                ret = lazy;
+                lazy = null;
+            } else {
+                ret = new SimpleString(builder.toString());
+            }
             opts.getListener().onString(ret);
 
             ParserUtils.checkEnd(cs, opts, "string");
@@ -265,7 +299,13 @@ public class StringParser implements Parser<JSON.String> {
         }
         if (tryParse(cs, isComplete)) {
             opts.getListener().onStringEnd(this);
-            String s = builder.toString();
+            String s;
+            if (lazy != null) {
+                s = lazy.toJavaObject();
+                lazy = null;
+            } else {
+                s = builder.toString();
+            }
             opts.getListener().onString(s);
 
             ParserUtils.checkEnd(cs, opts, "string");
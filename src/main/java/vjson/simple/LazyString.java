@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 wkgcass (https://github.com/wkgcass)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package vjson.simple;
+
+import vjson.JSON;
+import vjson.Stringifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * A string value whose utf-8 bytes are decoded on first access.<br>
+ * The bytes are copied from the input, so the value is immutable
+ * and does not keep the input alive.
+ */
+public class LazyString implements JSON.String {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] bytes;
+    private volatile String str;
+    private volatile String stringified;
+
+    /**
+     * @param bytes utf-8 bytes of the string, owned by this object
+     */
+    public LazyString(byte[] bytes) throws NullPointerException {
+        if (bytes == null) {
+            throw new NullPointerException();
+        }
+        this.bytes = bytes;
+    }
+
+    @Override
+    public String toJavaObject() {
+        String s = str;
+        if (s == null) {
+            s = bytes.length == 0 ? "" : new String(bytes, StandardCharsets.UTF_8);
+            str = s;
+        }
+        return s;
+    }
+
+    @Override
+    public String stringify() {
+        String s = stringified;
+        if (s == null) {
+            s = JSON.String.stringify(toJavaObject());
+            stringified = s;
+        }
+        return s;
+    }
+
+    @Override
+    public String pretty() {
+        return stringify();
+    }
+
+    @Override
+    public void stringify(StringBuilder sb, Stringifier sfr) {
+        sb.append(stringify());
+    }
+
+    // the bytes are not serializable
+    private Object writeReplace() {
+        return new SimpleString(toJavaObject());
+    }
+
+    @Override
+    public String toString() {
+        return "String(" + toJavaObject() + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof JSON.String)) return false;
+        JSON.String that = (JSON.String) o;
+        return toJavaObject().equals(that.toJavaObject());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(toJavaObject());
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 wkgcass (https://github.com/wkgcass)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package vjson.util;
+
+import vjson.JSON;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes an instance into utf-8 bytes incrementally.<br>
+ * The output is the same as {@link JSON.Instance#stringify()}, but the whole document is never built in memory:
+ * each call to {@link #serialize(ByteBuffer)} writes as many bytes as the buffer can hold,
+ * and the next call continues from where the last one stopped.<br>
+ * It's also a {@link ReadableByteChannel}, so it can be stored into any buffer accepting channels.
+ * The channel returns -1 and is closed after all bytes are read.<br>
+ * Note: stringify() escapes all non-ascii chars, so the output is plain ascii.
+ */
+public class StreamingSerializer implements ReadableByteChannel {
+    private final JSON.Instance<?> inst;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private boolean started = false;
+    private boolean finished = false;
+
+    // the text being written
+    private String text;
+    private int textOff;
+    // whether the text is a raw string, which should be quoted and escaped
+    private boolean textIsRaw;
+    // the escaped form of one char which is not fully written
+    private final byte[] escaped = new byte[6];
+    private int escapedOff;
+    private int escapedLen;
+
+    public StreamingSerializer(JSON.Instance<?> inst) throws NullPointerException {
+        if (inst == null)
+            throw new NullPointerException();
+        this.inst = inst;
+    }
+
+    /**
+     * @return byte length of the serialized instance, the same as stringify().length()
+     */
+    public static long length(JSON.Instance<?> inst) {
+        if (inst instanceof JSON.Object) {
+            JSON.Object o = (JSON.Object) inst;
+            long len = 2; // {}
+            List<String> keys = o.keyList();
+            Map<String, Integer> occurrence = occurrenceMap(o, keys);
+            for (int i = 0; i < keys.size(); ++i) {
+                if (i != 0) {
+                    len += 1; // ,
+                }
+                String key = keys.get(i);
+                len += stringLength(key) + 1 /* : */ + length(value(o, key, occurrence));
+            }
+            return len;
+        } else if (inst instanceof JSON.Array) {
+            JSON.Array a = (JSON.Array) inst;
+            long len = 2; // []
+            for (int i = 0; i < a.length(); ++i) {
+                if (i != 0) {
+                    len += 1; // ,
+                }
+                len += length(a.get(i));
+            }
+            return len;
+        } else if (inst instanceof JSON.String) {
+            return stringLength(((JSON.String) inst).toJavaObject());
+        } else {
+            return inst.stringify().length();
+        }
+    }
+
+    private static long stringLength(String s) {
+        long len = 2; // ""
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (31 < c && c < 127) {
+                len += (c == '\"' || c == '\\') ? 2 : 1;
+            } else if (c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
+                len += 2;
+            } else {
+                len += 6; // \\uXXXX
+            }
+        }
+        return len;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @param dst the buffer to write into, from its position to its limit
+     * @return bytes written, 0 if the buffer is full or the serialization is finished
+     */
+    public int serialize(ByteBuffer dst) {
+        int start = dst.position();
+        while (!finished && dst.hasRemaining()) {
+            if (escapedOff < escapedLen) {
+                int n = Math.min(escapedLen - escapedOff, dst.remaining());
+                dst.put(escaped, escapedOff, n);
+                escapedOff += n;
+                continue;
+            }
+            if (text != null) {
+                if (textIsRaw) {
+                    writeRaw(dst);
+                } else {
+                    writePlain(dst);
+                }
+                continue;
+            }
+            next();
+        }
+        return dst.position() - start;
+    }
+
+    private void writePlain(ByteBuffer dst) {
+        int n = Math.min(text.length() - textOff, dst.remaining());
+        for (int i = 0; i < n; ++i) {
+            dst.put((byte) text.charAt(textOff + i));
+        }
+        textOff += n;
+        if (textOff == text.length()) {
+            text = null;
+        }
+    }
+
+    // textOff == -1 means the opening quote, textOff == text.length() means the closing quote
+    private void writeRaw(ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+            if (textOff == -1) {
+                dst.put((byte) '\"');
+                ++textOff;
+                continue;
+            }
+            if (textOff == text.length()) {
+                dst.put((byte) '\"');
+                text = null;
+                return;
+            }
+            char c = text.charAt(textOff++);
+            if (31 < c && c < 127 && c != '\"' && c != '\\') {
+                dst.put((byte) c);
+                continue;
+            }
+            escape(c);
+            return; // let the caller write the escaped bytes
+        }
+    }
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private void escape(char c) {
+        escapedOff = 0;
+        escaped[0] = '\\';
+        switch (c) {
+            case '\"':
+            case '\\':
+                escaped[1] = (byte) c;
+                escapedLen = 2;
+                return;
+            case '\b':
+                escaped[1] = 'b';
+                escapedLen = 2;
+                return;
+            case '\f':
+                escaped[1] = 'f';
+                escapedLen = 2;
+                return;
+            case '\n':
+                escaped[1] = 'n';
+                escapedLen = 2;
+                return;
+            case '\r':
+                escaped[1] = 'r';
+                escapedLen = 2;
+                return;
+            case '\t':
+                escaped[1] = 't';
+                escapedLen = 2;
+                return;
+        }
+        escaped[1] = 'u';
+        escaped[2] = HEX[(c >> 12) & 0xf];
+        escaped[3] = HEX[(c >> 8) & 0xf];
+        escaped[4] = HEX[(c >> 4) & 0xf];
+        escaped[5] = HEX[c & 0xf];
+        escapedLen = 6;
+    }
+
+    private void setText(String text, boolean raw) {
+        this.text = text;
+        this.textIsRaw = raw;
+        this.textOff = raw ? -1 : 0;
+    }
+
+    // prepare the next text to write
+    private void next() {
+        if (!started) {
+            started = true;
+            start(inst);
+            return;
+        }
+        Frame frame = stack.peek();
+        if (frame == null) {
+            finished = true;
+            return;
+        }
+        frame.next(this);
+    }
+
+    private void start(JSON.Instance<?> inst) {
+        if (inst instanceof JSON.Object) {
+            stack.push(new ObjectFrame((JSON.Object) inst));
+            setText("{", false);
+        } else if (inst instanceof JSON.Array) {
+            stack.push(new ArrayFrame((JSON.Array) inst));
+            setText("[", false);
+        } else if (inst instanceof JSON.String) {
+            setText(((JSON.String) inst).toJavaObject(), true);
+        } else {
+            setText(inst.stringify(), false);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (finished) {
+            return -1;
+        }
+        int n = serialize(dst);
+        if (n == 0 && finished) {
+            return -1;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !finished;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        stack.clear();
+        text = null;
+        escapedLen = 0;
+    }
+
+    private interface Frame {
+        void next(StreamingSerializer s);
+    }
+
+    private static class ObjectFrame implements Frame {
+        private final JSON.Object obj;
+        private final List<String> keys;
+        private final Map<String, Integer> occurrence; // only used when keys are duplicated
+        private int idx = 0;
+        private int state = 0; // 0 -> comma or end, 1 -> key, 2 -> colon, 3 -> value
+        private String key;
+
+        ObjectFrame(JSON.Object obj) {
+            this.obj = obj;
+            this.keys = obj.keyList();
+            this.occurrence = occurrenceMap(obj, keys);
+        }
+
+        @Override
+        public void next(StreamingSerializer s) {
+            switch (state) {
+                case 0:
+                    if (idx == keys.size()) {
+                        s.stack.pop();
+                        s.setText("}", false);
+                        return;
+                    }
+                    state = 1;
+                    if (idx != 0) {
+                        s.setText(",", false);
+                        return;
+                    }
+                    writeKey(s);
+                    return;
+                case 1:
+                    writeKey(s);
+                    return;
+                case 2:
+                    state = 3;
+                    s.setText(":", false);
+                    return;
+                default:
+                    state = 0;
+                    ++idx;
+                    s.start(value(obj, key, occurrence));
+            }
+        }
+
+        private void writeKey(StreamingSerializer s) {
+            key = keys.get(idx);
+            state = 2;
+            s.setText(key, true);
+        }
+    }
+
+    private static class ArrayFrame implements Frame {
+        private final JSON.Array arr;
+        private int idx = 0;
+        private boolean commaWritten = false;
+
+        ArrayFrame(JSON.Array arr) {
+            this.arr = arr;
+        }
+
+        @Override
+        public void next(StreamingSerializer s) {
+            if (idx == arr.length()) {
+                s.stack.pop();
+                s.setText("]", false);
+                return;
+            }
+            if (idx != 0 && !commaWritten) {
+                commaWritten = true;
+                s.setText(",", false);
+                return;
+            }
+            commaWritten = false;
+            s.start(arr.get(idx++));
+        }
+    }
+
+    // keys may be duplicated, count the occurrence of each key to get the corresponding value
+    private static JSON.Instance<?> value(JSON.Object obj, String key, Map<String, Integer> occurrence) {
+        if (occurrence == null) {
+            return obj.get(key);
+        }
+        int n = occurrence.getOrDefault(key, 0);
+        occurrence.put(key, n + 1);
+        return obj.getAll(key).get(n);
+    }
+
+    private static Map<String, Integer> occurrenceMap(JSON.Object obj, List<String> keys) {
+        return obj.keySet().size() == keys.size() ? null : new HashMap<>();
+    }
+}
@@ -3,6 +3,7 @@ package vproxy.app;
 import vproxy.app.cmd.CmdResult;
 import vproxy.app.cmd.SystemCommand;
 import vproxy.app.mesh.DiscoveryConfigLoader;
+import vproxy.component.accesslog.AccessLog;
 import vproxy.component.app.Shutdown;
 import vproxy.component.app.StdIOController;
 import vproxy.component.exception.XException;
@@ -44,6 +45,8 @@ public class Main {
         "\n" +
         "\n\t\tnoStartupBindCheck                           Disable bind check when loading config" +
         "\n\t\t                                             when launching" +
+        "\n" +
+        "\n\t\taccessLog ${filename}                        Write binary access logs into the file" +
         "";
 
     private static void beforeStart() {
@@ -234,6 +237,24 @@ public class Main {
                     ++i;
                     pidFilePath = next;
                     break;
+                case "accessLog":
+                    if (next == null) {
+                        System.err.println("access log file path should be specified");
+                        System.exit(1);
+                        return;
+                    }
+                    // handle access log file path, so increase the cursor
+                    ++i;
+                    try {
+                        AccessLog.enable(next,
+                            Long.parseLong(System.getProperty("vproxy.accessLog.file.maxSize", "" + (64 * 1024 * 1024))),
+                            Integer.parseInt(System.getProperty("vproxy.accessLog.file.maxCount", "10")));
+                    } catch (Exception e) {
+                        System.err.println("enabling access log failed: " + Utils.formatErr(e));
+                        System.exit(1);
+                        return;
+                    }
+                    break;
                 case "noLoadLast":
                     loaded = true; // set this flag to true, then last config won't be loaded
                     noLoad = true;
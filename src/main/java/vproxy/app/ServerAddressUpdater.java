@@ -1,6 +1,5 @@
 package vproxy.app;
 
-import vproxy.component.exception.NotFoundException;
 import vproxy.component.svrgroup.ServerGroup;
 import vproxy.dns.ResolveListener;
 import vproxy.dns.Resolver;
@@ -13,9 +12,7 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -56,24 +53,17 @@ public class ServerAddressUpdater implements ResolveListener {
         addresses.addAll(c.ipv4);
         addresses.addAll(c.ipv6);
 
-        List<String> groupNames = Application.get().serverGroupHolder.names();
-
-        for (String groupName : groupNames) {
-            ServerGroup grp;
-            try {
-                grp = Application.get().serverGroupHolder.get(groupName);
-            } catch (NotFoundException ignore) {
-                // ignore if it's deleted
-                continue;
-            }
-
-            List<ServerGroup.ServerHandle> handles = grp.getServerHandles();
-            for (ServerGroup.ServerHandle h : handles) {
-                // host name matches, and the address is not in new record
-                if (host.equals(/*may be null*/h.hostName) && !addresses.contains(h.server.getAddress())) {
-                    doReplace(grp, c, h);
+        // only servers with the host name are retrieved from the index
+        Map<ServerGroup, List<ServerGroup.ServerHandle>> groups = ServerGroup.getServerHandlesByHostName(host);
+        for (Map.Entry<ServerGroup, List<ServerGroup.ServerHandle>> entry : groups.entrySet()) {
+            List<ServerGroup.ServerHandle> toReplace = new ArrayList<>();
+            for (ServerGroup.ServerHandle h : entry.getValue()) {
+                // the address is not in new record
+                if (!addresses.contains(h.server.getAddress())) {
+                    toReplace.add(h);
                 }
             }
+            doReplace(entry.getKey(), c, toReplace);
         }
     }
 
@@ -97,56 +87,46 @@ public class ServerAddressUpdater implements ResolveListener {
     }
 
     private static void handleMissing(String host, Resolver.Cache c, Set<InetAddress> missing) {
-        List<String> groupNames = Application.get().serverGroupHolder.names();
-
-        for (String groupName : groupNames) {
-            ServerGroup grp;
-            try {
-                grp = Application.get().serverGroupHolder.get(groupName);
-            } catch (NotFoundException ignore) {
-                // ignore if it's deleted
-                continue;
-            }
-
-            List<ServerGroup.ServerHandle> handles = grp.getServerHandles();
-            for (ServerGroup.ServerHandle h : handles) {
-                // host name matches, and the address is missing
-                if (host.equals(/*may be null*/h.hostName) && missing.contains(h.server.getAddress())) {
-                    doReplace(grp, c, h);
+        Map<ServerGroup, List<ServerGroup.ServerHandle>> groups = ServerGroup.getServerHandlesByHostName(host);
+        for (Map.Entry<ServerGroup, List<ServerGroup.ServerHandle>> entry : groups.entrySet()) {
+            List<ServerGroup.ServerHandle> toReplace = new ArrayList<>();
+            for (ServerGroup.ServerHandle h : entry.getValue()) {
+                // the address is missing
+                if (missing.contains(h.server.getAddress())) {
+                    toReplace.add(h);
                 }
             }
+            doReplace(entry.getKey(), c, toReplace);
         }
     }
 
-    private static void doReplace(ServerGroup grp, Resolver.Cache c, ServerGroup.ServerHandle h) {
-        Tuple<Inet4Address, Inet6Address> tup = c.next();
-        if (h.server.getAddress() instanceof Inet4Address) {
-            if (tup.left != null) {
-                Logger.info(LogType.RESOLVE_REPLACE,
-                    "replace grp=" + grp.alias +
-                        ", server=" + h.alias +
-                        ", old=" + h.server.getAddress() +
-                        ", new=" + tup.left);
-                try {
-                    grp.replaceIp(h.alias, tup.left);
-                } catch (NotFoundException ignore) {
-                    // ignore if it's deleted
-                }
-            }
-        } else if (h.server.getAddress() instanceof Inet6Address) {
-            if (tup.right != null) {
-                Logger.info(LogType.RESOLVE_REPLACE,
-                    "replace grp=" + grp.alias +
-                        ", server=" + h.alias +
-                        ", old=" + h.server.getAddress() +
-                        ", new=" + tup.right);
-                try {
-                    grp.replaceIp(h.alias, tup.right);
-                } catch (NotFoundException ignore) {
-                    // ignore if it's deleted
-                }
+    // replace servers of one group in one batch
+    private static void doReplace(ServerGroup grp, Resolver.Cache c, List<ServerGroup.ServerHandle> handles) {
+        if (handles.isEmpty())
+            return;
+        Map<ServerGroup.ServerHandle, InetAddress> toReplace = new HashMap<>();
+        for (ServerGroup.ServerHandle h : handles) {
+            Tuple<Inet4Address, Inet6Address> tup = c.next();
+            InetAddress newIp;
+            if (h.server.getAddress() instanceof Inet4Address) {
+                newIp = tup.left;
+            } else if (h.server.getAddress() instanceof Inet6Address) {
+                newIp = tup.right;
+            } else {
+                continue; // should not happen, we ignore
             }
-        } // else should not happen, we ignore
+            if (newIp == null)
+                continue;
+            Logger.info(LogType.RESOLVE_REPLACE,
+                "replace grp=" + grp.alias +
+                    ", server=" + h.alias +
+                    ", old=" + h.server.getAddress() +
+                    ", new=" + newIp);
+            toReplace.put(h, newIp);
+        }
+        if (!toReplace.isEmpty()) {
+            grp.replaceIp(toReplace);
+        }
     }
 
     @Override
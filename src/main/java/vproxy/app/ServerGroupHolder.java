@@ -46,6 +46,10 @@ public class ServerGroupHolder {
     }
 
     void clear() {
+        // destroy the groups, so they are removed from the host name index as well
+        for (ServerGroup g : map.values()) {
+            g.destroy();
+        }
         map.clear();
     }
 
@@ -604,8 +604,7 @@ public class Command {
                     case u:
                         if (targetResource != null)
                             throw new Exception(cmd.resource.type.fullname + " is on top level");
-                        // only check creation for tcp lb and secg
-                        // the other two does not have creation param
+                        // check creation for tcp lb, socks5, secg and elg
                         if (cmd.action == Action.a) {
                             if (cmd.resource.type == ResourceType.tl) {
                                 TcpLBHandle.checkCreateTcpLB(cmd);
@@ -613,13 +612,17 @@ public class Command {
                                 Socks5ServerHandle.checkCreateSocks5Server(cmd);
                             } else if (cmd.resource.type == ResourceType.secg) {
                                 SecurityGroupHandle.checkCreateSecurityGroup(cmd);
-                            } // the other two does not need check
+                            } else if (cmd.resource.type == ResourceType.elg) {
+                                EventLoopGroupHandle.checkCreateEventLoopGroup(cmd);
+                            }
                         }
                         if (cmd.action == Action.u) {
                             if (cmd.resource.type == ResourceType.tl) {
                                 TcpLBHandle.checkUpdateTcpLB(cmd);
                             } else if (cmd.resource.type == ResourceType.socks5) {
                                 Socks5ServerHandle.checkUpdateSocks5Server(cmd);
+                            } else if (cmd.resource.type == ResourceType.elg) {
+                                EventLoopGroupHandle.checkUpdateEventLoopGroup(cmd);
                             } else if (cmd.resource.type != ResourceType.secg)
                                 throw new Exception("unsupported action " + cmd.action.fullname + " for " + cmd.resource.type.fullname);
                         }
@@ -815,9 +818,12 @@ public class Command {
             case elg: // top level
                 switch (action) {
                     case l:
-                    case L:
                         List<String> elgNames = EventLoopGroupHandle.names();
                         return new CmdResult(elgNames, elgNames, utilJoinList(elgNames));
+                    case L:
+                        List<EventLoopGroupHandle.EventLoopGroupRef> elgRefs = EventLoopGroupHandle.details();
+                        List<String> elgRefStrList = elgRefs.stream().map(Object::toString).collect(Collectors.toList());
+                        return new CmdResult(elgRefs, elgRefStrList, utilJoinList(elgRefStrList));
                     case a:
                         EventLoopGroupHandle.add(this);
                         return new CmdResult();
@@ -826,13 +832,19 @@ public class Command {
                     case R:
                         EventLoopGroupHandle.forceRemvoe(this);
                         return new CmdResult();
+                    case u:
+                        EventLoopGroupHandle.update(this);
+                        return new CmdResult();
                 }
             case el: // can only be retrieved from event loop group
                 switch (action) {
                     case l:
-                    case L:
                         List<String> elNames = EventLoopHandle.names(targetResource);
                         return new CmdResult(elNames, elNames, utilJoinList(elNames));
+                    case L:
+                        List<EventLoopHandle.EventLoopRef> elRefs = EventLoopHandle.details(targetResource);
+                        List<String> elRefStrList = elRefs.stream().map(EventLoopHandle.EventLoopRef::toString).collect(Collectors.toList());
+                        return new CmdResult(elRefs, elRefStrList, utilJoinList(elRefStrList));
                     case a:
                         EventLoopHandle.add(this);
                         return new CmdResult();
@@ -391,7 +391,7 @@ public class HelpCommand {
         period("period", null, "health check period"),
         up("up", null, "health check up times"),
         down("down", null, "health check down times"),
-        method("method", "meth", "method to retrieve a server"),
+        method("method", "meth", "method to retrieve a server or an event loop"),
         weight("weight", "w", "weight"),
         dft("default", null, "enum: allow or deny"),
         network("network", "net", "network: $network/$mask"),
@@ -448,7 +448,7 @@ public class HelpCommand {
                     , new ResActParamMan(ParamMan.servergroups, "used as the backend servers")
                     , new ResActParamMan(ParamMan.inbuffersize, "input buffer size", "16384 (bytes)")
                     , new ResActParamMan(ParamMan.outbuffersize, "output buffer size", "16384 (bytes)")
-                    , new ResActParamMan(ParamMan.protocol, "the protocol used by tcp-lb. available options: tcp, http, h2, http/1.x, dubbo, framed-int32, or your customized protocol. See doc for more info", "tcp")
+                    , new ResActParamMan(ParamMan.protocol, "the protocol used by tcp-lb. available options: tcp, http, h2, http/1.x, dubbo, framed-int32, resp, resp-cluster, or your customized protocol. See doc for more info", "tcp")
                     , new ResActParamMan(ParamMan.certkey, "the certificates and keys used by tcp-lb. Multiple cert-key(s) are separated with `,`")
                     , new ResActParamMan(ParamMan.securitygroup, "specify a security group for the lb", "allow any")
                 ),
@@ -560,23 +560,41 @@ public class HelpCommand {
         eventloopgroup("event-loop-group", "elg", "a group of event loops",
             Arrays.asList(
                 new ResActMan(ActMan.add, "specify a name and create a event loop group",
-                    Collections.emptyList(),
+                    Collections.singletonList(
+                        new ResActParamMan(ParamMan.method, "how to choose an event loop for a new connection, " +
+                            "you can choose `rr` (round robin), `leastconn` (least connections), " +
+                            "`leastbusy` (least busy time recently), `p2c` (power of two choices)", "rr")
+                    ),
                     Collections.singletonList(
                         new Tuple<>(
-                            "add event-loop-group elg0",
+                            "add event-loop-group elg0 method p2c",
                             "\"OK\""
                         )
                     )),
                 new ResActMan(ActMan.list, "retrieve names of all event loop groups",
                     Collections.emptyList(),
-                    Arrays.asList(
+                    Collections.singletonList(
                         new Tuple<>(
                             "list event-loop-group",
                             "1) \"elg0\""
-                        ),
+                        )
+                    )),
+                new ResActMan(ActMan.listdetail, "retrieve detailed info of all event loop groups",
+                    Collections.emptyList(),
+                    Collections.singletonList(
                         new Tuple<>(
                             "list-detail event-loop-group",
-                            "1) \"elg0\""
+                            "1) \"elg0 -> method p2c\""
+                        )
+                    )),
+                new ResActMan(ActMan.update, "change the method to choose an event loop",
+                    Collections.singletonList(
+                        new ResActParamMan(ParamMan.method, "how to choose an event loop for a new connection", "not changed")
+                    ),
+                    Collections.singletonList(
+                        new Tuple<>(
+                            "update event-loop-group elg0 method leastconn",
+                            "\"OK\""
                         )
                     )),
                 new ResActMan(ActMan.remove, "Remove a event loop group",
@@ -2,6 +2,7 @@ package vproxy.app.cmd.handle.param;
 
 import vproxy.app.cmd.Command;
 import vproxy.app.cmd.Param;
+import vproxy.component.elgroup.SelectMethod;
 import vproxy.component.svrgroup.Method;
 
 public class MethHandle {
@@ -16,4 +17,13 @@ public class MethHandle {
             throw new Exception("invalid " + Param.meth.fullname);
         }
     }
+
+    public static SelectMethod getSelectMethod(Command cmd) throws Exception {
+        String meth = cmd.args.get(Param.meth);
+        try {
+            return SelectMethod.valueOf(meth);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("invalid " + Param.meth.fullname);
+        }
+    }
 }
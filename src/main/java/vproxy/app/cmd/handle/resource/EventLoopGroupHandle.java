@@ -2,13 +2,16 @@ package vproxy.app.cmd.handle.resource;
 
 import vproxy.app.Application;
 import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Param;
 import vproxy.app.cmd.Resource;
 import vproxy.app.cmd.ResourceType;
+import vproxy.app.cmd.handle.param.MethHandle;
 import vproxy.component.app.Socks5Server;
 import vproxy.component.app.TcpLB;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.svrgroup.ServerGroup;
 
+import java.util.LinkedList;
 import java.util.List;
 
 public class EventLoopGroupHandle {
@@ -32,8 +35,36 @@ public class EventLoopGroupHandle {
         return Application.get().eventLoopGroupHolder.names();
     }
 
+    public static void checkCreateEventLoopGroup(Command cmd) throws Exception {
+        if (cmd.args.containsKey(Param.meth)) {
+            MethHandle.getSelectMethod(cmd);
+        }
+    }
+
+    public static void checkUpdateEventLoopGroup(Command cmd) throws Exception {
+        checkCreateEventLoopGroup(cmd);
+    }
+
+    public static List<EventLoopGroupRef> details() throws Exception {
+        List<EventLoopGroupRef> result = new LinkedList<>();
+        for (String name : names()) {
+            result.add(new EventLoopGroupRef(get(name)));
+        }
+        return result;
+    }
+
     public static void add(Command cmd) throws Exception {
         Application.get().eventLoopGroupHolder.add(cmd.resource.alias);
+        if (cmd.args.containsKey(Param.meth)) {
+            get(cmd.resource).setMethod(MethHandle.getSelectMethod(cmd));
+        }
+    }
+
+    public static void update(Command cmd) throws Exception {
+        EventLoopGroup g = get(cmd.resource);
+        if (cmd.args.containsKey(Param.meth)) {
+            g.setMethod(MethHandle.getSelectMethod(cmd));
+        }
     }
 
     public static void preCheck(Command cmd) throws Exception {
@@ -68,4 +99,17 @@ public class EventLoopGroupHandle {
         String toRemoveName = cmd.resource.alias;
         Application.get().eventLoopGroupHolder.removeAndClose(toRemoveName);
     }
+
+    public static class EventLoopGroupRef {
+        private final EventLoopGroup g;
+
+        public EventLoopGroupRef(EventLoopGroup g) {
+            this.g = g;
+        }
+
+        @Override
+        public String toString() {
+            return g.alias + " -> method " + g.getMethod();
+        }
+    }
 }
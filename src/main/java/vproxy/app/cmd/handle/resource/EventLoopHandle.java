@@ -6,8 +6,10 @@ import vproxy.app.cmd.Resource;
 import vproxy.app.cmd.ResourceType;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.selector.SelectorEventLoop;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class EventLoopHandle {
     private EventLoopHandle() {
@@ -31,6 +33,11 @@ public class EventLoopHandle {
         return g.names();
     }
 
+    public static List<EventLoopRef> details(Resource targetResource) throws Exception {
+        EventLoopGroup g = EventLoopGroupHandle.get(targetResource);
+        return g.list().stream().map(EventLoopRef::new).collect(Collectors.toList());
+    }
+
     public static void add(Command cmd) throws Exception {
         EventLoopGroup g = EventLoopGroupHandle.get(cmd.prepositionResource);
         if (Application.isDefaultEventLoopGroupName(g.alias))
@@ -44,4 +51,28 @@ public class EventLoopHandle {
             throw new Exception("cannot modify the default event loop group " + g.alias);
         g.remove(cmd.resource.alias);
     }
+
+    public static class EventLoopRef {
+        private final EventLoopWrapper el;
+
+        public EventLoopRef(EventLoopWrapper el) {
+            this.el = el;
+        }
+
+        @Override
+        public String toString() {
+            SelectorEventLoop loop = el.getSelectorEventLoop();
+            long busy = loop.getBusyNanos();
+            long total = busy + loop.getSelectNanos();
+            Class<?> longest = loop.getLongestCallbackClass();
+            return el.alias + " -> busy " + (total == 0 ? 0 : busy * 1000 / total) / 10.0 + "%" +
+                " iterations " + loop.getIterations() +
+                " iteration-p99 " + loop.iterationTime.snapshot().valueAtPercentile(99) + "us" +
+                " events-p99 " + loop.eventsPerIteration.snapshot().valueAtPercentile(99) +
+                " backlog " + loop.getBacklog() +
+                " longest-callback " + (loop.getLongestCallbackNanos() / 1000) + "us" +
+                (longest == null ? "" : "(" + longest.getName() + ")") +
+                " stalls " + loop.getStalls();
+        }
+    }
 }
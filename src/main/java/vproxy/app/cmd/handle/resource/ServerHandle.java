@@ -10,6 +10,7 @@ import vproxy.component.exception.NotFoundException;
 import vproxy.component.svrgroup.ServerGroup;
 import vproxy.util.Utils;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -68,6 +69,23 @@ public class ServerHandle {
             .add(name, host, AddrHandle.get(cmd), WeightHandle.get(cmd));
     }
 
+    /**
+     * add servers of the same server-group in one batch
+     */
+    public static void addBatch(List<Command> cmds) throws Exception {
+        if (cmds.isEmpty())
+            return;
+        ServerGroup group = ServerGroupHandle.get(cmds.get(0).prepositionResource);
+        List<ServerGroup.ServerToAdd> toAdd = new ArrayList<>(cmds.size());
+        for (Command cmd : cmds) {
+            assert cmd.prepositionResource.alias.equals(group.alias);
+            String addr = cmd.args.get(Param.addr);
+            String host = addr.substring(0, addr.lastIndexOf(":"));
+            toAdd.add(new ServerGroup.ServerToAdd(cmd.resource.alias, host, AddrHandle.get(cmd), WeightHandle.get(cmd)));
+        }
+        group.addBatch(toAdd);
+    }
+
     public static void forceRemove(Command cmd) throws Exception {
         ServerGroupHandle.get(cmd.prepositionResource)
             .remove(cmd.resource.alias);
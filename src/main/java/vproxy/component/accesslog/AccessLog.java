@@ -0,0 +1,356 @@
+package vproxy.component.accesslog;
+
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary access log written into memory mapped files.<br>
+ * Every entry is a fixed size record, a writer reserves a slot with one atomic increment,
+ * and fills the slot with absolute puts, so nothing is allocated and no syscall is made on the event loops.<br>
+ * When the current file is full, it's swapped with a file prepared by a background thread,
+ * then the background thread renames the files: file -> file.1 -> file.2 ... and prepares the next one.
+ * If the next file is not ready, the entries are dropped and counted.<br>
+ * Use {@link AccessLogReader} to convert the files to text.
+ * <pre>
+ * file header (16 bytes): magic "vpal", version(u32), record size(u32), reserved(u32)
+ * record (384 bytes):
+ *   0 kind(u8), written last, 0 means the slot is empty
+ *   1 client ip length(u8), 2 backend ip length(u8), 3 reserved(u8)
+ *   4 client port(u16), 6 backend port(u16)
+ *   8 start time millis(i64)
+ *  16 connect micros(i64), 24 first byte micros(i64), 32 total micros(i64), -1 means unknown
+ *  40 bytes from client(i64), 48 bytes to client(i64)
+ *  56 client ip(16 bytes), 72 backend ip(16 bytes)
+ *  88 http status(u16), 90 reserved(u16), 92 http/2 stream id(i32)
+ *  96 strings, each is length(u8) and ascii bytes, truncated when too long:
+ *     lb(24), server-group(24), server(24), method(8), host(64), path(144)
+ * </pre>
+ */
+public class AccessLog {
+    public static final int MAGIC = 0x7670616c; // vpal
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 384;
+
+    public static final byte KIND_TCP = 1; // a tcp session
+    public static final byte KIND_CONNECTION = 2; // a frontend connection handled by processors
+    public static final byte KIND_HTTP = 3; // a http request
+
+    static final int OFF_KIND = 0;
+    static final int OFF_CLIENT_IP_LEN = 1;
+    static final int OFF_BACKEND_IP_LEN = 2;
+    static final int OFF_CLIENT_PORT = 4;
+    static final int OFF_BACKEND_PORT = 6;
+    static final int OFF_START = 8;
+    static final int OFF_CONNECT = 16;
+    static final int OFF_FIRST_BYTE = 24;
+    static final int OFF_TOTAL = 32;
+    static final int OFF_BYTES_IN = 40;
+    static final int OFF_BYTES_OUT = 48;
+    static final int OFF_CLIENT_IP = 56;
+    static final int OFF_BACKEND_IP = 72;
+    static final int OFF_STATUS = 88;
+    static final int OFF_STREAM = 92;
+    static final int OFF_LB = 96;
+    static final int LEN_LB = 24;
+    static final int OFF_GROUP = OFF_LB + LEN_LB;
+    static final int LEN_GROUP = 24;
+    static final int OFF_SERVER = OFF_GROUP + LEN_GROUP;
+    static final int LEN_SERVER = 24;
+    static final int OFF_METHOD = OFF_SERVER + LEN_SERVER;
+    static final int LEN_METHOD = 8;
+    static final int OFF_HOST = OFF_METHOD + LEN_METHOD;
+    static final int LEN_HOST = 64;
+    static final int OFF_PATH = OFF_HOST + LEN_HOST;
+    static final int LEN_PATH = 144;
+
+    /**
+     * A reusable entry, fill the fields and call {@link #log(Entry)}.<br>
+     * Durations are in nanoseconds.
+     */
+    public static class Entry {
+        public byte kind;
+        public long startTime;
+        public long connectNanos;
+        public long firstByteNanos;
+        public long totalNanos;
+        public long bytesIn;
+        public long bytesOut;
+        public InetSocketAddress client;
+        public InetSocketAddress backend;
+        public int status;
+        public int stream;
+        public String lb;
+        public String group;
+        public String server;
+        public String method;
+        public String host;
+        public String path;
+
+        Entry reset() {
+            kind = 0;
+            startTime = 0;
+            connectNanos = -1;
+            firstByteNanos = -1;
+            totalNanos = -1;
+            bytesIn = 0;
+            bytesOut = 0;
+            client = null;
+            backend = null;
+            status = 0;
+            stream = 0;
+            lb = null;
+            group = null;
+            server = null;
+            method = null;
+            host = null;
+            path = null;
+            return this;
+        }
+    }
+
+    private static volatile AccessLog global = null;
+
+    /**
+     * @return the access log enabled by {@link #enable(String, long, int)}, or null if not enabled
+     */
+    public static AccessLog get() {
+        return global;
+    }
+
+    public static synchronized void enable(String file, long fileSize, int fileCount) throws IOException {
+        if (global != null) {
+            throw new IllegalStateException("access log is already enabled: " + global.file);
+        }
+        global = new AccessLog(file, fileSize, fileCount);
+    }
+
+    private static class Segment {
+        final MappedByteBuffer buf;
+        final int capacity; // count of records
+        final AtomicInteger cursor = new AtomicInteger(0);
+
+        Segment(MappedByteBuffer buf, int capacity) {
+            this.buf = buf;
+            this.capacity = capacity;
+        }
+    }
+
+    private final ThreadLocal<Entry> entries = ThreadLocal.withInitial(Entry::new);
+
+    public final String file;
+    private final long fileSize;
+    private final int fileCount;
+
+    private volatile Segment current;
+    private volatile Segment next = null;
+    private volatile boolean rotateRequired = false;
+    private final Thread thread;
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0; // only accessed by the background thread
+
+    public AccessLog(String file, long fileSize, int fileCount) throws IOException {
+        if (fileSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("fileSize too small: " + fileSize);
+        }
+        if (fileCount < 1) {
+            throw new IllegalArgumentException("fileCount should be at least 1");
+        }
+        this.file = file;
+        this.fileSize = fileSize;
+        this.fileCount = fileCount;
+
+        File f = new File(file);
+        if (f.exists()) {
+            rotateFiles(); // never overwrite old logs
+        }
+        current = createSegment(f);
+
+        thread = new Thread(this::loop, "vproxy-access-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return a reset entry owned by the current thread
+     */
+    public Entry entry() {
+        return entries.get().reset();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public void log(Entry e) {
+        Segment seg = current;
+        int idx = seg.cursor.getAndIncrement();
+        if (idx < 0 || idx >= seg.capacity) { // idx < 0 when the cursor overflows after too many drops
+            seg = swap(seg);
+            if (seg == null) {
+                dropped.increment();
+                return;
+            }
+            idx = seg.cursor.getAndIncrement();
+            if (idx < 0 || idx >= seg.capacity) { // the new file is full as well
+                dropped.increment();
+                return;
+            }
+        }
+        write(seg.buf, HEADER_SIZE + idx * RECORD_SIZE, e);
+    }
+
+    // switch to the prepared segment, return null if it's not ready
+    private synchronized Segment swap(Segment full) {
+        if (current != full) {
+            return current; // already switched by another thread
+        }
+        Segment n = next;
+        if (n == null) {
+            return null;
+        }
+        next = null;
+        current = n;
+        rotateRequired = true;
+        LockSupport.unpark(thread);
+        return n;
+    }
+
+    private static void write(ByteBuffer buf, int off, Entry e) {
+        int clientIpLen = putAddress(buf, off + OFF_CLIENT_IP, e.client);
+        int backendIpLen = putAddress(buf, off + OFF_BACKEND_IP, e.backend);
+        buf.put(off + OFF_CLIENT_IP_LEN, (byte) clientIpLen);
+        buf.put(off + OFF_BACKEND_IP_LEN, (byte) backendIpLen);
+        buf.putShort(off + OFF_CLIENT_PORT, (short) (e.client == null ? 0 : e.client.getPort()));
+        buf.putShort(off + OFF_BACKEND_PORT, (short) (e.backend == null ? 0 : e.backend.getPort()));
+        buf.putLong(off + OFF_START, e.startTime);
+        buf.putLong(off + OFF_CONNECT, micros(e.connectNanos));
+        buf.putLong(off + OFF_FIRST_BYTE, micros(e.firstByteNanos));
+        buf.putLong(off + OFF_TOTAL, micros(e.totalNanos));
+        buf.putLong(off + OFF_BYTES_IN, e.bytesIn);
+        buf.putLong(off + OFF_BYTES_OUT, e.bytesOut);
+        buf.putShort(off + OFF_STATUS, (short) e.status);
+        buf.putInt(off + OFF_STREAM, e.stream);
+        putString(buf, off + OFF_LB, LEN_LB, e.lb);
+        putString(buf, off + OFF_GROUP, LEN_GROUP, e.group);
+        putString(buf, off + OFF_SERVER, LEN_SERVER, e.server);
+        putString(buf, off + OFF_METHOD, LEN_METHOD, e.method);
+        putString(buf, off + OFF_HOST, LEN_HOST, e.host);
+        putString(buf, off + OFF_PATH, LEN_PATH, e.path);
+        // the kind is written last, a record with kind 0 is not complete
+        buf.put(off + OFF_KIND, e.kind);
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000;
+    }
+
+    private static int putAddress(ByteBuffer buf, int off, InetSocketAddress addr) {
+        if (addr == null) {
+            return 0;
+        }
+        InetAddress a = addr.getAddress();
+        if (a == null) {
+            return 0;
+        }
+        if (a instanceof Inet4Address) {
+            // the hashCode of an Inet4Address is the address itself, no array would be copied
+            buf.putInt(off, a.hashCode());
+            return 4;
+        }
+        byte[] bytes = a.getAddress();
+        for (int i = 0; i < bytes.length; ++i) {
+            buf.put(off + i, bytes[i]);
+        }
+        return bytes.length;
+    }
+
+    private static void putString(ByteBuffer buf, int off, int len, String s) {
+        if (s == null) {
+            buf.put(off, (byte) 0);
+            return;
+        }
+        int n = Math.min(s.length(), len - 1);
+        buf.put(off, (byte) n);
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
+            buf.put(off + 1 + i, (byte) (c < 0x20 || c > 0x7e ? '?' : c));
+        }
+    }
+
+    // ---- the background thread ----
+
+    private Segment createSegment(File f) throws IOException {
+        int capacity = (int) Math.min(Integer.MAX_VALUE, (fileSize - HEADER_SIZE) / RECORD_SIZE);
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(size);
+            // the mapping is still valid after the channel is closed
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, RECORD_SIZE);
+        return new Segment(buf, capacity);
+    }
+
+    private String nextFileName() {
+        return file + ".next";
+    }
+
+    // file -> file.1 -> file.2 ... -> file.{fileCount}, the last one is removed
+    private void rotateFiles() {
+        //noinspection ResultOfMethodCallIgnored
+        new File(file + "." + fileCount).delete();
+        for (int i = fileCount - 1; i >= 1; --i) {
+            File from = new File(file + "." + i);
+            if (from.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                from.renameTo(new File(file + "." + (i + 1)));
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(file).renameTo(new File(file + ".1"));
+    }
+
+    private void loop() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            if (rotateRequired) {
+                rotateRequired = false;
+                // the swapped segment is written into file.next
+                // the old mappings are not unmapped manually because some writers may still be writing
+                rotateFiles();
+                //noinspection ResultOfMethodCallIgnored
+                new File(nextFileName()).renameTo(new File(file));
+            }
+            if (next == null) {
+                try {
+                    next = createSegment(new File(nextFileName()));
+                } catch (IOException e) {
+                    Logger.error(LogType.UNEXPECTED, "preparing access log file " + nextFileName() + " failed", e);
+                }
+            }
+            long d = dropped.sum();
+            if (d != droppedReported) {
+                Logger.warn(LogType.ALERT, (d - droppedReported) + " access log entries dropped because the next log file is not prepared");
+                droppedReported = d;
+            }
+            LockSupport.parkNanos(1_000_000_000);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package vproxy.component.accesslog;
+
+import vproxy.util.Utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.function.Consumer;
+
+import static vproxy.component.accesslog.AccessLog.*;
+
+/**
+ * Convert the binary access log files into text, one line per record:
+ * <pre>
+ * java vproxy.component.accesslog.AccessLogReader file [file.1 ...]
+ * </pre>
+ */
+public class AccessLogReader {
+    private AccessLogReader() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: java " + AccessLogReader.class.getName() + " file [file.1 ...]");
+            System.exit(1);
+            return;
+        }
+        for (String file : args) {
+            read(file, System.out::println);
+        }
+    }
+
+    /**
+     * read the file and convert records to text lines.
+     * empty slots (not written yet, or still being written) are skipped
+     *
+     * @param file the access log file
+     * @param f    receives the lines
+     * @throws IOException io error or the file is not an access log file
+     */
+    public static void read(String file, Consumer<String> f) throws IOException {
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not an access log file");
+        }
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException("unsupported access log version " + buf.getInt(4));
+        }
+        int recordSize = buf.getInt(8);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        for (int off = HEADER_SIZE; off + recordSize <= buf.capacity(); off += recordSize) {
+            if (buf.get(off + OFF_KIND) == 0) {
+                continue;
+            }
+            f.accept(format(buf, off, format));
+        }
+    }
+
+    static String format(ByteBuffer buf, int off, SimpleDateFormat dateFormat) {
+        byte kind = buf.get(off + OFF_KIND);
+        StringBuilder sb = new StringBuilder();
+        sb.append(dateFormat.format(new Date(buf.getLong(off + OFF_START))));
+        sb.append(" ").append(kind == KIND_TCP ? "tcp" : kind == KIND_CONNECTION ? "conn" : kind == KIND_HTTP ? "http" : "unknown(" + kind + ")");
+        sb.append(" lb=").append(string(buf, off + OFF_LB));
+        sb.append(" client=").append(address(buf, off + OFF_CLIENT_IP, buf.get(off + OFF_CLIENT_IP_LEN), buf.getShort(off + OFF_CLIENT_PORT)));
+        sb.append(" backend=").append(address(buf, off + OFF_BACKEND_IP, buf.get(off + OFF_BACKEND_IP_LEN), buf.getShort(off + OFF_BACKEND_PORT)));
+        String group = string(buf, off + OFF_GROUP);
+        String server = string(buf, off + OFF_SERVER);
+        sb.append(" server=").append(group.equals("-") && server.equals("-") ? "-" : group + "/" + server);
+        if (kind == KIND_HTTP) {
+            int stream = buf.getInt(off + OFF_STREAM);
+            if (stream != 0) {
+                sb.append(" stream=").append(stream);
+            }
+            sb.append(" method=").append(string(buf, off + OFF_METHOD));
+            sb.append(" host=").append(string(buf, off + OFF_HOST));
+            sb.append(" path=").append(string(buf, off + OFF_PATH));
+            int status = buf.getShort(off + OFF_STATUS) & 0xffff;
+            sb.append(" status=").append(status == 0 ? "-" : "" + status);
+        }
+        sb.append(" connect=").append(micros(buf.getLong(off + OFF_CONNECT)));
+        sb.append(" first-byte=").append(micros(buf.getLong(off + OFF_FIRST_BYTE)));
+        sb.append(" total=").append(micros(buf.getLong(off + OFF_TOTAL)));
+        sb.append(" in=").append(buf.getLong(off + OFF_BYTES_IN));
+        sb.append(" out=").append(buf.getLong(off + OFF_BYTES_OUT));
+        return sb.toString();
+    }
+
+    private static String micros(long v) {
+        return v < 0 ? "-" : v + "us";
+    }
+
+    private static String string(ByteBuffer buf, int off) {
+        int len = buf.get(off) & 0xff;
+        if (len == 0) {
+            return "-";
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            bytes[i] = buf.get(off + 1 + i);
+        }
+        return new String(bytes);
+    }
+
+    private static String address(ByteBuffer buf, int off, int ipLen, short port) {
+        if (ipLen == 0) {
+            return "-";
+        }
+        byte[] ip = new byte[ipLen];
+        for (int i = 0; i < ipLen; ++i) {
+            ip[i] = buf.get(off + i);
+        }
+        return Utils.ipStr(ip) + ":" + (port & 0xffff);
+    }
+}
@@ -0,0 +1,367 @@
+package vproxy.component.app;
+
+import vproxy.app.Application;
+import vproxy.app.cmd.Action;
+import vproxy.app.cmd.CmdResult;
+import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Param;
+import vproxy.app.cmd.Resource;
+import vproxy.app.cmd.ResourceType;
+import vproxy.app.cmd.handle.resource.ServerHandle;
+import vproxy.component.exception.AlreadyExistException;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.exception.XException;
+import vproxy.dns.Resolver;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.Callback;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.Utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the saved config.<br>
+ * The commands are built into a dependency graph by the resource names they touch,
+ * a command only waits for the commands which create or modify the resources it refers to,
+ * so independent commands are dispatched without waiting for each other.<br>
+ * `add server` commands into the same server-group are merged into one batch,
+ * so the group recalculates its method related fields only once.<br>
+ * Host names of the servers are resolved concurrently before parsing,
+ * then the commands hit the dns cache when checking the address.<br>
+ * Commands other than `add` are barriers: they run after all previous commands,
+ * and all following commands run after them.<br>
+ * Note: the commands are still executed on the control event loop,
+ * because the resource holders are not thread safe,
+ * so only the dns resolving runs concurrently,
+ * and the time is mainly saved by batching the servers.
+ */
+class ConfigLoader {
+    private static final int PREFETCH_TIMEOUT = 10_000;
+
+    private final List<String> lines;
+    // phase => [start, end], in nanoseconds
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+
+    private final List<Task> tasks = new ArrayList<>();
+    private int finishedTasks = 0;
+    private int runningTasks = 0;
+    private Throwable error = null;
+
+    ConfigLoader(List<String> lines) {
+        this.lines = lines;
+    }
+
+    private void phaseStart(String phase) {
+        phases.computeIfAbsent(phase, k -> new long[]{System.nanoTime(), 0});
+    }
+
+    private void phaseEnd(String phase) {
+        phases.get(phase)[1] = System.nanoTime();
+    }
+
+    void load(Callback<String, Throwable> cb) throws Exception {
+        long start = System.nanoTime();
+
+        phaseStart("resolve");
+        prefetchHosts();
+        phaseEnd("resolve");
+
+        phaseStart("parse");
+        List<Command> commands = parse();
+        phaseEnd("parse");
+
+        buildGraph(commands);
+
+        SelectorEventLoop loop = Application.get().controlEventLoop.getSelectorEventLoop();
+        loop.runOnLoop(() -> runTasks(new Callback<>() {
+            @Override
+            protected void onSucceeded(String value) {
+                report(commands.size(), start);
+                cb.succeeded(value);
+            }
+
+            @Override
+            protected void onFailed(Throwable err) {
+                cb.failed(err);
+            }
+        }));
+    }
+
+    // ---- resolve ----
+
+    // resolve the host names of `add server` commands concurrently
+    // failures are ignored here, they will be reported when parsing
+    private void prefetchHosts() throws InterruptedException {
+        Set<String> hosts = new HashSet<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (!line.startsWith("add server ")) {
+                continue;
+            }
+            String[] tokens = line.split(" ");
+            for (int i = 0; i < tokens.length - 1; ++i) {
+                if (tokens[i].equals(Param.addr.fullname)) {
+                    String addr = tokens[i + 1];
+                    if (addr.contains(":")) {
+                        String host = addr.substring(0, addr.lastIndexOf(":"));
+                        if (!Utils.isIpLiteral(host)) {
+                            hosts.add(host);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        if (hosts.isEmpty()) {
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(hosts.size());
+        for (String host : hosts) {
+            Resolver.getDefault().resolve(host, new Callback<>() {
+                @Override
+                protected void onSucceeded(InetAddress value) {
+                    latch.countDown();
+                }
+
+                @Override
+                protected void onFailed(UnknownHostException err) {
+                    latch.countDown();
+                }
+            });
+        }
+        if (!latch.await(PREFETCH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            Logger.warn(LogType.ALERT, "resolving " + hosts.size() + " hosts of the servers timed out, continue loading");
+        }
+    }
+
+    // ---- parse ----
+
+    private List<Command> parse() throws Exception {
+        List<Command> commands = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) { // skip empty lines
+                continue;
+            }
+            if (line.startsWith("#")) { // comment
+                continue;
+            }
+
+            Logger.info(LogType.BEFORE_PARSING_CMD, line);
+            Command cmd;
+            try {
+                cmd = Command.parseStrCmd(line);
+            } catch (Exception e) {
+                Logger.warn(LogType.AFTER_PARSING_CMD, "parse command `" + line + "` failed");
+                throw e;
+            }
+            Logger.info(LogType.AFTER_PARSING_CMD, cmd.toString());
+            commands.add(cmd);
+        }
+        return commands;
+    }
+
+    // ---- graph ----
+
+    private static boolean isAddServer(Command cmd) {
+        return cmd.action == Action.a && cmd.resource.type == ResourceType.svr
+            && cmd.prepositionResource != null && cmd.prepositionResource.type == ResourceType.sg;
+    }
+
+    private static void addNames(Resource r, Set<String> names) {
+        while (r != null) {
+            names.add(r.alias);
+            r = r.parentResource;
+        }
+    }
+
+    private void buildGraph(List<Command> commands) {
+        // resource name => the last task which creates or modifies the resource
+        Map<String, Task> lastWriter = new HashMap<>();
+        // server-group name => the batch which servers of the group can be merged into
+        Map<String, Task> serverBatches = new HashMap<>();
+        Task barrier = null;
+
+        for (Command cmd : commands) {
+            if (cmd.action != Action.a) {
+                Task t = new Task(cmd);
+                // depends on everything before it
+                for (Task x : tasks) {
+                    x.addNext(t);
+                }
+                tasks.add(t);
+                barrier = t;
+                lastWriter.clear();
+                serverBatches.clear();
+                continue;
+            }
+
+            if (isAddServer(cmd)) {
+                String group = cmd.prepositionResource.alias;
+                Task batch = serverBatches.get(group);
+                // the group is not modified by other commands after the batch is created
+                if (batch != null && lastWriter.get(group) == batch) {
+                    batch.commands.add(cmd);
+                    continue;
+                }
+            }
+
+            Set<String> reads = new HashSet<>();
+            Set<String> writes = new HashSet<>();
+            if (cmd.resource != null) {
+                writes.add(cmd.resource.alias);
+                addNames(cmd.resource.parentResource, reads);
+            }
+            if (cmd.prepositionResource != null) {
+                // `add x to y` modifies y
+                writes.add(cmd.prepositionResource.alias);
+                addNames(cmd.prepositionResource.parentResource, reads);
+            }
+            for (String v : cmd.args.values()) {
+                reads.addAll(Arrays.asList(v.split(",")));
+            }
+            if (isAddServer(cmd)) {
+                // servers are not referred by other resources
+                writes.remove(cmd.resource.alias);
+            }
+
+            Task t = new Task(cmd);
+            if (barrier != null) {
+                barrier.addNext(t);
+            }
+            for (String name : reads) {
+                Task w = lastWriter.get(name);
+                if (w != null) {
+                    w.addNext(t);
+                }
+            }
+            for (String name : writes) {
+                Task w = lastWriter.get(name);
+                if (w != null) {
+                    w.addNext(t);
+                }
+                lastWriter.put(name, t);
+            }
+            if (isAddServer(cmd)) {
+                serverBatches.put(cmd.prepositionResource.alias, t);
+            }
+            tasks.add(t);
+        }
+    }
+
+    // ---- run ----
+
+    private void runTasks(Callback<String, Throwable> cb) {
+        if (tasks.isEmpty()) {
+            cb.succeeded("");
+            return;
+        }
+        for (Task t : tasks) {
+            if (t.pending == 0) {
+                run(t, cb);
+            }
+        }
+    }
+
+    private void run(Task t, Callback<String, Throwable> cb) {
+        ++runningTasks;
+        Resource r = t.commands.get(0).resource;
+        String phase = r == null ? t.commands.get(0).action.fullname : r.type.fullname;
+        phaseStart(phase);
+        Callback<CmdResult, Throwable> done = new Callback<>() {
+            @Override
+            protected void onSucceeded(CmdResult value) {
+                phaseEnd(phase);
+                --runningTasks;
+                ++finishedTasks;
+                if (error != null) {
+                    checkFailed(cb);
+                    return;
+                }
+                if (finishedTasks == tasks.size()) {
+                    cb.succeeded("");
+                    return;
+                }
+                for (Task n : t.next) {
+                    if (--n.pending == 0) {
+                        run(n, cb);
+                    }
+                }
+            }
+
+            @Override
+            protected void onFailed(Throwable err) {
+                --runningTasks;
+                if (error == null) {
+                    Logger.warn(LogType.ALERT, "running command `" + t.commands.get(0) + "` failed", err);
+                    error = err;
+                }
+                checkFailed(cb);
+            }
+        };
+        if (t.commands.size() == 1) {
+            t.commands.get(0).run(done);
+        } else {
+            runServerBatch(t.commands, done);
+        }
+    }
+
+    // wait for the running tasks before alerting the failure
+    private void checkFailed(Callback<String, Throwable> cb) {
+        if (runningTasks == 0) {
+            cb.failed(error);
+        }
+    }
+
+    // handle the exceptions the same way as Command.run()
+    private static void runServerBatch(List<Command> commands, Callback<CmdResult, Throwable> cb) {
+        Application.get().controlEventLoop.getSelectorEventLoop().nextTick(() -> {
+            try {
+                ServerHandle.addBatch(commands);
+            } catch (AlreadyExistException e) {
+                cb.failed(new XException("the resource already exists", e));
+                return;
+            } catch (NotFoundException e) {
+                cb.failed(new XException("the resource could not be found", e));
+                return;
+            } catch (Throwable t) {
+                cb.failed(t);
+                return;
+            }
+            cb.succeeded(new CmdResult());
+        });
+    }
+
+    private void report(int commandCount, long start) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("config loaded: ").append(commandCount).append(" commands in ")
+            .append(tasks.size()).append(" tasks, ")
+            .append((System.nanoTime() - start) / 1_000_000).append("ms");
+        for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            long[] t = entry.getValue();
+            sb.append(", ").append(entry.getKey()).append(": ").append((t[1] - t[0]) / 1_000_000).append("ms");
+        }
+        Logger.alert(sb.toString());
+    }
+
+    private static class Task {
+        final List<Command> commands = new ArrayList<>();
+        final Set<Task> next = new LinkedHashSet<>();
+        int pending = 0; // count of tasks it depends on and not finished yet
+
+        Task(Command cmd) {
+            commands.add(cmd);
+        }
+
+        void addNext(Task t) {
+            if (t != this && next.add(t)) {
+                ++t.pending;
+            }
+        }
+    }
+}
@@ -99,7 +99,7 @@ public class HttpController {
             .build()));
         server.del(moduleBase + "/socks5-server/:socks5", wrapAsync(this::deleteSocks5Server));
         // event-loop
-        server.get(moduleBase + "/event-loop-group/:elg/event-loop/:el/detail", wrapAsync(this::getEventLoop));
+        server.get(moduleBase + "/event-loop-group/:elg/event-loop/:el/detail", wrapAsync(this::getEventLoopDetail));
         server.get(moduleBase + "/event-loop-group/:elg/event-loop/:el", wrapAsync(this::getEventLoop));
         server.get(moduleBase + "/event-loop-group/:elg/event-loop", wrapAsync(this::listEventLoop));
         server.pst(moduleBase + "/event-loop-group/:elg/event-loop", wrapAsync(this::createEventLoop, new ObjectBuilder()
@@ -113,8 +113,12 @@ public class HttpController {
         server.get(moduleBase + "/event-loop-group", wrapAsync(this::listEventLoopGroup));
         server.pst(moduleBase + "/event-loop-group", wrapAsync(this::createEventLoopGroup, new ObjectBuilder()
                 .put("name", "alias of the event loop group")
+                .put("method", "method to choose an event loop")
                 .build(),
             "name"));
+        server.put(moduleBase + "/event-loop-group/:elg", wrapAsync(this::updateEventLoopGroup, new ObjectBuilder()
+            .put("method", "method to choose an event loop")
+            .build()));
         server.del(moduleBase + "/event-loop-group/:elg", wrapAsync(this::deleteEventLoopGroup));
         // server-group in server-groups
         server.get(moduleBase + "/server-groups/:sgs/server-group/:sg/detail", wrapAsync(this::getServerGroupInGroupsDetail));
@@ -285,6 +289,11 @@ public class HttpController {
         server.get(statistics + "/tcp-lb/:tl/server-sock/:l4addr/accepted-conn", wrapAsync(this::getAcceptedConnFromL4AddrTl));
         server.get(statistics + "/socks5-server/:socks5/server-sock/:l4addr/accepted-conn", wrapAsync(this::getAcceptedConnFromL4AddrSocks5));
 
+        // prometheus
+        server.get("/metrics", rctx -> rctx.response()
+            .header("Content-Type", "text/plain; version=0.0.4")
+            .end(PrometheusMetrics.export()));
+
         // start
         if (Config.checkBind) {
             ServerSock.checkBind(address);
@@ -486,6 +495,11 @@ public class HttpController {
             "remove", "socks5-server", rctx.param("socks5"));
     }
 
+    private void getEventLoopDetail(RoutingContext rctx, Callback<? super JSON.Instance<?>, Throwable> cb) throws NotFoundException {
+        var el = Application.get().eventLoopGroupHolder.get(rctx.param("elg")).get(rctx.param("el"));
+        cb.succeeded(utils.formatEventLoopDetail(el));
+    }
+
     private void getEventLoop(RoutingContext rctx, Callback<JSON.Instance, Throwable> cb) throws NotFoundException {
         var el = Application.get().eventLoopGroupHolder.get(rctx.param("elg")).get(rctx.param("el"));
         cb.succeeded(utils.formatEventLoop(el));
@@ -534,9 +548,28 @@ public class HttpController {
 
     private void createEventLoopGroup(RoutingContext rctx, Callback<JSON.Instance, Throwable> cb) {
         var body = (JSON.Object) rctx.get(Tool.bodyJson);
-        var name = body.getString("name");
-        utils.execute(cb,
-            "add", "event-loop-group", name);
+        List<String> options = new LinkedList<>();
+        options.add("add");
+        options.add("event-loop-group");
+        options.add(body.getString("name"));
+        if (body.containsKey("method")) {
+            options.add("method");
+            options.add(body.getString("method"));
+        }
+        utils.execute(cb, options);
+    }
+
+    private void updateEventLoopGroup(RoutingContext rctx, Callback<? super JSON.Instance<?>, Throwable> cb) {
+        var body = (JSON.Object) rctx.get(Tool.bodyJson);
+        List<String> options = new LinkedList<>();
+        options.add("update");
+        options.add("event-loop-group");
+        options.add(rctx.param("elg"));
+        if (body.containsKey("method")) {
+            options.add("method");
+            options.add(body.getString("method"));
+        }
+        utils.execute(cb, options);
     }
 
     private void deleteEventLoopGroup(RoutingContext rctx, Callback<JSON.Instance, Throwable> cb) {
@@ -0,0 +1,345 @@
+package vproxy.component.app;
+
+import vproxy.app.Application;
+import vproxy.app.mesh.DiscoveryConfigLoader;
+import vproxy.component.auto.AutoConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.khala.Khala;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.connection.ServerSock;
+import vproxy.util.Histogram;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Format the metrics in the prometheus text format.<br>
+ * The histograms are recorded with finer buckets, they are merged into the exported buckets here.
+ * A recorded bucket which crosses an exported bound is counted into the next exported bucket.
+ */
+public class PrometheusMetrics {
+    // microseconds
+    private static final long[] TIME_BOUNDS = {
+        100, 250, 500,
+        1_000, 2_500, 5_000,
+        10_000, 25_000, 50_000,
+        100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000,
+        10_000_000,
+    };
+    private static final long[] DEPTH_BOUNDS = {0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    private static class ServerEntry {
+        final ServerGroup group;
+        final ServerGroup.ServerHandle server;
+
+        ServerEntry(ServerGroup group, ServerGroup.ServerHandle server) {
+            this.group = group;
+            this.server = server;
+        }
+    }
+
+    private static class LoopEntry {
+        final EventLoopGroup group;
+        final EventLoopWrapper loop;
+
+        LoopEntry(EventLoopGroup group, EventLoopWrapper loop) {
+            this.group = group;
+            this.loop = loop;
+        }
+    }
+
+    private static class LbLoopEntry {
+        final TcpLB lb;
+        final EventLoopWrapper loop;
+
+        LbLoopEntry(TcpLB lb, EventLoopWrapper loop) {
+            this.lb = lb;
+            this.loop = loop;
+        }
+    }
+
+    private final StringBuilder sb = new StringBuilder();
+
+    private PrometheusMetrics() {
+    }
+
+    /**
+     * export metrics of all resources in the application
+     */
+    public static String export() {
+        Application app = Application.get();
+        List<TcpLB> lbs = new ArrayList<>();
+        for (String name : app.tcpLBHolder.names()) {
+            try {
+                lbs.add(app.tcpLBHolder.get(name));
+            } catch (NotFoundException ignore) {
+                // removed when exporting
+            }
+        }
+        for (String name : app.socks5ServerHolder.names()) {
+            try {
+                lbs.add(app.socks5ServerHolder.get(name));
+            } catch (NotFoundException ignore) {
+                // removed when exporting
+            }
+        }
+        List<ServerGroup> groups = new ArrayList<>();
+        for (String name : app.serverGroupHolder.names()) {
+            try {
+                groups.add(app.serverGroupHolder.get(name));
+            } catch (NotFoundException ignore) {
+                // removed when exporting
+            }
+        }
+        List<EventLoopGroup> eventLoopGroups = new ArrayList<>();
+        for (String name : app.eventLoopGroupHolder.names()) {
+            try {
+                eventLoopGroups.add(app.eventLoopGroupHolder.get(name));
+            } catch (NotFoundException ignore) {
+                // removed when exporting
+            }
+        }
+        List<Khala> khalas = new ArrayList<>();
+        AutoConfig autoConfig = DiscoveryConfigLoader.getInstance().getAutoConfig();
+        if (autoConfig != null) {
+            khalas.add(autoConfig.khala);
+        }
+        return export(lbs, groups, eventLoopGroups, khalas);
+    }
+
+    public static String export(Collection<? extends TcpLB> lbs,
+                                Collection<ServerGroup> groups,
+                                Collection<EventLoopGroup> eventLoopGroups) {
+        return export(lbs, groups, eventLoopGroups, Collections.emptyList());
+    }
+
+    public static String export(Collection<? extends TcpLB> lbs,
+                                Collection<ServerGroup> groups,
+                                Collection<EventLoopGroup> eventLoopGroups,
+                                Collection<Khala> khalas) {
+        PrometheusMetrics m = new PrometheusMetrics();
+
+        List<TcpLB> lbList = new ArrayList<>(lbs);
+        m.value("vproxy_tcp_lb_active_sessions", "gauge", "Current proxied sessions of the tcp-lb.",
+            lbList, PrometheusMetrics::lbLabels, lb -> lb.metrics.getActiveSessions());
+        m.value("vproxy_tcp_lb_connection_errors_total", "counter", "Connections of the tcp-lb closed by errors.",
+            lbList, PrometheusMetrics::lbLabels, lb -> lb.metrics.getConnectionErrors());
+        m.histogram("vproxy_tcp_lb_connect_seconds", "Time used to connect to backends.",
+            lbList, PrometheusMetrics::lbLabels, lb -> lb.metrics.connectTime.snapshot(), TIME_BOUNDS, true);
+        m.histogram("vproxy_tcp_lb_first_byte_seconds", "Time from accepting the connection to the first byte from backend.",
+            lbList, PrometheusMetrics::lbLabels, lb -> lb.metrics.firstByteTime.snapshot(), TIME_BOUNDS, true);
+        m.histogram("vproxy_tcp_lb_session_duration_seconds", "Duration of the sessions.",
+            lbList, PrometheusMetrics::lbLabels, lb -> lb.metrics.sessionDuration.snapshot(), TIME_BOUNDS, true);
+
+        List<LbLoopEntry> lbLoops = new ArrayList<>();
+        for (TcpLB lb : lbList) {
+            for (EventLoopWrapper w : lb.workerGroup.list()) {
+                lbLoops.add(new LbLoopEntry(lb, w));
+            }
+        }
+        m.histogram("vproxy_tcp_lb_event_loop_connect_seconds", "Time used to connect to backends, on each worker event loop.",
+            lbLoops, PrometheusMetrics::lbLoopLabels, e -> e.lb.metrics.connectTime.snapshot(e.loop.getSelectorEventLoop()), TIME_BOUNDS, true);
+        m.histogram("vproxy_tcp_lb_event_loop_first_byte_seconds", "Time from accepting the connection to the first byte from backend, on each worker event loop.",
+            lbLoops, PrometheusMetrics::lbLoopLabels, e -> e.lb.metrics.firstByteTime.snapshot(e.loop.getSelectorEventLoop()), TIME_BOUNDS, true);
+        m.histogram("vproxy_tcp_lb_event_loop_session_duration_seconds", "Duration of the sessions, on each worker event loop.",
+            lbLoops, PrometheusMetrics::lbLoopLabels, e -> e.lb.metrics.sessionDuration.snapshot(e.loop.getSelectorEventLoop()), TIME_BOUNDS, true);
+
+        m.histogram("vproxy_tcp_lb_accept_batch", "Count of connections accepted in one event loop iteration.",
+            lbList, PrometheusMetrics::lbLabels, PrometheusMetrics::acceptBatch, DEPTH_BOUNDS, false);
+        m.value("vproxy_tcp_lb_accept_budget_exhausted_total", "counter", "Event loop iterations which stop accepting because the accept budget runs out.",
+            lbList, PrometheusMetrics::lbLabels, lb -> {
+                long n = 0;
+                for (ServerSock server : lb.servers.keySet()) {
+                    n += server.getAcceptBudgetExhaustedCount();
+                }
+                return n;
+            });
+
+        List<ServerGroup> groupList = new ArrayList<>(groups);
+        m.value("vproxy_server_group_active_sessions", "gauge", "Current proxied sessions to servers of the group.",
+            groupList, PrometheusMetrics::groupLabels, g -> sum(g, h -> h.metrics.getActiveSessions()));
+        m.value("vproxy_server_group_connection_errors_total", "counter", "Connections to servers of the group closed by errors.",
+            groupList, PrometheusMetrics::groupLabels, g -> sum(g, h -> h.metrics.getConnectionErrors()));
+        m.value("vproxy_server_group_health_flaps_total", "counter", "Health state changes of servers of the group.",
+            groupList, PrometheusMetrics::groupLabels, g -> sum(g, ServerGroup.ServerHandle::getHealthFlaps));
+        m.histogram("vproxy_server_group_connect_seconds", "Time used to connect to servers of the group.",
+            groupList, PrometheusMetrics::groupLabels, g -> merge(g, h -> h.metrics.connectTime), TIME_BOUNDS, true);
+        m.histogram("vproxy_server_group_first_byte_seconds", "Time from connecting to the first byte from servers of the group.",
+            groupList, PrometheusMetrics::groupLabels, g -> merge(g, h -> h.metrics.firstByteTime), TIME_BOUNDS, true);
+        m.histogram("vproxy_server_group_session_duration_seconds", "Duration of connections to servers of the group.",
+            groupList, PrometheusMetrics::groupLabels, g -> merge(g, h -> h.metrics.sessionDuration), TIME_BOUNDS, true);
+        m.histogram("vproxy_server_group_health_check_rtt_seconds", "Time used by the succeeded health checks of servers of the group.",
+            groupList, PrometheusMetrics::groupLabels, g -> merge(g, h -> h.healthCheckRtt), TIME_BOUNDS, true);
+
+        List<ServerEntry> servers = new ArrayList<>();
+        for (ServerGroup g : groups) {
+            for (ServerGroup.ServerHandle h : g.getServerHandles()) {
+                servers.add(new ServerEntry(g, h));
+            }
+        }
+        m.value("vproxy_server_healthy", "gauge", "1 if the server is healthy, 0 otherwise.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.healthy ? 1 : 0);
+        m.value("vproxy_server_active_sessions", "gauge", "Current proxied sessions to the server.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.metrics.getActiveSessions());
+        m.value("vproxy_server_connection_errors_total", "counter", "Connections to the server closed by errors.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.metrics.getConnectionErrors());
+        m.value("vproxy_server_health_flaps_total", "counter", "Health state changes of the server.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.getHealthFlaps());
+        m.histogram("vproxy_server_connect_seconds", "Time used to connect to the server.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.metrics.connectTime.snapshot(), TIME_BOUNDS, true);
+        m.histogram("vproxy_server_first_byte_seconds", "Time from connecting to the first byte from the server.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.metrics.firstByteTime.snapshot(), TIME_BOUNDS, true);
+        m.histogram("vproxy_server_session_duration_seconds", "Duration of connections to the server.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.metrics.sessionDuration.snapshot(), TIME_BOUNDS, true);
+        m.histogram("vproxy_server_health_check_rtt_seconds", "Time used by the succeeded health checks of the server.",
+            servers, PrometheusMetrics::serverLabels, e -> e.server.healthCheckRtt.snapshot(), TIME_BOUNDS, true);
+
+        List<LoopEntry> loops = new ArrayList<>();
+        for (EventLoopGroup g : eventLoopGroups) {
+            for (EventLoopWrapper w : g.list()) {
+                loops.add(new LoopEntry(g, w));
+            }
+        }
+        m.seconds("vproxy_event_loop_busy_seconds_total", "Time used by the event loop to handle events.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().getBusyNanos());
+        m.seconds("vproxy_event_loop_select_seconds_total", "Time used by the event loop to wait for events.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().getSelectNanos());
+        m.value("vproxy_event_loop_stalls_total", "counter", "Times the event loop is busy for longer than the stall threshold.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().getStalls());
+        m.value("vproxy_event_loop_backlog", "gauge", "Count of queued tasks of the event loop.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().getBacklog());
+        m.histogram("vproxy_event_loop_events_per_iteration", "Count of ready channels of one event loop iteration.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().eventsPerIteration.snapshot(), DEPTH_BOUNDS, false);
+        m.histogram("vproxy_event_loop_iteration_seconds", "Time used by one event loop iteration, waiting for events excluded.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().iterationTime.snapshot(), TIME_BOUNDS, true);
+        m.histogram("vproxy_event_loop_queue_depth", "Count of queued tasks when an event loop iteration starts.",
+            loops, PrometheusMetrics::loopLabels, e -> e.loop.getSelectorEventLoop().queueDepth.snapshot(), DEPTH_BOUNDS, false);
+
+        List<Khala> khalaList = new ArrayList<>(khalas);
+        m.value("vproxy_khala_syncs_total", "counter", "Periodic syncs of the khala.",
+            khalaList, PrometheusMetrics::khalaLabels, Khala::getSyncCount);
+        m.value("vproxy_khala_full_syncs_total", "counter", "Syncs sending the full khala because the remote does not support digests.",
+            khalaList, PrometheusMetrics::khalaLabels, Khala::getFullSyncCount);
+        m.value("vproxy_khala_sync_sent_bytes_total", "counter", "Bytes of the request bodies sent when syncing the khala.",
+            khalaList, PrometheusMetrics::khalaLabels, Khala::getSyncBytesSent);
+        m.value("vproxy_khala_sync_received_bytes_total", "counter", "Bytes of the response bodies received when syncing the khala.",
+            khalaList, PrometheusMetrics::khalaLabels, Khala::getSyncBytesReceived);
+
+        return m.sb.toString();
+    }
+
+    private static long sum(ServerGroup g, ToLongFunction<ServerGroup.ServerHandle> f) {
+        long n = 0;
+        for (ServerGroup.ServerHandle h : g.getServerHandles()) {
+            n += f.applyAsLong(h);
+        }
+        return n;
+    }
+
+    private static Histogram.Snapshot merge(ServerGroup g, Function<ServerGroup.ServerHandle, Histogram> f) {
+        List<Histogram> histograms = new ArrayList<>();
+        for (ServerGroup.ServerHandle h : g.getServerHandles()) {
+            histograms.add(f.apply(h));
+        }
+        return Histogram.snapshot(histograms);
+    }
+
+    private static Histogram.Snapshot acceptBatch(TcpLB lb) {
+        List<Histogram> histograms = new ArrayList<>();
+        for (ServerSock server : lb.servers.keySet()) {
+            histograms.add(server.acceptBatch);
+        }
+        return Histogram.snapshot(histograms);
+    }
+
+    private static String lbLabels(TcpLB lb) {
+        return "tcp_lb=\"" + escape(lb.alias) + "\"";
+    }
+
+    private static String lbLoopLabels(LbLoopEntry e) {
+        return lbLabels(e.lb) + ",event_loop_group=\"" + escape(e.lb.workerGroup.alias) + "\",event_loop=\"" + escape(e.loop.alias) + "\"";
+    }
+
+    private static String groupLabels(ServerGroup g) {
+        return "server_group=\"" + escape(g.alias) + "\"";
+    }
+
+    private static String serverLabels(ServerEntry e) {
+        return "server_group=\"" + escape(e.group.alias) + "\",server=\"" + escape(e.server.alias) + "\"";
+    }
+
+    private static String loopLabels(LoopEntry e) {
+        return "event_loop_group=\"" + escape(e.group.alias) + "\",event_loop=\"" + escape(e.loop.alias) + "\"";
+    }
+
+    private static String khalaLabels(Khala k) {
+        return "discovery_node=\"" + escape(k.discovery.localNode.nodeName) + "\"";
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+
+    private void header(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        sb.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+    }
+
+    private <T> void value(String name, String type, String help,
+                           List<T> items, Function<T, String> labels, ToLongFunction<T> value) {
+        if (items.isEmpty()) {
+            return;
+        }
+        header(name, type, help);
+        for (T t : items) {
+            sb.append(name).append("{").append(labels.apply(t)).append("} ").append(value.applyAsLong(t)).append("\n");
+        }
+    }
+
+    // the value is in nanoseconds, exported as a counter in seconds
+    private <T> void seconds(String name, String help,
+                             List<T> items, Function<T, String> labels, ToLongFunction<T> nanos) {
+        if (items.isEmpty()) {
+            return;
+        }
+        header(name, "counter", help);
+        for (T t : items) {
+            sb.append(name).append("{").append(labels.apply(t)).append("} ")
+                .append(BigDecimal.valueOf(nanos.applyAsLong(t), 9).stripTrailingZeros().toPlainString()).append("\n");
+        }
+    }
+
+    private <T> void histogram(String name, String help,
+                               List<T> items, Function<T, String> labels, Function<T, Histogram.Snapshot> snapshot,
+                               long[] bounds, boolean seconds) {
+        if (items.isEmpty()) {
+            return;
+        }
+        header(name, "histogram", help);
+        for (T t : items) {
+            String l = labels.apply(t);
+            Histogram.Snapshot s = snapshot.apply(t);
+            for (long b : bounds) {
+                sb.append(name).append("_bucket{").append(l)
+                    .append(",le=\"").append(seconds ? seconds(b) : Long.toString(b)).append("\"} ")
+                    .append(s.countNotGreaterThan(b)).append("\n");
+            }
+            sb.append(name).append("_bucket{").append(l).append(",le=\"+Inf\"} ").append(s.count).append("\n");
+            sb.append(name).append("_sum{").append(l).append("} ")
+                .append(seconds ? seconds(s.sum) : Long.toString(s.sum)).append("\n");
+            sb.append(name).append("_count{").append(l).append("} ").append(s.count).append("\n");
+        }
+    }
+}
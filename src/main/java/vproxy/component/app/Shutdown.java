@@ -10,6 +10,7 @@ import vproxy.component.auto.SmartGroupDelegate;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.elgroup.SelectMethod;
 import vproxy.component.exception.NoException;
 import vproxy.component.exception.NotFoundException;
 import vproxy.component.secure.SecurityGroup;
@@ -336,10 +337,16 @@ public class Shutdown {
                 eventLoopGroupNames.add(name);
 
                 if (Application.isDefaultEventLoopGroupName(name)) {
+                    if (elg.getMethod() != SelectMethod.rr) {
+                        commands.add("update event-loop-group " + elg.alias + " method " + elg.getMethod());
+                    }
                     continue;
                 }
 
                 String cmd = "add event-loop-group " + elg.alias;
+                if (elg.getMethod() != SelectMethod.rr) {
+                    cmd += " method " + elg.getMethod();
+                }
                 commands.add(cmd);
             }
         }
@@ -625,47 +632,6 @@ public class Shutdown {
         while ((l = br.readLine()) != null) {
             lines.add(l);
         }
-        List<Command> commands = new ArrayList<>();
-        for (String line : lines) {
-            line = line.trim();
-            if (line.isEmpty()) { // skip empty lines
-                continue;
-            }
-            if (line.startsWith("#")) { // comment
-                continue;
-            }
-
-            Logger.info(LogType.BEFORE_PARSING_CMD, line);
-            Command cmd;
-            try {
-                cmd = Command.parseStrCmd(line);
-            } catch (Exception e) {
-                Logger.warn(LogType.AFTER_PARSING_CMD, "parse command `" + line + "` failed");
-                throw e;
-            }
-            Logger.info(LogType.AFTER_PARSING_CMD, cmd.toString());
-            commands.add(cmd);
-        }
-        runCommandsOnLoading(commands, 0, cb);
-    }
-
-    private static void runCommandsOnLoading(List<Command> commands, int idx, Callback<String, Throwable> cb) {
-        if (idx >= commands.size()) {
-            // done
-            cb.succeeded("");
-            return;
-        }
-        Command cmd = commands.get(idx);
-        cmd.run(new Callback<>() {
-            @Override
-            protected void onSucceeded(CmdResult value) {
-                runCommandsOnLoading(commands, idx + 1, cb);
-            }
-
-            @Override
-            protected void onFailed(Throwable err) {
-                cb.failed(err);
-            }
-        });
+        new ConfigLoader(lines).load(cb);
     }
 }
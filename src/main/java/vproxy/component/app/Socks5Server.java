@@ -9,6 +9,7 @@ import vproxy.component.svrgroup.ServerGroup;
 import vproxy.component.svrgroup.ServerGroups;
 import vproxy.connection.Connection;
 import vproxy.connection.Connector;
+import vproxy.connection.HappyEyeballs;
 import vproxy.connection.Protocol;
 import vproxy.protocol.ProtocolHandler;
 import vproxy.socks.AddressType;
@@ -85,7 +86,7 @@ public class Socks5Server extends TcpLB {
             }
             // still not found, check whether it's allowed to request non backend ip
             if (allowNonBackend) {
-                handleNonBackend(type, address, port, providedCallback);
+                handleNonBackend(accepted, type, address, port, providedCallback);
                 return;
             }
             // return null if not found
@@ -93,8 +94,8 @@ public class Socks5Server extends TcpLB {
             providedCallback.accept(null);
         }
 
-        private void handleNonBackend(AddressType type, String address, int port, Consumer<Connector> providedCallback) {
-            Utils.directConnect(type, address, port, providedCallback);
+        private void handleNonBackend(Connection accepted, AddressType type, String address, int port, Consumer<Connector> providedCallback) {
+            HappyEyeballs.directConnect(accepted.getEventLoop(), type, address, port, providedCallback);
         }
     }
 
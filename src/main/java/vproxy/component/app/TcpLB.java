@@ -1,6 +1,7 @@
 package vproxy.component.app;
 
 import vproxy.app.Config;
+import vproxy.component.accesslog.AccessLog;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.elgroup.EventLoopGroupAttach;
 import vproxy.component.elgroup.EventLoopWrapper;
@@ -12,6 +13,7 @@ import vproxy.component.secure.SecurityGroup;
 import vproxy.component.ssl.CertKey;
 import vproxy.component.svrgroup.ServerGroups;
 import vproxy.connection.*;
+import vproxy.processor.Hint;
 import vproxy.processor.Processor;
 import vproxy.processor.ProcessorProvider;
 import vproxy.util.LogType;
@@ -73,10 +75,13 @@ public class TcpLB {
     private int inBufferSize; // modifiable
     private int outBufferSize; // modifiable
     public final String protocol;
-    public final Processor processor;
+    public final Processor processor; // null when the protocol is tcp or handled by the multiplex processor
+    public final MultiplexProcessor multiplexProcessor;
     public final SSLContext sslContext;
     public final CertKey[] certKeys;
     public SecurityGroup securityGroup;
+    public AccessLog accessLog; // null means access log is disabled
+    public final SessionMetrics metrics = new SessionMetrics();
     // the modifiable fields only have effect when new connection arrives
 
     // true means the lb is stopped, but it can still re-start.
@@ -88,6 +93,7 @@ public class TcpLB {
     private boolean destroyed = false;
 
     private final LBAttach attach;
+    private SessionRebalancer rebalancer; // null means the sessions stay on the loops where they are created
 
     public final ConcurrentMap<ServerSock, Proxy> servers = new ConcurrentHashMap<>();
     private final LBProxyEventHandler proxyEventHandler = new LBProxyEventHandler();
@@ -123,10 +129,12 @@ public class TcpLB {
         this.inBufferSize = inBufferSize;
         this.outBufferSize = outBufferSize;
         this.protocol = protocol;
-        this.processor = (protocol.equals("tcp") ? null : ProcessorProvider.getInstance().get(protocol));
+        this.multiplexProcessor = (protocol.equals("tcp") ? null : MultiplexProcessorRegistry.getInstance().get(protocol));
+        this.processor = (protocol.equals("tcp") || multiplexProcessor != null ? null : ProcessorProvider.getInstance().get(protocol));
         this.sslContext = sslContext;
         this.certKeys = certKeys;
         this.securityGroup = securityGroup;
+        this.accessLog = AccessLog.get();
 
         // we do not bind or create proxy object here
         // if it's created, it should start to run
@@ -140,7 +148,7 @@ public class TcpLB {
     // this method can override
     protected ConnectorGen provideConnectorGen() {
         if (protocol.equals("tcp")) {
-            return this::connectorProvider;
+            return accepted -> connectorProvider(accepted, null);
         } else {
             return new ConnectorGen() {
                 @Override
@@ -150,19 +158,29 @@ public class TcpLB {
 
                 @Override
                 public Connector genConnector(Connection accepted) {
-                    return connectorProvider(accepted);
+                    return connectorProvider(accepted, null);
+                }
+
+                @Override
+                public Connector genConnector(Connection accepted, Hint hint) {
+                    return connectorProvider(accepted, hint);
                 }
 
                 @Override
                 public Processor processor() {
                     return processor;
                 }
+
+                @Override
+                public MultiplexProcessor multiplexProcessor() {
+                    return multiplexProcessor;
+                }
             };
         }
     }
 
     // provide a connector
-    private Connector connectorProvider(Connection connectableConn) {
+    private Connector connectorProvider(Connection connectableConn, Hint hint) {
         // check whitelist
         InetAddress remoteAddress = connectableConn.remote.getAddress();
         if (!securityGroup.allow(Protocol.TCP, remoteAddress, bindAddress.getPort()))
@@ -171,7 +189,19 @@ public class TcpLB {
         // we get a new connector
 
         // get a server from backends
-        Connector connector = backends.next(connectableConn.remote);
+        // the servers are chosen by consistent hashing if the processor provides a hint
+        Connector connector;
+        if (hint == null) {
+            connector = backends.next(connectableConn.remote);
+        } else if (hint.host == null) {
+            connector = backends.next(connectableConn.remote, hint.hash);
+        } else {
+            // the processor requires a specific backend, which may not be recorded in the groups
+            connector = backends.lookup(hint.host);
+            if (connector == null) {
+                connector = new Connector(hint.host);
+            }
+        }
         if (connector == null)
             return null; // return null if cannot get any
         assert Logger.lowLevelDebug("got a backend: " + connector);
@@ -194,7 +224,10 @@ public class TcpLB {
             .setOutBufferSize(outBufferSize)
             .setServer(server)
             .setAcceptLoop(eventLoop)
-            .setSslContext(sslContext);
+            .setSslContext(sslContext)
+            .setAlias(alias)
+            .setAccessLog(accessLog)
+            .setMetrics(metrics);
     }
 
     public void start() throws IOException {
@@ -274,6 +307,36 @@ public class TcpLB {
         } catch (NotFoundException e) {
             // ignore
         }
+        synchronized (this) {
+            if (rebalancer != null) {
+                rebalancer.stop();
+                rebalancer = null;
+            }
+        }
+    }
+
+    /**
+     * Move sessions between the loops of the worker group every `period` milliseconds,
+     * and move the sessions off a worker loop before it's removed.
+     * The rebalancer is disabled when `period` is 0.
+     */
+    public void setRebalancePeriod(int period) throws AlreadyExistException, ClosedException {
+        synchronized (this) {
+            if (rebalancer != null) {
+                rebalancer.stop();
+                rebalancer = null;
+            }
+            if (period > 0) {
+                SessionRebalancer r = new SessionRebalancer(alias, workerGroup, servers.values(), period);
+                r.start();
+                rebalancer = r;
+            }
+        }
+    }
+
+    public int getRebalancePeriod() {
+        SessionRebalancer r = rebalancer;
+        return r == null ? 0 : r.period;
     }
 
     public int sessionCount() {
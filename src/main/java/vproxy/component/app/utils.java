@@ -21,6 +21,7 @@ import vproxy.component.svrgroup.ServerGroup;
 import vproxy.component.svrgroup.ServerGroups;
 import vproxy.connection.Connection;
 import vproxy.connection.ServerSock;
+import vproxy.selector.SelectorEventLoop;
 import vproxy.util.Callback;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
@@ -62,11 +63,11 @@ class utils {
         cb.succeeded(new SimpleArray(ret));
     }
 
-    static void execute(Callback<JSON.Instance, Throwable> cb, String... args) {
+    static void execute(Callback<? super JSON.Instance<?>, Throwable> cb, String... args) {
         execute(cb, Arrays.asList(args));
     }
 
-    static void execute(Callback<JSON.Instance, Throwable> cb, List<String> args) {
+    static void execute(Callback<? super JSON.Instance<?>, Throwable> cb, List<String> args) {
         Command cmd;
         try {
             cmd = Command.parseStrCmd(args);
@@ -365,6 +366,7 @@ class utils {
     static JSON.Object formatEventLoopGroupDetail(EventLoopGroup elg) {
         return new ObjectBuilder()
             .put("name", elg.alias)
+            .put("method", elg.getMethod().toString())
             .putArray("eventLoopList", arr -> elg.list().forEach(el -> arr.addInst(formatEventLoop(el))))
             .build();
     }
@@ -375,6 +377,23 @@ class utils {
             .build();
     }
 
+    static JSON.Object formatEventLoopDetail(EventLoopWrapper el) {
+        SelectorEventLoop loop = el.getSelectorEventLoop();
+        Class<?> longest = loop.getLongestCallbackClass();
+        return new ObjectBuilder()
+            .put("name", el.alias)
+            .put("busyNanos", loop.getBusyNanos())
+            .put("selectNanos", loop.getSelectNanos())
+            .put("iterations", loop.getIterations())
+            .put("iterationP99Micros", loop.iterationTime.snapshot().valueAtPercentile(99))
+            .put("eventsPerIterationP99", loop.eventsPerIteration.snapshot().valueAtPercentile(99))
+            .put("backlog", loop.getBacklog())
+            .put("longestCallbackNanos", loop.getLongestCallbackNanos())
+            .put("longestCallbackClass", longest == null ? null : longest.getName())
+            .put("stalls", loop.getStalls())
+            .build();
+    }
+
     static JSON.Object formatSocks5Server(Socks5Server socks5) {
         return new ObjectBuilder()
             .put("name", socks5.alias)
@@ -10,4 +10,12 @@ public interface HealthCheckHandler {
     void upOnce(SocketAddress remote);
 
     void downOnce(SocketAddress remote);
+
+    /**
+     * called when a check succeeded
+     *
+     * @param nanos time used by the check
+     */
+    default void rtt(SocketAddress remote, long nanos) {
+    }
 }
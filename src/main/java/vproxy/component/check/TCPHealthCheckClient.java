@@ -108,9 +108,11 @@ public class TCPHealthCheckClient {
             return;
         }
 
+        long start = System.nanoTime();
         connectClient.handle(new Callback<Void, IOException>() {
             @Override
             protected void onSucceeded(Void value) {
+                handler.rtt(connectClient.remote, System.nanoTime() - start);
                 connectResultHandler.onSucceeded();
                 cb.run();
             }
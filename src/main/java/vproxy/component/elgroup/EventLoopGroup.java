@@ -11,15 +11,27 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class EventLoopGroup {
+    private static final long BUSY_SAMPLE_PERIOD_NANOS = 200_000_000; // 200ms
+    private static final double BUSY_TOLERANCE = 0.05; // loops with busy ratio difference less than this are considered equally busy
+    private static final int REMOVE_TIMEOUT = 5_000; // the longest time to wait for the resources before closing a removed loop
+
     public final String alias;
     private ArrayList<EventLoopWrapper> eventLoops = new ArrayList<>(0); // use array list to make code look better,
     // it's the same if you use array
     private boolean closed = false; // if true, then all operations are disabled or return default value
     private final AtomicInteger cursor = new AtomicInteger(0); // current cursor of the eventLoops
+    private volatile SelectMethod method = SelectMethod.rr;
+    // busy time sampling for the leastbusy method
+    private final Object busySampleLock = new Object();
+    private volatile long lastBusySampleNanos = System.nanoTime();
     private final ConcurrentHashSet<EventLoopGroupAttach> attaches = new ConcurrentHashSet<>();
 
     public EventLoopGroup(String alias) {
@@ -102,19 +114,22 @@ public class EventLoopGroup {
         }
         ArrayList<EventLoopWrapper> ls = eventLoops;
         ArrayList<EventLoopWrapper> newLs = new ArrayList<>(ls.size() - 1);
-        boolean found = false;
+        EventLoopWrapper removed = null;
         for (EventLoopWrapper w : ls) {
             if (w.alias.equals(alias)) {
-                found = true;
-                tryCloseLoop(w.getSelectorEventLoop());
+                removed = w;
             } else {
                 newLs.add(w);
             }
         }
-        if (!found)
+        if (removed == null)
             throw new NotFoundException("event-loop in event-loop-group " + this.alias, alias);
 
+        // the loop will not be chosen anymore,
+        // then let the resources move what they can to other loops before it closes
         eventLoops = newLs;
+        invokeResourcesOnRemove(removed);
+        tryCloseLoop(removed.getSelectorEventLoop());
     }
 
     /*
@@ -159,6 +174,36 @@ public class EventLoopGroup {
         }
     }
 
+    @Blocking
+    private void invokeResourcesOnRemove(EventLoopWrapper el) {
+        // the resources work at the same time, and all of them share one deadline
+        List<EventLoopGroupAttach> resources = new ArrayList<>(attaches);
+        CountDownLatch latch = new CountDownLatch(resources.size());
+        for (EventLoopGroupAttach resource : resources) {
+            AtomicBoolean called = new AtomicBoolean(false);
+            Runnable done = () -> {
+                if (called.compareAndSet(false, true)) {
+                    latch.countDown();
+                }
+            };
+            try {
+                resource.onEventLoopRemove(el, done);
+            } catch (Throwable t) {
+                // ignore the error, the user code should not throw
+                // only log here
+                Logger.error(LogType.IMPROPER_USE, "exception when calling onEventLoopRemove on the resource, err = ", t);
+                done.run();
+            }
+        }
+        try {
+            if (!latch.await(REMOVE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Logger.warn(LogType.ALERT, "resources are not done with the removed event loop " + el.alias + " in " + REMOVE_TIMEOUT + "ms, close it anyway");
+            }
+        } catch (InterruptedException e) {
+            // close the loop now
+        }
+    }
+
     private void removeResources() {
         for (EventLoopGroupAttach resource : attaches) {
             try {
@@ -184,6 +229,15 @@ public class EventLoopGroup {
      * ========================
      */
 
+    public SelectMethod getMethod() {
+        return method;
+    }
+
+    @ThreadSafe
+    public void setMethod(SelectMethod method) {
+        this.method = method;
+    }
+
     @ThreadSafe
     public EventLoopWrapper next() {
         return next(null);
@@ -201,33 +255,123 @@ public class EventLoopGroup {
             return (EventLoopWrapper) hint;
         }
         assert Logger.lowLevelDebug("caller loop is not contained in the event loop group, choose one");
-        return next(ls, 0);
+        return select(ls);
     }
 
-    private EventLoopWrapper next(ArrayList<EventLoopWrapper> ls, int recursion) {
-        if (recursion > ls.size())
+    private EventLoopWrapper select(ArrayList<EventLoopWrapper> ls) {
+        if (ls.isEmpty()) {
             return null;
-        ++recursion;
+        }
+        switch (method) {
+            case leastconn:
+                return leastConn(ls);
+            case leastbusy:
+                sampleBusyTime(ls);
+                return leastBusy(ls);
+            case p2c:
+                return powerOfTwoChoices(ls);
+            case rr:
+            default:
+                return roundRobin(ls, 0);
+        }
+    }
 
-        EventLoopWrapper result;
+    private static boolean usable(EventLoopWrapper w) {
+        // maybe the list is operated in another thread
+        return !w.getSelectorEventLoop().isClosed();
+    }
 
-        int idx = cursor.getAndIncrement();
-        if (ls.size() > idx) {
-            result = ls.get(idx);
-        } else if (ls.isEmpty()) {
+    private EventLoopWrapper roundRobin(ArrayList<EventLoopWrapper> ls, int recursion) {
+        if (recursion >= ls.size())
             return null;
-        } else {
-            cursor.set(1);
-            result = ls.get(0);
-        }
-        if (result.getSelectorEventLoop().isClosed()) {
-            // maybe the list is operated in another thread
+        EventLoopWrapper result = ls.get(Math.floorMod(cursor.getAndIncrement(), ls.size()));
+        if (!usable(result)) {
             // skip this element and return the next element
-            return next(ls, recursion);
+            return roundRobin(ls, recursion + 1);
+        }
+        return result;
+    }
+
+    private EventLoopWrapper leastConn(ArrayList<EventLoopWrapper> ls) {
+        // start from a different position each time, so loops with the same load are chosen in turn
+        int start = Math.floorMod(cursor.getAndIncrement(), ls.size());
+        EventLoopWrapper result = null;
+        int resultLoad = 0;
+        for (int i = 0; i < ls.size(); ++i) {
+            EventLoopWrapper w = ls.get((start + i) % ls.size());
+            if (!usable(w)) {
+                continue;
+            }
+            int load = w.connectionLoad();
+            if (result == null || load < resultLoad) {
+                result = w;
+                resultLoad = load;
+            }
+        }
+        return result;
+    }
+
+    private void sampleBusyTime(ArrayList<EventLoopWrapper> ls) {
+        long now = System.nanoTime();
+        if (now - lastBusySampleNanos < BUSY_SAMPLE_PERIOD_NANOS) {
+            return;
+        }
+        synchronized (busySampleLock) {
+            long last = lastBusySampleNanos;
+            if (now - last < BUSY_SAMPLE_PERIOD_NANOS) {
+                return; // sampled by another thread
+            }
+            for (EventLoopWrapper w : ls) {
+                long busy = w.getSelectorEventLoop().getBusyNanos();
+                w.recentBusy = (double) (busy - w.lastBusyNanos) / (now - last);
+                w.lastBusyNanos = busy;
+            }
+            lastBusySampleNanos = now;
+        }
+    }
+
+    private EventLoopWrapper leastBusy(ArrayList<EventLoopWrapper> ls) {
+        int start = Math.floorMod(cursor.getAndIncrement(), ls.size());
+        EventLoopWrapper result = null;
+        for (int i = 0; i < ls.size(); ++i) {
+            EventLoopWrapper w = ls.get((start + i) % ls.size());
+            if (!usable(w)) {
+                continue;
+            }
+            if (result == null) {
+                result = w;
+                continue;
+            }
+            double diff = w.recentBusy - result.recentBusy;
+            if (diff < -BUSY_TOLERANCE) {
+                result = w;
+            } else if (diff <= BUSY_TOLERANCE && w.connectionLoad() < result.connectionLoad()) {
+                // the loops are almost equally busy, compare the connections
+                result = w;
+            }
         }
         return result;
     }
 
+    private EventLoopWrapper powerOfTwoChoices(ArrayList<EventLoopWrapper> ls) {
+        int n = ls.size();
+        if (n == 1) {
+            return usable(ls.get(0)) ? ls.get(0) : null;
+        }
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        int a = rand.nextInt(n);
+        int b = rand.nextInt(n - 1);
+        if (b >= a) {
+            ++b;
+        }
+        EventLoopWrapper x = ls.get(a);
+        EventLoopWrapper y = ls.get(b);
+        if (!usable(x) || !usable(y)) {
+            return usable(x) ? x : usable(y) ? y : leastConn(ls);
+        }
+        return y.connectionLoad() < x.connectionLoad() ? y : x;
+    }
+
     @Blocking
     // closing selectorEventLoop is blocking, so this is blocking as well
     @ThreadSafe
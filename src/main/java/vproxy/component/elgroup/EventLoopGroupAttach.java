@@ -5,5 +5,14 @@ public interface EventLoopGroupAttach {
 
     void onEventLoopAdd();
 
+    /**
+     * The loop is already removed from the group.
+     * It is closed after all resources call <code>done</code>, or when the removal times out.<br>
+     * The method should return quickly, long running work should be done on other threads.
+     */
+    default void onEventLoopRemove(EventLoopWrapper el, Runnable done) {
+        done.run();
+    }
+
     void onClose();
 }
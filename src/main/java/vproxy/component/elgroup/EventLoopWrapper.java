@@ -4,13 +4,17 @@ import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.ClosedException;
 import vproxy.component.exception.NotFoundException;
 import vproxy.connection.*;
+import vproxy.selector.LoopLocalSet;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.util.*;
 
 import java.io.IOException;
 import java.nio.channels.NetworkChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class EventLoopWrapper extends NetEventLoop {
     class ServerHandlerWrapper implements ServerHandler {
@@ -30,6 +34,11 @@ public class EventLoopWrapper extends NetEventLoop {
             handler.connection(ctx, connection);
         }
 
+        @Override
+        public void acceptEnd(ServerHandlerContext ctx) {
+            handler.acceptEnd(ctx);
+        }
+
         @Override
         public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
             return handler.getIOBuffers(channel);
@@ -38,7 +47,8 @@ public class EventLoopWrapper extends NetEventLoop {
         @Override
         public void removed(ServerHandlerContext ctx) {
             handler.removed(ctx);
-            servers.remove(ctx.server);
+            ServerSock server = ctx.server;
+            selectorEventLoop.runOnLoop(() -> servers.remove(server));
         }
 
         @Override
@@ -82,7 +92,8 @@ public class EventLoopWrapper extends NetEventLoop {
         @Override
         public void removed(ConnectionHandlerContext ctx) {
             handler.removed(ctx);
-            connections.remove(ctx.connection);
+            Connection connection = ctx.connection;
+            selectorEventLoop.runOnLoop(() -> connections.remove(connection));
         }
     }
 
@@ -102,49 +113,114 @@ public class EventLoopWrapper extends NetEventLoop {
 
     public final String alias;
     private final SelectorEventLoop selectorEventLoop;
-    private final ConcurrentHashSet<ServerSock> servers = new ConcurrentHashSet<>();
-    private final ConcurrentHashSet<Connection> connections = new ConcurrentHashSet<>();
+    // the servers and connections are only recorded and removed on the loop thread
+    private final LoopLocalSet<ServerSock> servers;
+    private final LoopLocalSet<Connection> connections;
+    // connections added from other threads but not recorded on the loop yet
+    private final AtomicInteger adding = new AtomicInteger();
+    private boolean addingOnLoop = false; // only accessed on the loop thread
     private final ConcurrentHashSet<EventLoopAttach> attaches = new ConcurrentHashSet<>();
+    // updated by the event loop group when sampling the busy time
+    long lastBusyNanos = 0;
+    volatile double recentBusy = 0; // ratio of busy time in the last sampling period
 
     public EventLoopWrapper(String alias, SelectorEventLoop selectorEventLoop) {
         super(selectorEventLoop);
         this.alias = alias;
         this.selectorEventLoop = selectorEventLoop;
+        this.servers = new LoopLocalSet<>(selectorEventLoop);
+        this.connections = new LoopLocalSet<>(selectorEventLoop);
     }
 
     @Override
     public void addServer(ServerSock server, Object attachment, ServerHandler handler) throws IOException {
-        servers.add(server); // make sure the server recorded
-        try {
-            super.addServer(server, attachment, new ServerHandlerWrapper(handler));
-        } catch (IOException e) {
-            servers.remove(server); // remove the recorded server if got error
-            throw e;
+        super.addServer(server, attachment, new ServerHandlerWrapper(handler));
+    }
+
+    @Override
+    protected void serverAdded(ServerSock server) {
+        if (server.getEventLoop() == this) { // not removed yet
+            servers.add(server);
         }
     }
 
+    private boolean onLoop() {
+        Thread t = selectorEventLoop.runningThread;
+        return t == null || t == Thread.currentThread();
+    }
+
     @Override
     public void addConnection(Connection connection, Object attachment, ConnectionHandler handler) throws IOException {
-        connections.add(connection); // make sure the connection recorded
+        if (onLoop()) {
+            addingOnLoop = true; // connectionAdded() is called before the method returns
+            try {
+                super.addConnection(connection, attachment, new ConnectionHandlerWrapper(handler));
+            } finally {
+                addingOnLoop = false;
+            }
+            return;
+        }
+        adding.incrementAndGet();
         try {
             super.addConnection(connection, attachment, new ConnectionHandlerWrapper(handler));
         } catch (IOException e) {
-            connections.remove(connection); // remove the recorded connection if got error
+            adding.decrementAndGet();
             throw e;
         }
     }
 
     @Override
     public void addConnectableConnection(ConnectableConnection connection, Object attachment, ConnectableConnectionHandler handler) throws IOException {
-        connections.add(connection); // make sure the connection recorded
+        if (onLoop()) {
+            addingOnLoop = true; // connectionAdded() is called before the method returns
+            try {
+                super.addConnectableConnection(connection, attachment, new ConnectableConnectionHandlerWrapper(handler));
+            } finally {
+                addingOnLoop = false;
+            }
+            return;
+        }
+        adding.incrementAndGet();
         try {
             super.addConnectableConnection(connection, attachment, new ConnectableConnectionHandlerWrapper(handler));
         } catch (IOException e) {
-            connections.remove(connection); // remove the recorded connection if got error
+            adding.decrementAndGet();
             throw e;
         }
     }
 
+    @Override
+    public void willAddInBatch() {
+        // the connection is counted when it's dispatched to the loop, see connectionLoad(),
+        // so the following connections accepted in the same batch see the load
+        adding.incrementAndGet();
+    }
+
+    @Override
+    public void addInBatch(List<Runnable> tasks) {
+        List<Runnable> counted = new ArrayList<>(tasks.size());
+        for (Runnable r : tasks) {
+            counted.add(() -> {
+                try {
+                    r.run();
+                } finally {
+                    adding.decrementAndGet();
+                }
+            });
+        }
+        super.addInBatch(counted);
+    }
+
+    @Override
+    protected void connectionAdded(Connection connection) {
+        if (!addingOnLoop) {
+            adding.decrementAndGet(); // added from another thread
+        }
+        if (connection.getEventLoop() == this) { // not removed yet
+            connections.add(connection);
+        }
+    }
+
     @ThreadSafe
     public void attachResource(EventLoopAttach resource) throws AlreadyExistException, ClosedException {
         if (selectorEventLoop.isClosed()) {
@@ -182,24 +258,32 @@ public class EventLoopWrapper extends NetEventLoop {
         assert attaches.isEmpty();
     }
 
-    // this is a very expansive operation
+    // this is a very expansive operation, the servers are copied on the loop
+    @Blocking
     public void copyServers(Collection<? super ServerSock> servers) {
-        servers.addAll(this.servers);
+        this.servers.copyTo(servers);
     }
 
     public int serverCount() {
         return this.servers.size();
     }
 
-    // this is a very expansive operation
+    // this is a very expansive operation, the connections are copied on the loop
+    @Blocking
     public void copyConnections(Collection<? super Connection> connections) {
-        connections.addAll(this.connections);
+        this.connections.copyTo(connections);
     }
 
     public int connectionCount() {
         return this.connections.size();
     }
 
+    // connections being added from other threads are counted as well,
+    // so that the loop will not be chosen for every connection before they are recorded
+    int connectionLoad() {
+        return this.connections.size() + adding.get();
+    }
+
     public void loop() {
         if (getSelectorEventLoop().runningThread != null) {
             throw new IllegalStateException();
@@ -210,6 +294,9 @@ public class EventLoopWrapper extends NetEventLoop {
         this.selectorEventLoop.loop(r -> new Thread(() -> {
             r.run();
             removeResources();
+            // the removing events will not run after the loop exits
+            servers.clear();
+            connections.clear();
         }, "EventLoopThread:" + alias));
     }
 }
@@ -0,0 +1,9 @@
+package vproxy.component.elgroup;
+
+// how EventLoopGroup chooses an event loop
+public enum SelectMethod {
+    rr, // round robin
+    leastconn, // the loop with least connections
+    leastbusy, // the loop with least busy time in the recent sampling period
+    p2c, // power of two choices: choose two loops randomly, and use the one with less connections
+}
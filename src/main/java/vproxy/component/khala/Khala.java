@@ -1,13 +1,13 @@
 package vproxy.component.khala;
 
-import vclient.HttpClient;
 import vclient.HttpResponse;
-import vclient.impl.Http1ClientImpl;
 import vjson.JSON;
 import vjson.simple.SimpleArray;
 import vjson.util.ArrayBuilder;
 import vjson.util.ObjectBuilder;
+import vjson.util.StreamingSerializer;
 import vproxy.component.exception.XException;
+import vproxy.component.khala.protocol.KhalaDigestMsg;
 import vproxy.component.khala.protocol.KhalaMsg;
 import vproxy.discovery.Discovery;
 import vproxy.discovery.Node;
@@ -18,17 +18,20 @@ import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.Tuple;
 
-import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
  * the service network
  * protocol:
- * request types: khala.add | khala.remove | khala.local | khala.sync | khala.hash
+ * request types: khala.add | khala.remove | khala.local | khala.sync | khala.hash | khala.digest
  * -- khala.add || khala.remove:
  * ---- {
  * ------ node: { // identifier of a discovery node
@@ -57,7 +60,13 @@ import java.util.stream.Collectors;
  * ------ ]
  * ---- }
  * -- khala.hash
- * ---- { hash }
+ * ---- { hash } // root digest of all discovery nodes
+ * -- khala.digest
+ * ---- [ {
+ * ------ node: { nodeName, address, udpPort, tcpPort, },
+ * ------ hash, // digest of khala nodes in the discovery node
+ * ---- } ]
+ * -- khala.digest-response, same as khala.sync-response
  * <p>
  * triggers:
  * 1. when a node is discovered, record the node, and send khala-local message to the discovered node
@@ -68,7 +77,10 @@ import java.util.stream.Collectors;
  * 4. when a kNode is removed, remove the kNode, and send a khala-remove message:
  * -- 1) if kNode.type is nexus, should alert all nodes in the khala
  * -- 2) if kNode.type is pylon, should alert only nexus nodes
- * 5. for every few minutes, the node should randomly pick a nexus node and send a khala message
+ * 5. for every few minutes, the node should randomly pick a nexus node and send a khala.hash message,
+ * -- if the hash differs, send a khala.digest message (or khala.sync if the remote does not support khala.digest)
+ * -- note: a node of an older version calculates khala.hash differently and does not support khala.digest,
+ * -- so the hash never matches and it always falls back to a full khala.sync
  * server:
  * 1. when receiving a khala.add message,
  * -- the node should record the node, then respond with 204
@@ -80,8 +92,14 @@ import java.util.stream.Collectors;
  * -- the node checks each discovery node in the message and compare with local cache
  * -- when a diff is found, the node should request the differed nodes with khala.local message and store the latest config
  * -- finally respond with a khala.sync-response message, containing missing nodes differed from of the request
+ * 5. when receiving a khala.digest message,
+ * -- the node compares the digest of each discovery node, and handles the differed nodes the same as khala.sync
  * client:
- * -- when receiving khala.sync-response message, sync with diff nodes
+ * -- when receiving khala.sync-response or khala.digest-response message, sync with diff nodes
+ * <p>
+ * the digests form a two level hash tree: the root digest is calculated from the digests of discovery nodes,
+ * so only digests are exchanged when the khala is the same,
+ * and only khala nodes of the differed discovery nodes are retrieved when it's not.
  */
 public class Khala {
     enum NodeState {
@@ -178,6 +196,8 @@ public class Khala {
 
     class KhalaNodeRecorder {
         private final Map<Node, Set<KhalaNode>> n2knsMap = new ConcurrentHashMap<>();
+        // cached digests of khala nodes, removed when the khala nodes of the discovery node change
+        private final Map<Node, String> digests = new ConcurrentHashMap<>();
 
         /**
          * specify a remote discovery node and init khala nodes with a list.
@@ -190,6 +210,7 @@ public class Khala {
          */
         public void add(Node node) {
             Set<KhalaNode> set = n2knsMap.put(node, new HashSet<>());
+            digests.remove(node);
             if (set != null) {
                 // the khala node set should not be recorded multiple times
                 // we cannot handle the situation, it must be a bug
@@ -208,6 +229,7 @@ public class Khala {
                 n2knsMap.put(discovery.localNode, new HashSet<>());
             }
             if (n2knsMap.get(discovery.localNode).add(kn)) {
+                digests.remove(discovery.localNode);
                 // successfully added
                 // then should notify others about the added node
                 notifyNetworkAddKhalaNode(kn);
@@ -234,6 +256,7 @@ public class Khala {
             if (!set.add(khalaNode)) {
                 return; // already recorded
             }
+            digests.remove(node);
             listenerNodeAdd(node, khalaNode);
         }
 
@@ -257,6 +280,7 @@ public class Khala {
                 // already removed, do nothing
                 return;
             }
+            digests.remove(node);
             listenerNodeRemove(node, khalaNode);
         }
 
@@ -270,6 +294,7 @@ public class Khala {
                 n2knsMap.put(discovery.localNode, new HashSet<>());
             }
             if (n2knsMap.get(discovery.localNode).remove(kn)) {
+                digests.remove(discovery.localNode);
                 // successfully removed
                 // then should notify others about the removal
                 notifyNetworkRemoveKhalaNode(kn);
@@ -288,6 +313,7 @@ public class Khala {
          */
         public void remove(Node node) {
             Set<KhalaNode> set = n2knsMap.remove(node);
+            digests.remove(node);
             if (set == null) {
                 // the node not recorded, ignore
                 return;
@@ -305,6 +331,29 @@ public class Khala {
             return n2knsMap.get(node);
         }
 
+        /**
+         * @param node the discovery node
+         * @return digest of khala nodes in the discovery node, the `meta` field is not calculated
+         */
+        public String digest(Node node) {
+            String d = digests.get(node);
+            if (d != null)
+                return d;
+            PriorityQueue<KhalaNode> p = new PriorityQueue<>(KhalaNode::compareTo);
+            p.addAll(getKhalaNodes(node));
+            StringBuilder sb = new StringBuilder();
+            KhalaNode kn;
+            while ((kn = p.poll()) != null) {
+                sb.append(kn.service).append(",")
+                    .append(kn.zone).append(",")
+                    .append(kn.address).append(",")
+                    .append(kn.port).append(",");
+            }
+            d = sha256(sb.toString());
+            digests.put(node, d);
+            return d;
+        }
+
         // alert listeners for node adding
         private void listenerNodeAdd(Node n, KhalaNode node) {
             Logger.info(LogType.KHALA_EVENT, "node added " + node);
@@ -353,6 +402,12 @@ public class Khala {
     private final Set<KhalaNodeListener> khalaNodeListeners = new CopyOnWriteArraySet<>();
     private final Random rand = new Random();
 
+    // statistics of the periodic sync
+    private final LongAdder syncCount = new LongAdder();
+    private final LongAdder fullSyncCount = new LongAdder();
+    private final LongAdder syncBytesSent = new LongAdder();
+    private final LongAdder syncBytesReceived = new LongAdder();
+
     public Khala(Discovery discovery, KhalaConfig config) {
         this.discovery = discovery;
         this.config = config;
@@ -376,7 +431,8 @@ public class Khala {
                     || type.equals("khala.add")
                     || type.equals("khala.remove")
                     || type.equals("khala.local")
-                    || type.equals("khala.hash");
+                    || type.equals("khala.hash")
+                    || type.equals("khala.digest");
             }
 
             @SuppressWarnings("OptionalGetWithoutIsPresent")
@@ -390,6 +446,24 @@ public class Khala {
                     cb.succeeded(new ObjectBuilder().put("hash", calcHash()).build());
                     return;
                 }
+                if (type.equals("khala.digest")) {
+                    // khala.digest format is different from others as well
+                    KhalaDigestMsg msg;
+                    try {
+                        msg = KhalaDigestMsg.parse(version, data);
+                    } catch (XException e) {
+                        Logger.warn(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
+                        cb.failed(e);
+                        return;
+                    }
+                    if (msg.version != 1) {
+                        Logger.warn(LogType.INVALID_EXTERNAL_DATA, "version mismatch: " + msg);
+                        cb.failed(new XException("version mismatch"));
+                        return;
+                    }
+                    cb.succeeded(handleDigest(msg.digests));
+                    return;
+                }
 
                 Tuple<KhalaMsg, XException> tup = utilValidateResponse(version, type, data);
                 if (tup.right != null) {
@@ -554,16 +628,38 @@ public class Khala {
             // missing in remote
             diff.add(n);
         }
-        return new ObjectBuilder()
-            .putInst("diff", new SimpleArray(
-                diff.stream().map(n -> new ObjectBuilder()
-                    .put("nodeName", n.nodeName)
-                    .put("address", n.address)
-                    .put("udpPort", n.udpPort)
-                    .put("tcpPort", n.tcpPort)
-                    .build()).collect(Collectors.toList())
-            ))
-            .build();
+        return buildDiffKhalaMsg(diff);
+    }
+
+    // handle khala digest
+    private JSON.Instance<?> handleDigest(Map<Node, String> remoteDigests) {
+        // no need to check for remote if it's a new node
+        boolean needToCheckRemote = remoteDigests.size() > 1;
+        Set<Node> diff = new HashSet<>();
+        for (Node n : remoteDigests.keySet()) {
+            if (discoveryNodeNotExist(n)) {
+                diff.add(n);
+                continue;
+            }
+            if (khalaNodes.digest(n).equals(remoteDigests.get(n))) {
+                continue;
+            }
+            Logger.warn(LogType.KHALA_EVENT, "khala digest mismatch on node " + n);
+            // the local khala nodes are always the latest
+            // and the remote will retrieve them because the local node is in the diff
+            if (needToCheckRemote && !n.equals(discovery.localNode)) {
+                checkRemote(n);
+            }
+            diff.add(n);
+        }
+        for (Node n : nodes.getNodes()) {
+            if (remoteDigests.containsKey(n)) {
+                continue; // already checked
+            }
+            // missing in remote
+            diff.add(n);
+        }
+        return buildDiffKhalaMsg(diff);
     }
 
     // ---------------------
@@ -597,11 +693,11 @@ public class Khala {
         }
 
         JSON.Instance msg = buildLocalKhalaMsg();
-        HttpClient client = new Http1ClientImpl(new InetSocketAddress(n.inetAddress, n.tcpPort), discovery.loop, 3000);
-        client.put("/discovery/api/v1/exchange/khala.local").send(msg, (err, resp) -> {
+        discovery.httpClient(n).put("/discovery/api/v1/exchange/khala.local").send(msg, (err, resp) -> {
             if (utilLogResponseErr(n, "khala.local", err, resp)) {
                 return;
             }
+            recordSyncBytes(msg, resp);
             var tup = utilValidateResponse(1, "khala.local", resp.bodyAsJson());
             if (tup.right != null) {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, "response of khala.local from " + n + " is invalid: " + resp);
@@ -640,6 +736,35 @@ public class Khala {
         return arr.build();
     }
 
+    private JSON.Array buildDigestKhalaMsg() {
+        ArrayBuilder arr = new ArrayBuilder();
+        for (Node n : nodes.getNodes()) {
+            arr.addObject(o -> o
+                .putObject("node", oo -> oo
+                    .put("nodeName", n.nodeName)
+                    .put("address", n.address)
+                    .put("udpPort", n.udpPort)
+                    .put("tcpPort", n.tcpPort)
+                )
+                .put("hash", khalaNodes.digest(n))
+            );
+        }
+        return arr.build();
+    }
+
+    private JSON.Object buildDiffKhalaMsg(Set<Node> diff) {
+        return new ObjectBuilder()
+            .putInst("diff", new SimpleArray(
+                diff.stream().map(n -> new ObjectBuilder()
+                    .put("nodeName", n.nodeName)
+                    .put("address", n.address)
+                    .put("udpPort", n.udpPort)
+                    .put("tcpPort", n.tcpPort)
+                    .build()).collect(Collectors.toList())
+            ))
+            .build();
+    }
+
     private JSON.Object buildStandardKhalaMsg(Node n) {
         return new ObjectBuilder()
             .putObject("node", o -> o
@@ -666,6 +791,18 @@ public class Khala {
     // START khala notification
     // ---------------------
 
+    private static String sha256(String s) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // should not happen, sha-256 is always supported
+            throw new RuntimeException(e);
+        }
+        return Base64.getEncoder().encodeToString(sha256.digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // the root digest, calculated from digests of all discovery nodes
     private String calcHash() {
         PriorityQueue<Node> p = new PriorityQueue<>(Node::compareTo);
         p.addAll(nodes.getNodes());
@@ -675,29 +812,28 @@ public class Khala {
             sb.append(n.nodeName).append(",")
                 .append(n.address).append(",")
                 .append(n.udpPort).append(",")
-                .append(n.tcpPort).append(",");
-            PriorityQueue<KhalaNode> pp = new PriorityQueue<>(KhalaNode::compareTo);
-            pp.addAll(khalaNodes.getKhalaNodes(n));
-            KhalaNode kn;
-            while ((kn = pp.poll()) != null) {
-                sb.append(kn.service).append(",")
-                    .append(kn.zone).append(",")
-                    .append(kn.address).append(",")
-                    .append(kn.port).append(",");
-            }
+                .append(n.tcpPort).append(",")
+                .append(khalaNodes.digest(n)).append(",");
+        }
+        return sha256(sb.toString());
+    }
+
+    private void recordSyncBytes(JSON.Instance<?> reqBody, HttpResponse resp) {
+        syncBytesSent.add(StreamingSerializer.length(reqBody));
+        if (resp.body() != null) {
+            syncBytesReceived.add(resp.body().length());
         }
-        byte[] data = sb.toString().getBytes();
-        return Base64.getEncoder().encodeToString(data);
     }
 
     private void notifyNetworkKhalaHash(Node node) {
+        syncCount.increment();
         String hash = calcHash();
         JSON.Object reqBody = new ObjectBuilder().put("hash", hash).build();
-        HttpClient client = new Http1ClientImpl(new InetSocketAddress(node.inetAddress, node.tcpPort), discovery.loop, 3000);
-        client.put("/discovery/api/v1/exchange/khala.hash").send(reqBody, (err, resp) -> {
+        discovery.httpClient(node).put("/discovery/api/v1/exchange/khala.hash").send(reqBody, (err, resp) -> {
             if (utilLogResponseErr(node, "khala.hash", err, resp)) {
                 return;
             }
+            recordSyncBytes(reqBody, resp);
             JSON.Instance inst = resp.bodyAsJson();
             if (!(inst instanceof JSON.Object)) {
                 Logger.error(LogType.INVALID_EXTERNAL_DATA, "khala.hash response is not JSON.Object: " + inst);
@@ -718,63 +854,86 @@ public class Khala {
                 return;
             }
             // do sync
-            notifyNetworkFullKhala(node);
+            notifyNetworkKhalaDigest(node);
+        });
+    }
+
+    private void notifyNetworkKhalaDigest(Node node) {
+        JSON.Array reqBody = buildDigestKhalaMsg();
+        discovery.httpClient(node).put("/discovery/api/v1/exchange/khala.digest").send(reqBody, (err, resp) -> {
+            if (err != null) {
+                Logger.error(LogType.CONN_ERROR, "failed to send khala.digest to " + node, err);
+                return;
+            }
+            recordSyncBytes(reqBody, resp);
+            if (resp.status() != 200) {
+                // the remote may not support khala.digest
+                Logger.warn(LogType.KHALA_EVENT, "khala.digest to " + node + " failed with status " + resp.status() + ", fall back to khala.sync");
+                notifyNetworkFullKhala(node);
+                return;
+            }
+            handleDiffResponse("khala.digest", resp.bodyAsJson());
         });
     }
 
     private void notifyNetworkFullKhala(Node node) {
+        fullSyncCount.increment();
         JSON.Array reqBody = buildFullKhalaMsg();
-        HttpClient client = new Http1ClientImpl(new InetSocketAddress(node.inetAddress, node.tcpPort), discovery.loop, 3000);
-        client.put("/discovery/api/v1/exchange/khala.sync").send(reqBody, (err, resp) -> {
+        discovery.httpClient(node).put("/discovery/api/v1/exchange/khala.sync").send(reqBody, (err, resp) -> {
             if (utilLogResponseErr(node, "khala.sync", err, resp)) {
                 return;
             }
-            JSON.Instance inst = resp.bodyAsJson();
-            if (!(inst instanceof JSON.Object)) {
-                Logger.error(LogType.INVALID_EXTERNAL_DATA, "khala.sync response is not JSON.Object: " + inst);
+            recordSyncBytes(reqBody, resp);
+            handleDiffResponse("khala.sync", resp.bodyAsJson());
+        });
+    }
+
+    // handle khala.sync-response or khala.digest-response
+    private void handleDiffResponse(String type, JSON.Instance<?> inst) {
+        if (!(inst instanceof JSON.Object)) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, type + " response is not JSON.Object: " + inst);
+            return;
+        }
+        JSON.Object body = (JSON.Object) inst;
+        if (!body.containsKey("diff")) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, type + " response should contain key `diff`: " + body);
+            return;
+        }
+        if (!(body.get("diff") instanceof JSON.Array)) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, "value of " + type + " response key `diff` should be array: " + body);
+            return;
+        }
+        JSON.Array diff = body.getArray("diff");
+        for (int i = 0; i < diff.length(); ++i) {
+            JSON.Instance<?> ins = diff.get(i);
+            if (!(ins instanceof JSON.Object)) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, type + " response `diff[" + i + "]` should be object: " + body);
                 return;
             }
-            JSON.Object body = (JSON.Object) inst;
-            if (!body.containsKey("diff")) {
-                Logger.error(LogType.INVALID_EXTERNAL_DATA, "khala.sync response should contain key `diff`: " + body);
+            JSON.Object n = (JSON.Object) ins;
+            if (!n.containsKey("nodeName")
+                || !n.containsKey("address")
+                || !n.containsKey("udpPort")
+                || !n.containsKey("tcpPort")) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, type + " response `diff[" + i + "]` missing keys: " + body);
                 return;
             }
-            if (!(body.get("diff") instanceof JSON.Array)) {
-                Logger.error(LogType.INVALID_EXTERNAL_DATA, "value of khala.sync response key `diff` should be array: " + body);
+            if (!(n.get("nodeName") instanceof JSON.String)
+                || !(n.get("address") instanceof JSON.String)
+                || !(n.get("udpPort") instanceof JSON.Integer)
+                || !(n.get("tcpPort") instanceof JSON.Integer)) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "wrong value type for " + type + " response `diff[" + i + "]`: " + body);
                 return;
             }
-            JSON.Array diff = body.getArray("diff");
-            for (int i = 0; i < diff.length(); ++i) {
-                JSON.Instance ins = diff.get(i);
-                if (!(ins instanceof JSON.Object)) {
-                    Logger.error(LogType.INVALID_EXTERNAL_DATA, "khala.sync response `diff[" + i + "]` should be object: " + body);
-                    return;
-                }
-                JSON.Object n = (JSON.Object) ins;
-                if (!n.containsKey("nodeName")
-                    || !n.containsKey("address")
-                    || !n.containsKey("udpPort")
-                    || !n.containsKey("tcpPort")) {
-                    Logger.error(LogType.INVALID_EXTERNAL_DATA, "khala.sync response `diff[" + i + "]` missing keys: " + body);
-                    return;
-                }
-                if (!(n.get("nodeName") instanceof JSON.String)
-                    || !(n.get("address") instanceof JSON.String)
-                    || !(n.get("udpPort") instanceof JSON.Integer)
-                    || !(n.get("tcpPort") instanceof JSON.Integer)) {
-                    Logger.error(LogType.INVALID_EXTERNAL_DATA, "wrong value type for khala.sync response `diff[" + i + "]`: " + body);
-                    return;
-                }
-                Node extNode;
-                try {
-                    extNode = new Node(n.getString("nodeName"), n.getString("address"), n.getInt("udpPort"), n.getInt("tcpPort"));
-                } catch (UnknownHostException e) {
-                    Logger.error(LogType.INVALID_EXTERNAL_DATA, "khala.sync response `diff[" + i + "]` address is invalid: " + n.getString("address"));
-                    return;
-                }
-                checkRemote(extNode);
+            Node extNode;
+            try {
+                extNode = new Node(n.getString("nodeName"), n.getString("address"), n.getInt("udpPort"), n.getInt("tcpPort"));
+            } catch (UnknownHostException e) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, type + " response `diff[" + i + "]` address is invalid: " + n.getString("address"));
+                return;
             }
-        });
+            checkRemote(extNode);
+        }
     }
 
     private void notifyNetworkAddKhalaNode(KhalaNode node) {
@@ -810,8 +969,7 @@ public class Khala {
                 .putInst("meta", kn.meta)
             )
             .build();
-        HttpClient client = new Http1ClientImpl(new InetSocketAddress(remoteNode.inetAddress, remoteNode.tcpPort), discovery.loop, 3000);
-        client.put("/discovery/api/v1/exchange/" + type).send(reqBody, (err, resp) ->
+        discovery.httpClient(remoteNode).put("/discovery/api/v1/exchange/" + type).send(reqBody, (err, resp) ->
             utilLogResponseErr(remoteNode, type, err, resp)
         );
     }
@@ -854,6 +1012,26 @@ public class Khala {
         khalaNodeListeners.remove(lsn);
     }
 
+    // times of the periodic sync, including the ones finished by comparing the root digest
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    // times of sending the full khala because the remote does not support khala.digest
+    public long getFullSyncCount() {
+        return fullSyncCount.sum();
+    }
+
+    // bytes of the request bodies sent when syncing, including the khala.local checks
+    public long getSyncBytesSent() {
+        return syncBytesSent.sum();
+    }
+
+    // bytes of the response bodies received when syncing, including the khala.local checks
+    public long getSyncBytesReceived() {
+        return syncBytesReceived.sum();
+    }
+
     // ---------------------
     // END local op
     // ---------------------
@@ -0,0 +1,55 @@
+package vproxy.component.khala.protocol;
+
+import vjson.JSON;
+import vproxy.component.exception.XException;
+import vproxy.discovery.Node;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * the khala.digest message, digests of khala nodes in each discovery node
+ */
+public class KhalaDigestMsg {
+    public final int version;
+    public final Map<Node, String> digests;
+
+    public KhalaDigestMsg(int version, Map<Node, String> digests) {
+        this.version = version;
+        this.digests = Collections.unmodifiableMap(digests);
+    }
+
+    public static KhalaDigestMsg parse(int version, JSON.Instance<?> data) throws XException {
+        if (!(data instanceof JSON.Array)) {
+            throw new XException("invalid body type");
+        }
+        JSON.Array array = (JSON.Array) data;
+
+        var map = new HashMap<Node, String>();
+        for (int i = 0; i < array.length(); ++i) {
+            JSON.Instance<?> inst = array.get(i);
+            if (!(inst instanceof JSON.Object)) {
+                throw new XException("wrong value type of digest[" + i + "]");
+            }
+            JSON.Object o = (JSON.Object) inst;
+            if (!o.containsKey("node") || !o.containsKey("hash")) {
+                throw new XException("missing node or hash in digest[" + i + "]");
+            }
+            if (!(o.get("node") instanceof JSON.Object)
+                || !(o.get("hash") instanceof JSON.String)) {
+                throw new XException("wrong value type of node or hash in digest[" + i + "]");
+            }
+            map.put(KhalaMsg.getNode(o.getObject("node")), o.getString("hash"));
+        }
+        return new KhalaDigestMsg(version, map);
+    }
+
+    @Override
+    public String toString() {
+        return "KhalaDigestMsg{" +
+            "version=" + version +
+            ", digests=" + digests +
+            '}';
+    }
+}
@@ -37,7 +37,7 @@ public class KhalaMsg {
         return new KhalaNode(o.getString("service"), o.getString("zone"), o.getString("address"), o.getInt("port"), o.getObject("meta"));
     }
 
-    private static Node getNode(JSON.Object o) throws XException {
+    static Node getNode(JSON.Object o) throws XException {
         if (!o.containsKey("nodeName")
             || !o.containsKey("address")
             || !o.containsKey("udpPort")
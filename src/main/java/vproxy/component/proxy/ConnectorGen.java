@@ -2,6 +2,7 @@ package vproxy.component.proxy;
 
 import vproxy.connection.Connection;
 import vproxy.connection.Connector;
+import vproxy.processor.Hint;
 import vproxy.processor.Processor;
 import vproxy.protocol.ProtocolHandler;
 import vproxy.util.Callback;
@@ -22,6 +23,11 @@ public interface ConnectorGen<T> {
 
     Connector genConnector(Connection accepted);
 
+    // the hint is provided by the processor, may be null
+    default Connector genConnector(Connection accepted, Hint hint) {
+        return genConnector(accepted);
+    }
+
     // the handler should set Tuple<T, null> to the context when init()
     // and the Callback object will be set by the Proxy lib
     default ProtocolHandler<Tuple<T, Callback<Connector, IOException>>> handler() {
@@ -31,4 +37,10 @@ public interface ConnectorGen<T> {
     default Processor processor() {
         return null;
     }
+
+    // the processor handles the frontend connection by itself when it's not null
+    // in which case processor() is not used
+    default MultiplexProcessor multiplexProcessor() {
+        return null;
+    }
 }
@@ -0,0 +1,40 @@
+package vproxy.component.proxy;
+
+import vproxy.connection.Connection;
+import vproxy.connection.ConnectionHandler;
+import vproxy.connection.Connector;
+import vproxy.connection.NetEventLoop;
+import vproxy.processor.Hint;
+
+import java.util.function.Function;
+
+/**
+ * A processor which handles the frontend connections by itself,
+ * so that the requests of all frontend connections on one event loop can share the backend connections.<br>
+ * It's not a {@link vproxy.processor.Processor}: the lib does not create backend connections for the frontend connection,
+ * and does not feed frames to it. The {@link Proxy} hands the frontend connection to the processor instead.<br>
+ * The processors are found by name in {@link MultiplexProcessorRegistry}.
+ */
+public interface MultiplexProcessor {
+    /**
+     * @return the protocol name, the same as the tcp-lb protocol
+     */
+    String name();
+
+    /**
+     * create the handler of a frontend connection
+     *
+     * @param loop       the event loop which the frontend connection is added into,
+     *                   the backend connections should be added into the same loop
+     * @param frontend   the frontend connection
+     * @param connectors choose a backend by the hint, returns null if no backend is available
+     * @param timeout    timeout of the backend connections
+     * @param closed     the handler should call it once when the frontend connection is closed
+     * @return handler of the frontend connection
+     */
+    ConnectionHandler handle(NetEventLoop loop,
+                             Connection frontend,
+                             Function<Hint, Connector> connectors,
+                             int timeout,
+                             Runnable closed);
+}
@@ -0,0 +1,41 @@
+package vproxy.component.proxy;
+
+import vproxy.processor.resp.RESPClusterProcessor;
+import vproxy.processor.resp.RESPProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class MultiplexProcessorRegistry {
+    private static final MultiplexProcessorRegistry instance = new MultiplexProcessorRegistry();
+
+    private final Map<String, MultiplexProcessor> registry = new HashMap<>();
+
+    private MultiplexProcessorRegistry() {
+        register(new RESPProcessor());
+        register(new RESPClusterProcessor());
+    }
+
+    public static MultiplexProcessorRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param processor the processor to register
+     * @throws IllegalArgumentException the name of the processor already registered
+     */
+    public void register(MultiplexProcessor processor) throws IllegalArgumentException {
+        String name = processor.name();
+        if (registry.containsKey(name)) {
+            throw new IllegalArgumentException("multiplex processor for protocol " + name + " already exists");
+        }
+        registry.put(name, processor);
+    }
+
+    /**
+     * @return null if not found
+     */
+    public MultiplexProcessor get(String name) {
+        return registry.get(name);
+    }
+}
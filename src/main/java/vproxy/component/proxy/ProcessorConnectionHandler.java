@@ -1,6 +1,9 @@
 package vproxy.component.proxy;
 
+import vproxy.component.accesslog.AccessLog;
+import vproxy.component.svrgroup.SvrHandleConnector;
 import vproxy.connection.*;
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.Processor;
 import vproxy.util.*;
 import vproxy.util.ringbuffer.ProxyOutputRingBuffer;
@@ -24,13 +27,24 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     // [0] will not be used
     // I believe that 1024 connections should be enough
 
-    public ProcessorConnectionHandler(ProxyNetConfig config, NetEventLoop loop, Connection frontendConnection, Processor processor, Processor.Context topCtx, Processor.SubContext frontendSubCtx) {
+    // the following fields are used for the access log and metrics
+    private final long acceptNanos;
+    private long connectedNanos = -1;
+    private long firstByteNanos = -1;
+    private BackendConnectionHandler firstBackend = null;
+
+    public ProcessorConnectionHandler(ProxyNetConfig config, NetEventLoop loop, Connection frontendConnection, Processor processor, Processor.Context topCtx, Processor.SubContext frontendSubCtx, long acceptNanos) {
         this.config = config;
         this.processor = processor;
         this.topCtx = topCtx;
         this.frontendConnection = frontendConnection;
         this.frontendSubCtx = frontendSubCtx;
         this.loop = loop;
+        this.acceptNanos = acceptNanos;
+
+        if (config.accessLog != null) {
+            processor.setHttpEventListener(topCtx, new HttpAccessLogger(config.accessLog));
+        }
     }
 
     void recordBackend(BackendConnectionHandler backend, int connId) {
@@ -183,15 +197,24 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
         private final Processor.SubContext subCtx;
         private final ConnectableConnection conn;
+        private final Connector connector;
+        private final SessionMetrics serverMetrics; // nullable
+        private final long connectStartNanos;
         private boolean isConnected = false;
+        private boolean receivedBytes = false;
+        // bytes from the backend already counted in the http access logs
+        private long loggedBytes = 0;
 
         private ByteArrayChannel chnl = null;
         private final BackendConnectionHandler.ByteFlow backendByteFlow = new BackendConnectionHandler.ByteFlow();
         private final BackendConnectionHandler.ByteFlow frontendByteFlow = new BackendConnectionHandler.ByteFlow();
 
-        BackendConnectionHandler(Processor.SubContext subCtx, ConnectableConnection conn) {
+        BackendConnectionHandler(Processor.SubContext subCtx, ConnectableConnection conn, Connector connector, long connectStartNanos) {
             this.subCtx = subCtx;
             this.conn = conn;
+            this.connector = connector;
+            this.serverMetrics = Proxy.serverMetrics(connector);
+            this.connectStartNanos = connectStartNanos;
         }
 
         void writeToBackend(ByteArray data) {
@@ -261,6 +284,16 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         @Override
         public void connected(ConnectableConnectionHandlerContext ctx) {
             isConnected = true;
+            long now = System.nanoTime();
+            if (connectedNanos == -1) {
+                connectedNanos = now;
+            }
+            if (config.metrics != null) {
+                config.metrics.connected(connectStartNanos, now);
+            }
+            if (serverMetrics != null) {
+                serverMetrics.connected(connectStartNanos, now);
+            }
             // no need to call processor.connected(...) here, it's already called when retrieving the connection
             doBackendWrite();
         }
@@ -351,6 +384,19 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
         @Override
         public void readable(ConnectionHandlerContext ctx) {
+            if (!receivedBytes) {
+                receivedBytes = true;
+                long now = System.nanoTime();
+                if (firstByteNanos == -1) {
+                    firstByteNanos = now;
+                    if (config.metrics != null) {
+                        config.metrics.firstByte(acceptNanos, now);
+                    }
+                }
+                if (serverMetrics != null) {
+                    serverMetrics.firstByte(connectStartNanos, now);
+                }
+            }
             readBackend();
         }
 
@@ -362,6 +408,12 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
             Logger.error(LogType.CONN_ERROR, "got exception when handling backend connection " + conn + ", closing frontend " + frontendConnection, err);
+            if (config.metrics != null) {
+                config.metrics.connectionError();
+            }
+            if (serverMetrics != null) {
+                serverMetrics.connectionError();
+            }
             frontendConnection.close(true);
             closeAll();
         }
@@ -686,6 +738,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         }
 
         // get a new connection
+        long connectStartNanos = System.nanoTime();
         ConnectableConnection connectableConnection;
         try {
             connectableConnection = connector.connect(
@@ -699,8 +752,11 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         // record in collections
         int newConnId = ++cursor;
         BackendConnectionHandler bh =
-            new BackendConnectionHandler(processor.initSub(topCtx, newConnId, connector.remote), connectableConnection);
+            new BackendConnectionHandler(processor.initSub(topCtx, newConnId, connector.remote), connectableConnection, connector, connectStartNanos);
         recordBackend(bh, newConnId);
+        if (firstBackend == null) {
+            firstBackend = bh;
+        }
         // register
         try {
             loop.addConnectableConnection(connectableConnection, null, bh);
@@ -713,6 +769,9 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
             return null;
         }
+        if (bh.serverMetrics != null) {
+            bh.serverMetrics.sessionStart();
+        }
 
         ByteArray bytes = processor.connected(topCtx, bh.subCtx);
         processor.chosen(topCtx, frontendSubCtx, bh.subCtx);
@@ -732,6 +791,9 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     @Override
     public void exception(ConnectionHandlerContext ctx, IOException err) {
         Logger.error(LogType.CONN_ERROR, "connection got exception", err);
+        if (config.metrics != null) {
+            config.metrics.connectionError();
+        }
         closeAll();
     }
 
@@ -806,9 +868,13 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         closed = true;
 
         assert Logger.lowLevelDebug("close all connections of " + frontendConnection);
+        long now = System.nanoTime();
         List<Integer> ints = new ArrayList<>(conn2intMap.values());
         for (int i : ints) {
             BackendConnectionHandler be = conns[i];
+            if (be.serverMetrics != null) {
+                be.serverMetrics.sessionEnd(be.connectStartNanos, now);
+            }
             removeBackend(be);
             be.conn.close();
             be.conn.getInBuffer().clean();
@@ -817,5 +883,135 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         frontendConnection.close();
         frontendConnection.getInBuffer().clean();
         frontendConnection.getOutBuffer().clean();
+
+        if (config.metrics != null) {
+            config.metrics.sessionEnd(acceptNanos, now);
+        }
+        accessLog();
+    }
+
+    private static void fillBackend(AccessLog.Entry e, BackendConnectionHandler backend) {
+        e.backend = backend.conn.remote;
+        if (backend.connector instanceof SvrHandleConnector) {
+            e.group = ((SvrHandleConnector) backend.connector).getServerGroupAlias();
+            e.server = ((SvrHandleConnector) backend.connector).getServerAlias();
+        }
+    }
+
+    // record the frontend connection
+    private void accessLog() {
+        AccessLog log = config.accessLog;
+        if (log == null) {
+            return;
+        }
+        AccessLog.Entry e = log.entry();
+        e.kind = AccessLog.KIND_CONNECTION;
+        e.startTime = Proxy.accessLogStartTime(acceptNanos);
+        if (connectedNanos != -1) {
+            e.connectNanos = connectedNanos - acceptNanos;
+        }
+        if (firstByteNanos != -1) {
+            e.firstByteNanos = firstByteNanos - acceptNanos;
+        }
+        e.totalNanos = System.nanoTime() - acceptNanos;
+        e.bytesIn = frontendConnection.getFromRemoteBytes();
+        e.bytesOut = frontendConnection.getToRemoteBytes();
+        e.client = frontendConnection.remote;
+        e.lb = config.alias;
+        if (firstBackend != null) {
+            fillBackend(e, firstBackend);
+        }
+        log.log(e);
+    }
+
+    private static class PendingRequest {
+        final long startNanos = System.nanoTime();
+        final int stream;
+        final String method;
+        final String host;
+        final String path;
+        long firstByteNanos = -1;
+        int status = 0;
+
+        PendingRequest(int stream, String method, String host, String path) {
+            this.stream = stream;
+            this.method = method;
+            this.host = host;
+            this.path = path;
+        }
+    }
+
+    // record http requests reported by the processor
+    private class HttpAccessLogger implements HttpEventListener {
+        private final AccessLog log;
+        // http/1.x requests may be pipelined, and responses are in the same order
+        private final LinkedList<PendingRequest> h1Requests = new LinkedList<>();
+        private final Map<Integer, PendingRequest> h2Requests = new HashMap<>();
+        // bytes from the client already counted in the records
+        private long loggedFrontendBytes = 0;
+
+        HttpAccessLogger(AccessLog log) {
+            this.log = log;
+        }
+
+        private PendingRequest get(int stream) {
+            return stream == 0 ? h1Requests.peekFirst() : h2Requests.get(stream);
+        }
+
+        @Override
+        public void request(int stream, String method, String host, String path) {
+            PendingRequest req = new PendingRequest(stream, method, host, path);
+            if (stream == 0) {
+                h1Requests.add(req);
+            } else {
+                h2Requests.put(stream, req);
+            }
+        }
+
+        @Override
+        public void response(int connId, int stream, int status) {
+            PendingRequest req = get(stream);
+            if (req == null || req.firstByteNanos != -1) {
+                return; // not a recorded request, or it's the trailer
+            }
+            req.firstByteNanos = System.nanoTime();
+            req.status = status;
+        }
+
+        @Override
+        public void responseEnd(int connId, int stream) {
+            PendingRequest req = stream == 0 ? h1Requests.pollFirst() : h2Requests.remove(stream);
+            if (req == null) {
+                return;
+            }
+            AccessLog.Entry e = log.entry();
+            e.kind = AccessLog.KIND_HTTP;
+            e.startTime = Proxy.accessLogStartTime(req.startNanos);
+            if (req.firstByteNanos != -1) {
+                e.firstByteNanos = req.firstByteNanos - req.startNanos;
+            }
+            e.totalNanos = System.nanoTime() - req.startNanos;
+            e.client = frontendConnection.remote;
+            e.lb = config.alias;
+            // the bytes are counted from the flow of the connections since the last record,
+            // so the request body is included, and pipelined or multiplexed requests share the bytes with each other
+            long frontendBytes = frontendConnection.getFromRemoteBytes();
+            e.bytesIn = frontendBytes - loggedFrontendBytes;
+            loggedFrontendBytes = frontendBytes;
+            BackendConnectionHandler backend = connId > 0 ? conns[connId] : null;
+            if (backend != null) {
+                fillBackend(e, backend);
+                // the response is totally received from the backend, and will be sent to the client
+                long backendBytes = backend.conn.getFromRemoteBytes();
+                e.bytesOut = backendBytes - backend.loggedBytes;
+                backend.loggedBytes = backendBytes;
+            }
+            e.status = req.status;
+            e.stream = req.stream;
+            e.method = req.method;
+            e.host = req.host;
+            e.path = req.path;
+            log.log(e);
+        }
     }
 }
@@ -1,10 +1,13 @@
 package vproxy.component.proxy;
 
+import vproxy.component.accesslog.AccessLog;
+import vproxy.component.svrgroup.SvrHandleConnector;
 import vproxy.connection.*;
 import vproxy.processor.Processor;
 import vproxy.protocol.ProtocolConnectionHandler;
 import vproxy.protocol.ProtocolHandler;
 import vproxy.protocol.ProtocolHandlerContext;
+import vproxy.selector.SelectorEventLoop;
 import vproxy.util.*;
 import vproxy.util.ringbuffer.ByteBufferRingBuffer;
 import vproxy.util.ringbuffer.ProxyOutputRingBuffer;
@@ -14,7 +17,12 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import java.io.IOException;
 import java.nio.channels.NetworkChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * when a connection is accepted, another connection will be generated by calling the callback handler<br>
@@ -39,6 +47,31 @@ public class Proxy {
     }
 
     class SessionServerHandler implements ServerHandler {
+        // loop => tasks adding connections into the loop, only accessed on the accept loop
+        private final Map<NetEventLoop, List<Runnable>> dispatching = new HashMap<>();
+
+        // run the task which adds connections into the loop
+        // when running on the accept loop, the tasks for other loops are collected and run in acceptEnd(),
+        // so that each loop is woken up only once for all connections accepted in one loop iteration
+        private void dispatch(NetEventLoop acceptLoop, NetEventLoop loop, Runnable task) {
+            if (loop == null || loop == acceptLoop || SelectorEventLoop.current() != acceptLoop.getSelectorEventLoop()) {
+                task.run();
+                return;
+            }
+            loop.willAddInBatch();
+            dispatching.computeIfAbsent(loop, k -> new ArrayList<>()).add(task);
+        }
+
+        @Override
+        public void acceptEnd(ServerHandlerContext ctx) {
+            if (dispatching.isEmpty())
+                return;
+            for (Map.Entry<NetEventLoop, List<Runnable>> entry : dispatching.entrySet()) {
+                entry.getKey().addInBatch(entry.getValue());
+            }
+            dispatching.clear();
+        }
+
         @Override
         public void acceptFail(ServerHandlerContext ctx, IOException err) {
             Logger.fatal(LogType.SERVER_ACCEPT_FAIL, "accept connection failed, server = " + config.server + ", err = " + err);
@@ -47,26 +80,27 @@ public class Proxy {
         @Override
         public void connection(ServerHandlerContext ctx, Connection connection) {
             NetEventLoop acceptLoop = ctx.eventLoop;
+            long acceptNanos = System.nanoTime();
             switch (config.connGen.type()) {
                 case processor:
-                    handleProcessor(acceptLoop, connection);
+                    handleProcessor(acceptLoop, connection, acceptNanos);
                     break;
                 case handler:
-                    handleHandler(acceptLoop, connection);
+                    handleHandler(acceptLoop, connection, acceptNanos);
                     break;
                 case direct:
                 default:
-                    handleDirect(acceptLoop, connection);
+                    handleDirect(acceptLoop, connection, acceptNanos);
             }
         }
 
-        private void handleDirect(NetEventLoop acceptLoop, Connection connection) {
+        private void handleDirect(NetEventLoop acceptLoop, Connection connection, long acceptNanos) {
             // make connection to another end point
             Connector connector = config.connGen.genConnector(connection);
-            handleDirect(acceptLoop, connection, connector);
+            handleDirect(acceptLoop, connection, connector, acceptNanos);
         }
 
-        private void handleDirect(NetEventLoop acceptLoop, Connection connection, Connector connector) {
+        private void handleDirect(NetEventLoop acceptLoop, Connection connection, Connector connector, long acceptNanos) {
             // check whether address tuple is null
             // null means the user code fail to provide a new connection
             // maybe user think that the backend is not working, or the source ip is forbidden
@@ -78,6 +112,7 @@ public class Proxy {
                 return;
             }
 
+            long connectStartNanos = System.nanoTime();
             ConnectableConnection connectableConnection;
             try {
                 connectableConnection = connector.connect(
@@ -93,6 +128,11 @@ public class Proxy {
             }
 
             Session session = new Session(connection, connectableConnection);
+            session.startNanos = acceptNanos;
+            session.connectStartNanos = connectStartNanos;
+            if (config.accessLog != null) {
+                session.startTime = accessLogStartTime(acceptNanos);
+            }
             ConnectableConnectionHandler handler = new SessionConnectableConnectionHandler(session);
 
             // we get a new event loop for handling
@@ -119,30 +159,41 @@ public class Proxy {
                 Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for connectable connection " + connectableConnection);
                 return;
             }
-            try {
-                loop.addConnectableConnection(connectableConnection, null, handler);
-
-                // here the handler added successfully, we can record the session
-                sessions.add(session);
-                // the session record will be removed in `removed()` callback
-
-            } catch (IOException e) {
-                Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "register passive connection into event loop failed, passive conn = " + connectableConnection + ", err = " + e);
-                // should not happen
-                // but if it happens, we close both sides
-                utilCloseSessionAndReleaseBuffers(session);
-            }
+            dispatch(acceptLoop, loop, () -> {
+                try {
+                    loop.addConnectableConnection(connectableConnection, null, handler);
+
+                    // here the handler added successfully, we can record the session
+                    sessions.add(session);
+                    // the session record will be removed in `removed()` callback
+                    if (config.metrics != null) {
+                        config.metrics.sessionStart();
+                    }
+                    SessionMetrics serverMetrics = serverMetrics(connector);
+                    if (serverMetrics != null) {
+                        serverMetrics.sessionStart();
+                    }
+
+                } catch (IOException e) {
+                    Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "register passive connection into event loop failed, passive conn = " + connectableConnection + ", err = " + e);
+                    // should not happen
+                    // but if it happens, we close both sides
+                    utilCloseSessionAndReleaseBuffers(session);
+                }
+            });
         }
 
         class HandlerCallback extends Callback<Connector, IOException> {
             private final NetEventLoop acceptLoop;
             private final NetEventLoop loop;
             private final Connection active;
+            private final long acceptNanos;
 
-            HandlerCallback(NetEventLoop acceptLoop, NetEventLoop loop, Connection active) {
+            HandlerCallback(NetEventLoop acceptLoop, NetEventLoop loop, Connection active, long acceptNanos) {
                 this.acceptLoop = acceptLoop;
                 this.loop = loop;
                 this.active = active;
+                this.acceptNanos = acceptNanos;
             }
 
             @Override
@@ -163,7 +214,7 @@ public class Proxy {
                 // will be checked in the following method
 
                 // handle like a normal proxy:
-                handleDirect(acceptLoop, active, connector);
+                handleDirect(acceptLoop, active, connector, acceptNanos);
             }
 
             @Override
@@ -171,12 +222,12 @@ public class Proxy {
                 Logger.error(LogType.NO_CLIENT_CONN, "the user code got an exception", err);
                 // we cannot handle the connection anymore
                 // return an empty connector
-                handleDirect(acceptLoop, active, null);
+                handleDirect(acceptLoop, active, null, acceptNanos);
             }
         }
 
         @SuppressWarnings(/*ignore generics here*/"unchecked")
-        private void handleHandler(NetEventLoop acceptLoop, Connection connection) {
+        private void handleHandler(NetEventLoop acceptLoop, Connection connection, long acceptNanos) {
             // retrieve the handler
             ProtocolHandler pHandler = config.connGen.handler();
             // retrieve an event loop provided by user code
@@ -202,25 +253,32 @@ public class Proxy {
                 connection.close(true);
                 return;
             }
-            tup = new Tuple<>(tup.left, new HandlerCallback(acceptLoop, loop, connection));
+            tup = new Tuple<>(tup.left, new HandlerCallback(acceptLoop, loop, connection, acceptNanos));
             pctx.data = tup;
 
             // the following code should be same as in ProtocolServerHandler
             //noinspection Duplicates
-            try {
-                loop.addConnection(connection, pHandler, new ProtocolConnectionHandler(pctx));
-            } catch (IOException e) {
-                // handle exception in handler
-                pHandler.exception(pctx, e);
-                // and do some log
-                Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add new connection into loop failed", e);
-                // the connection should be closed by the lib
-                connection.close(true);
-            }
+            dispatch(acceptLoop, loop, () -> {
+                try {
+                    loop.addConnection(connection, pHandler, new ProtocolConnectionHandler(pctx));
+                } catch (IOException e) {
+                    // handle exception in handler
+                    pHandler.exception(pctx, e);
+                    // and do some log
+                    Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add new connection into loop failed", e);
+                    // the connection should be closed by the lib
+                    connection.close(true);
+                }
+            });
         }
 
         @SuppressWarnings("unchecked")
-        private void handleProcessor(NetEventLoop acceptLoop, Connection frontendConnection) {
+        private void handleProcessor(NetEventLoop acceptLoop, Connection frontendConnection, long acceptNanos) {
+            MultiplexProcessor multiplexProcessor = config.connGen.multiplexProcessor();
+            if (multiplexProcessor != null) {
+                handleMultiplex(acceptLoop, frontendConnection, multiplexProcessor, acceptNanos);
+                return;
+            }
             Processor processor = config.connGen.processor();
             Processor.Context topCtx = processor.init(frontendConnection.remote);
             Processor.SubContext frontendSubCtx = processor.initSub(topCtx, 0, frontendConnection.remote);
@@ -240,16 +298,49 @@ public class Proxy {
                     frontendConnection,
                     processor,
                     topCtx,
-                    frontendSubCtx
+                    frontendSubCtx,
+                    acceptNanos
                 );
-            try {
-                loop.addConnection(frontendConnection, null, handler);
-            } catch (IOException e) {
-                // and do some log
-                Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add new connection into loop failed", e);
-                // the connection should be closed by the lib
+            dispatch(acceptLoop, loop, () -> {
+                try {
+                    loop.addConnection(frontendConnection, null, handler);
+                    // the session ends in `closeAll()` of the handler
+                    if (config.metrics != null) {
+                        config.metrics.sessionStart();
+                    }
+                } catch (IOException e) {
+                    // and do some log
+                    Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add new connection into loop failed", e);
+                    // the connection should be closed by the lib
+                    frontendConnection.close(true);
+                }
+            });
+        }
+
+        private void handleMultiplex(NetEventLoop acceptLoop, Connection frontendConnection, MultiplexProcessor processor, long acceptNanos) {
+            NetEventLoop loop = config.handleLoopProvider.getHandleLoop(acceptLoop);
+            if (loop == null) {
+                // the loop not exist
+                Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for processor " + processor.name());
                 frontendConnection.close(true);
+                return;
             }
+            // the backend connections are shared, so only the frontend connection is recorded
+            ConnectionHandler handler = processor.handle(loop, frontendConnection,
+                hint -> config.connGen.genConnector(frontendConnection, hint), config.timeout,
+                () -> multiplexSessionEnd(frontendConnection, acceptNanos));
+            dispatch(acceptLoop, loop, () -> {
+                try {
+                    loop.addConnection(frontendConnection, null, handler);
+                    if (config.metrics != null) {
+                        config.metrics.sessionStart();
+                    }
+                } catch (IOException e) {
+                    Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add new connection into loop failed", e);
+                    // the connection should be closed by the lib
+                    frontendConnection.close(true);
+                }
+            });
         }
 
         @Override
@@ -285,7 +376,7 @@ public class Proxy {
             }
             engine.setSSLParameters(sslParams);
             // try to use alpn
-            if (config.connGen.type() == ConnectorGen.Type.processor) {
+            if (config.connGen.type() == ConnectorGen.Type.processor && config.connGen.processor() != null) {
                 String[] alpn = config.connGen.processor().alpn();
                 if (alpn != null) {
                     final var fAlpn = alpn.clone();
@@ -313,7 +404,7 @@ public class Proxy {
         }
     }
 
-    static class SessionConnectionHandler implements ConnectionHandler {
+    class SessionConnectionHandler implements ConnectionHandler {
         private final Session session;
 
         SessionConnectionHandler(Session session) {
@@ -343,6 +434,9 @@ public class Proxy {
             } else {
                 Logger.error(LogType.CONN_ERROR, "session " + session + " got exception: " + err);
             }
+            if (config.metrics != null) {
+                config.metrics.connectionError();
+            }
             // close both sides
             utilCloseSessionAndReleaseBuffers(session);
         }
@@ -384,7 +478,10 @@ public class Proxy {
 
         @Override
         public void removed(ConnectionHandlerContext ctx) {
+            if (session.migrating) // the connection will be added into another loop
+                return;
             utilCloseSessionAndReleaseBuffers(session);
+            sessionEnd(session);
         }
     }
 
@@ -396,10 +493,24 @@ public class Proxy {
             this.session = session;
         }
 
+        // the handler for a connected passive connection which is moved to another loop
+        SessionConnectableConnectionHandler(Session session, boolean isConnected) {
+            this.session = session;
+            this.isConnected = isConnected;
+        }
+
         @Override
         public void connected(ConnectableConnectionHandlerContext ctx) {
             assert Logger.lowLevelDebug("passive connection established: " + ctx.connection);
             isConnected = true; // it's connected
+            session.connectedNanos = System.nanoTime();
+            if (config.metrics != null) {
+                config.metrics.connected(session.connectStartNanos, session.connectedNanos);
+            }
+            SessionMetrics serverMetrics = serverMetrics(session);
+            if (serverMetrics != null) {
+                serverMetrics.connected(session.connectStartNanos, session.connectedNanos);
+            }
 
             // now we can add active connection into event loop
             // use event loop from context
@@ -418,6 +529,16 @@ public class Proxy {
         @Override
         public void readable(ConnectionHandlerContext ctx) {
             // see readable in SessionConnectHandler#readable
+            if (session.firstByteNanos == -1) {
+                session.firstByteNanos = System.nanoTime();
+                if (config.metrics != null) {
+                    config.metrics.firstByte(session.startNanos, session.firstByteNanos);
+                }
+                SessionMetrics serverMetrics = serverMetrics(session);
+                if (serverMetrics != null) {
+                    serverMetrics.firstByte(session.connectStartNanos, session.firstByteNanos);
+                }
+            }
         }
 
         @Override
@@ -431,6 +552,13 @@ public class Proxy {
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
             Logger.error(LogType.CONN_ERROR, "session " + session + " got exception: " + err);
+            if (config.metrics != null) {
+                config.metrics.connectionError();
+            }
+            SessionMetrics serverMetrics = serverMetrics(session);
+            if (serverMetrics != null) {
+                serverMetrics.connectionError();
+            }
             // close both sides
             utilCloseSessionAndReleaseBuffers(session);
 
@@ -479,9 +607,94 @@ public class Proxy {
 
         @Override
         public void removed(ConnectionHandlerContext ctx) {
+            if (session.migrating) // the connection will be added into another loop
+                return;
             utilCloseSessionAndReleaseBuffers(session);
             sessions.remove(session); // remove the session record
+            sessionEnd(session);
+        }
+    }
+
+    // convert the nano time to wall clock time
+    static long accessLogStartTime(long nanos) {
+        return System.currentTimeMillis() - (System.nanoTime() - nanos) / 1_000_000;
+    }
+
+    // metrics of the backend server, or null if the connector is not from a server group
+    static SessionMetrics serverMetrics(Connector connector) {
+        if (connector instanceof SvrHandleConnector) {
+            return ((SvrHandleConnector) connector).getMetrics();
+        }
+        return null;
+    }
+
+    private static SessionMetrics serverMetrics(Session session) {
+        return serverMetrics(((ConnectableConnection) session.passive).getConnector());
+    }
+
+    // record the session when both connections are closed
+    private void sessionEnd(Session session) {
+        if (session.ended || !session.isClosed()) {
+            return;
+        }
+        session.ended = true;
+
+        long now = System.nanoTime();
+        if (config.metrics != null) {
+            config.metrics.sessionEnd(session.startNanos, now);
+        }
+        SessionMetrics serverMetrics = serverMetrics(session);
+        if (serverMetrics != null) {
+            serverMetrics.sessionEnd(session.connectStartNanos, now);
+        }
+
+        AccessLog log = config.accessLog;
+        if (log == null) {
+            return;
         }
+        AccessLog.Entry e = log.entry();
+        e.kind = AccessLog.KIND_TCP;
+        e.startTime = session.startTime;
+        if (session.connectedNanos != -1) {
+            e.connectNanos = session.connectedNanos - session.startNanos;
+        }
+        if (session.firstByteNanos != -1) {
+            e.firstByteNanos = session.firstByteNanos - session.startNanos;
+        }
+        e.totalNanos = now - session.startNanos;
+        e.bytesIn = session.active.getFromRemoteBytes();
+        e.bytesOut = session.active.getToRemoteBytes();
+        e.client = session.active.remote;
+        e.backend = session.passive.remote;
+        e.lb = config.alias;
+        Connector connector = ((ConnectableConnection) session.passive).getConnector();
+        if (connector instanceof SvrHandleConnector) {
+            e.group = ((SvrHandleConnector) connector).getServerGroupAlias();
+            e.server = ((SvrHandleConnector) connector).getServerAlias();
+        }
+        log.log(e);
+    }
+
+    // record the frontend connection handled by a multiplex processor
+    private void multiplexSessionEnd(Connection frontendConnection, long acceptNanos) {
+        long now = System.nanoTime();
+        if (config.metrics != null) {
+            config.metrics.sessionEnd(acceptNanos, now);
+        }
+
+        AccessLog log = config.accessLog;
+        if (log == null) {
+            return;
+        }
+        AccessLog.Entry e = log.entry();
+        e.kind = AccessLog.KIND_CONNECTION;
+        e.startTime = accessLogStartTime(acceptNanos);
+        e.totalNanos = now - acceptNanos;
+        e.bytesIn = frontendConnection.getFromRemoteBytes();
+        e.bytesOut = frontendConnection.getToRemoteBytes();
+        e.client = frontendConnection.remote;
+        e.lb = config.alias;
+        log.log(e);
     }
 
     public final ProxyNetConfig config;
@@ -508,4 +721,67 @@ public class Proxy {
     public void copySessions(Collection<? super Session> coll) {
         coll.addAll(sessions);
     }
+
+    /**
+     * Move a session to another event loop.<br>
+     * Only a quiescent session can be moved: both connections are established and open, no direction is shut down,
+     * and nothing is buffered. Sessions with tls are never moved, the ssl buffers remember the loop which runs the handshake.<br>
+     * The two connections are removed from the current loop and added into the target loop together,
+     * so the session continues on the target loop without noticing it.
+     *
+     * @param cb called with true when the session is moved, or false when the session cannot be moved for now.
+     *           it's called on the target loop or the current loop of the session
+     */
+    @ThreadSafe
+    public void migrate(Session session, NetEventLoop target, Consumer<Boolean> cb) {
+        NetEventLoop loop = session.passive.getEventLoop();
+        if (loop == null || loop == target || config.sslContext != null) {
+            cb.accept(false);
+            return;
+        }
+        loop.getSelectorEventLoop().runOnLoop(() -> doMigrate(session, loop, target, cb));
+    }
+
+    private static boolean isQuiescent(Session session, NetEventLoop loop) {
+        // the active connection is added into the loop when the passive one is connected
+        if (session.active.getEventLoop() != loop || session.passive.getEventLoop() != loop)
+            return false;
+        for (Connection conn : new Connection[]{session.active, session.passive}) {
+            if (conn.isClosed() || conn.isWriteClosed() || conn.isRemoteClosed())
+                return false;
+        }
+        // the passive connection uses the same buffers in reversed order
+        return session.active.getInBuffer().used() == 0 && session.active.getOutBuffer().used() == 0;
+    }
+
+    // run on the current loop of the session
+    private void doMigrate(Session session, NetEventLoop loop, NetEventLoop target, Consumer<Boolean> cb) {
+        if (!sessions.contains(session) || !isQuiescent(session, loop) || target.getSelectorEventLoop().isClosed()) {
+            cb.accept(false);
+            return;
+        }
+        assert Logger.lowLevelDebug("migrate session " + session + " to another loop");
+        // the handlers are not notified when removing, and nothing is read or written until they are added again
+        session.migrating = true;
+        loop.removeConnection(session.passive);
+        loop.removeConnection(session.active);
+        session.migrating = false;
+
+        // add them on the target loop, so that no event fires before both are added
+        target.getSelectorEventLoop().runOnLoop(() -> {
+            try {
+                target.addConnection(session.passive, null, new SessionConnectableConnectionHandler(session, true));
+                target.addConnection(session.active, null, new SessionConnectionHandler(session));
+            } catch (IOException e) {
+                Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add migrated session " + session + " into loop failed", e);
+                utilCloseSessionAndReleaseBuffers(session);
+                // the removed callback may not be called if the passive connection is not added
+                sessions.remove(session);
+                sessionEnd(session);
+                cb.accept(false);
+                return;
+            }
+            cb.accept(true);
+        });
+    }
 }
@@ -1,6 +1,7 @@
 package vproxy.component.proxy;
 
 import vproxy.app.Config;
+import vproxy.component.accesslog.AccessLog;
 import vproxy.connection.NetEventLoop;
 import vproxy.connection.ServerSock;
 
@@ -18,6 +19,10 @@ public class ProxyNetConfig {
 
     SSLContext sslContext = null;
 
+    String alias = null;
+    AccessLog accessLog = null;
+    SessionMetrics metrics = null;
+
     public ProxyNetConfig setAcceptLoop(NetEventLoop acceptLoop) {
         this.acceptLoop = acceptLoop;
         return this;
@@ -58,6 +63,21 @@ public class ProxyNetConfig {
         return this;
     }
 
+    public ProxyNetConfig setAlias(String alias) {
+        this.alias = alias;
+        return this;
+    }
+
+    public ProxyNetConfig setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    public ProxyNetConfig setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     public NetEventLoop getAcceptLoop() {
         return acceptLoop;
     }
@@ -89,4 +109,16 @@ public class ProxyNetConfig {
     public SSLContext getSslContext() {
         return sslContext;
     }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
 }
@@ -6,6 +6,15 @@ public class Session {
     public final Connection active;
     public final Connection passive;
 
+    // the following fields are used for the access log and metrics
+    long startTime; // the wall clock time when the connection is accepted, only set when access log is enabled
+    long startNanos;
+    long connectStartNanos;
+    long connectedNanos = -1;
+    long firstByteNanos = -1;
+    boolean ended = false;
+    boolean migrating = false; // set when the connections are being removed from the loop for migration
+
     public Session(Connection active, Connection passive) {
         this.active = active;
         this.passive = passive;
@@ -0,0 +1,63 @@
+package vproxy.component.proxy;
+
+import vproxy.util.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the proxied sessions, recorded by the proxy for the lb and for the backend server.<br>
+ * The durations are in microseconds.
+ */
+public class SessionMetrics {
+    public final Histogram connectTime; // from starting to connect the backend to connected
+    public final Histogram firstByteTime; // from accepting (or connecting for servers) to the first byte from backend
+    public final Histogram sessionDuration;
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder connectionErrors = new LongAdder();
+
+    public SessionMetrics() {
+        this(new Histogram(), new Histogram(), new Histogram());
+    }
+
+    /**
+     * @param stripes see {@link Histogram#Histogram(int)}
+     */
+    public SessionMetrics(int stripes) {
+        this(new Histogram(stripes), new Histogram(stripes), new Histogram(stripes));
+    }
+
+    private SessionMetrics(Histogram connectTime, Histogram firstByteTime, Histogram sessionDuration) {
+        this.connectTime = connectTime;
+        this.firstByteTime = firstByteTime;
+        this.sessionDuration = sessionDuration;
+    }
+
+    public void connected(long startNanos, long nowNanos) {
+        connectTime.record((nowNanos - startNanos) / 1000);
+    }
+
+    public void firstByte(long startNanos, long nowNanos) {
+        firstByteTime.record((nowNanos - startNanos) / 1000);
+    }
+
+    public void sessionStart() {
+        activeSessions.increment();
+    }
+
+    public void sessionEnd(long startNanos, long nowNanos) {
+        activeSessions.decrement();
+        sessionDuration.record((nowNanos - startNanos) / 1000);
+    }
+
+    public void connectionError() {
+        connectionErrors.increment();
+    }
+
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+}
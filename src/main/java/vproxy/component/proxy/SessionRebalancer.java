@@ -0,0 +1,254 @@
+package vproxy.component.proxy;
+
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopGroupAttach;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.exception.AlreadyExistException;
+import vproxy.component.exception.ClosedException;
+import vproxy.component.exception.NotFoundException;
+import vproxy.connection.NetEventLoop;
+import vproxy.util.Blocking;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.Tuple;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Move the sessions of some proxies between the event loops of a group.<br>
+ * Periodically, sessions on loops with more connections than the average are moved to the loops with the least connections.
+ * The check also runs when a loop is added, so the new loop takes load at once.<br>
+ * When a loop is removed from the group, its sessions are moved to the remaining loops before it closes.<br>
+ * All checks and moves run on the thread of the rebalancer, never on the thread which modifies the group.<br>
+ * Only quiescent sessions can be moved, see {@link Proxy#migrate(Session, NetEventLoop, java.util.function.Consumer)},
+ * the others are tried again later.
+ */
+public class SessionRebalancer implements EventLoopGroupAttach {
+    private static final int DRAIN_TIMEOUT = 5_000;
+    private static final int DRAIN_RETRY_INTERVAL = 10;
+    private static final int MAX_MOVES_PER_CHECK = 128;
+    private static final double TOLERANCE = 0.1; // loops with less than (1 + TOLERANCE) * average connections are not touched
+
+    public final String alias;
+    public final EventLoopGroup group;
+    public final int period;
+    private final Collection<Proxy> proxies;
+
+    private Thread thread;
+    private volatile boolean stopped = false;
+    // tasks run on the rebalancer thread before the next periodic check
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+    /**
+     * @param proxies the sessions of these proxies are moved, the collection may change
+     * @param period  milliseconds between two checks
+     */
+    public SessionRebalancer(String alias, EventLoopGroup group, Collection<Proxy> proxies, int period) {
+        this.alias = alias;
+        this.group = group;
+        this.proxies = proxies;
+        this.period = period;
+    }
+
+    public void start() throws AlreadyExistException, ClosedException {
+        group.attachResource(this);
+        thread = new Thread(this::loop, "SessionRebalancer:" + alias);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        try {
+            group.detachResource(this);
+        } catch (NotFoundException e) {
+            // ignore
+        }
+    }
+
+    private void loop() {
+        long next = System.currentTimeMillis() + period;
+        while (!stopped) {
+            Runnable task;
+            try {
+                task = tasks.poll(Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue; // check the flag
+            }
+            if (task == null) {
+                task = this::rebalance;
+                next = System.currentTimeMillis() + period;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Logger.error(LogType.IMPROPER_USE, "exception when running task in " + id() + ", err = ", t);
+            }
+        }
+        // let the waiting removals go on
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            if (task instanceof Drain) {
+                ((Drain) task).done.run();
+            }
+        }
+    }
+
+    // the sessions of the proxies grouped by their loops
+    private Map<NetEventLoop, List<Tuple<Proxy, Session>>> sessionsByLoop() {
+        Map<NetEventLoop, List<Tuple<Proxy, Session>>> map = new HashMap<>();
+        List<Session> sessions = new ArrayList<>();
+        for (Proxy pxy : proxies) {
+            sessions.clear();
+            pxy.copySessions(sessions);
+            for (Session s : sessions) {
+                NetEventLoop loop = s.passive.getEventLoop(); // the passive connection is added first
+                if (loop == null)
+                    continue;
+                map.computeIfAbsent(loop, k -> new ArrayList<>()).add(new Tuple<>(pxy, s));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Move sessions from the loops with more connections to the loops with less connections.<br>
+     * The moves are not waited, the loads are estimated as if all moves succeed.
+     */
+    void rebalance() {
+        List<EventLoopWrapper> loops = group.list();
+        if (loops.size() < 2)
+            return;
+        Map<EventLoopWrapper, Integer> loads = new HashMap<>();
+        int total = 0;
+        for (EventLoopWrapper w : loops) {
+            int load = w.connectionCount();
+            loads.put(w, load);
+            total += load;
+        }
+        double threshold = (1 + TOLERANCE) * total / loops.size();
+
+        Map<NetEventLoop, List<Tuple<Proxy, Session>>> sessions = null;
+        int moves = 0;
+        for (EventLoopWrapper hot : loops) {
+            if (loads.get(hot) <= threshold)
+                continue;
+            if (sessions == null) {
+                sessions = sessionsByLoop();
+            }
+            for (Tuple<Proxy, Session> tup : sessions.getOrDefault(hot, Collections.emptyList())) {
+                if (moves >= MAX_MOVES_PER_CHECK)
+                    return;
+                EventLoopWrapper cold = Collections.min(loops, Comparator.comparingInt(loads::get));
+                // one session holds two connections, stop when moving makes no difference
+                if (loads.get(hot) <= threshold || loads.get(hot) - loads.get(cold) < 4)
+                    break;
+                loads.put(hot, loads.get(hot) - 2);
+                loads.put(cold, loads.get(cold) + 2);
+                ++moves;
+                Session s = tup.right;
+                tup.left.migrate(s, cold, ok -> {
+                    assert Logger.lowLevelDebug("move session " + s + " from " + hot.alias + " to " + cold.alias + ": " + ok);
+                });
+            }
+        }
+    }
+
+    /**
+     * Move all sessions on the loop to other loops in the group.<br>
+     * Sessions not quiescent are tried again until they are moved, the timeout is reached or the loop closes.
+     */
+    @Blocking
+    private void drain(EventLoopWrapper el) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (!stopped) {
+            if (el.getSelectorEventLoop().isClosed())
+                return;
+            List<Tuple<Proxy, Session>> sessions = sessionsByLoop().getOrDefault(el, Collections.emptyList());
+            if (sessions.isEmpty())
+                return;
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                Logger.warn(LogType.ALERT, sessions.size() + " session(s) cannot be moved off " + el.alias + " before it closes");
+                return;
+            }
+            CountDownLatch latch = new CountDownLatch(sessions.size());
+            AtomicInteger failed = new AtomicInteger();
+            for (Tuple<Proxy, Session> tup : sessions) {
+                EventLoopWrapper target = group.next();
+                if (target == null) {
+                    Logger.warn(LogType.NO_EVENT_LOOP, "no event loop to move the sessions on " + el.alias + " to");
+                    return;
+                }
+                tup.left.migrate(tup.right, target, ok -> {
+                    if (!ok) {
+                        failed.incrementAndGet();
+                    }
+                    latch.countDown();
+                });
+            }
+            try {
+                //noinspection ResultOfMethodCallIgnored
+                latch.await(deadline - now, TimeUnit.MILLISECONDS);
+                if (failed.get() > 0) {
+                    Thread.sleep(DRAIN_RETRY_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String id() {
+        return "SessionRebalancer:" + alias;
+    }
+
+    private class Drain implements Runnable {
+        final EventLoopWrapper el;
+        final Runnable done;
+
+        Drain(EventLoopWrapper el, Runnable done) {
+            this.el = el;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                drain(el);
+            } finally {
+                done.run();
+            }
+        }
+    }
+
+    @Override
+    public void onEventLoopAdd() {
+        tasks.add(this::rebalance); // let the new loop take load at once
+    }
+
+    @Override
+    public void onEventLoopRemove(EventLoopWrapper el, Runnable done) {
+        if (stopped) {
+            done.run();
+            return;
+        }
+        tasks.add(new Drain(el, done));
+    }
+
+    @Override
+    public void onClose() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
@@ -10,10 +10,15 @@ import vproxy.component.elgroup.EventLoopWrapper;
 import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.ClosedException;
 import vproxy.component.exception.NotFoundException;
+import vproxy.component.proxy.SessionMetrics;
 import vproxy.connection.ConnCloseHandler;
 import vproxy.connection.Connection;
 import vproxy.connection.NetFlowRecorder;
+import vproxy.selector.LoopLocalSet;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.Blocking;
 import vproxy.util.ConcurrentHashSet;
+import vproxy.util.Histogram;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
@@ -22,6 +27,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -35,6 +41,7 @@ public class ServerGroup {
             @Override
             public void up(SocketAddress remote) {
                 healthy = true;
+                healthFlaps.increment();
                 Logger.info(LogType.HEALTH_CHECK_CHANGE,
                     "server " + ServerHandle.this.alias + "(" + server + ") status changed to UP");
 
@@ -52,6 +59,7 @@ public class ServerGroup {
             @Override
             public void down(SocketAddress remote) {
                 healthy = false;
+                healthFlaps.increment();
                 Logger.info(LogType.HEALTH_CHECK_CHANGE,
                     "server " + ServerHandle.this.alias + "(" + server + ") status changed to DOWN");
 
@@ -65,6 +73,11 @@ public class ServerGroup {
                 assert Logger.lowLevelDebug("up once for " + ServerHandle.this.alias + "(" + server + ")");
             }
 
+            @Override
+            public void rtt(SocketAddress remote, long nanos) {
+                healthCheckRtt.record(nanos / 1000);
+            }
+
             @Override
             public void downOnce(SocketAddress remote) {
                 // do nothing but debug log
@@ -116,7 +129,15 @@ public class ServerGroup {
         private final LongAdder fromRemoteBytes = new LongAdder();
         private final LongAdder toRemoteBytes = new LongAdder();
 
-        private ConcurrentHashSet<Connection> connMap = new ConcurrentHashSet<>();
+        // there might be a lot of servers, so use one stripe for each histogram
+        public final SessionMetrics metrics = new SessionMetrics(1);
+        public final Histogram healthCheckRtt = new Histogram(1); // microseconds
+        private final LongAdder healthFlaps = new LongAdder();
+
+        // connections are recorded on the loop which makes them, one set for each loop
+        private final ConcurrentHashMap<SelectorEventLoop, LoopConns> loopConns = new ConcurrentHashMap<>();
+        // connections made out of any event loop
+        private final ConcurrentHashSet<Connection> otherConns = new ConcurrentHashSet<>();
 
         public Object data; // the data field, not used by this lib
 
@@ -133,6 +154,10 @@ public class ServerGroup {
             this.toLogicDelete = toLogicDelete;
         }
 
+        ServerGroup group() {
+            return ServerGroup.this;
+        }
+
         // --- START statistics ---
         @Override
         public void incToRemoteBytes(long bytes) {
@@ -151,23 +176,56 @@ public class ServerGroup {
         public long getFromRemoteBytes() {
             return fromRemoteBytes.longValue();
         }
+
+        public long getHealthFlaps() {
+            return healthFlaps.longValue();
+        }
         // --- END statistics ---
 
+        // called when the connections made out of any event loop are closed
         @Override
         public void onConnClose(Connection conn) {
-            connMap.remove(conn);
+            otherConns.remove(conn);
         }
 
         void attachConnection(Connection conn) {
-            connMap.add(conn);
+            SelectorEventLoop loop = SelectorEventLoop.current();
+            if (loop == null) {
+                otherConns.add(conn);
+                conn.addConnCloseHandler(this);
+                return;
+            }
+            LoopConns conns = loopConns.get(loop);
+            if (conns == null) {
+                conns = loopConns.computeIfAbsent(loop, LoopConns::new);
+            }
+            conns.set.add(conn);
+            conn.addConnCloseHandler(conns);
         }
 
         public int connectionCount() {
-            return connMap.size();
+            int n = otherConns.size();
+            for (LoopConns conns : loopConns.values()) {
+                SelectorEventLoop loop = conns.set.getLoop();
+                if (loop.isClosed()) {
+                    // the connections recorded on a removed loop are either closed or moved to other loops,
+                    // and the close events will never run on the loop, so forget them
+                    loopConns.remove(loop, conns);
+                    continue;
+                }
+                n += conns.set.size();
+            }
+            return n;
         }
 
+        // the connections are copied on their loops, all loops share one deadline
+        @Blocking
         public void copyConnections(Collection<? super Connection> c) {
-            c.addAll(connMap);
+            c.addAll(otherConns);
+            long deadline = System.currentTimeMillis() + LoopLocalSet.COPY_TIMEOUT;
+            for (LoopConns conns : loopConns.values()) {
+                conns.set.copyTo(c, deadline);
+            }
         }
 
         public boolean isLogicDelete() {
@@ -276,6 +334,25 @@ public class ServerGroup {
         }
     }
 
+    // the connections made on one loop, the object is shared by all these connections as the close handler
+    private static class LoopConns implements ConnCloseHandler {
+        final LoopLocalSet<Connection> set;
+
+        LoopConns(SelectorEventLoop loop) {
+            this.set = new LoopLocalSet<>(loop);
+        }
+
+        @Override
+        public void onConnClose(Connection conn) {
+            SelectorEventLoop loop = set.getLoop();
+            if (SelectorEventLoop.current() == loop) {
+                set.remove(conn);
+            } else {
+                loop.runOnLoop(() -> set.remove(conn));
+            }
+        }
+    }
+
     class Attach implements EventLoopGroupAttach {
         @Override
         public String id() {
@@ -300,6 +377,10 @@ public class ServerGroup {
         }
     }
 
+    // host name => servers with the host name in all groups,
+    // so that the servers can be found without scanning all groups when the host name is resolved again
+    private static final ConcurrentHashMap<String, ConcurrentHashSet<ServerHandle>> hostNameIndex = new ConcurrentHashMap<>();
+
     public final String alias;
     public final EventLoopGroup eventLoopGroup;
     private HealthCheckConfig healthCheckConfig;
@@ -361,6 +442,23 @@ public class ServerGroup {
     private SOURCE _source;
     // END fields for SOURCE
 
+    // START fields for HASH
+    // the consistent hash ring, used when the processor provides a routing hint
+    static class HASH {
+        static final int POINTS_PER_SERVER = 160;
+
+        final int[] points; // sorted
+        final ServerHandle[] owners; // owner of each point
+
+        HASH(int[] points, ServerHandle[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    private HASH _hash;
+    // END fields for HASH
+
     public ServerGroup(String alias,
                        EventLoopGroup eventLoopGroup,
                        HealthCheckConfig healthCheckConfig,
@@ -392,6 +490,32 @@ public class ServerGroup {
         }
     }
 
+    /**
+     * choose the server by consistent hashing, the method of the group is ignored.
+     * the hash is mapped to the ring, and the first healthy server clockwise is chosen,
+     * so only keys of the unhealthy server are moved to other servers
+     *
+     * @param source the source address
+     * @param hash   hash of the routing key
+     * @return null if not found any healthy
+     */
+    public SvrHandleConnector next(InetSocketAddress source, int hash) {
+        HASH ring = _hash;
+        int len = ring.points.length;
+        if (len == 0)
+            return null;
+        int idx = Arrays.binarySearch(ring.points, hash);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        for (int i = 0; i < len; ++i) {
+            ServerHandle h = ring.owners[(idx + i) % len];
+            if (h.healthy)
+                return h.makeConnector();
+        }
+        return null;
+    }
+
     private SvrHandleConnector sourceHashGet(InetAddress source) {
         byte[] bytes = source.getAddress();
         return sourceHashGet(_source, _source.hash(bytes), 0);
@@ -514,6 +638,7 @@ public class ServerGroup {
         wrrReset();
         wlcReset();
         sourceReset();
+        hashReset();
     }
 
     private int gcd(int a, int b) {
@@ -562,6 +687,34 @@ public class ServerGroup {
         _source = new SOURCE(seq, svrs);
     }
 
+    private void hashReset() {
+        List<ServerHandle> svrs = this.servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList());
+        long sum = 0;
+        for (ServerHandle s : svrs) {
+            sum += s.weight;
+        }
+        // same as ketama: points of a server is proportional to its weight
+        // and the points are calculated from the alias, so they stay the same across restarts and instances
+        List<long[]> pointList = new ArrayList<>(svrs.size() * HASH.POINTS_PER_SERVER);
+        for (int sIdx = 0; sIdx < svrs.size(); ++sIdx) {
+            ServerHandle s = svrs.get(sIdx);
+            long n = Math.max(1, HASH.POINTS_PER_SERVER * svrs.size() * s.weight / sum);
+            for (int i = 0; i < n; ++i) {
+                byte[] bytes = (s.alias + "-" + i).getBytes();
+                pointList.add(new long[]{Utils.hash32(bytes, 0, bytes.length), sIdx});
+            }
+        }
+        pointList.sort(Comparator.comparingLong(p -> p[0]));
+        int[] points = new int[pointList.size()];
+        ServerHandle[] owners = new ServerHandle[pointList.size()];
+        for (int i = 0; i < points.length; ++i) {
+            long[] p = pointList.get(i);
+            points[i] = (int) p[0];
+            owners[i] = svrs.get((int) p[1]);
+        }
+        _hash = new HASH(points, owners);
+    }
+
     private void wlcReset() {
         this._wlc = new WLC(this.servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList()));
     }
@@ -707,6 +860,86 @@ public class ServerGroup {
         }
     }
 
+    /**
+     * replace ip of the servers in one batch.<br>
+     * it works the same as calling {@link #replaceIp(String, InetAddress)} for each server,
+     * but the method related fields are calculated only once.
+     * servers already removed or replaced are ignored
+     *
+     * @param toReplace server handle => new ip
+     * @return count of servers replaced
+     */
+    public synchronized int replaceIp(Map<ServerHandle, InetAddress> toReplace) {
+        ArrayList<ServerHandle> ls = servers;
+        Set<ServerHandle> current = new HashSet<>(ls);
+        List<ServerHandle> added = new ArrayList<>(toReplace.size());
+        ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() + toReplace.size());
+        newLs.addAll(ls);
+        for (Map.Entry<ServerHandle, InetAddress> entry : toReplace.entrySet()) {
+            ServerHandle old = entry.getKey();
+            if (old.logicDelete || !current.contains(old))
+                continue;
+            old.logicDelete = true;
+            ServerHandle handle = new ServerHandle(
+                old.alias, idForServer.getAndIncrement(), old.hostName,
+                new InetSocketAddress(entry.getValue(), old.server.getPort()), old.weight, old);
+            handle.start();
+            newLs.add(handle);
+            added.add(handle);
+        }
+        if (added.isEmpty())
+            return 0;
+        servers = newLs;
+        resetMethodRelatedFields();
+        for (ServerHandle h : added) {
+            index(h);
+        }
+
+        assert Logger.lowLevelDebug(added.size() + " servers replaced in " + this.alias);
+
+        return added.size();
+    }
+
+    private static void index(ServerHandle h) {
+        if (h.hostName == null)
+            return;
+        hostNameIndex.compute(h.hostName, (k, set) -> {
+            if (set == null) {
+                set = new ConcurrentHashSet<>();
+            }
+            set.add(h);
+            return set;
+        });
+    }
+
+    private static void unindex(ServerHandle h) {
+        if (h.hostName == null)
+            return;
+        hostNameIndex.computeIfPresent(h.hostName, (k, set) -> {
+            set.remove(h);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * find servers with the host name in all groups
+     *
+     * @param hostName the host name
+     * @return server-group => servers with the host name, logic deleted servers are not included
+     */
+    public static Map<ServerGroup, List<ServerHandle>> getServerHandlesByHostName(String hostName) {
+        ConcurrentHashSet<ServerHandle> set = hostNameIndex.get(hostName);
+        if (set == null)
+            return Collections.emptyMap();
+        Map<ServerGroup, List<ServerHandle>> ret = new HashMap<>();
+        for (ServerHandle h : set) {
+            if (h.logicDelete)
+                continue;
+            ret.computeIfAbsent(h.group(), g -> new ArrayList<>()).add(h);
+        }
+        return ret;
+    }
+
     /**
      * this field is only used when adding, for debug purpose only
      */
@@ -758,12 +991,75 @@ public class ServerGroup {
         newLs.add(handle);
         servers = newLs;
         resetMethodRelatedFields();
+        index(handle);
 
         assert Logger.lowLevelDebug("server added: " + alias + "(" + server + ") to " + this.alias);
 
         return handle;
     }
 
+    public static class ServerToAdd {
+        public final String alias;
+        public final String hostName; // nullable
+        public final InetSocketAddress server;
+        public final int weight;
+
+        public ServerToAdd(String alias, String hostName, InetSocketAddress server, int weight) {
+            this.alias = alias;
+            this.hostName = hostName;
+            this.server = server;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * add servers into the group in one batch.<br>
+     * it works the same as calling {@link #add(String, String, InetSocketAddress, int)} for each server,
+     * but the method related fields are calculated only once,
+     * and nothing is added if any alias already exists
+     *
+     * @param toAdd servers to add
+     * @return the added server handles, in the same order as the input
+     * @throws AlreadyExistException the alias already exists in the group or duplicates in the input
+     */
+    public synchronized List<ServerHandle> addBatch(List<ServerToAdd> toAdd) throws AlreadyExistException {
+        ArrayList<ServerHandle> ls = servers;
+        Set<String> aliases = new HashSet<>();
+        for (ServerHandle c : ls) {
+            if (c.logicDelete) // ignore logic deleted servers
+                continue;
+            aliases.add(c.alias);
+        }
+        for (ServerToAdd s : toAdd) {
+            if (!aliases.add(s.alias))
+                throw new AlreadyExistException("server in server-group" + ServerGroup.this.alias, s.alias);
+        }
+
+        List<ServerHandle> added = new ArrayList<>(toAdd.size());
+        ArrayList<ServerHandle> newLs = new ArrayList<>(ls.size() + toAdd.size());
+        newLs.addAll(ls);
+        for (ServerToAdd s : toAdd) {
+            String hostName = s.hostName;
+            // set the hostName to null if it's an ip literal
+            if (hostName != null && Utils.isIpLiteral(hostName))
+                hostName = null;
+            ServerHandle handle = new ServerHandle(
+                s.alias, idForServer.getAndIncrement(), hostName, s.server, s.weight, null);
+            handle.start();
+            newLs.add(handle);
+            added.add(handle);
+        }
+        servers = newLs;
+        resetMethodRelatedFields();
+        for (ServerHandle h : added) {
+            index(h);
+        }
+
+        assert Logger.lowLevelDebug(added.size() + " servers added to " + this.alias);
+
+        return added;
+    }
+
     public synchronized void remove(String alias) throws NotFoundException {
         ArrayList<ServerHandle> ls = servers;
         if (ls.isEmpty())
@@ -776,6 +1072,7 @@ public class ServerGroup {
                 // with the same alias
                 found = true;
                 c.stop();
+                unindex(c);
             } else {
                 newLs.add(c);
             }
@@ -800,6 +1097,7 @@ public class ServerGroup {
             if (c == h) {
                 found = true;
                 c.stop();
+                unindex(c);
             } else {
                 newLs.add(c);
             }
@@ -822,6 +1120,7 @@ public class ServerGroup {
         }
         for (ServerHandle s : ls) {
             s.stop();
+            unindex(s);
             assert Logger.lowLevelDebug("server removed " + s.alias + " from " + this.alias);
         }
     }
@@ -3,6 +3,7 @@ package vproxy.component.svrgroup;
 import vproxy.component.exception.AlreadyExistException;
 import vproxy.component.exception.NotFoundException;
 import vproxy.connection.Connector;
+import vproxy.util.Utils;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
@@ -188,4 +189,48 @@ public class ServerGroups {
             return connector;
         return next(source, wrr, recursion);
     }
+
+    /**
+     * choose the group by the hash, then choose the server in the group by consistent hashing
+     *
+     * @param source the source address
+     * @param hash   hash of the routing key
+     * @return null if not found any healthy
+     */
+    public Connector next(InetSocketAddress source, int hash) {
+        WRR wrr = _wrr;
+        if (wrr.seq.length == 0)
+            return null;
+        // re-mix the hash, otherwise the groups and the servers in the group are chosen by the same bits
+        int idx = (Utils.mix32(hash ^ 0x9e3779b9) & 0x7fffffff) % wrr.seq.length;
+        return next(source, hash, wrr, idx, 0);
+    }
+
+    /**
+     * find the server with the address in all groups, the health state is not considered
+     *
+     * @param server address of the server
+     * @return null if not found
+     */
+    public Connector lookup(InetSocketAddress server) {
+        for (ServerGroupHandle g : serverGroups) {
+            for (ServerGroup.ServerHandle h : g.group.getServerHandles()) {
+                if (h.server.equals(server)) {
+                    return h.makeConnector();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Connector next(InetSocketAddress source, int hash, WRR wrr, int idx, int recursion) {
+        if (recursion >= wrr.seq.length)
+            return null;
+
+        Connector connector = wrr.groups.get(wrr.seq[idx]).group.next(source, hash);
+        if (connector != null)
+            return connector;
+        // use the next group in the seq
+        return next(source, hash, wrr, (idx + 1) % wrr.seq.length, recursion + 1);
+    }
 }
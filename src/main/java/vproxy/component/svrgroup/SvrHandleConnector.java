@@ -1,5 +1,6 @@
 package vproxy.component.svrgroup;
 
+import vproxy.component.proxy.SessionMetrics;
 import vproxy.connection.ConnectableConnection;
 import vproxy.connection.ConnectionOpts;
 import vproxy.connection.Connector;
@@ -20,7 +21,6 @@ public class SvrHandleConnector extends Connector {
         ConnectableConnection conn = super.connect(opts, in, out);
         conn.addNetFlowRecorder(serverHandle);
         serverHandle.attachConnection(conn);
-        conn.addConnCloseHandler(serverHandle);
         return conn;
     }
 
@@ -35,6 +35,11 @@ public class SvrHandleConnector extends Connector {
         serverHandle.healthCheckClient.manuallyDownOnce();
     }
 
+    @Override
+    public Object group() {
+        return serverHandle.group();
+    }
+
     public String getHostName() {
         String hostname = serverHandle.hostName;
         if (hostname == null) {
@@ -49,4 +54,16 @@ public class SvrHandleConnector extends Connector {
     public Object getData() {
         return serverHandle.data;
     }
+
+    public String getServerGroupAlias() {
+        return serverHandle.group().alias;
+    }
+
+    public String getServerAlias() {
+        return serverHandle.alias;
+    }
+
+    public SessionMetrics getMetrics() {
+        return serverHandle.metrics;
+    }
 }
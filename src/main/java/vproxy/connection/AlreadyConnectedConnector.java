@@ -1,9 +1,5 @@
-package vproxyx.websocks;
+package vproxy.connection;
 
-import vproxy.connection.ConnectableConnection;
-import vproxy.connection.ConnectionOpts;
-import vproxy.connection.Connector;
-import vproxy.connection.NetEventLoop;
 import vproxy.util.RingBuffer;
 
 import java.io.IOException;
@@ -17,9 +17,21 @@ public class ConnectableConnection extends Connection {
     public static ConnectableConnection create(InetSocketAddress remote,
                                                ConnectionOpts opts,
                                                RingBuffer inBuffer, RingBuffer outBuffer) throws IOException {
+        return create(remote, null, opts, inBuffer, outBuffer);
+    }
+
+    // bind the socket to `local` before connecting if it's not null,
+    // so that the local address is known before the connection establishes
+    public static ConnectableConnection create(InetSocketAddress remote,
+                                               InetSocketAddress local,
+                                               ConnectionOpts opts,
+                                               RingBuffer inBuffer, RingBuffer outBuffer) throws IOException {
         SocketChannel channel = SocketChannel.open();
         try {
             channel.configureBlocking(false);
+            if (local != null) {
+                channel.bind(local);
+            }
             channel.connect(remote);
             return new ConnectableConnection(channel, remote, opts, inBuffer, outBuffer);
         } catch (IOException e) {
@@ -32,6 +32,12 @@ public class Connector {
         return null; // default: do not provide
     }
 
+    // the group which the remote is chosen from,
+    // processors may use it as the key of states shared by the servers of the group
+    public Object group() {
+        return null; // default: not chosen from any group
+    }
+
     @Override
     public String toString() {
         return "Connector(" + remote + ")";
@@ -0,0 +1,253 @@
+package vproxy.connection;
+
+import vproxy.dns.Resolver;
+import vproxy.selector.TimerEvent;
+import vproxy.socks.AddressType;
+import vproxy.util.*;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Connect to all addresses of a host in a race, see RFC 8305 (Happy Eyeballs Version 2).<br>
+ * The addresses are tried one after another with a short delay, without waiting for the previous ones to fail.
+ * The first established connection wins and the others are closed.<br>
+ * Addresses failed recently are tried after the others.
+ */
+public class HappyEyeballs {
+    public static final int CONNECTION_ATTEMPT_DELAY = 250; // the recommended value in RFC 8305
+    public static final int FAILURE_CACHE_TIMEOUT = 30_000;
+    private static final int FAILURE_CACHE_CLEAN_SIZE = 1024;
+    private static final int HANDOVER_BUFFER_SIZE = 16; // the buffers are replaced by the user of the connection
+
+    // address => the time when the record expires
+    private static final ConcurrentMap<InetSocketAddress, Long> recentlyFailed = new ConcurrentHashMap<>();
+
+    private final NetEventLoop loop;
+    private final List<InetSocketAddress> candidates;
+    private final ConnectionOpts opts;
+    private final Consumer<Connector> cb;
+
+    // the following fields are only accessed on the loop
+    private int next = 0;
+    private final List<ConnectableConnection> attempts = new LinkedList<>();
+    private TimerEvent nextAttempt;
+    private boolean done = false;
+
+    private HappyEyeballs(NetEventLoop loop, List<InetSocketAddress> candidates, ConnectionOpts opts, Consumer<Connector> cb) {
+        this.loop = loop;
+        this.candidates = candidates;
+        this.opts = opts;
+        this.cb = cb;
+    }
+
+    /**
+     * @param loop      the connections are established on this loop, and the connector provides this loop
+     * @param addresses the resolved addresses, the first address decides which address family is tried first
+     * @param cb        called with an already connected connector, or null if all addresses fail
+     */
+    public static void connect(NetEventLoop loop, List<InetAddress> addresses, int port, ConnectionOpts opts, Consumer<Connector> cb) {
+        HappyEyeballs h = new HappyEyeballs(loop, sort(addresses, port), opts, cb);
+        loop.getSelectorEventLoop().runOnLoop(h::attempt);
+    }
+
+    /**
+     * connect to all resolved addresses of the domain on the <code>loop</code>,
+     * the provided connector is already connected.<br>
+     * It's the same as {@link Utils#directConnect(AddressType, String, int, Consumer)} when the loop is null or the address is an ip
+     */
+    public static void directConnect(NetEventLoop loop, AddressType type, String address, int port, Consumer<Connector> cb) {
+        if (loop == null || type != AddressType.domain) {
+            Utils.directConnect(type, address, port, cb);
+            return;
+        }
+        Resolver.getDefault().resolveAll(address, new Callback<>() {
+            @Override
+            protected void onSucceeded(List<InetAddress> value) {
+                connect(loop, value, port, ConnectionOpts.getDefault(), cb);
+            }
+
+            @Override
+            protected void onFailed(UnknownHostException err) {
+                // resolve failed
+                assert Logger.lowLevelDebug("resolve for " + address + " failed" + err);
+                cb.accept(null);
+            }
+        });
+    }
+
+    // interleave the address families, and move the recently failed addresses to the end
+    static List<InetSocketAddress> sort(List<InetAddress> addresses, int port) {
+        List<InetAddress> v4 = new LinkedList<>();
+        List<InetAddress> v6 = new LinkedList<>();
+        for (InetAddress a : addresses) {
+            if (a instanceof Inet4Address) {
+                v4.add(a);
+            } else if (a instanceof Inet6Address) {
+                v6.add(a);
+            }
+        }
+        boolean v6First = !addresses.isEmpty() && addresses.get(0) instanceof Inet6Address;
+        List<InetAddress> first = v6First ? v6 : v4;
+        List<InetAddress> second = v6First ? v4 : v6;
+
+        List<InetSocketAddress> ok = new ArrayList<>(addresses.size());
+        List<InetSocketAddress> failed = new LinkedList<>();
+        long now = System.currentTimeMillis();
+        while (!first.isEmpty() || !second.isEmpty()) {
+            for (List<InetAddress> family : List.of(first, second)) {
+                if (family.isEmpty()) {
+                    continue;
+                }
+                InetSocketAddress remote = new InetSocketAddress(family.remove(0), port);
+                Long expire = recentlyFailed.get(remote);
+                if (expire != null && expire > now) {
+                    failed.add(remote);
+                } else {
+                    ok.add(remote);
+                }
+            }
+        }
+        ok.addAll(failed);
+        return ok;
+    }
+
+    private static void recordFailure(InetSocketAddress remote) {
+        long now = System.currentTimeMillis();
+        if (recentlyFailed.size() >= FAILURE_CACHE_CLEAN_SIZE) {
+            recentlyFailed.values().removeIf(expire -> expire <= now);
+        }
+        recentlyFailed.put(remote, now + FAILURE_CACHE_TIMEOUT);
+    }
+
+    // start the next attempt
+    private void attempt() {
+        if (done) {
+            return;
+        }
+        if (nextAttempt != null) {
+            nextAttempt.cancel();
+            nextAttempt = null;
+        }
+        if (next >= candidates.size()) {
+            if (attempts.isEmpty()) {
+                // all failed
+                done = true;
+                cb.accept(null);
+            }
+            return; // otherwise wait for the running attempts
+        }
+        InetSocketAddress remote = candidates.get(next++);
+        assert Logger.lowLevelDebug("happy eyeballs attempts to connect to " + remote);
+        ConnectableConnection conn;
+        try {
+            conn = ConnectableConnection.create(remote, opts,
+                RingBuffer.allocate(HANDOVER_BUFFER_SIZE), RingBuffer.allocate(HANDOVER_BUFFER_SIZE));
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("creating connection to " + remote + " failed: " + e);
+            recordFailure(remote);
+            attempt();
+            return;
+        }
+        attempts.add(conn);
+        try {
+            loop.addConnectableConnection(conn, null, new AttemptHandler(remote));
+        } catch (IOException e) {
+            Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "adding connection " + conn + " into loop failed", e);
+            failed(conn, remote);
+            return;
+        }
+        if (!done && next < candidates.size()) {
+            nextAttempt = loop.getSelectorEventLoop().delay(CONNECTION_ATTEMPT_DELAY, this::attempt);
+        }
+    }
+
+    private void failed(ConnectableConnection conn, InetSocketAddress remote) {
+        if (done || !attempts.remove(conn)) {
+            return; // the winner or the closed losers
+        }
+        conn.close();
+        assert Logger.lowLevelDebug("happy eyeballs failed to connect to " + remote);
+        recordFailure(remote);
+        // start the next one at once instead of waiting for the delay
+        attempt();
+    }
+
+    private void succeeded(ConnectableConnection conn, InetSocketAddress remote) {
+        if (done) {
+            conn.close();
+            return;
+        }
+        done = true;
+        if (nextAttempt != null) {
+            nextAttempt.cancel();
+            nextAttempt = null;
+        }
+        attempts.remove(conn);
+        for (ConnectableConnection c : attempts) {
+            c.close();
+        }
+        attempts.clear();
+        recentlyFailed.remove(remote);
+
+        assert Logger.lowLevelDebug("happy eyeballs connected to " + remote);
+        // hand over the connection
+        loop.removeConnection(conn);
+        cb.accept(new AlreadyConnectedConnector(remote, conn, loop));
+    }
+
+    private class AttemptHandler implements ConnectableConnectionHandler {
+        private final InetSocketAddress remote;
+
+        AttemptHandler(InetSocketAddress remote) {
+            this.remote = remote;
+        }
+
+        @Override
+        public void connected(ConnectableConnectionHandlerContext ctx) {
+            succeeded(ctx.connection, remote);
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            // will not fire, the connection is removed from the loop when connected
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            // will not fire, nothing to write
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            assert Logger.lowLevelDebug("connecting to " + remote + " got exception: " + err);
+            failed((ConnectableConnection) ctx.connection, remote);
+        }
+
+        @Override
+        public void remoteClosed(ConnectionHandlerContext ctx) {
+            failed((ConnectableConnection) ctx.connection, remote);
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            failed((ConnectableConnection) ctx.connection, remote);
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            // the winner is removed after `done` is set, so it's not affected
+            failed((ConnectableConnection) ctx.connection, remote);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.channels.*;
+import java.util.List;
 
 public class NetEventLoop {
     private static final HandlerForTCPServer handlerForTPCServer = new HandlerForTCPServer();
@@ -41,6 +42,23 @@ public class NetEventLoop {
                 new ServerHandlerContext(this, server, attachment, handler),
                 (Handler) handlerForTPCServer);
         }
+        selectorEventLoop.runOnLoop(() -> serverAdded(server));
+    }
+
+    /**
+     * Called on the loop thread after the server is added.
+     * The server might be already removed when this method is called,
+     * check whether {@link ServerSock#getEventLoop()} is this loop.
+     */
+    protected void serverAdded(ServerSock server) {
+    }
+
+    /**
+     * Called on the loop thread after the connection is added.
+     * The connection might be already removed when this method is called,
+     * check whether {@link Connection#getEventLoop()} is this loop.
+     */
+    protected void connectionAdded(Connection connection) {
     }
 
     @ThreadSafe
@@ -71,7 +89,10 @@ public class NetEventLoop {
         }
         // now the connection is added into event loop
         // we set the close timer
-        selectorEventLoop.runOnLoop(() -> NetEventLoopUtils.resetCloseTimeout(att));
+        selectorEventLoop.runOnLoop(() -> {
+            NetEventLoopUtils.resetCloseTimeout(att);
+            connectionAdded(connection);
+        });
     }
 
     @ThreadSafe
@@ -103,6 +124,39 @@ public class NetEventLoop {
         }
     }
 
+    /**
+     * Tell the loop that a task adding one connection will be passed to {@link #addInBatch(List)} later.<br>
+     * The loop may count the connection as its load before the batch runs.
+     */
+    @ThreadSafe
+    public void willAddInBatch() {
+    }
+
+    /**
+     * Run the tasks on the loop in one event, each task is expected to add one connection into this loop,
+     * and each task should be announced with {@link #willAddInBatch()} before.<br>
+     * Adding connections from another thread wakes up the loop for each of them, this method wakes it up only once.
+     */
+    @ThreadSafe
+    public void addInBatch(List<Runnable> tasks) {
+        if (selectorEventLoop.isClosed()) {
+            // the tasks will never run on the loop, let them fail and handle the connections
+            runTasks(tasks);
+            return;
+        }
+        selectorEventLoop.runOnLoop(() -> runTasks(tasks));
+    }
+
+    private static void runTasks(List<Runnable> tasks) {
+        for (Runnable r : tasks) {
+            try {
+                r.run();
+            } catch (Throwable t) {
+                Logger.error(LogType.IMPROPER_USE, "adding connection in batch got exception", t);
+            }
+        }
+    }
+
     @ThreadSafe
     public void addConnectableConnection(ConnectableConnection connection, Object attachment, ConnectableConnectionHandler handler) throws IOException {
         boolean fireConnected = false; // whether to fire `connected` event after registering
@@ -137,21 +191,50 @@ public class NetEventLoop {
 }
 
 class HandlerForTCPServer implements Handler<ServerSocketChannel> {
+    @Override
+    public Class<?> handlerClass(HandlerContext<ServerSocketChannel> ctx) {
+        return ((ServerHandlerContext) ctx.getAttachment()).handler.getClass();
+    }
+
     @Override
     public void accept(HandlerContext<ServerSocketChannel> ctx) {
         ServerHandlerContext sctx = (ServerHandlerContext) ctx.getAttachment();
 
+        // accept at most `budget` connections in one loop iteration, so other channels on the loop are not starved.
+        // the selector reports the server again in the next iteration if there are pending connections
+        int budget = sctx.server.getAcceptBudget();
+        int accepted = 0;
+        try {
+            while (accepted < budget) {
+                if (!accept(ctx, sctx)) {
+                    break;
+                }
+                ++accepted;
+            }
+        } finally {
+            if (accepted > 0) {
+                sctx.server.acceptBatch.record(accepted);
+                sctx.handler.acceptEnd(sctx);
+            }
+        }
+        if (accepted == budget) {
+            sctx.server.incAcceptBudgetExhaustedCount();
+        }
+    }
+
+    // return false if nothing is accepted
+    private boolean accept(HandlerContext<ServerSocketChannel> ctx, ServerHandlerContext sctx) {
         ServerSocketChannel server = ctx.getChannel();
         SocketChannel sock;
         try {
             sock = server.accept();
         } catch (IOException e) {
             sctx.handler.acceptFail(sctx, e);
-            return;
+            return false;
         }
         if (sock == null) {
             assert Logger.lowLevelDebug("no socket yet, ignore this event");
-            return;
+            return false;
         }
         Tuple<RingBuffer, RingBuffer> ioBuffers = sctx.handler.getIOBuffers(sock);
         if (ioBuffers == null) { // the user code may return null if refuse to accept
@@ -170,15 +253,14 @@ class HandlerForTCPServer implements Handler<ServerSocketChannel> {
                     ioBuffers.left, ioBuffers.right);
             } catch (IOException e) {
                 Logger.shouldNotHappen("Connection object create failed: " + e);
-                return;
+                return true;
             }
             conn.addNetFlowRecorder(sctx.server);
             sctx.handler.connection(sctx, conn);
         }
         // accept succeeded
         sctx.server.incHistoryAcceptedConnectionCount();
-        // then, we try to accept again, in case there are pending connections
-        accept(ctx);
+        return true;
     }
 
     @Override
@@ -268,6 +350,11 @@ class NetEventLoopUtils {
 }
 
 class HandlerForConnection implements Handler<SelectableChannel> {
+    @Override
+    public Class<?> handlerClass(HandlerContext<SelectableChannel> ctx) {
+        return ((ConnectionHandlerContext) ctx.getAttachment()).handler.getClass();
+    }
+
     @Override
     public void accept(HandlerContext<SelectableChannel> ctx) {
         // will not fire
@@ -11,6 +11,12 @@ public interface ServerHandler {
 
     void connection(ServerHandlerContext ctx, Connection connection);
 
+    // called after one or more connections are accepted in one loop iteration
+    // the handler may collect work in `connection()` and finish it here in batch
+    default void acceptEnd(ServerHandlerContext ctx) {
+        // do nothing
+    }
+
     // <in buffer, out buffer>
     Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel);
 
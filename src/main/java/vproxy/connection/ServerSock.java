@@ -1,5 +1,6 @@
 package vproxy.connection;
 
+import vproxy.util.Histogram;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
@@ -14,6 +15,8 @@ import java.util.concurrent.atomic.LongAdder;
 
 public class ServerSock implements NetFlowRecorder {
     private static int supportReusePort = -1; // 1:true 0:false -1:not decided yet
+    // max connections accepted in one loop iteration
+    private static volatile int defaultAcceptBudget = Integer.parseInt(System.getProperty("vproxy.server.acceptBudget", "64"));
 
     public final InetSocketAddress bind;
     private final String _id;
@@ -23,11 +26,28 @@ public class ServerSock implements NetFlowRecorder {
     private final LongAdder fromRemoteBytes = new LongAdder();
     private final LongAdder toRemoteBytes = new LongAdder();
     private long historyAcceptedConnectionCount = 0; // no concurrency when accepting connections
+    private long acceptBudgetExhaustedCount = 0; // no concurrency when accepting connections
+    // count of connections accepted in one loop iteration, it shows how deep the accept queue is when it's drained
+    public final Histogram acceptBatch = new Histogram(1);
+
+    private volatile int acceptBudget = defaultAcceptBudget;
 
     NetEventLoop _eventLoop = null;
 
     private boolean closed;
 
+    public static int getDefaultAcceptBudget() {
+        return defaultAcceptBudget;
+    }
+
+    // only affects the servers created after calling this method
+    public static void setDefaultAcceptBudget(int budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("accept budget should be positive");
+        }
+        defaultAcceptBudget = budget;
+    }
+
     public static boolean supportReusePort() {
         if (supportReusePort == 1) return true;
         if (supportReusePort == 0) return false;
@@ -115,12 +135,36 @@ public class ServerSock implements NetFlowRecorder {
     public long getHistoryAcceptedConnectionCount() {
         return historyAcceptedConnectionCount;
     }
+
+    // the budget ran out in a loop iteration, the left connections wait in the accept queue for the next iteration
+    void incAcceptBudgetExhaustedCount() {
+        ++acceptBudgetExhaustedCount;
+    }
+
+    public long getAcceptBudgetExhaustedCount() {
+        return acceptBudgetExhaustedCount;
+    }
     // --- END statistics ---
 
+    public int getAcceptBudget() {
+        return acceptBudget;
+    }
+
+    public void setAcceptBudget(int budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("accept budget should be positive");
+        }
+        this.acceptBudget = budget;
+    }
+
     public boolean isClosed() {
         return closed;
     }
 
+    public NetEventLoop getEventLoop() {
+        return _eventLoop;
+    }
+
     // make it synchronized to prevent fields being inconsistent
     public synchronized void close() {
         if (closed) {
@@ -8,17 +8,16 @@ import vjson.simple.SimpleArray;
 import vjson.util.ObjectBuilder;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.exception.*;
-import vproxy.component.svrgroup.Method;
-import vproxy.component.svrgroup.ServerGroup;
-import vproxy.component.svrgroup.ServerListener;
 import vproxy.connection.ConnectionHandler;
 import vproxy.connection.ConnectionHandlerContext;
 import vproxy.connection.NetEventLoop;
 import vproxy.connection.ServerSock;
 import vproxy.discovery.protocol.NodeDataMsg;
 import vproxy.discovery.protocol.NodeExistenceMsg;
+import vproxy.discovery.protocol.NodeGossipMsg;
 import vproxy.redis.RESPParser;
 import vproxy.redis.Serializer;
+import vproxy.selector.PeriodicEvent;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.selector.TimerEvent;
 import vproxy.util.*;
@@ -51,11 +50,18 @@ import java.util.stream.Collectors;
  * ******** PUT /discovery/api/v1/exchange/node body=[nodeName,address,tcpPort,status] ********
  * 7. then the remote server will send back its vproxy nodes info
  * ******** [nodeName,address,udpPort,tcpPort,status] ********
- * 8. all missing nodes will be added to the nodes list, initially down, will be up when health check succeeds
- * 9. when health check is down for 5 minutes, it will be removed from the node list
- * 10. when the node leaves, it sends the following udp packet to all known nodes
+ * 8. all missing nodes will be added to the nodes list, initially down, will be up when direct udp pings succeed
+ * 9. healthy nodes are checked with a SWIM like protocol on the udp sockets:
+ * -- every probe period, pick a node in randomized round-robin order and send it a `ping`, which is replied with an `ack`
+ * -- if not acked in time, ask a few other nodes to ping the node with `ping-req`, and mark the node suspected if still not acked
+ * -- the asked nodes reply `nack` if they cannot reach the node either, no reply at all means the local node may be isolated
+ * -- a suspected node is considered down if it does not refute (increase its incarnation) in the suspicion timeout
+ * -- membership changes (alive, suspect, dead) are piggybacked on the ping/ack packets, and each change is sent for O(log n) times
+ * ******** version=1, type=ping|ack|ping-req|nack, nodeName, udpPort, tcpPort, incarnation, seq, [target], updates ********
+ * 10. when the node is down for 5 minutes, it will be removed from the node list
+ * 11. when the node leaves, it sends the following udp packet to all known nodes
  * ******** version=1, type=leave, nodeName, udpPort, tcpPort, "" ********
- * 11. when receiving the packet, they will remove the left node
+ * 12. when receiving the packet, they will remove the left node
  * NOTE: all payloads are sent in the form of JSON. For udp, the content json is serialized with RESP Bulk String
  */
 public class Discovery {
@@ -83,6 +89,37 @@ public class Discovery {
             handle(remoteAddr, rb);
         }
 
+        void handleGossip(InetAddress remoteAddr, JSON.Object json) {
+            NodeGossipMsg msg;
+            try {
+                msg = NodeGossipMsg.parse(json);
+            } catch (XException e) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, e.getMessage());
+                return;
+            }
+            if (msg.version != 1) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, version not match: " + msg);
+                return;
+            }
+            if (msg.udpPort < 1 || msg.udpPort > 65535 || msg.tcpPort < 1 || msg.tcpPort > 65535) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, invalid content: " + msg);
+                return;
+            }
+            if (msg.type.equals("ping-req") && msg.target == null) {
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, "invalid message, missing target: " + msg);
+                return;
+            }
+            Node sender;
+            try {
+                sender = new Node(msg.nodeName, Utils.ipStr(remoteAddr.getAddress()), msg.udpPort, msg.tcpPort);
+            } catch (UnknownHostException e) {
+                Logger.shouldNotHappen("the remote endpoint read from connection is wrong " + e);
+                return;
+            }
+            // the swim states are only modified on the event loop
+            loop.getSelectorEventLoop().runOnLoop(() -> Discovery.this.handleGossip(sender, msg));
+        }
+
         void handle(InetAddress remoteAddr, RingBuffer buffer) {
             RESPParser parser = new RESPParser(buffer.capacity());
             int res = parser.feed(buffer);
@@ -126,6 +163,13 @@ public class Discovery {
                 }
                 json = (JSON.Object) inst;
             }
+            if (json.containsKey("type") && json.get("type") instanceof JSON.String) {
+                String type = json.getString("type");
+                if (type.equals("ping") || type.equals("ack") || type.equals("ping-req") || type.equals("nack")) {
+                    handleGossip(remoteAddr, json);
+                    return;
+                }
+            }
             NodeExistenceMsg msg;
             try {
                 msg = NodeExistenceMsg.parse(json);
@@ -192,7 +236,15 @@ public class Discovery {
                     Logger.info(LogType.DISCOVERY_EVENT, "receive leave message: " + msg);
 
                     String groupServerName = buildGroupServerName(msg.nodeName, remote, msg.tcpPort);
-                    removeNode(groupServerName);
+                    loop.getSelectorEventLoop().runOnLoop(() -> {
+                        NodeDetach n = nodes.get(groupServerName);
+                        if (n != null) {
+                            // ignore the gossip saying it's alive for a while
+                            leftNodes.put(groupServerName, n.incarnation);
+                            loop.getSelectorEventLoop().delay(config.timeConfig.detachTimeout, () -> leftNodes.remove(groupServerName));
+                        }
+                        removeNode(groupServerName);
+                    });
                     break;
             }
             // there are no other types
@@ -231,6 +283,13 @@ public class Discovery {
         public final Node node;
         public TimerEvent detachTimer;
 
+        // swim states of the remote node
+        int incarnation = 0;
+        boolean suspect = false;
+        TimerEvent suspectTimer;
+        PeriodicEvent confirmTimer; // directly ping the node when it's not healthy
+        int confirmAcks = 0;
+
         NodeDetach(Node node) {
             this(buildGroupServerName(node), node, false);
         }
@@ -261,56 +320,76 @@ public class Discovery {
             detachTimer.cancel();
             detachTimer = null;
         }
-    }
-
-    class HealthListener implements ServerListener {
-        @Override
-        public void up(ServerGroup.ServerHandle server) {
-            String key = server.alias;
-            NodeDetach n = nodes.get(key);
-            if (n == null)
-                return; // let's ignore if not found
-
-            Logger.info(LogType.DISCOVERY_EVENT, "node " + server.alias + " is UP");
-
-            n.pause(); // stop the timer because it's up
-
-            n.node.healthy = true;
-            calcAll(); // recalculate hash and other related things
 
-            // alert up
-            alertNodeListeners(lsn -> lsn.up(n.node));
+        void startConfirm() {
+            if (confirmTimer != null)
+                return; // already started
+            confirmAcks = 0;
+            confirm(this);
+            confirmTimer = loop.getSelectorEventLoop().period(config.healthCheckConfig.period, () -> confirm(this));
         }
 
-        @Override
-        public void down(ServerGroup.ServerHandle server) {
-            String key = server.alias;
-            NodeDetach n = nodes.get(key);
-            if (n == null)
-                return; // let's ignore if not found
-
-            Logger.warn(LogType.DISCOVERY_EVENT, "node " + server.alias + " is DOWN");
-
-            n.startTimer(); // it's down, so start the detach timer
+        void stopConfirm() {
+            if (confirmTimer == null)
+                return;
+            confirmTimer.cancel();
+            confirmTimer = null;
+        }
 
-            n.node.healthy = false;
-            calcAll(); // recalculate hash and other related things
+        void cancelSuspect() {
+            suspect = false;
+            if (suspectTimer == null)
+                return;
+            suspectTimer.cancel();
+            suspectTimer = null;
+        }
 
-            // alert down
-            alertNodeListeners(lsn -> lsn.down(n.node));
+        void release() {
+            pause();
+            stopConfirm();
+            cancelSuspect();
         }
+    }
 
-        @Override
-        public void start(ServerGroup.ServerHandle server) {
-            // ignore
+    // a ping waiting for the ack
+    static class PendingPing {
+        static final int PROBE = 0; // randomly probing a healthy node
+        static final int CONFIRM = 1; // directly pinging a node which is not healthy
+        static final int RELAY = 2; // pinging on behalf of another node
+
+        final int type;
+        final NodeDetach target; // null for RELAY
+        TimerEvent timer;
+        // only for PROBE, whether any node asked to ping the target replied a nack
+        boolean nacked = false;
+        // only for RELAY
+        InetSocketAddress requester;
+        int requesterSeq;
+
+        PendingPing(int type, NodeDetach target) {
+            this.type = type;
+            this.target = target;
         }
+    }
 
-        @Override
-        public void stop(ServerGroup.ServerHandle server) {
-            // ignore
+    // a membership change to be piggybacked
+    static class GossipUpdate {
+        final Node node;
+        final String state;
+        final int incarnation;
+        int transmits = 0;
+
+        GossipUpdate(Node node, String state, int incarnation) {
+            this.node = node;
+            this.state = state;
+            this.incarnation = incarnation;
         }
     }
 
+    private static final int INDIRECT_PROBES = 3; // count of nodes to send ping-req to
+    private static final int MAX_PIGGYBACK = 6; // max updates carried in one packet
+    private static final int RETRANSMIT_MULT = 3; // each update is sent for RETRANSMIT_MULT * log(n) times
+
     private static void utilByteArrayInc(byte[] arr) {
         for (int i = arr.length - 1; i >= 0; --i) {
             byte b = arr[i];
@@ -340,7 +419,6 @@ public class Discovery {
     private byte[] searchNetworkByte;
 
     private final Map<String /*buildGroupServerName*/, NodeDetach> nodes = new ConcurrentHashMap<>();
-    private final ServerGroup hcGroup;
     private String hash;
     private final ByteBuffer searchBuffer;
     private final ByteBuffer informBuffer;
@@ -352,6 +430,8 @@ public class Discovery {
     private final DatagramSocket udpBlockingSock;
     private final DatagramSocket udpBlockingServer;
     private final HttpServer httpServer;
+    // keep-alive clients of the remote nodes, connections are reused by all requests to the node
+    private final Map<InetSocketAddress, HttpClient> httpClients = new ConcurrentHashMap<>();
 
     private boolean intoInterval = false; // should go into a long interval
     private boolean isInInterval = false; // is already into the interval
@@ -364,11 +444,21 @@ public class Discovery {
 
     private int initialSearchCount = 0;
 
+    // swim states, only accessed on the event loop
+    private int incarnation = 0;
+    private int pingSeq = 0;
+    private final Map<Integer, PendingPing> pendingPings = new HashMap<>();
+    private final Map<String /*buildGroupServerName*/, GossipUpdate> gossipQueue = new HashMap<>();
+    private final Map<String /*buildGroupServerName*/, Integer> leftNodes = new HashMap<>();
+    private final List<NodeDetach> probeList = new ArrayList<>();
+    private int probeCursor = 0;
+    private final Random rand = new Random();
+    private PeriodicEvent probeTimer;
+
     public Discovery(String nodeName, DiscoveryConfig config) throws IOException {
         SelectorEventLoop blockingUDPSendThread = null;
         SelectorEventLoop blockingUDPRecvThread = null;
         EventLoopGroup eventLoopGroup = null;
-        ServerGroup hcGroup = null;
         ByteBuffer searchBuffer = null;
         ByteBuffer informBuffer = null;
         DatagramSocket udpBlockingSock = null;
@@ -394,13 +484,6 @@ public class Discovery {
             assert this.loop != null;
 
             this.config = config;
-            try {
-                hcGroup = new ServerGroup("nodes", eventLoopGroup, config.healthCheckConfig, Method.wrr);
-            } catch (AlreadyExistException | ClosedException e) {
-                Logger.shouldNotHappen("adding health check group failed", e);
-                throw new RuntimeException(e);
-            }
-            hcGroup.addServerListener(new HealthListener());
 
             searchBuffer = ByteBuffer.allocate(nodeName.getBytes().length + 256/*make it large enough*/);
             informBuffer = ByteBuffer.allocate(nodeName.getBytes().length + 256/*make it large enough*/);
@@ -421,8 +504,6 @@ public class Discovery {
                 blockingUDPRecvThread.close();
             if (eventLoopGroup != null)
                 eventLoopGroup.close();
-            if (hcGroup != null)
-                hcGroup.clear();
             if (searchBuffer != null)
                 Utils.clean(searchBuffer);
             if (informBuffer != null)
@@ -447,7 +528,6 @@ public class Discovery {
         this.blockingUDPSendThread = blockingUDPSendThread;
         this.blockingUDPRecvThread = blockingUDPRecvThread;
         this.eventLoopGroup = eventLoopGroup;
-        this.hcGroup = hcGroup;
         this.searchBuffer = searchBuffer;
         this.informBuffer = informBuffer;
         this.udpBlockingSock = udpBlockingSock;
@@ -461,6 +541,8 @@ public class Discovery {
         // start
         startUdpBlockingServer();
         loop.getSelectorEventLoop().delay(config.timeConfig.delayWhenNotJoined, this::startSearch);
+        loop.getSelectorEventLoop().runOnLoop(() ->
+            probeTimer = loop.getSelectorEventLoop().period(config.healthCheckConfig.period, this::probe));
     }
 
     private void alertNodeListeners(Consumer<NodeListener> f) {
@@ -630,35 +712,43 @@ public class Discovery {
     private void recordNode(Node node) {
         String groupServerName = buildGroupServerName(node);
         if (!nodes.containsKey(groupServerName)) {
-            try {
-                hcGroup.add(groupServerName, node.address, new InetSocketAddress(node.address, node.tcpPort), 10);
-            } catch (AlreadyExistException e) {
-                Logger.shouldNotHappen("the node already exist in hcGroup " + groupServerName);
-            }
             node.healthy = false; // default is false
-            nodes.put(groupServerName, new NodeDetach(node));
+            NodeDetach n = new NodeDetach(node);
+            nodes.put(groupServerName, n);
+            n.startConfirm();
             Logger.info(LogType.DISCOVERY_EVENT, "new node is recorded: " + node);
             // no need to calculate hash for now
             // calculate when the node goes UP
         }
     }
 
+    // the nodes learned from gossip are not verified by the search handshake,
+    // so only the nodes which the local node is able to find by searching are accepted
+    private boolean inSearchRange(Node node) {
+        return Utils.maskMatch(node.inetAddress.getAddress(), config.searchNetworkByte, config.searchMaskByte)
+            && node.udpPort >= config.searchMinUDPPort && node.udpPort <= config.searchMaxUDPPort;
+    }
+
     private void removeNode(String groupServerName) {
         if (!nodes.containsKey(groupServerName)) {
             Logger.error(LogType.INVALID_EXTERNAL_DATA, "the name " + groupServerName + " not exists");
             return;
         }
-        Node node = nodes.remove(groupServerName).node;
-        try {
-            hcGroup.remove(groupServerName);
-        } catch (NotFoundException e) {
-            Logger.shouldNotHappen("the node not exist in hcGroup " + groupServerName);
-        }
+        NodeDetach n = nodes.remove(groupServerName);
+        Node node = n.node;
+        n.release();
+        gossipQueue.remove(groupServerName);
         calcAll();
 
         // alert down
         alertNodeListeners(lsn -> lsn.leave(node));
 
+        // close the pooled connections after the listeners are alerted
+        HttpClient client = httpClients.remove(new InetSocketAddress(node.inetAddress, node.tcpPort));
+        if (client != null) {
+            client.close();
+        }
+
         Logger.warn(LogType.DISCOVERY_EVENT, "node " + groupServerName + " is REMOVED");
     }
 
@@ -666,7 +756,13 @@ public class Discovery {
         int pos = buffer.position();
         int lim = buffer.limit();
         byte[] bytes = buffer.array();
-        DatagramPacket pkt = new DatagramPacket(bytes, lim);
+        sendBytes(bytes, lim, sockAddr);
+        assert Logger.lowLevelDebug("udpSock.send wrote " + (lim - pos) + " bytes");
+        buffer.position(pos).limit(lim);
+    }
+
+    private void sendBytes(byte[] bytes, int len, InetSocketAddress sockAddr) {
+        DatagramPacket pkt = new DatagramPacket(bytes, len);
         pkt.setAddress(sockAddr.getAddress());
         pkt.setPort(sockAddr.getPort());
         blockingUDPSendThread.runOnLoop(() -> {
@@ -677,8 +773,6 @@ public class Discovery {
                 Logger.shouldNotHappen("send udp pkt failed", e);
             }
         });
-        assert Logger.lowLevelDebug("udpSock.send wrote " + (lim - pos) + " bytes");
-        buffer.position(pos).limit(lim);
     }
 
     private void informNode(Node node) {
@@ -766,8 +860,7 @@ public class Discovery {
 
     private void requestForNodes(Node target) {
         assert Logger.lowLevelDebug("request for nodes, target = " + target);
-        HttpClient client = new Http1ClientImpl(new InetSocketAddress(target.inetAddress, target.tcpPort), loop, 3_000);
-        client.put("/discovery/api/v1/exchange/node").send(getNodeDataToSend(), (err, resp) -> {
+        httpClient(target).put("/discovery/api/v1/exchange/node").send(getNodeDataToSend(), (err, resp) -> {
             if (err != null) {
                 Logger.error(LogType.CONN_ERROR, "failed to send node-exchange request", err);
                 return;
@@ -800,6 +893,355 @@ public class Discovery {
         });
     }
 
+    // ---------------------
+    // START swim
+    // ---------------------
+
+    private int pingTimeout() {
+        // leave the rest of the probe period for the indirect pings
+        return Math.min(config.healthCheckConfig.timeout, config.healthCheckConfig.period / 2);
+    }
+
+    // the suspicion timeout grows with log(n), which gives more time to refute in a large cluster
+    private int suspicionTimeout() {
+        int scale = Math.max(1, (int) Math.ceil(Math.log10(nodes.size())));
+        return config.healthCheckConfig.down * config.healthCheckConfig.period * scale;
+    }
+
+    private boolean isLocal(NodeDetach n) {
+        return n.node == localNode;
+    }
+
+    private boolean isRecorded(NodeDetach n) {
+        return nodes.get(n.keyName) == n;
+    }
+
+    // pick the next healthy node in randomized round-robin order
+    private NodeDetach nextProbeTarget() {
+        while (true) {
+            if (probeCursor >= probeList.size()) {
+                probeList.clear();
+                probeCursor = 0;
+                for (NodeDetach n : nodes.values()) {
+                    if (!isLocal(n) && n.node.healthy) {
+                        probeList.add(n);
+                    }
+                }
+                if (probeList.isEmpty())
+                    return null;
+                Collections.shuffle(probeList, rand);
+            }
+            NodeDetach n = probeList.get(probeCursor++);
+            // the node might be removed or down after the list is built
+            if (isRecorded(n) && n.node.healthy)
+                return n;
+        }
+    }
+
+    private void probe() {
+        if (closed)
+            return;
+        NodeDetach n = nextProbeTarget();
+        if (n == null)
+            return;
+        int seq = ping(n, PendingPing.PROBE);
+        PendingPing p = pendingPings.get(seq);
+        p.timer = loop.getSelectorEventLoop().delay(pingTimeout(), () -> {
+            // not acked in time, ask other nodes to ping the target
+            List<NodeDetach> others = new ArrayList<>();
+            for (NodeDetach o : nodes.values()) {
+                if (o != n && !isLocal(o) && o.node.healthy) {
+                    others.add(o);
+                }
+            }
+            Collections.shuffle(others, rand);
+            int asked = Math.min(others.size(), INDIRECT_PROBES);
+            for (int i = 0; i < asked; ++i) {
+                Node o = others.get(i).node;
+                sendGossip("ping-req", seq, n.node, new InetSocketAddress(o.inetAddress, o.udpPort));
+            }
+            p.timer = loop.getSelectorEventLoop().delay(config.healthCheckConfig.period - pingTimeout(), () -> {
+                pendingPings.remove(seq);
+                if (!isRecorded(n) || !n.node.healthy || n.suspect)
+                    return;
+                if (asked != 0 && !p.nacked) {
+                    // none of the other nodes replied, it's more likely that the local node cannot receive packets
+                    Logger.warn(LogType.DISCOVERY_EVENT, "no reply from the nodes asked to ping " + n.keyName +
+                        ", the local node may be isolated, do not suspect the node");
+                    return;
+                }
+                nodeSuspect(n);
+            });
+        });
+    }
+
+    // directly ping the node which is not healthy, it's up after `up` consecutive acks
+    private void confirm(NodeDetach n) {
+        int seq = ping(n, PendingPing.CONFIRM);
+        PendingPing p = pendingPings.get(seq);
+        p.timer = loop.getSelectorEventLoop().delay(pingTimeout(), () -> {
+            pendingPings.remove(seq);
+            n.confirmAcks = 0;
+        });
+    }
+
+    // @return seq of the ping
+    private int ping(NodeDetach n, int type) {
+        int seq = ++pingSeq;
+        pendingPings.put(seq, new PendingPing(type, n));
+        sendGossip("ping", seq, null, new InetSocketAddress(n.node.inetAddress, n.node.udpPort));
+        return seq;
+    }
+
+    private void handleGossip(Node sender, NodeGossipMsg msg) {
+        if (closed)
+            return;
+        assert Logger.lowLevelDebug("received gossip message " + msg);
+        InetSocketAddress senderAddr = new InetSocketAddress(sender.inetAddress, sender.udpPort);
+
+        // the sender is alive since it sent the packet
+        String senderKey = buildGroupServerName(sender);
+        NodeDetach s = nodes.get(senderKey);
+        if (s == null) {
+            if (leftNodes.containsKey(senderKey)) {
+                assert Logger.lowLevelDebug("received delayed packet from the left node " + senderKey);
+                return;
+            }
+            if (inSearchRange(sender)) {
+                recordNode(sender);
+                nodes.get(senderKey).incarnation = msg.incarnation;
+            } else {
+                // still reply the ping, the sender may know the local node from the search handshake
+                assert Logger.lowLevelDebug("the sender " + senderKey + " is not in the search range, not recorded");
+            }
+        } else if (!isLocal(s)) {
+            handleAlive(s, msg.incarnation);
+        }
+        for (NodeGossipMsg.Update u : msg.updates) {
+            handleUpdate(u);
+        }
+
+        switch (msg.type) {
+            case "ping":
+                sendGossip("ack", msg.seq, null, senderAddr);
+                break;
+            case "ping-req": {
+                // only members are pinged, otherwise the packets can be sent to any address
+                NodeDetach target = nodes.get(buildGroupServerName(msg.target));
+                if (target == null || isLocal(target)) {
+                    Logger.warn(LogType.INVALID_EXTERNAL_DATA, "the target of ping-req is not a member: " + msg);
+                    break;
+                }
+                Node t = target.node;
+                int seq = ++pingSeq;
+                PendingPing p = new PendingPing(PendingPing.RELAY, null);
+                p.requester = senderAddr;
+                p.requesterSeq = msg.seq;
+                // reply nack before the requester gives up, so that it knows the local node is reachable
+                p.timer = loop.getSelectorEventLoop().delay(pingTimeout() * 4 / 5, () -> {
+                    pendingPings.remove(seq);
+                    sendGossip("nack", p.requesterSeq, null, p.requester);
+                });
+                pendingPings.put(seq, p);
+                sendGossip("ping", seq, null, new InetSocketAddress(t.inetAddress, t.udpPort));
+                break;
+            }
+            case "nack": {
+                PendingPing p = pendingPings.get(msg.seq);
+                if (p != null && p.type == PendingPing.PROBE) {
+                    p.nacked = true;
+                }
+                break;
+            }
+            case "ack": {
+                PendingPing p = pendingPings.remove(msg.seq);
+                if (p == null) {
+                    assert Logger.lowLevelDebug("the ping is already timed out " + msg);
+                    break;
+                }
+                if (p.timer != null) {
+                    p.timer.cancel();
+                }
+                if (p.type == PendingPing.RELAY) {
+                    sendGossip("ack", p.requesterSeq, null, p.requester);
+                } else if (p.type == PendingPing.CONFIRM) {
+                    NodeDetach n = p.target;
+                    if (isRecorded(n) && !n.node.healthy && ++n.confirmAcks >= config.healthCheckConfig.up) {
+                        nodeUp(n);
+                    }
+                }
+                // nothing to do for PROBE, the node is alive
+                break;
+            }
+        }
+    }
+
+    private void handleUpdate(NodeGossipMsg.Update u) {
+        String key = buildGroupServerName(u.node);
+        NodeDetach n = nodes.get(key);
+        if (n != null && isLocal(n)) {
+            if (!u.state.equals("alive") && u.incarnation >= incarnation) {
+                // refute the suspicion
+                incarnation = u.incarnation + 1;
+                Logger.warn(LogType.DISCOVERY_EVENT, "refute the " + u.state + " message with incarnation " + incarnation);
+                gossip(localNode, "alive", incarnation);
+            }
+            return;
+        }
+        switch (u.state) {
+            case "alive":
+                if (n == null) {
+                    Integer left = leftNodes.get(key);
+                    if (left != null && u.incarnation <= left) {
+                        return; // the node has left
+                    }
+                    if (!inSearchRange(u.node)) {
+                        assert Logger.lowLevelDebug("the node " + key + " is not in the search range, not recorded");
+                        return;
+                    }
+                    // a new node, directly ping it before it's up
+                    recordNode(u.node);
+                    nodes.get(key).incarnation = u.incarnation;
+                    return;
+                }
+                handleAlive(n, u.incarnation);
+                break;
+            case "suspect":
+                if (n == null || !n.node.healthy)
+                    return;
+                if (u.incarnation > n.incarnation || (u.incarnation == n.incarnation && !n.suspect)) {
+                    n.incarnation = u.incarnation;
+                    n.cancelSuspect();
+                    nodeSuspect(n);
+                }
+                break;
+            case "dead":
+                if (n == null || u.incarnation < n.incarnation)
+                    return;
+                n.incarnation = u.incarnation;
+                if (n.node.healthy) {
+                    gossip(n.node, "dead", n.incarnation);
+                    nodeDown(n);
+                }
+                break;
+        }
+    }
+
+    private void handleAlive(NodeDetach n, int inc) {
+        if (inc <= n.incarnation)
+            return;
+        n.incarnation = inc;
+        if (n.suspect) {
+            Logger.info(LogType.DISCOVERY_EVENT, "node " + n.keyName + " refuted the suspicion");
+            n.cancelSuspect();
+        }
+        if (n.node.healthy) {
+            gossip(n.node, "alive", inc);
+        }
+        // the node which is not healthy should be confirmed by the direct pings
+    }
+
+    private void nodeSuspect(NodeDetach n) {
+        Logger.warn(LogType.DISCOVERY_EVENT, "node " + n.keyName + " is SUSPECTED");
+        n.suspect = true;
+        gossip(n.node, "suspect", n.incarnation);
+        int inc = n.incarnation;
+        n.suspectTimer = loop.getSelectorEventLoop().delay(suspicionTimeout(), () -> {
+            n.suspectTimer = null;
+            if (isRecorded(n) && n.suspect && n.incarnation == inc) {
+                gossip(n.node, "dead", inc);
+                nodeDown(n);
+            }
+        });
+    }
+
+    private void nodeUp(NodeDetach n) {
+        Logger.info(LogType.DISCOVERY_EVENT, "node " + n.keyName + " is UP");
+
+        n.stopConfirm();
+        n.pause(); // stop the timer because it's up
+
+        n.node.healthy = true;
+        calcAll(); // recalculate hash and other related things
+        gossip(n.node, "alive", n.incarnation);
+
+        // alert up
+        alertNodeListeners(lsn -> lsn.up(n.node));
+    }
+
+    private void nodeDown(NodeDetach n) {
+        Logger.warn(LogType.DISCOVERY_EVENT, "node " + n.keyName + " is DOWN");
+
+        n.cancelSuspect();
+        n.startTimer(); // it's down, so start the detach timer
+        n.startConfirm(); // it will be up if it comes back
+
+        n.node.healthy = false;
+        calcAll(); // recalculate hash and other related things
+
+        // alert down
+        alertNodeListeners(lsn -> lsn.down(n.node));
+    }
+
+    private void gossip(Node node, String state, int inc) {
+        // the newer update replaces the older one
+        gossipQueue.put(buildGroupServerName(node), new GossipUpdate(node, state, inc));
+    }
+
+    // retrieve updates which are sent the least times
+    private List<GossipUpdate> piggyback() {
+        if (gossipQueue.isEmpty())
+            return Collections.emptyList();
+        int limit = RETRANSMIT_MULT * (int) Math.ceil(Math.log10(nodes.size() + 1));
+        List<Map.Entry<String, GossipUpdate>> entries = new ArrayList<>(gossipQueue.entrySet());
+        entries.sort(Comparator.comparingInt(e -> e.getValue().transmits));
+        List<GossipUpdate> ret = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < MAX_PIGGYBACK; ++i) {
+            GossipUpdate u = entries.get(i).getValue();
+            ret.add(u);
+            if (++u.transmits >= limit) {
+                gossipQueue.remove(entries.get(i).getKey());
+            }
+        }
+        return ret;
+    }
+
+    private void sendGossip(String type, int seq, Node target, InetSocketAddress sockAddr) {
+        if (closed)
+            return; // the leave message is already sent
+        ObjectBuilder ob = new ObjectBuilder()
+            .put("version", 1)
+            .put("type", type)
+            .put("nodeName", nodeName)
+            .put("udpPort", config.udpPort)
+            .put("tcpPort", config.tcpPort)
+            .put("incarnation", incarnation)
+            .put("seq", seq);
+        if (target != null) {
+            ob.putObject("target", o -> o
+                .put("nodeName", target.nodeName)
+                .put("address", target.address)
+                .put("udpPort", target.udpPort)
+                .put("tcpPort", target.tcpPort)
+            );
+        }
+        List<GossipUpdate> updates = piggyback();
+        ob.putArray("updates", arr -> updates.forEach(u -> arr.addObject(o -> o
+            .put("nodeName", u.node.nodeName)
+            .put("address", u.node.address)
+            .put("udpPort", u.node.udpPort)
+            .put("tcpPort", u.node.tcpPort)
+            .put("state", u.state)
+            .put("incarnation", u.incarnation)
+        )));
+        byte[] bytes = Serializer.from(ob.build().stringify());
+        sendBytes(bytes, bytes.length, sockAddr);
+    }
+
+    // ---------------------
+    // END swim
+    // ---------------------
+
     private void calcAll() {
         hash = calcHash();
         calcSearchBuffer();
@@ -865,6 +1307,14 @@ public class Discovery {
         informBuffer.flip();
     }
 
+    /**
+     * get the http client of the node, connections in the client are kept alive for later requests
+     */
+    public HttpClient httpClient(Node node) {
+        return httpClients.computeIfAbsent(new InetSocketAddress(node.inetAddress, node.tcpPort),
+            remote -> new Http1ClientImpl(remote, loop, new HttpClient.Options().setTimeout(3_000).setMaxConnections(2)));
+    }
+
     public List<Node> getNodes() {
         return nodes.values().stream().map(n -> n.node).collect(Collectors.toList());
     }
@@ -898,6 +1348,11 @@ public class Discovery {
         }
         closed = true;
 
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            if (probeTimer != null) {
+                probeTimer.cancel();
+            }
+        });
         // close the udp server to stop receiving packets
         udpBlockingServer.close();
         // send `leave` message to all nodes
@@ -951,6 +1406,10 @@ public class Discovery {
 
     private void releaseAfterLeave(Callback<Void, NoException> cb) {
         httpServer.close();
+        for (HttpClient client : httpClients.values()) {
+            client.close();
+        }
+        httpClients.clear();
         try {
             eventLoopGroup.remove("EventLoop:" + nodeName);
         } catch (NotFoundException e) {
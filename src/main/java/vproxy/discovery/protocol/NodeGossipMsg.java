@@ -0,0 +1,143 @@
+package vproxy.discovery.protocol;
+
+import vjson.JSON;
+import vproxy.component.exception.XException;
+import vproxy.discovery.Node;
+
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+public class NodeGossipMsg {
+    public static class Update {
+        public final Node node;
+        public final String state;
+        public final int incarnation;
+
+        public Update(Node node, String state, int incarnation) {
+            this.node = node;
+            this.state = state;
+            this.incarnation = incarnation;
+        }
+
+        @Override
+        public String toString() {
+            return "Update{" +
+                "node=" + node +
+                ", state='" + state + '\'' +
+                ", incarnation=" + incarnation +
+                '}';
+        }
+    }
+
+    public final int version;
+    public final String type;
+    public final String nodeName;
+    public final int udpPort;
+    public final int tcpPort;
+    public final int incarnation;
+    public final int seq;
+    public final Node target; // only for ping-req
+    public final List<Update> updates;
+
+    public NodeGossipMsg(int version, String type, String nodeName, int udpPort, int tcpPort,
+                         int incarnation, int seq, Node target, List<Update> updates) {
+        this.version = version;
+        this.type = type;
+        this.nodeName = nodeName;
+        this.udpPort = udpPort;
+        this.tcpPort = tcpPort;
+        this.incarnation = incarnation;
+        this.seq = seq;
+        this.target = target;
+        this.updates = Collections.unmodifiableList(updates);
+    }
+
+    private static Node getNode(JSON.Object o) throws XException {
+        if (!o.containsKey("nodeName")
+            || !o.containsKey("address")
+            || !o.containsKey("udpPort")
+            || !o.containsKey("tcpPort")) {
+            throw new XException("invalid message, missing node keys: " + o);
+        }
+        if (!(o.get("nodeName") instanceof JSON.String)
+            || !(o.get("address") instanceof JSON.String)
+            || !(o.get("udpPort") instanceof JSON.Integer)
+            || !(o.get("tcpPort") instanceof JSON.Integer)) {
+            throw new XException("invalid message, node value type wrong: " + o);
+        }
+        try {
+            return new Node(o.getString("nodeName"), o.getString("address"), o.getInt("udpPort"), o.getInt("tcpPort"));
+        } catch (UnknownHostException e) {
+            throw new XException("invalid message, address invalid: " + o);
+        }
+    }
+
+    public static NodeGossipMsg parse(JSON.Object o) throws XException {
+        if (!o.containsKey("version")
+            || !o.containsKey("type")
+            || !o.containsKey("nodeName")
+            || !o.containsKey("udpPort")
+            || !o.containsKey("tcpPort")
+            || !o.containsKey("incarnation")
+            || !o.containsKey("seq")
+            || !o.containsKey("updates")) {
+            throw new XException("invalid message, missing some keys: " + o);
+        }
+        if (!(o.get("version") instanceof JSON.Integer)
+            || !(o.get("type") instanceof JSON.String)
+            || !(o.get("nodeName") instanceof JSON.String)
+            || !(o.get("udpPort") instanceof JSON.Integer)
+            || !(o.get("tcpPort") instanceof JSON.Integer)
+            || !(o.get("incarnation") instanceof JSON.Integer)
+            || !(o.get("seq") instanceof JSON.Integer)
+            || !(o.get("updates") instanceof JSON.Array)
+            || (o.containsKey("target") && !(o.get("target") instanceof JSON.Object))) {
+            throw new XException("invalid message, value type wrong: " + o);
+        }
+
+        Node target = null;
+        if (o.containsKey("target")) {
+            target = getNode(o.getObject("target"));
+        }
+        List<Update> updates = new LinkedList<>();
+        JSON.Array arr = o.getArray("updates");
+        for (int i = 0; i < arr.length(); ++i) {
+            if (!(arr.get(i) instanceof JSON.Object)) {
+                throw new XException("invalid message, updates[" + i + "] is not json object: " + o);
+            }
+            JSON.Object u = arr.getObject(i);
+            if (!u.containsKey("state") || !u.containsKey("incarnation")) {
+                throw new XException("invalid message, missing keys in updates[" + i + "]: " + o);
+            }
+            if (!(u.get("state") instanceof JSON.String)
+                || !(u.get("incarnation") instanceof JSON.Integer)) {
+                throw new XException("invalid message, value type wrong in updates[" + i + "]: " + o);
+            }
+            String state = u.getString("state");
+            if (!state.equals("alive") && !state.equals("suspect") && !state.equals("dead")) {
+                throw new XException("invalid message, unknown state in updates[" + i + "]: " + o);
+            }
+            updates.add(new Update(getNode(u), state, u.getInt("incarnation")));
+        }
+
+        return new NodeGossipMsg(o.getInt("version"), o.getString("type"), o.getString("nodeName"),
+            o.getInt("udpPort"), o.getInt("tcpPort"), o.getInt("incarnation"), o.getInt("seq"), target, updates);
+    }
+
+    @Override
+    public String toString() {
+        return "NodeGossipMsg{" +
+            "version=" + version +
+            ", type='" + type + '\'' +
+            ", nodeName='" + nodeName + '\'' +
+            ", udpPort=" + udpPort +
+            ", tcpPort=" + tcpPort +
+            ", incarnation=" + incarnation +
+            ", seq=" + seq +
+            ", target=" + target +
+            ", updates=" + updates +
+            '}';
+    }
+}
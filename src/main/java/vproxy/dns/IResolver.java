@@ -7,6 +7,7 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
+import java.util.List;
 
 public interface IResolver {
     void resolve(String host, Callback<? super InetAddress, ? super UnknownHostException> cb);
@@ -17,6 +18,11 @@ public interface IResolver {
 
     void resolveV4(String host, Callback<? super Inet4Address, ? super UnknownHostException> cb);
 
+    /**
+     * get all addresses of the host, ipv4 addresses are listed before ipv6 addresses
+     */
+    void resolveAll(String host, Callback<? super List<InetAddress>, ? super UnknownHostException> cb);
+
     int cacheCount();
 
     void copyCache(Collection<? super Resolver.Cache> cacheList);
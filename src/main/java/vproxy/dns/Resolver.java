@@ -10,6 +10,7 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -23,6 +24,7 @@ public class Resolver implements IResolver {
     static class ResolveTask {
         final String host;
         final Callback<InetAddress, UnknownHostException> cb;
+        final Callback<List<InetAddress>, UnknownHostException> allCb; // not null when all addresses are required
         final boolean ipv4;
         final boolean ipv6;
 
@@ -30,9 +32,26 @@ public class Resolver implements IResolver {
                     boolean ipv4, boolean ipv6) {
             this.host = host;
             this.cb = cb;
+            this.allCb = null;
             this.ipv4 = ipv4;
             this.ipv6 = ipv6;
         }
+
+        ResolveTask(String host, Callback<List<InetAddress>, UnknownHostException> allCb) {
+            this.host = host;
+            this.cb = null;
+            this.allCb = allCb;
+            this.ipv4 = true;
+            this.ipv6 = true;
+        }
+
+        void failed(UnknownHostException err) {
+            if (allCb != null) {
+                allCb.failed(err);
+            } else {
+                cb.failed(err);
+            }
+        }
     }
 
     public class Cache {
@@ -108,6 +127,27 @@ public class Resolver implements IResolver {
             return new Tuple<>(v4, v6);
         }
 
+        /**
+         * @return all addresses, ipv4 first, and each family starts from the address returned by {@link #next()}
+         */
+        public List<InetAddress> all() {
+            Tuple<Inet4Address, Inet6Address> first = next();
+            List<InetAddress> ret = new ArrayList<>(ipv4.size() + ipv6.size());
+            addFrom(ipv4, first.left, ret);
+            addFrom(ipv6, first.right, ret);
+            return ret;
+        }
+
+        private <T extends InetAddress> void addFrom(List<T> list, T first, List<InetAddress> ret) {
+            if (first == null) {
+                return;
+            }
+            int idx = list.indexOf(first);
+            for (int i = 0; i < list.size(); ++i) {
+                ret.add(list.get((idx + i) % list.size()));
+            }
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -192,12 +232,13 @@ public class Resolver implements IResolver {
             addresses = InetAddress.getAllByName(task.host);
         } catch (UnknownHostException e) {
             // got exception, let's call the callback
-            task.cb.failed(e);
+            task.failed(e);
             return;
         }
         // record
+        Cache cache = null;
         if (addresses.length > 0) {
-            Cache cache = new Cache(task.host, addresses);
+            cache = new Cache(task.host, addresses);
             assert Logger.lowLevelDebug("cache recorded " + cache.host);
             cacheMap.put(task.host, cache);
             for (ResolveListener lsn : resolveListeners) {
@@ -210,6 +251,15 @@ public class Resolver implements IResolver {
             }
         }
 
+        if (task.allCb != null) {
+            if (cache == null) {
+                task.allCb.failed(new UnknownHostException(task.host));
+            } else {
+                task.allCb.succeeded(cache.all());
+            }
+            return;
+        }
+
         // filter the result
         InetAddress result = filter(addresses, task.ipv4, task.ipv6);
         if (result != null) {
@@ -334,6 +384,31 @@ public class Resolver implements IResolver {
         resolveN(host, true, false, (Callback) cb);
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public void resolveAll(String host, Callback<? super List<InetAddress>, ? super UnknownHostException> cb) {
+        if (Utils.isIpLiteral(host)) {
+            InetAddress addr;
+            try {
+                addr = InetAddress.getByName(host);
+            } catch (UnknownHostException e) {
+                // should not happen
+                Logger.shouldNotHappen("resolving an ip address string should success");
+                cb.failed(e);
+                return;
+            }
+            cb.succeeded(Collections.singletonList(addr));
+            return;
+        }
+        Cache r = cacheMap.get(host);
+        if (r == null) {
+            loop.getSelectorEventLoop().runOnLoop(() ->
+                doResolve(new ResolveTask(host, (Callback) cb)));
+            return;
+        }
+        cb.succeeded(r.all());
+    }
+
     @Override
     public int cacheCount() {
         return cacheMap.size();
@@ -0,0 +1,100 @@
+package vproxy.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Encodes the bytes pulled from the source channel with chunked transfer encoding.<br>
+ * Each read from the source becomes one chunk, and the last chunk is produced when the source
+ * returns -1 or closes itself. The source should not return 0 before it ends,
+ * because 0 means nothing can be written now, and the writer will not pull again until it's writable.<br>
+ * The channel returns -1 and is closed after all bytes are read.
+ */
+public class ChunkedEncodingChannel implements ReadableByteChannel {
+    private static final int MAX_CHUNK_SIZE = 4096;
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    private final ReadableByteChannel source;
+    private final ByteBuffer content = ByteBuffer.allocate(MAX_CHUNK_SIZE);
+    // size line + content + CRLF
+    private final ByteBuffer encoded = ByteBuffer.allocate(Integer.toHexString(MAX_CHUNK_SIZE).length() + 2 + MAX_CHUNK_SIZE + 2);
+    private boolean sourceEnded = false;
+    private boolean finished = false;
+
+    public ChunkedEncodingChannel(ReadableByteChannel source) {
+        this.source = source;
+        encoded.limit(0); // nothing to read yet
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining()) {
+            if (!encoded.hasRemaining()) {
+                if (sourceEnded) {
+                    finished = true;
+                    break;
+                }
+                if (!encodeNext()) {
+                    break;
+                }
+            }
+            int n = Math.min(encoded.remaining(), dst.remaining());
+            int limit = encoded.limit();
+            encoded.limit(encoded.position() + n);
+            dst.put(encoded);
+            encoded.limit(limit);
+            total += n;
+        }
+        if (sourceEnded && !encoded.hasRemaining()) {
+            finished = true;
+        }
+        if (total == 0 && finished) {
+            return -1;
+        }
+        return total;
+    }
+
+    // return false if nothing is encoded
+    private boolean encodeNext() throws IOException {
+        encoded.clear();
+        int n = 0;
+        if (source.isOpen()) {
+            content.clear();
+            n = source.read(content);
+            if (n == 0) {
+                encoded.limit(0);
+                return false;
+            }
+        }
+        if (n <= 0) {
+            sourceEnded = true;
+            source.close();
+            encoded.put(LAST_CHUNK);
+        } else {
+            content.flip();
+            encoded.put(Integer.toHexString(n).getBytes());
+            encoded.put(CRLF);
+            encoded.put(content);
+            encoded.put(CRLF);
+        }
+        encoded.flip();
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !finished;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        source.close();
+    }
+}
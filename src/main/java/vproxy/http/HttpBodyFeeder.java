@@ -0,0 +1,73 @@
+package vproxy.http;
+
+import vproxy.processor.Processor;
+import vproxy.processor.http1.HttpSubContext;
+import vproxy.util.ByteArray;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
+
+import java.util.function.Predicate;
+
+/**
+ * Reads the body of a message whose headers are already parsed by the sub context.<br>
+ * Only the chunk framing is fed into the sub context byte by byte,
+ * the content is copied out of the buffer in bulk and handed to the consumer,
+ * so the body is never accumulated in the parser.
+ */
+class HttpBodyFeeder {
+    private final HttpSubContext ctx;
+    private int left = -1; // bytes left in the current content part, -1 means not started
+
+    private final byte[] bytes = new byte[1];
+    private final ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(bytes);
+
+    String errorMessage;
+
+    HttpBodyFeeder(HttpSubContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * @return 0 when the body ends, 1 when stopped by the consumer, -1 when want more data or got error
+     */
+    int feed(RingBuffer buffer, Predicate<ByteArray> consumer) {
+        while (!ctx.isIdle()) {
+            if (buffer.used() == 0) {
+                return -1;
+            }
+            if (ctx.mode() == Processor.Mode.handle) {
+                chnl.reset();
+                buffer.writeTo(chnl);
+                try {
+                    ctx.feed(bytes[0]);
+                } catch (Exception e) {
+                    Logger.warn(LogType.INVALID_EXTERNAL_DATA, "parse http body failed: " + e);
+                    errorMessage = e.getMessage();
+                    return -1;
+                }
+                continue;
+            }
+            // content
+            if (left == -1) {
+                left = ctx.len();
+            }
+            int n = Math.min(left, buffer.used());
+            byte[] content = new byte[n];
+            ByteArrayChannel contentChnl = ByteArrayChannel.fromEmpty(content);
+            while (contentChnl.free() != 0) {
+                buffer.writeTo(contentChnl);
+            }
+            left -= n;
+            if (left == 0) {
+                left = -1;
+                ctx.proxyDone();
+            }
+            if (!consumer.test(ByteArray.from(content)) && !ctx.isIdle()) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -28,6 +28,10 @@ public abstract class HttpProtocolHandler implements ProtocolHandler<HttpContext
             ctx.data.result = ctx.data.parser.getResult();
             ctx.data.parser = null;
             request(ctx);
+            if (ctx.inBuffer.used() > 0) {
+                // pipelined requests may be already in the buffer
+                ctx.loop.nextTick(() -> readable(ctx));
+            }
         } else {
             String errMsg = ctx.data.parser.getErrorMessage();
             if (errMsg != null) {
@@ -5,19 +5,23 @@ import vproxy.processor.ProcessorProvider;
 import vproxy.processor.http1.HttpSubContext;
 import vproxy.processor.http1.entity.Request;
 import vproxy.util.AbstractParser;
+import vproxy.util.ByteArray;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
+import java.util.function.Predicate;
 
 public class HttpReqParser extends AbstractParser<Request> {
     private final boolean parseBody;
+    private HttpBodyFeeder bodyFeeder;
     private HttpSubContext ctx;
 
     public HttpReqParser(boolean parseBody) {
-        super(new HashSet<>(Arrays.asList(1, 2)), Collections.singleton(2));
+        // stop when the message ends, the next message may follow in the buffer
+        super(new HashSet<>(Arrays.asList(1, 2)), new HashSet<>(Arrays.asList(1, 2)));
         result = null;
         this.parseBody = parseBody;
 
@@ -28,6 +32,40 @@ public class HttpReqParser extends AbstractParser<Request> {
         ctx = (HttpSubContext) s;
     }
 
+    /**
+     * @return true if the headers are parsed and the body is not read yet,
+     * which only happens when <code>parseBody</code> is false
+     */
+    public boolean isBodyPending() {
+        return state == 2;
+    }
+
+    /**
+     * Read the body when {@link #isBodyPending()}.
+     * The body is not kept in the result, but handed to the consumer part by part.
+     * When the body ends, the result is refreshed to carry the trailers.
+     *
+     * @param consumer receives the body data, returns false to stop reading until the next call
+     * @return 0 when the body ends, 1 when stopped by the consumer,
+     * -1 when want more data or got error (check {@link #getErrorMessage()})
+     */
+    public int feedBody(RingBuffer buffer, Predicate<ByteArray> consumer) {
+        if (state != 2) {
+            throw new IllegalStateException("the body is not pending");
+        }
+        if (bodyFeeder == null) {
+            bodyFeeder = new HttpBodyFeeder(ctx);
+        }
+        int ret = bodyFeeder.feed(buffer, consumer);
+        if (ret == 0) {
+            result = ctx.getReq();
+            state = 1;
+        } else if (bodyFeeder.errorMessage != null) {
+            errorMessage = bodyFeeder.errorMessage;
+        }
+        return ret;
+    }
+
     @Override
     protected int doSwitch(byte b) {
         try {
@@ -0,0 +1,41 @@
+package vproxy.processor;
+
+import vproxy.util.Utils;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A hint provided by the processor to choose the backend.
+ * Requests with the same hint are proxied to the same backend as long as the backend is healthy.
+ */
+public class Hint {
+    public final int hash;
+    /**
+     * the backend which must be used, null if the backend is chosen by the hash.
+     * it's used when the processor knows better than the lib where the request should go,
+     * e.g. a redis cluster tells the client which server holds the key
+     */
+    public final InetSocketAddress host;
+
+    public Hint(int hash) {
+        this(hash, null);
+    }
+
+    public Hint(int hash, InetSocketAddress host) {
+        this.hash = hash;
+        this.host = host;
+    }
+
+    public static Hint ofKey(byte[] key, int off, int len) {
+        return new Hint(Utils.hash32(key, off, len));
+    }
+
+    public static Hint ofHost(int hash, InetSocketAddress host) {
+        return new Hint(hash, host);
+    }
+
+    @Override
+    public String toString() {
+        return "Hint(" + hash + (host == null ? "" : ", " + host) + ")";
+    }
+}
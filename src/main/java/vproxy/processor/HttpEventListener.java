@@ -0,0 +1,35 @@
+package vproxy.processor;
+
+/**
+ * Receives request and response events from the http processors,
+ * the lib uses it to record access logs.<br>
+ * The methods are called on the event loop thread of the connection.
+ */
+public interface HttpEventListener {
+    /**
+     * the request headers are received from the frontend connection
+     *
+     * @param stream stream id for http/2, 0 for http/1.x
+     * @param method the request method
+     * @param host   the host header or the :authority pseudo header, may be null
+     * @param path   the request uri
+     */
+    void request(int stream, String method, String host, String path);
+
+    /**
+     * the response headers are received from a backend connection
+     *
+     * @param connId the backend connection id
+     * @param stream stream id for http/2, 0 for http/1.x
+     * @param status the response status, 0 if unknown
+     */
+    void response(int connId, int stream, int status);
+
+    /**
+     * the response is totally received from the backend connection
+     *
+     * @param connId the backend connection id
+     * @param stream stream id for http/2, 0 for http/1.x
+     */
+    void responseEnd(int connId, int stream);
+}
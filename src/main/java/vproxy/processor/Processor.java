@@ -136,6 +136,16 @@ public interface Processor<CTX extends Processor.Context, SUB extends Processor.
      */
     ByteArray connected(CTX ctx, SUB sub);
 
+    /**
+     * let the processor report http events, only http processors would call the listener
+     *
+     * @param ctx      context
+     * @param listener the listener
+     */
+    default void setHttpEventListener(CTX ctx, HttpEventListener listener) {
+        // do nothing in default implementation
+    }
+
     /**
      * zero copy is not free.
      * e.g. when processing http2 frames, the frame header is 9 bytes, and with uint24 payload length,
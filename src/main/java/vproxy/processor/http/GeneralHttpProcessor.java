@@ -1,5 +1,6 @@
 package vproxy.processor.http;
 
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.Processor;
 import vproxy.processor.http1.HttpProcessor;
 import vproxy.processor.http2.Http2Processor;
@@ -41,6 +42,12 @@ public class GeneralHttpProcessor implements Processor<GeneralHttpContext, Gener
         );
     }
 
+    @Override
+    public void setHttpEventListener(GeneralHttpContext ctx, HttpEventListener listener) {
+        httpProcessor.setHttpEventListener(ctx.httpContext, listener);
+        http2Processor.setHttpEventListener(ctx.http2Context, listener);
+    }
+
     @Override
     public Mode mode(GeneralHttpContext ctx, GeneralHttpSubContext subCtx) {
         if (ctx.useHttp) return httpProcessor.mode(ctx.httpContext, subCtx.httpSubContext);
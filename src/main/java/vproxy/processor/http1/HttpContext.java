@@ -1,5 +1,6 @@
 package vproxy.processor.http1;
 
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.OOContext;
 import vproxy.util.Utils;
 
@@ -11,6 +12,8 @@ public class HttpContext extends OOContext<HttpSubContext> {
 
     int currentBackend = -1;
 
+    HttpEventListener httpEventListener = null;
+
     public HttpContext(InetSocketAddress clientSock) {
         clientAddress = clientSock == null ? null : Utils.ipStr(clientSock.getAddress().getAddress());
         clientPort = clientSock == null ? null : "" + clientSock.getPort();
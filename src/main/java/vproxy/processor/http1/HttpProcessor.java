@@ -1,5 +1,6 @@
 package vproxy.processor.http1;
 
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.OOProcessor;
 
 import java.net.InetSocketAddress;
@@ -24,4 +25,9 @@ public class HttpProcessor extends OOProcessor<HttpContext, HttpSubContext> {
     public HttpSubContext initSub(HttpContext httpContext, int id, InetSocketAddress associatedAddress) {
         return new HttpSubContext(httpContext, id);
     }
+
+    @Override
+    public void setHttpEventListener(HttpContext httpContext, HttpEventListener listener) {
+        httpContext.httpEventListener = listener;
+    }
 }
@@ -1,5 +1,6 @@
 package vproxy.processor.http1;
 
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.OOSubContext;
 import vproxy.processor.Processor;
 import vproxy.processor.http1.builder.ChunkBuilder;
@@ -256,9 +257,40 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
 
     private void end() {
         state = 0;
+        if (!frontend && ctx.httpEventListener != null) {
+            ctx.httpEventListener.responseEnd(connId, 0);
+        }
+    }
+
+    private void notifyHeadersReceived() {
+        HttpEventListener lsn = ctx.httpEventListener;
+        if (lsn == null) {
+            return;
+        }
+        if (frontend) {
+            String host = null;
+            if (headers != null) {
+                for (HeaderBuilder h : headers) {
+                    if (h.key.toString().trim().equalsIgnoreCase("host")) {
+                        host = h.value.toString().trim();
+                        break;
+                    }
+                }
+            }
+            lsn.request(0, req.method.toString(), host, req.uri.toString());
+        } else {
+            int status;
+            try {
+                status = Integer.parseInt(resp.statusCode.toString());
+            } catch (NumberFormatException e) {
+                status = 0;
+            }
+            lsn.response(connId, 0, status);
+        }
     }
 
     private void state0(ByteArray data) {
+        headers = null; // headers of the last message should not be kept
         if (frontend) {
             req = new RequestBuilder();
             state = 1;
@@ -387,6 +419,7 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
     // it's for state transferring
     private void state9(@SuppressWarnings("unused") ByteArray data) {
         // ignore the data
+        notifyHeadersReceived();
         if (headers == null) {
             end();
             return;
@@ -543,7 +576,11 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
             chunks = new LinkedList<>();
         }
         if (chunk != null) {
-            chunks.add(chunk);
+            // the content of a proxied chunk is not recorded
+            // so do not keep its framing either, otherwise a long stream keeps growing the list
+            if (chunk.content != null) {
+                chunks.add(chunk);
+            }
             chunk = null;
         }
 
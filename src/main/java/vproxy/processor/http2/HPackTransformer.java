@@ -29,6 +29,10 @@ class HPackTransformer {
         return outBuffer.get();
     }
 
+    SyncOutputListener listener() {
+        return lsn;
+    }
+
     public void endHeaders() {
         lsn.endHeaders();
         decoder.endHeaderBlock();
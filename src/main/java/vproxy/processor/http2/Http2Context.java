@@ -1,5 +1,6 @@
 package vproxy.processor.http2;
 
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.OOContext;
 import vproxy.util.ByteArray;
 import vproxy.util.Logger;
@@ -25,6 +26,8 @@ public class Http2Context extends OOContext<Http2SubContext> {
 
     ByteArray settingsFrameHeader = null; // this is a temporary field
 
+    HttpEventListener httpEventListener = null;
+
     public Http2Context(InetSocketAddress clientAddress) {
         String clientIpStr = Utils.ipStr(clientAddress.getAddress().getAddress());
         hPackTransformer = new HPackTransformer(Http2SubContext.SIZE_DEFAULT_HEADER_TABLE_SIZE,
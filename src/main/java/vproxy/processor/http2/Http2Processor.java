@@ -1,6 +1,7 @@
 package vproxy.processor.http2;
 
 import vproxy.app.Config;
+import vproxy.processor.HttpEventListener;
 import vproxy.processor.OOProcessor;
 import vproxy.util.Logger;
 
@@ -42,6 +43,12 @@ public class Http2Processor extends OOProcessor<Http2Context, Http2SubContext> {
         return new Http2SubContext(ctx, id);
     }
 
+    @Override
+    public void setHttpEventListener(Http2Context ctx, HttpEventListener listener) {
+        ctx.httpEventListener = listener;
+        ctx.hPackTransformer.listener().recordPseudoHeaders = listener != null;
+    }
+
     @Override
     public int PROXY_ZERO_COPY_THRESHOLD() {
         return HTTP2_ZERO_COPY_THRESHOLD;
@@ -511,6 +511,16 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             ctx.tryRecordStream(this);
         }
 
+        // response headers and data are proxied without decoding, so the status is unknown
+        if (connId != 0 && ctx.httpEventListener != null) {
+            if (frame.type == Http2Frame.Type.HEADERS) {
+                ctx.httpEventListener.response(connId, frame.streamIdentifier, 0);
+            }
+            if (frame.endStream) {
+                ctx.httpEventListener.responseEnd(connId, frame.streamIdentifier);
+            }
+        }
+
         if (connId == 0 // frontend
             && (frame.type == Http2Frame.Type.HEADERS || frame.type == Http2Frame.Type.CONTINUATION) // headers/continuation
             && SIZE_DEFAULT_HEADER_TABLE_SIZE != 0 // would be compressed
@@ -712,6 +722,12 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
 
         // set header end before return the result
         if (frame.endHeaders) {
+            if (connId == 0 && ctx.httpEventListener != null) {
+                SyncOutputListener lsn = ctx.hPackTransformer.listener();
+                if (lsn.method != null) { // trailers do not have pseudo headers
+                    ctx.httpEventListener.request(frame.streamIdentifier, lsn.method, lsn.authority, lsn.path);
+                }
+            }
             ctx.hPackTransformer.endHeaders();
         }
         // set state to idle
@@ -13,6 +13,12 @@ public class SyncOutputListener implements HeaderListener {
     private final Header[] headers;
     private final boolean[] added; // whether it's already added into the header list
 
+    // pseudo headers of the current header block, only recorded when required
+    boolean recordPseudoHeaders = false;
+    String method;
+    String authority;
+    String path;
+
     public SyncOutputListener(Encoder encoder, OutputStream out, Header[] headers) {
         this.encoder = encoder;
         this.out = out;
@@ -22,6 +28,9 @@ public class SyncOutputListener implements HeaderListener {
 
     @Override
     public void addHeader(byte[] name, byte[] value, boolean sensitive) throws IOException {
+        if (recordPseudoHeaders && name.length > 0 && name[0] == ':') {
+            recordPseudoHeader(new String(name), value);
+        }
         byte[] replaced = checkAndGet(name, value);
         if (replaced != null) {
             value = replaced;
@@ -29,6 +38,20 @@ public class SyncOutputListener implements HeaderListener {
         encoder.encodeHeader(out, name, value, sensitive);
     }
 
+    private void recordPseudoHeader(String name, byte[] value) {
+        switch (name) {
+            case ":method":
+                method = new String(value);
+                break;
+            case ":authority":
+                authority = new String(value);
+                break;
+            case ":path":
+                path = new String(value);
+                break;
+        }
+    }
+
     private byte[] checkAndGet(byte[] key, byte[] value) {
         if (headers == null || headers.length == 0) {
             return null;
@@ -65,6 +88,9 @@ public class SyncOutputListener implements HeaderListener {
     }
 
     void endHeaders() {
+        method = null;
+        authority = null;
+        path = null;
         // set everything to not added (added[n]=false)
         for (int i = 0; i < added.length; ++i) {
             added[i] = false;
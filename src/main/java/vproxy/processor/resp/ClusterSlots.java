@@ -0,0 +1,235 @@
+package vproxy.processor.resp;
+
+import vproxy.app.Config;
+import vproxy.dns.Resolver;
+import vproxy.util.Callback;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.Utils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The slot table of a redis cluster, shared by all connections proxied to the cluster.<br>
+ * The table is filled by the reply of <code>CLUSTER SLOTS</code>,
+ * and each slot is updated once a <code>MOVED</code> redirection is received.<br>
+ * The nodes may be announced with host names, which are resolved asynchronously before the table is updated.
+ */
+class ClusterSlots {
+    static final int SLOTS = 16384;
+    private static final long REFRESH_INTERVAL = 1000; // at most one CLUSTER SLOTS in this interval
+
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        // crc16-ccitt (xmodem), the same as redis cluster
+        for (int i = 0; i < 256; ++i) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; ++j) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private final AtomicReferenceArray<InetSocketAddress> slots = new AtomicReferenceArray<>(SLOTS);
+    private volatile boolean stale = false;
+    private final AtomicLong lastRefresh = new AtomicLong(0);
+    // host name => address, the names of nodes retrieved by CLUSTER SLOTS
+    private final Map<String, InetAddress> resolved = new ConcurrentHashMap<>();
+
+    static int crc16(byte[] bytes, int off, int len) {
+        int crc = 0;
+        for (int i = off; i < off + len; ++i) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ bytes[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    // only hash the part in {} if present
+    static int slot(byte[] key, int off, int len) {
+        for (int i = off; i < off + len; ++i) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < off + len; ++j) {
+                    if (key[j] == '}') {
+                        if (j > i + 1) {
+                            return crc16(key, i + 1, j - i - 1) & (SLOTS - 1);
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return crc16(key, off, len) & (SLOTS - 1);
+    }
+
+    /**
+     * @return null if no server known for the slot
+     */
+    InetSocketAddress node(int slot) {
+        return slots.get(slot);
+    }
+
+    void moved(int slot, InetSocketAddress node) {
+        assert Logger.lowLevelDebug("slot " + slot + " moved to " + node);
+        InetSocketAddress old = slots.getAndSet(slot, node);
+        if (!node.equals(old)) {
+            // other slots may be moved as well, retrieve the whole table later
+            // the table is not stale if the redirection is sent before the table is retrieved
+            stale = true;
+        }
+    }
+
+    /**
+     * @return true if the caller should retrieve the table, only one caller gets true in the refresh interval
+     */
+    boolean shouldRefresh() {
+        if (!stale)
+            return false;
+        long last = lastRefresh.get();
+        long now = Config.currentTimestamp;
+        return now - last >= REFRESH_INTERVAL && lastRefresh.compareAndSet(last, now);
+    }
+
+    /**
+     * update the table with the reply of <code>CLUSTER SLOTS</code>,
+     * the host names of the nodes are resolved before the table is updated
+     *
+     * @param reply   the reply parsed into java objects
+     * @param queried the server which replied, used when the host of a node is empty
+     * @throws Exception the reply is not valid
+     */
+    void update(List<?> reply, InetSocketAddress queried) throws Exception {
+        List<Range> ranges = new ArrayList<>(reply.size());
+        Set<String> hosts = new HashSet<>();
+        for (Object o : reply) {
+            // [start, end, [host, port, id], [replica host, port, id] ...]
+            if (!(o instanceof List) || ((List<?>) o).size() < 3)
+                throw new Exception("invalid slot range " + o);
+            List<?> range = (List<?>) o;
+            if (!(range.get(0) instanceof Integer) || !(range.get(1) instanceof Integer) || !(range.get(2) instanceof List))
+                throw new Exception("invalid slot range " + o);
+            int start = (Integer) range.get(0);
+            int end = (Integer) range.get(1);
+            if (start < 0 || end >= SLOTS || start > end)
+                throw new Exception("invalid slot range " + o);
+            List<?> info = (List<?>) range.get(2);
+            if (info.size() < 2 || !(info.get(0) instanceof String) || !(info.get(1) instanceof Integer))
+                throw new Exception("invalid node " + info);
+            String host = (String) info.get(0);
+            int port = (Integer) info.get(1);
+            if (port <= 0 || port > 65535)
+                throw new Exception("invalid node " + info);
+            if (!host.isEmpty() && !Utils.isIpLiteral(host)) {
+                hosts.add(host);
+            }
+            ranges.add(new Range(start, end, host, port));
+        }
+        if (hosts.isEmpty()) {
+            apply(ranges, queried);
+            return;
+        }
+        // redis 7 may announce host names, the table is updated when all of them are resolved
+        AtomicInteger left = new AtomicInteger(hosts.size());
+        for (String host : hosts) {
+            Resolver.getDefault().resolve(host, new Callback<>() {
+                @Override
+                protected void onSucceeded(InetAddress value) {
+                    resolved.put(host, value);
+                    if (left.decrementAndGet() == 0) {
+                        apply(ranges, queried);
+                    }
+                }
+
+                @Override
+                protected void onFailed(UnknownHostException err) {
+                    // the slots of the node are routed to the seeds, and will be redirected
+                    Logger.warn(LogType.INVALID_EXTERNAL_DATA, "cannot resolve redis cluster node " + host, err);
+                    if (left.decrementAndGet() == 0) {
+                        apply(ranges, queried);
+                    }
+                }
+            });
+        }
+    }
+
+    private void apply(List<Range> ranges, InetSocketAddress queried) {
+        InetSocketAddress[] table = new InetSocketAddress[SLOTS];
+        Set<InetSocketAddress> nodes = new HashSet<>();
+        for (Range range : ranges) {
+            InetSocketAddress node = address(range.host, range.port, queried);
+            if (node == null)
+                continue;
+            nodes.add(node);
+            for (int i = range.start; i <= range.end; ++i) {
+                table[i] = node;
+            }
+        }
+        for (int i = 0; i < SLOTS; ++i) {
+            slots.set(i, table[i]);
+        }
+        stale = false;
+        lastRefresh.set(Config.currentTimestamp);
+        Logger.alert("redis cluster slots updated from " + Utils.ipport(queried) + ", masters: " + nodes);
+    }
+
+    /**
+     * @return null if the host is a name which is not resolved by a previous <code>CLUSTER SLOTS</code>
+     */
+    InetSocketAddress address(String host, int port, InetSocketAddress queried) {
+        if (host.isEmpty() || Utils.isIpLiteral(host))
+            return ipAddress(host, port, queried);
+        if (port <= 0 || port > 65535)
+            return null;
+        InetAddress addr = resolved.get(host);
+        if (addr == null) {
+            // the name is resolved when the table is retrieved again
+            stale = true;
+            return null;
+        }
+        return new InetSocketAddress(addr, port);
+    }
+
+    /**
+     * @return null if the host is not an ip literal
+     */
+    static InetSocketAddress ipAddress(String host, int port, InetSocketAddress queried) {
+        if (port <= 0 || port > 65535)
+            return null;
+        if (host.isEmpty()) {
+            // the server does not know its own ip, use the one we connected to
+            return new InetSocketAddress(queried.getAddress(), port);
+        }
+        byte[] ip = Utils.parseIpString(host);
+        if (ip == null)
+            return null;
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        } catch (UnknownHostException e) {
+            // will not happen when the ip is valid
+            return null;
+        }
+    }
+
+    private static class Range {
+        final int start;
+        final int end;
+        final String host; // ip, host name, or empty
+        final int port;
+
+        Range(int start, int end, String host, int port) {
+            this.start = start;
+            this.end = end;
+            this.host = host;
+            this.port = port;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package vproxy.processor.resp;
+
+import vproxy.connection.ConnectableConnection;
+import vproxy.connection.ConnectableConnectionHandler;
+import vproxy.connection.ConnectableConnectionHandlerContext;
+import vproxy.connection.ConnectionHandlerContext;
+import vproxy.connection.NetEventLoop;
+import vproxy.util.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * A backend connection shared by all frontend connections on the same event loop.<br>
+ * Commands of different clients are pipelined on the connection,
+ * and each reply is handed to the client which sent the command.
+ */
+class RESPBackend implements ConnectableConnectionHandler {
+    private static final byte[] CLUSTER_SLOTS = "*2\r\n$7\r\nCLUSTER\r\n$5\r\nSLOTS\r\n".getBytes();
+    private static final byte[] ASKING = "*1\r\n$6\r\nASKING\r\n".getBytes();
+    private static final byte[] CLOSED = "-ERR connection to the server is closed\r\n".getBytes();
+
+    private final RESPProcessor processor;
+    final NetEventLoop loop;
+    final RESPProcessor.BackendKey key;
+    final ConnectableConnection conn;
+    private final RESPScanner scanner = new RESPScanner(false);
+    // requests already written, the replies are in the same order
+    private final ArrayDeque<RESPRequest> waiting = new ArrayDeque<>();
+    // data not stored into the out buffer yet
+    private final ArrayDeque<ByteArrayChannel> pending = new ArrayDeque<>();
+    private boolean connected = false;
+    private boolean closed = false;
+    // CLUSTER SLOTS is already sent on this connection
+    boolean slotsRequested = false;
+
+    RESPBackend(RESPProcessor processor, NetEventLoop loop, RESPProcessor.BackendKey key, ConnectableConnection conn) {
+        this.processor = processor;
+        this.loop = loop;
+        this.key = key;
+        this.conn = conn;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @param r       the request
+     * @param command the command to send
+     * @param asking  prefix the command with ASKING
+     * @param group   retrieve the slot table of the group before sending the command, null if not required
+     */
+    void send(RESPRequest r, byte[] command, boolean asking, Object group) {
+        ByteArray data = ByteArray.from(command);
+        // ASKING only affects the next command, so they are stored together
+        if (asking) {
+            data = ByteArray.from(ASKING).concat(data);
+        }
+        if (group != null) {
+            slotsRequested = true;
+            data = ByteArray.from(CLUSTER_SLOTS).concat(data);
+            RESPRequest slots = new RESPRequest(RESPRequest.SLOTS, null);
+            slots.group = group;
+            waiting.add(slots);
+        }
+        if (asking) {
+            waiting.add(new RESPRequest(RESPRequest.DISCARD, null));
+        }
+        waiting.add(r);
+
+        pending.add(ByteArrayChannel.fromFull(data));
+        if (connected && pending.size() == 1) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        // commands of many clients are stored in the same loop round,
+        // let the loop write them with one call
+        conn.runNoQuickWrite(() -> {
+            while (!pending.isEmpty()) {
+                ByteArrayChannel chnl = pending.peek();
+                conn.getOutBuffer().storeBytesFrom(chnl);
+                if (chnl.used() != 0)
+                    return; // wait until writable
+                pending.poll();
+            }
+        });
+    }
+
+    private void readReplies() {
+        scanner.append(conn.getInBuffer());
+        try {
+            while (scanner.scan()) {
+                byte[] reply = scanner.frame();
+                scanner.consume();
+                RESPRequest r = waiting.poll();
+                if (r == null)
+                    throw new Exception("unexpected reply");
+                if (r.type == RESPRequest.SLOTS) {
+                    processor.slots(r.group, reply, conn.remote);
+                } else if (r.type == RESPRequest.CLIENT) {
+                    r.owner.replied(r, reply, conn.remote);
+                }
+            }
+        } catch (Exception e) {
+            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid reply from " + conn + ", err = " + e);
+            close();
+        }
+    }
+
+    // the replies not received yet are failed
+    private void close() {
+        if (closed)
+            return;
+        closed = true;
+        processor.removed(this);
+        conn.close();
+        RESPRequest r;
+        while ((r = waiting.poll()) != null) {
+            if (r.type == RESPRequest.CLIENT) {
+                r.owner.replied(r, CLOSED, null);
+            }
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void connected(ConnectableConnectionHandlerContext ctx) {
+        assert Logger.lowLevelDebug("shared backend connection " + conn + " connected");
+        connected = true;
+        flush();
+    }
+
+    @Override
+    public void readable(ConnectionHandlerContext ctx) {
+        readReplies();
+    }
+
+    @Override
+    public void writable(ConnectionHandlerContext ctx) {
+        flush();
+    }
+
+    @Override
+    public void exception(ConnectionHandlerContext ctx, IOException err) {
+        Logger.error(LogType.CONN_ERROR, "got exception when handling shared backend connection " + conn, err);
+        close();
+    }
+
+    @Override
+    public void remoteClosed(ConnectionHandlerContext ctx) {
+        assert Logger.lowLevelDebug("shared backend connection " + conn + " remoteClosed");
+        close();
+    }
+
+    @Override
+    public void closed(ConnectionHandlerContext ctx) {
+        close();
+    }
+
+    @Override
+    public void removed(ConnectionHandlerContext ctx) {
+        close();
+    }
+}
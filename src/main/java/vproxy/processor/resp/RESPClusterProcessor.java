@@ -0,0 +1,65 @@
+package vproxy.processor.resp;
+
+import vproxy.redis.RESPParser;
+import vproxy.redis.entity.RESP;
+import vproxy.redis.entity.RESPError;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A redis cluster proxy processor, for clients which only speak plain redis.<br>
+ * The servers in the server-group are used as seeds: the slot table is retrieved with <code>CLUSTER SLOTS</code>
+ * from the first server connected, then each command is sent directly to the master holding the slot of its keys.
+ * <code>MOVED</code> and <code>ASK</code> redirections are followed by the proxy, and the slot table is updated
+ * once a <code>MOVED</code> redirection is received.<br>
+ * The table is kept for each backend group, so lbs using the same group share one table.
+ * When the slot table is not available, the commands are routed in the same way as the {@link RESPProcessor}.
+ */
+public class RESPClusterProcessor extends RESPProcessor {
+    // backend group => slot table of the cluster which the seeds in the group belong to,
+    // the keys are weak so that the table is dropped when the group is removed
+    private final Map<Object, ClusterSlots> clusters = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public String name() {
+        return "resp-cluster";
+    }
+
+    /**
+     * @param group the group of the seeds, see {@link vproxy.connection.Connector#group()}
+     * @return null if the table is not retrieved yet
+     */
+    ClusterSlots cluster(Object group) {
+        return clusters.get(group);
+    }
+
+    @Override
+    void slots(Object group, byte[] reply, InetSocketAddress queried) {
+        RingBuffer rb = RingBuffer.allocate(reply.length);
+        rb.storeBytesFrom(ByteArrayChannel.fromFull(reply));
+        RESPParser parser = new RESPParser(reply.length);
+        RESP resp = parser.feed(rb) == 0 ? parser.getResult() : null;
+        if (resp == null || resp instanceof RESPError || !(resp.getJavaObject() instanceof List)) {
+            // the commands are routed by hash when the table is not available
+            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "cannot retrieve cluster slots from " + queried + ": " + (resp == null ? parser.getErrorMessage() : resp));
+            return;
+        }
+        ClusterSlots cluster;
+        synchronized (clusters) {
+            cluster = clusters.computeIfAbsent(group, k -> new ClusterSlots());
+        }
+        try {
+            cluster.update((List<?>) resp.getJavaObject(), queried);
+        } catch (Exception e) {
+            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid cluster slots from " + queried, e);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package vproxy.processor.resp;
+
+import vproxy.connection.Connection;
+import vproxy.connection.ConnectionHandler;
+import vproxy.connection.ConnectionHandlerContext;
+import vproxy.connection.Connector;
+import vproxy.connection.NetEventLoop;
+import vproxy.processor.Hint;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Handle a client connection: the commands are routed by their keys and sent to the shared backend connections,
+ * and the replies are written to the client in the order of the commands.
+ */
+class RESPFrontend implements ConnectionHandler {
+    private static final int MAX_PENDING = 1024; // stop reading commands when so many replies are not written yet
+    private static final int MAX_REDIRECTS = 5; // same as redis-cli
+
+    private static final byte[] MOVED = "-MOVED ".getBytes();
+    private static final byte[] ASK = "-ASK ".getBytes();
+
+    // these commands involve multiple servers, or rely on the state of the connection
+    private static final Set<String> UNSUPPORTED = Set.of(
+        "MULTI", "EXEC", "DISCARD", "WATCH", "UNWATCH",
+        "SUBSCRIBE", "PSUBSCRIBE", "UNSUBSCRIBE", "PUNSUBSCRIBE", "PUBLISH", "MONITOR",
+        "SELECT", "SWAPDB", "MOVE", "MIGRATE", "AUTH", "CLIENT", "CLUSTER", "WAIT",
+        "KEYS", "SCAN", "RANDOMKEY", "DBSIZE", "FLUSHALL", "FLUSHDB", "SCRIPT",
+        "INFO", "CONFIG", "DEBUG", "SLOWLOG", "SHUTDOWN", "SAVE", "BGSAVE", "BGREWRITEAOF", "LASTSAVE",
+        "SLAVEOF", "REPLICAOF", "SYNC", "PSYNC", "XREAD", "XREADGROUP"
+    );
+    // {first key, last key (negative means counting from the end), step}, same as the output of COMMAND,
+    // commands not listed here have one key at position 1
+    private static final Map<String, int[]> KEY_POSITIONS = Map.ofEntries(
+        Map.entry("MGET", new int[]{1, -1, 1}),
+        Map.entry("MSET", new int[]{1, -1, 2}),
+        Map.entry("MSETNX", new int[]{1, -1, 2}),
+        Map.entry("DEL", new int[]{1, -1, 1}),
+        Map.entry("UNLINK", new int[]{1, -1, 1}),
+        Map.entry("EXISTS", new int[]{1, -1, 1}),
+        Map.entry("TOUCH", new int[]{1, -1, 1}),
+        Map.entry("RENAME", new int[]{1, 2, 1}),
+        Map.entry("RENAMENX", new int[]{1, 2, 1}),
+        Map.entry("RPOPLPUSH", new int[]{1, 2, 1}),
+        Map.entry("BRPOPLPUSH", new int[]{1, 2, 1}),
+        Map.entry("SMOVE", new int[]{1, 2, 1}),
+        Map.entry("BLPOP", new int[]{1, -2, 1}),
+        Map.entry("BRPOP", new int[]{1, -2, 1}),
+        Map.entry("BZPOPMIN", new int[]{1, -2, 1}),
+        Map.entry("BZPOPMAX", new int[]{1, -2, 1}),
+        Map.entry("SDIFF", new int[]{1, -1, 1}),
+        Map.entry("SDIFFSTORE", new int[]{1, -1, 1}),
+        Map.entry("SINTER", new int[]{1, -1, 1}),
+        Map.entry("SINTERSTORE", new int[]{1, -1, 1}),
+        Map.entry("SUNION", new int[]{1, -1, 1}),
+        Map.entry("SUNIONSTORE", new int[]{1, -1, 1}),
+        Map.entry("PFCOUNT", new int[]{1, -1, 1}),
+        Map.entry("PFMERGE", new int[]{1, -1, 1}),
+        Map.entry("BITOP", new int[]{2, -1, 1})
+    );
+    // the keys are the args after numkeys, and the args before numkeys (except the command) are keys as well
+    private static final Map<String, Integer> NUMKEYS_POSITIONS = Map.of(
+        "EVAL", 2,
+        "EVALSHA", 2,
+        "ZUNIONSTORE", 2,
+        "ZINTERSTORE", 2
+    );
+
+    private final RESPProcessor processor;
+    // null if not in cluster mode
+    private final RESPClusterProcessor clusterProcessor;
+    private final NetEventLoop loop;
+    private final Connection conn;
+    private final Function<Hint, Connector> connectors;
+    private final int timeout;
+    private final Runnable onClose;
+
+    private final RESPScanner scanner = new RESPScanner(true);
+    // requests in the order of the commands
+    private final ArrayDeque<RESPRequest> requests = new ArrayDeque<>();
+    // replies not fully stored into the out buffer yet
+    private ByteArrayChannel writing = null;
+    // stopped reading because too many replies are not written yet
+    private boolean paused = false;
+    // the client sent QUIT or invalid data, no more commands are handled
+    private boolean quit = false;
+    private boolean closed = false;
+    // the group of the seeds, the slot table is kept for each group
+    private Object group = null;
+    // the slot table, null if not retrieved yet
+    private ClusterSlots cluster = null;
+
+    RESPFrontend(RESPProcessor processor, NetEventLoop loop, Connection conn, Function<Hint, Connector> connectors, int timeout, Runnable onClose) {
+        this.processor = processor;
+        this.clusterProcessor = processor instanceof RESPClusterProcessor ? (RESPClusterProcessor) processor : null;
+        this.loop = loop;
+        this.conn = conn;
+        this.connectors = connectors;
+        this.timeout = timeout;
+        this.onClose = onClose;
+    }
+
+    private void readCommands() {
+        while (!quit && !closed) {
+            if (requests.size() >= MAX_PENDING) {
+                // the data is left in the in buffer, so the loop stops reading when it's full
+                paused = true;
+                break;
+            }
+            boolean found;
+            try {
+                found = scanner.scan();
+            } catch (Exception e) {
+                Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid command from " + conn + ", err = " + e);
+                reply("-ERR Protocol error: " + e.getMessage() + "\r\n");
+                quit = true;
+                break;
+            }
+            if (found) {
+                handleCommand();
+                continue;
+            }
+            if (conn.getInBuffer().used() == 0)
+                break;
+            scanner.append(conn.getInBuffer());
+        }
+        flush();
+    }
+
+    private void handleCommand() {
+        int argc = scanner.argc();
+        if (argc == 0) { // empty line
+            scanner.consume();
+            return;
+        }
+        String cmd = scanner.arg(0).toUpperCase();
+        if (cmd.equals("PING")) {
+            if (argc == 1) {
+                reply("+PONG\r\n");
+            } else if (argc == 2) {
+                reply("$" + scanner.argLen(1) + "\r\n" + scanner.arg(1) + "\r\n");
+            } else {
+                reply("-ERR wrong number of arguments for 'ping' command\r\n");
+            }
+            scanner.consume();
+            return;
+        }
+        if (cmd.equals("QUIT")) {
+            // the connection is closed after the replies are written
+            reply("+OK\r\n");
+            scanner.consume();
+            quit = true;
+            return;
+        }
+        if (UNSUPPORTED.contains(cmd)) {
+            assert Logger.lowLevelDebug("command " + cmd + " not supported by the resp processor");
+            reply("-ERR command '" + cmd + "' is not supported by the proxy\r\n");
+            scanner.consume();
+            return;
+        }
+        int[] keys = keys(cmd, argc);
+        if (keys == null) {
+            reply("-ERR wrong number of arguments for '" + cmd.toLowerCase() + "' command\r\n");
+            scanner.consume();
+            return;
+        }
+        if (keys.length == 0) {
+            reply("-ERR command '" + cmd + "' without keys is not supported by the proxy\r\n");
+            scanner.consume();
+            return;
+        }
+        route(keys);
+    }
+
+    // return indexes of the keys in the args, or null if the number of args is not valid
+    private int[] keys(String cmd, int argc) {
+        Integer numkeysIdx = NUMKEYS_POSITIONS.get(cmd);
+        if (numkeysIdx != null) {
+            if (numkeysIdx >= argc)
+                return null;
+            int numkeys;
+            try {
+                numkeys = Integer.parseInt(scanner.arg(numkeysIdx));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (numkeys < 0 || numkeysIdx + numkeys >= argc)
+                return null;
+            int[] keys = new int[numkeysIdx - 1 + numkeys];
+            int n = 0;
+            for (int i = 1; i < numkeysIdx; ++i) {
+                if (!cmd.startsWith("EVAL")) { // the script or sha is not a key
+                    keys[n++] = i;
+                }
+            }
+            for (int i = 0; i < numkeys; ++i) {
+                keys[n++] = numkeysIdx + 1 + i;
+            }
+            return n == keys.length ? keys : Arrays.copyOf(keys, n);
+        }
+        int[] pos = KEY_POSITIONS.get(cmd);
+        if (pos == null) {
+            return argc > 1 ? new int[]{1} : null;
+        }
+        int first = pos[0];
+        int last = pos[1] < 0 ? argc + pos[1] : pos[1];
+        int step = pos[2];
+        if (first >= argc || last >= argc || last < first)
+            return null;
+        if (pos[1] == -1 && (argc - first) % step != 0) // e.g. MSET k1 v1 k2
+            return null;
+        int[] keys = new int[(last - first) / step + 1];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = first + i * step;
+        }
+        return keys;
+    }
+
+    // all keys of a command must be on the same server
+    private void route(int[] keys) {
+        byte[] buf = scanner.buf();
+        Hint hint = hint(scanner.argOff(keys[0]), scanner.argLen(keys[0]));
+        RESPRequest r = new RESPRequest(RESPRequest.CLIENT, this);
+        byte[] command = scanner.frame();
+
+        Connector connector = null;
+        ClusterSlots cluster = null;
+        if (clusterProcessor == null) {
+            connector = connectors.apply(hint);
+            if (connector != null) {
+                for (int i = 1; i < keys.length; ++i) {
+                    Hint h = hint(scanner.argOff(keys[i]), scanner.argLen(keys[i]));
+                    if (h.hash == hint.hash)
+                        continue;
+                    Connector c = connectors.apply(h);
+                    if (c == null || !c.remote.equals(connector.remote)) {
+                        reply("-CROSSSLOT Keys in request don't hash to the same server\r\n");
+                        scanner.consume();
+                        return;
+                    }
+                }
+            }
+        } else {
+            r.command = command;
+            r.slot = ClusterSlots.slot(buf, scanner.argOff(keys[0]), scanner.argLen(keys[0]));
+            for (int i = 1; i < keys.length; ++i) {
+                if (ClusterSlots.slot(buf, scanner.argOff(keys[i]), scanner.argLen(keys[i])) != r.slot) {
+                    reply("-CROSSSLOT Keys in request don't hash to the same slot\r\n");
+                    scanner.consume();
+                    return;
+                }
+            }
+            cluster = this.cluster;
+            InetSocketAddress node = cluster == null ? null : cluster.node(r.slot);
+            if (node == null) {
+                // the slot table is not retrieved yet, use the seeds
+                connector = connectors.apply(hint);
+                if (connector != null && group == null) {
+                    group = connector.group();
+                }
+                if (cluster == null && group != null) {
+                    // the table may be already retrieved by other connections
+                    cluster = this.cluster = clusterProcessor.cluster(group);
+                    node = cluster == null ? null : cluster.node(r.slot);
+                }
+            }
+            if (node != null) {
+                connector = connectors.apply(Hint.ofHost(hint.hash, node));
+            }
+        }
+        scanner.consume();
+
+        RESPBackend backend = connector == null ? null : processor.backend(loop, connector, timeout);
+        if (backend == null) {
+            reply("-ERR no server available for the key\r\n");
+            return;
+        }
+        requests.add(r);
+        Object slotsOf = null;
+        if (clusterProcessor != null && group != null) {
+            // retrieve the slot table when it's not known or may be stale
+            if (cluster == null ? !backend.slotsRequested : cluster.shouldRefresh()) {
+                slotsOf = group;
+            }
+        }
+        backend.send(r, command, false, slotsOf);
+    }
+
+    // same as redis cluster: only hash the part in {} if present
+    private Hint hint(int off, int len) {
+        byte[] buf = scanner.buf();
+        for (int i = off; i < off + len; ++i) {
+            if (buf[i] == '{') {
+                for (int j = i + 1; j < off + len; ++j) {
+                    if (buf[j] == '}') {
+                        if (j > i + 1) {
+                            return Hint.ofKey(buf, i + 1, j - i - 1);
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return Hint.ofKey(buf, off, len);
+    }
+
+    // the reply is made by the proxy
+    private void reply(String s) {
+        RESPRequest r = new RESPRequest(RESPRequest.CLIENT, this);
+        r.reply = s.getBytes(StandardCharsets.ISO_8859_1);
+        requests.add(r);
+    }
+
+    /**
+     * called by the backend connection when the reply is received
+     *
+     * @param queried the server which replied, null if the connection is closed before replying
+     */
+    void replied(RESPRequest r, byte[] reply, InetSocketAddress queried) {
+        if (closed)
+            return;
+        if (r.command != null && queried != null && redirected(r, reply, queried))
+            return;
+        r.reply = reply;
+        flush();
+    }
+
+    // return true if the reply is a redirection and will be followed
+    private boolean redirected(RESPRequest r, byte[] reply, InetSocketAddress queried) {
+        boolean asking;
+        int off;
+        if (startsWith(reply, MOVED)) {
+            asking = false;
+            off = MOVED.length;
+        } else if (startsWith(reply, ASK)) {
+            asking = true;
+            off = ASK.length;
+        } else {
+            return false;
+        }
+        if (r.redirects >= MAX_REDIRECTS) {
+            Logger.warn(LogType.INVALID_EXTERNAL_DATA, "too many redirections for slot " + r.slot + ", the last one is from " + queried);
+            return false;
+        }
+        // -MOVED 3999 127.0.0.1:6381\r\n
+        String msg = new String(reply, off, reply.length - off - 2, StandardCharsets.ISO_8859_1);
+        int space = msg.indexOf(' ');
+        int colon = msg.lastIndexOf(':');
+        if (space == -1 || colon < space)
+            return false;
+        int slot;
+        int port;
+        try {
+            slot = Integer.parseInt(msg.substring(0, space));
+            port = Integer.parseInt(msg.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String host = msg.substring(space + 1, colon);
+        InetSocketAddress node = cluster == null ? ClusterSlots.ipAddress(host, port, queried) : cluster.address(host, port, queried);
+        if (node == null || slot < 0 || slot >= ClusterSlots.SLOTS)
+            return false;
+        assert Logger.lowLevelDebug("redirect slot " + slot + " from " + queried + " to " + node + ", asking=" + asking);
+
+        if (!asking && cluster != null) {
+            cluster.moved(slot, node);
+        }
+        ++r.redirects;
+        Connector connector = connectors.apply(Hint.ofHost(r.slot, node));
+        RESPBackend backend = connector == null ? null : processor.backend(loop, connector, timeout);
+        if (backend == null)
+            return false; // let the client handle the redirection
+        // the slot is being migrated when asking, the command should be prefixed with ASKING
+        backend.send(r, r.command, asking, null);
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; ++i) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    // retrieve the replies which are ready in order
+    private ByteArrayChannel drain() {
+        int len = 0;
+        int n = 0;
+        for (RESPRequest r : requests) {
+            if (r.reply == null)
+                break;
+            len += r.reply.length;
+            ++n;
+        }
+        if (n == 0)
+            return null;
+        // copy into one array, the replies may be many small ones when the client is pipelining
+        byte[] bytes = new byte[len];
+        int off = 0;
+        for (int i = 0; i < n; ++i) {
+            byte[] reply = requests.poll().reply;
+            System.arraycopy(reply, 0, bytes, off, reply.length);
+            off += reply.length;
+        }
+        return ByteArrayChannel.fromFull(bytes);
+    }
+
+    private void flush() {
+        if (closed)
+            return;
+        // writing to the socket directly would call writable() while storing,
+        // let the loop write the replies instead
+        conn.runNoQuickWrite(() -> {
+            while (true) {
+                if (writing == null) {
+                    writing = drain();
+                    if (writing == null)
+                        break;
+                }
+                conn.getOutBuffer().storeBytesFrom(writing);
+                if (writing.used() != 0)
+                    break; // wait until writable
+                writing = null;
+            }
+        });
+        if (writing != null)
+            return;
+        if (paused && requests.size() < MAX_PENDING) {
+            paused = false;
+            readCommands();
+            return;
+        }
+        if (!requests.isEmpty())
+            return;
+        if (quit || (conn.isRemoteClosed() && !paused)) {
+            // all replies are stored, close the connection after they are flushed
+            conn.closeWrite();
+            if (conn.isRemoteClosed() && conn.getOutBuffer().used() == 0) {
+                // this may be called in the writable callback, which cannot close the connection
+                loop.getSelectorEventLoop().nextTick(this::close);
+            }
+        }
+    }
+
+    private void close() {
+        if (closed)
+            return;
+        closed = true;
+        conn.close();
+        conn.getInBuffer().clean();
+        conn.getOutBuffer().clean();
+        requests.clear();
+        onClose.run();
+    }
+
+    @Override
+    public void readable(ConnectionHandlerContext ctx) {
+        readCommands();
+    }
+
+    @Override
+    public void writable(ConnectionHandlerContext ctx) {
+        flush();
+    }
+
+    @Override
+    public void exception(ConnectionHandlerContext ctx, IOException err) {
+        Logger.error(LogType.CONN_ERROR, "connection got exception", err);
+        close();
+    }
+
+    @Override
+    public void remoteClosed(ConnectionHandlerContext ctx) {
+        assert Logger.lowLevelDebug("frontend connection " + conn + " remoteClosed");
+        // the commands already received are still handled
+        readCommands();
+    }
+
+    @Override
+    public void closed(ConnectionHandlerContext ctx) {
+        close();
+    }
+
+    @Override
+    public void removed(ConnectionHandlerContext ctx) {
+        if (!conn.isClosed())
+            Logger.error(LogType.IMPROPER_USE, "frontend connection " + conn + " removed from event loop " + loop);
+        close();
+    }
+}
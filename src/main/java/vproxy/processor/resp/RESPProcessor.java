@@ -0,0 +1,114 @@
+package vproxy.processor.resp;
+
+import vproxy.component.proxy.MultiplexProcessor;
+import vproxy.connection.*;
+import vproxy.processor.Hint;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A redis proxy processor, works like twemproxy:
+ * commands are routed to servers by the consistent hash of the key,
+ * the commands of all clients on the same event loop are pipelined to one connection of each server,
+ * and the replies are reordered to the order of the commands before sending to the client.<br>
+ * All keys of a command must be on the same server, otherwise <code>-CROSSSLOT</code> is replied,
+ * so commands with multiple keys should use hash tags (e.g. <code>{user1}.name</code>, <code>{user1}.age</code>).
+ */
+public class RESPProcessor implements MultiplexProcessor {
+    // the backend connections are shared by many clients, so they use larger buffers than the frontend connections
+    private static final int BACKEND_BUFFER_SIZE = 16384;
+
+    // loop => (server and timeout => connection), the inner map is only accessed on the thread of the loop
+    // lbs with different timeout do not share the connections
+    private final Map<NetEventLoop, Map<BackendKey, RESPBackend>> backends = new ConcurrentHashMap<>();
+
+    static class BackendKey {
+        final InetSocketAddress remote;
+        final int timeout;
+
+        BackendKey(InetSocketAddress remote, int timeout) {
+            this.remote = remote;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BackendKey that = (BackendKey) o;
+            return timeout == that.timeout && remote.equals(that.remote);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remote, timeout);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "resp";
+    }
+
+    @Override
+    public ConnectionHandler handle(NetEventLoop loop, Connection frontend, Function<Hint, Connector> connectors, int timeout, Runnable closed) {
+        return new RESPFrontend(this, loop, frontend, connectors, timeout, closed);
+    }
+
+    /**
+     * get the shared connection to the server, a new one is made if not exists
+     *
+     * @return null if the connection cannot be made
+     */
+    RESPBackend backend(NetEventLoop loop, Connector connector, int timeout) {
+        Map<BackendKey, RESPBackend> map = backends.computeIfAbsent(loop, k -> new HashMap<>());
+        BackendKey key = new BackendKey(connector.remote, timeout);
+        RESPBackend backend = map.get(key);
+        if (backend != null && !backend.isClosed())
+            return backend;
+
+        ConnectableConnection conn;
+        try {
+            conn = connector.connect(new ConnectionOpts().setTimeout(timeout),
+                RingBuffer.allocateDirect(BACKEND_BUFFER_SIZE), RingBuffer.allocateDirect(BACKEND_BUFFER_SIZE));
+        } catch (IOException e) {
+            Logger.fatal(LogType.CONN_ERROR, "make passive connection failed, maybe provided endpoint info is invalid", e);
+            return null;
+        }
+        backend = new RESPBackend(this, loop, key, conn);
+        try {
+            loop.addConnectableConnection(conn, null, backend);
+        } catch (IOException e) {
+            Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "add connectable connection " + conn + " to loop failed");
+            conn.close(true);
+            return null;
+        }
+        map.put(key, backend);
+        return backend;
+    }
+
+    // the connection is closed
+    void removed(RESPBackend backend) {
+        Map<BackendKey, RESPBackend> map = backends.get(backend.loop);
+        if (map == null)
+            return;
+        map.remove(backend.key, backend);
+        if (map.isEmpty()) {
+            backends.remove(backend.loop);
+        }
+    }
+
+    // handle the reply of CLUSTER SLOTS sent to a seed in the group
+    void slots(Object group, byte[] reply, InetSocketAddress queried) {
+        // CLUSTER SLOTS is only sent in cluster mode
+    }
+}
@@ -0,0 +1,26 @@
+package vproxy.processor.resp;
+
+/**
+ * A request sent to a backend connection, the replies of a connection are in the order of the requests.
+ */
+class RESPRequest {
+    static final int CLIENT = 0; // a command of the client
+    static final int DISCARD = 1; // the reply is not sent to the client, e.g. reply of ASKING
+    static final int SLOTS = 2; // CLUSTER SLOTS sent by the proxy
+
+    final int type;
+    // the frontend which sent the command, null if the request is made by the proxy
+    final RESPFrontend owner;
+    byte[] reply; // null means not received yet
+    // only recorded in cluster mode, to follow the redirections
+    byte[] command;
+    int slot;
+    int redirects = 0;
+    // the backend group which the slot table belongs to, only for SLOTS
+    Object group;
+
+    RESPRequest(int type, RESPFrontend owner) {
+        this.type = type;
+        this.owner = owner;
+    }
+}
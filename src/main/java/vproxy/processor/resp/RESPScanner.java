@@ -0,0 +1,273 @@
+package vproxy.processor.resp;
+
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.RingBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Find the boundaries of resp values in a byte stream.<br>
+ * The scanner does not build the entities like the {@link vproxy.redis.RESPParser} does,
+ * it only records where the args of a command are.
+ */
+class RESPScanner {
+    private static final int MAX_BULK_LEN = 512 * 1024 * 1024; // same as redis proto-max-bulk-len
+    private static final int MAX_MULTI_BULK_LEN = 1024 * 1024; // same as redis
+    private static final int MAX_INLINE_LEN = 64 * 1024; // same as redis
+
+    private static final int STATE_TYPE = 0; // expecting the type byte of a value
+    private static final int STATE_SIMPLE = 1; // simple string, error or integer, until \n
+    private static final int STATE_LENGTH = 2; // length of bulk string or array
+    private static final int STATE_LENGTH_END = 3; // expecting \n after the length
+    private static final int STATE_BULK = 4; // bulk string body and the trailing \r\n
+    private static final int STATE_INLINE = 5; // inline command, until \n
+
+    // scanning commands from the client: inline commands are allowed and the args are recorded
+    private final boolean commands;
+
+    // the data not handled yet is buf[start, end)
+    private byte[] buf;
+    private int start = 0;
+    private int end = 0;
+
+    private int pos = 0; // next byte to scan
+    private int frameEnd = -1; // -1 means no frame found yet
+    private int state = STATE_TYPE;
+    private int remaining = 0; // count of values to be read to finish the frame, 0 means a new frame
+    private byte type;
+    private boolean negative;
+    private int digits;
+    private long num;
+    private int bulkStart;
+    private int bulkLeft;
+    private boolean inline;
+    // the args, offsets are relative to the frame start
+    private int[] argOff = new int[8];
+    private int[] argLen = new int[8];
+    private int argc;
+
+    RESPScanner(boolean commands) {
+        this.commands = commands;
+    }
+
+    // move all data in the buffer into the scanner
+    void append(RingBuffer in) {
+        int n = in.used();
+        if (n == 0)
+            return;
+        if (buf == null) {
+            buf = new byte[Math.max(1024, n)];
+        } else if (buf.length - end < n) {
+            // move the data to the beginning
+            int shift = start;
+            if (shift > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                start = 0;
+                end -= shift;
+                pos -= shift;
+                bulkStart -= shift;
+                if (frameEnd != -1) {
+                    frameEnd -= shift;
+                }
+            }
+            if (buf.length - end < n) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, end + n));
+            }
+        }
+        // the data may be split at the end of the ring buffer, so write until nothing left
+        while (n != 0) {
+            int w = in.writeTo(ByteArrayChannel.from(buf, 0, end, n));
+            end += w;
+            n -= w;
+        }
+    }
+
+    /**
+     * @return true if a frame is found in the buffer, the frame is kept until {@link #consume()} is called
+     * @throws Exception the data is not valid resp
+     */
+    boolean scan() throws Exception {
+        if (frameEnd != -1)
+            return true;
+        while (pos < end) {
+            if (state == STATE_BULK) {
+                int n = Math.min(bulkLeft, end - pos);
+                pos += n;
+                bulkLeft -= n;
+                if (bulkLeft != 0)
+                    return false;
+                if (buf[pos - 2] != '\r' || buf[pos - 1] != '\n')
+                    throw new Exception("invalid bulk string: expecting \\r\\n");
+                if (commands) {
+                    addArg(bulkStart - start, (int) num);
+                }
+                if (valueDone())
+                    return true;
+                continue;
+            }
+            byte b = buf[pos++];
+            switch (state) {
+                case STATE_TYPE:
+                    if (remaining == 0) { // a new frame
+                        remaining = 1;
+                        argc = 0;
+                        inline = false;
+                    }
+                    type = b;
+                    negative = false;
+                    digits = 0;
+                    num = 0;
+                    if (b == '+' || b == '-' || b == ':') {
+                        state = STATE_SIMPLE;
+                    } else if (b == '$' || b == '*') {
+                        state = STATE_LENGTH;
+                    } else if (commands && pos - 1 == start) {
+                        inline = true;
+                        state = STATE_INLINE;
+                    } else {
+                        throw new Exception("invalid resp type: " + (b & 0xff));
+                    }
+                    break;
+                case STATE_SIMPLE:
+                    if (b == '\n' && valueDone())
+                        return true;
+                    break;
+                case STATE_LENGTH:
+                    if (b == '-' && digits == 0 && !negative) {
+                        negative = true;
+                    } else if (b >= '0' && b <= '9') {
+                        num = num * 10 + (b - '0');
+                        ++digits;
+                        if (num > MAX_BULK_LEN)
+                            throw new Exception("invalid resp length: too long");
+                    } else if (b == '\r' && digits != 0) {
+                        state = STATE_LENGTH_END;
+                    } else {
+                        throw new Exception("invalid resp length");
+                    }
+                    break;
+                case STATE_LENGTH_END:
+                    if (b != '\n')
+                        throw new Exception("invalid resp length: expecting \\n");
+                    if (negative) { // null bulk string or null array
+                        if (valueDone())
+                            return true;
+                    } else if (type == '$') {
+                        bulkStart = pos;
+                        bulkLeft = (int) num + 2;
+                        state = STATE_BULK;
+                    } else if (num == 0) { // empty array
+                        if (valueDone())
+                            return true;
+                    } else {
+                        if (num > MAX_MULTI_BULK_LEN)
+                            throw new Exception("invalid multibulk length");
+                        // the array is replaced by its elements
+                        remaining += (int) num - 1;
+                        state = STATE_TYPE;
+                    }
+                    break;
+                case STATE_INLINE:
+                    if (b == '\n') {
+                        if (valueDone()) {
+                            splitInline();
+                            return true;
+                        }
+                    } else if (pos - start > MAX_INLINE_LEN) {
+                        throw new Exception("too big inline request");
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("BUG: unexpected state " + state);
+            }
+        }
+        return false;
+    }
+
+    private boolean valueDone() {
+        state = STATE_TYPE;
+        if (--remaining == 0) {
+            frameEnd = pos;
+            return true;
+        }
+        return false;
+    }
+
+    private void addArg(int off, int len) {
+        if (argc == argOff.length) {
+            argOff = Arrays.copyOf(argOff, argc * 2);
+            argLen = Arrays.copyOf(argLen, argc * 2);
+        }
+        argOff[argc] = off;
+        argLen[argc] = len;
+        ++argc;
+    }
+
+    private void splitInline() {
+        argc = 0;
+        int i = start;
+        int lineEnd = frameEnd - 1; // \n
+        if (lineEnd > start && buf[lineEnd - 1] == '\r') {
+            --lineEnd;
+        }
+        while (i < lineEnd) {
+            while (i < lineEnd && (buf[i] == ' ' || buf[i] == '\t')) {
+                ++i;
+            }
+            if (i == lineEnd)
+                break;
+            int argStart = i;
+            while (i < lineEnd && buf[i] != ' ' && buf[i] != '\t') {
+                ++i;
+            }
+            addArg(argStart - start, i - argStart);
+        }
+    }
+
+    // the following methods are only valid when a frame is found
+
+    int argc() {
+        return argc;
+    }
+
+    byte[] buf() {
+        return buf;
+    }
+
+    // offset of the arg in buf()
+    int argOff(int idx) {
+        return start + argOff[idx];
+    }
+
+    int argLen(int idx) {
+        return argLen[idx];
+    }
+
+    String arg(int idx) {
+        return new String(buf, argOff(idx), argLen[idx], StandardCharsets.ISO_8859_1);
+    }
+
+    // the frame in resp format, inline commands are converted
+    byte[] frame() {
+        if (!inline) {
+            return Arrays.copyOfRange(buf, start, frameEnd);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("*").append(argc).append("\r\n");
+        for (int i = 0; i < argc; ++i) {
+            sb.append("$").append(argLen[i]).append("\r\n").append(arg(i)).append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    void consume() {
+        start = frameEnd;
+        frameEnd = -1;
+        if (start == end) {
+            start = 0;
+            end = 0;
+            pos = 0;
+        }
+    }
+}
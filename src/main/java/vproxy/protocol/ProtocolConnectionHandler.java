@@ -22,6 +22,8 @@ public class ProtocolConnectionHandler implements ConnectionHandler {
     @Override
     public void writable(ConnectionHandlerContext ctx) {
         pctx.doWrite();
+        ProtocolHandler<Object> handler = (ProtocolHandler<Object>) ctx.attachment;
+        handler.writable(pctx);
     }
 
     @Override
@@ -55,6 +57,9 @@ public class ProtocolConnectionHandler implements ConnectionHandler {
             // close the connection when loop ends
             ctx.connection.close();
         }
+        if (ctx.connection.isClosed()) {
+            pctx.release(); // nothing can be written any more
+        }
         handler.end(pctx); // let handler know whether or not it's removed
     }
 }
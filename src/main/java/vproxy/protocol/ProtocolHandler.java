@@ -5,6 +5,10 @@ public interface ProtocolHandler<T> {
 
     void readable(ProtocolHandlerContext<T> ctx);
 
+    default void writable(ProtocolHandlerContext<T> ctx) {
+        // do nothing by default, the writing is handled by the ctx
+    }
+
     void exception(ProtocolHandlerContext<T> ctx, Throwable err);
 
     void end(ProtocolHandlerContext<T> ctx);
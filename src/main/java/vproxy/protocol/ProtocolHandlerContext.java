@@ -3,13 +3,19 @@ package vproxy.protocol;
 import vproxy.connection.Connection;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.util.ByteArrayChannel;
+import vproxy.util.FileRegion;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
 import vproxy.util.RingBuffer;
+import vproxy.util.ringbuffer.FileTransferRingBuffer;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class ProtocolHandlerContext<T> {
-    private final ConcurrentLinkedQueue<byte[]> bytesSeq = new ConcurrentLinkedQueue<>();
-    private ByteArrayChannel chnl = null; // the helper channel to write into out buffer
+    private final ConcurrentLinkedQueue<ReadableByteChannel> chnlSeq = new ConcurrentLinkedQueue<>();
+    private ReadableByteChannel chnl = null; // the helper channel to write into out buffer
     public final String connectionId;
     public final Connection connection;
     // make inBuffer public for user code to read
@@ -32,21 +38,72 @@ public class ProtocolHandlerContext<T> {
         this.handler = handler;
     }
 
+    // storing bytes may fire the ET writable handler, which calls doWrite() again
+    // so record the nested call and let the outer call continue, instead of recursing
+    // a fast producing channel may otherwise recurse once for every buffer of bytes flushed
+    private boolean writing = false;
+    private boolean writeAgain = false;
+
     void doWrite() {
+        if (writing) {
+            writeAgain = true;
+            return;
+        }
+        writing = true;
+        try {
+            do {
+                writeAgain = false;
+                doWrite0();
+            } while (writeAgain);
+        } finally {
+            writing = false;
+        }
+    }
+
+    private void doWrite0() {
         // doWrite() should consider ET writable handler
 
-        if (chnl != null && chnl.used() == 0)
+        if (chnl != null && drained(chnl))
             chnl = null; // remove channel if nothing to write
-        if (chnl == null && bytesSeq.isEmpty())
+        if (chnl == null && chnlSeq.isEmpty())
             return; // nothing to write
         if (chnl == null) {
-            byte[] bytes = bytesSeq.poll();
-            assert bytes != null; // it only removes in one thread, so, no concurrency
-            chnl = ByteArrayChannel.fromFull(bytes);
+            chnl = chnlSeq.poll();
+            assert chnl != null; // it only removes in one thread, so, no concurrency
         }
         while (true) {
+            if (chnl instanceof FileRegion && outBuffer instanceof FileTransferRingBuffer) {
+                // the region is sent from the file to the channel by the out buffer
+                FileRegion region = (FileRegion) chnl;
+                if (region.remaining() != 0) {
+                    FileTransferRingBuffer buf = (FileTransferRingBuffer) outBuffer;
+                    if (!buf.isTransferring()) {
+                        buf.transfer(region);
+                    }
+                    break; // wait until the region is transferred
+                }
+                // otherwise the region is done, get another channel
+                chnl = chnlSeq.poll();
+                if (chnl == null) {
+                    break;
+                }
+                continue;
+            }
             {
-                int size = outBuffer.storeBytesFrom(chnl);
+                int size;
+                try {
+                    size = outBuffer.storeBytesFrom(chnl);
+                } catch (IOException e) {
+                    if (!(chnl instanceof FileRegion)) {
+                        // it's memory operation, should not happen
+                        throw new RuntimeException(e);
+                    }
+                    // the file cannot be read, the rest of the output is broken
+                    Logger.error(LogType.SYS_ERROR, "reading file region for " + connectionId + " failed", e);
+                    connection.close();
+                    release();
+                    return;
+                }
                 // the chnl might be null because buffer ET writable handler called
 
                 if (size == 0) {
@@ -56,27 +113,67 @@ public class ProtocolHandlerContext<T> {
                 }
             } // we should not use the `size` variable any more, so use a code block {} to prevent
 
-            if (chnl != null && chnl.used() != 0) {
+            if (chnl != null && !drained(chnl)) {
                 break; // still have some bytes left, which means the outBuffer is full
                 // this is ok even after ET writable handler
             }
             // otherwise,
             // this bytes array is already written
             // get another array
-            byte[] bytes = bytesSeq.poll();
-            if (bytes == null) {
-                chnl = null;
+            chnl = chnlSeq.poll();
+            if (chnl == null) {
                 break; // no more data to write
             }
-            chnl = ByteArrayChannel.fromFull(bytes);
             // let it loop
         }
     }
 
+    /**
+     * close the channels which are not written yet, called when the connection is closed
+     */
+    void release() {
+        if (chnl != null) {
+            closeQuietly(chnl);
+            chnl = null;
+        }
+        ReadableByteChannel c;
+        while ((c = chnlSeq.poll()) != null) {
+            closeQuietly(c);
+        }
+        if (outBuffer instanceof FileTransferRingBuffer) {
+            outBuffer.clean();
+        }
+    }
+
+    private static void closeQuietly(ReadableByteChannel chnl) {
+        try {
+            chnl.close();
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("closing channel failed: " + e);
+        }
+    }
+
+    private static boolean drained(ReadableByteChannel chnl) {
+        if (chnl instanceof ByteArrayChannel) {
+            return ((ByteArrayChannel) chnl).used() == 0;
+        }
+        // other channels close themselves when all bytes are read
+        return !chnl.isOpen();
+    }
+
     public void write(byte[] bytes) {
         if (bytes.length == 0)
             return; // do not write if the input array is empty
-        bytesSeq.add(bytes); // only record in this thread
+        write(ByteArrayChannel.fromFull(bytes));
+    }
+
+    /**
+     * Write bytes produced by the channel, e.g. a {@link vjson.util.StreamingSerializer}.
+     * The bytes are pulled only when the out buffer has free space,
+     * and the channel should close itself when all bytes are read.
+     */
+    public void write(ReadableByteChannel chnl) {
+        chnlSeq.add(chnl); // only record in this thread
         loop.runOnLoop(this::doWrite); // run write in loop thread
     }
 
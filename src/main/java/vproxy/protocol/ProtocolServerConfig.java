@@ -3,6 +3,7 @@ package vproxy.protocol;
 public class ProtocolServerConfig {
     int inBufferSize = 16384;
     int outBufferSize = 16384;
+    boolean fileTransfer = false;
 
     public ProtocolServerConfig setInBufferSize(int inBufferSize) {
         this.inBufferSize = inBufferSize;
@@ -13,4 +14,12 @@ public class ProtocolServerConfig {
         this.outBufferSize = outBufferSize;
         return this;
     }
+
+    /**
+     * send {@link vproxy.util.FileRegion}s written to the context from the file to the socket directly
+     */
+    public ProtocolServerConfig setFileTransfer(boolean fileTransfer) {
+        this.fileTransfer = fileTransfer;
+        return this;
+    }
 }
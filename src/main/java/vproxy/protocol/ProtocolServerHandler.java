@@ -1,29 +1,45 @@
 package vproxy.protocol;
 
+import vproxy.component.proxy.NetEventLoopProvider;
 import vproxy.connection.*;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
 import vproxy.util.RingBuffer;
 import vproxy.util.Tuple;
+import vproxy.util.ringbuffer.FileTransferRingBuffer;
 
 import java.io.IOException;
 import java.nio.channels.NetworkChannel;
 
 public class ProtocolServerHandler implements ServerHandler {
     private NetEventLoop eventLoop;
+    private final NetEventLoopProvider handleLoopProvider; // nullable
     private final int inBufferSize;
     private final int outBufferSize;
+    private final boolean fileTransfer;
 
-    private ProtocolServerHandler(NetEventLoop eventLoop, int inBufferSize, int outBufferSize) {
+    private ProtocolServerHandler(NetEventLoop eventLoop, NetEventLoopProvider handleLoopProvider, ProtocolServerConfig config) {
         this.eventLoop = eventLoop;
-        this.inBufferSize = inBufferSize;
-        this.outBufferSize = outBufferSize;
+        this.handleLoopProvider = handleLoopProvider;
+        this.inBufferSize = config.inBufferSize;
+        this.outBufferSize = config.outBufferSize;
+        this.fileTransfer = config.fileTransfer;
     }
 
     public static void apply(NetEventLoop eventLoop,
                              ServerSock server, ProtocolServerConfig config,
                              ProtocolHandler handler) throws IOException {
-        eventLoop.addServer(server, handler, new ProtocolServerHandler(eventLoop, config.inBufferSize, config.outBufferSize));
+        apply(eventLoop, null, server, config, handler);
+    }
+
+    /**
+     * accept connections on the <code>acceptLoop</code>,
+     * and handle them on the loops retrieved from the <code>handleLoopProvider</code>
+     */
+    public static void apply(NetEventLoop acceptLoop, NetEventLoopProvider handleLoopProvider,
+                             ServerSock server, ProtocolServerConfig config,
+                             ProtocolHandler<?> handler) throws IOException {
+        acceptLoop.addServer(server, handler, new ProtocolServerHandler(acceptLoop, handleLoopProvider, config));
     }
 
     @Override
@@ -37,12 +53,19 @@ public class ProtocolServerHandler implements ServerHandler {
     @Override
     public void connection(ServerHandlerContext ctx, Connection connection) {
         ProtocolHandler handler = (ProtocolHandler) ctx.attachment;
-        ProtocolHandlerContext pctx = new ProtocolHandlerContext(connection.id(), connection, eventLoop.getSelectorEventLoop(), handler);
+        NetEventLoop loop = null;
+        if (handleLoopProvider != null) {
+            loop = handleLoopProvider.getHandleLoop(eventLoop);
+        }
+        if (loop == null) {
+            loop = eventLoop;
+        }
+        ProtocolHandlerContext<Object> pctx = new ProtocolHandlerContext<>(connection.id(), connection, loop.getSelectorEventLoop(), handler);
         handler.init(pctx);
         // Proxy.java copies these codes:
         //noinspection Duplicates
         try {
-            eventLoop.addConnection(connection, handler, new ProtocolConnectionHandler(pctx));
+            loop.addConnection(connection, handler, new ProtocolConnectionHandler(pctx));
         } catch (IOException e) {
             // handle exception in handler
             handler.exception(pctx, e);
@@ -57,7 +80,7 @@ public class ProtocolServerHandler implements ServerHandler {
     public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
         return new Tuple<>(
             RingBuffer.allocate(inBufferSize),
-            RingBuffer.allocate(outBufferSize)
+            fileTransfer ? FileTransferRingBuffer.allocate(outBufferSize) : RingBuffer.allocate(outBufferSize)
         );
     }
 
@@ -13,4 +13,9 @@ public interface Handler<CHANNEL extends SelectableChannel> {
 
     // the SelectionKey is removed, or event loop is closed
     void removed(HandlerContext<CHANNEL> ctx);
+
+    // the class which actually handles the events, only used for diagnosis
+    default Class<?> handlerClass(HandlerContext<CHANNEL> ctx) {
+        return getClass();
+    }
 }
@@ -0,0 +1,133 @@
+package vproxy.selector;
+
+import vproxy.util.Blocking;
+import vproxy.util.ThreadSafe;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set owned by one event loop.<br>
+ * Elements are only added and removed on the loop thread, so no concurrent structure is needed.
+ * The elements are kept in an identity open addressing table, no entry object is allocated for each element.<br>
+ * The size can be read from any thread, and other threads get the elements by copying them on the loop.
+ * The copy waits for the loop for a limited time, when the loop does not respond, a stale copy is returned.
+ */
+public class LoopLocalSet<E> {
+    public static final int COPY_TIMEOUT = 1000; // the default time to wait for the loop when copying
+    private static final int COPY_CHECK_INTERVAL = 100; // check whether the loop is closed when copying
+    private static final Object[] EMPTY = new Object[0];
+
+    private final SelectorEventLoop loop;
+    private final Set<E> set = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile int size = 0;
+    private volatile Object[] lastCopy = EMPTY; // the elements of the last copy made on the loop
+
+    public LoopLocalSet(SelectorEventLoop loop) {
+        this.loop = loop;
+    }
+
+    public SelectorEventLoop getLoop() {
+        return loop;
+    }
+
+    private boolean onLoop() {
+        Thread t = loop.runningThread;
+        return t == null || t == Thread.currentThread();
+    }
+
+    // should be called on the loop
+    public boolean add(E e) {
+        assert onLoop();
+        if (set.add(e)) {
+            size = set.size();
+            return true;
+        }
+        return false;
+    }
+
+    // should be called on the loop
+    public boolean remove(E e) {
+        assert onLoop();
+        if (set.remove(e)) {
+            size = set.size();
+            return true;
+        }
+        return false;
+    }
+
+    // should be called on the loop, or after the loop thread exits
+    public void clear() {
+        set.clear();
+        size = 0;
+        lastCopy = EMPTY;
+    }
+
+    @ThreadSafe
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copy the elements into the collection, waiting at most {@link #COPY_TIMEOUT} milliseconds.
+     *
+     * @see #copyTo(Collection, long)
+     */
+    @ThreadSafe
+    @Blocking
+    public boolean copyTo(Collection<? super E> c) {
+        return copyTo(c, System.currentTimeMillis() + COPY_TIMEOUT);
+    }
+
+    /**
+     * Copy the elements into the collection.<br>
+     * When called from another thread, the elements are copied on the loop, and the method waits for the copy
+     * until the <code>deadline</code>. If the loop does not copy in time (e.g. it's stalled or closed),
+     * the elements of the last finished copy are used instead.
+     *
+     * @param deadline the wall clock time in milliseconds
+     * @return true if the copy is up to date, false if the last copy is used
+     */
+    @ThreadSafe
+    @Blocking
+    @SuppressWarnings("unchecked")
+    public boolean copyTo(Collection<? super E> c, long deadline) {
+        if (onLoop()) {
+            c.addAll(set);
+            return true;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        Object[][] holder = new Object[1][];
+        loop.runOnLoop(() -> {
+            Object[] arr = set.toArray();
+            lastCopy = arr;
+            holder[0] = arr;
+            latch.countDown();
+        });
+        boolean done = false;
+        try {
+            long now;
+            while ((now = System.currentTimeMillis()) < deadline) {
+                if (latch.await(Math.min(COPY_CHECK_INTERVAL, deadline - now), TimeUnit.MILLISECONDS)) {
+                    done = true;
+                    break;
+                }
+                if (loop.isClosed()) {
+                    break; // the event will never run
+                }
+            }
+        } catch (InterruptedException e) {
+            // use the last copy
+        }
+        // the latch makes the array written on the loop visible
+        Object[] arr = done ? holder[0] : lastCopy;
+        for (Object o : arr) {
+            c.add((E) o);
+        }
+        return done;
+    }
+}
@@ -27,6 +27,22 @@ public class SelectorEventLoop {
     private final HandlerContext ctx = new HandlerContext(this); // always reuse the ctx object
     public volatile Thread runningThread;
 
+    // metrics
+    // the following fields are only modified by the loop thread
+    public final Histogram iterationTime = new Histogram(1); // time used by one iteration except select(), in microseconds
+    public final Histogram queueDepth = new Histogram(1); // count of runOnLoop events when an iteration starts
+    public final Histogram eventsPerIteration = new Histogram(1); // count of selected keys of one iteration
+    private volatile long busyNanos = 0;
+    private volatile long selectNanos = 0;
+    private volatile long iterations = 0;
+    // replaced as a whole, so the cost and the class are always read together
+    private volatile LongestCallback longestCallback = new LongestCallback(0, null);
+    // when the loop starts to handle events, 0 means waiting in select()
+    volatile long busySince = 0;
+    // the following fields are only modified by the stall detector
+    volatile long stalls = 0;
+    long reportedBusySince = 0;
+
     // these locks are a little tricky
     // see comments in loop() and close()
     private final Object CLOSE_LOCK = new Object();
@@ -40,27 +56,81 @@ public class SelectorEventLoop {
         return new SelectorEventLoop();
     }
 
+    // --- START statistics ---
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    public long getSelectNanos() {
+        return selectNanos;
+    }
+
+    public long getIterations() {
+        return iterations;
+    }
+
+    public long getLongestCallbackNanos() {
+        return longestCallback.nanos;
+    }
+
+    public Class<?> getLongestCallbackClass() {
+        return longestCallback.clazz;
+    }
+
+    public long getStalls() {
+        return stalls;
+    }
+
+    // count of the runOnLoop events waiting to be handled
+    public int getBacklog() {
+        return runOnLoopEvents.size();
+    }
+
+    private static class LongestCallback {
+        final long nanos;
+        final Class<?> clazz;
+
+        LongestCallback(long nanos, Class<?> clazz) {
+            this.nanos = nanos;
+            this.clazz = clazz;
+        }
+    }
+
+    private boolean isLongestCallback(long cost) {
+        // runnables may run directly on other threads before the loop starts,
+        // only the loop thread records, so there's a single writer
+        return cost > longestCallback.nanos && Thread.currentThread() == runningThread;
+    }
+    // --- END statistics ---
+
     private void tryRunnable(Runnable r) {
+        long start = System.nanoTime();
         try {
             r.run();
         } catch (Throwable t) {
             // we cannot throw the error, just log
             Logger.error(LogType.IMPROPER_USE, "exception thrown in nextTick event ", t);
         }
+        long cost = System.nanoTime() - start;
+        if (isLongestCallback(cost)) {
+            longestCallback = new LongestCallback(cost, r.getClass());
+        }
     }
 
     private void handleNonSelectEvents() {
-        handleRunOnLoopEvents();
+        int len = handleRunOnLoopEvents();
+        queueDepth.record(len);
         handleTimeEvents();
     }
 
-    private void handleRunOnLoopEvents() {
+    private int handleRunOnLoopEvents() {
         int len = runOnLoopEvents.size();
         // only run available events when entering this function
         for (int i = 0; i < len; ++i) {
             Runnable r = runOnLoopEvents.poll();
             tryRunnable(r);
         }
+        return len;
     }
 
     private void handleTimeEvents() {
@@ -88,6 +158,8 @@ public class SelectorEventLoop {
             ctx.channel = channel;
             ctx.attachment = registerData.att;
 
+            long start = System.nanoTime();
+
             if (!key.isValid()) {
                 //noinspection UnnecessaryContinue
                 continue;
@@ -124,6 +196,11 @@ public class SelectorEventLoop {
                     }
                 }
             }
+
+            long cost = System.nanoTime() - start;
+            if (isLongestCallback(cost)) {
+                longestCallback = new LongestCallback(cost, handler.handlerClass(ctx));
+            }
         }
     }
 
@@ -152,8 +229,11 @@ public class SelectorEventLoop {
         // set thread
         runningThread = Thread.currentThread();
         loopThreadLocal.set(this);
+        StallDetector.register(this);
         // run
         while (selector.isOpen()) {
+            long iterationStart = System.nanoTime();
+            busySince = iterationStart;
             synchronized (CLOSE_LOCK) {
                 // yes, we lock the whole while body (except the select part)
                 // it's ok because we won't close the loop from inside the loop
@@ -167,6 +247,10 @@ public class SelectorEventLoop {
                 Config.currentTimestamp = System.currentTimeMillis();
                 handleNonSelectEvents();
             }
+            long selectStart = System.nanoTime();
+            long nonSelectNanos = selectStart - iterationStart;
+            busyNanos += nonSelectNanos; // record it before select(), which may block for a long time
+            busySince = 0;
             // here we do not lock select()
             // let close() have chance to run
 
@@ -189,6 +273,8 @@ public class SelectorEventLoop {
                 // if it's closed, the next loop will not run
                 continue;
             }
+            long handleStart = System.nanoTime();
+            busySince = handleStart;
 
             // here we lock again
             // because we need to handle something
@@ -203,8 +289,18 @@ public class SelectorEventLoop {
                     doHandling(keys);
                 }
             }
+            long iterationEnd = System.nanoTime();
+            long handleNanos = iterationEnd - handleStart;
+            nonSelectNanos += handleNanos;
+            iterationTime.record(nonSelectNanos / 1000);
+            eventsPerIteration.record(selectedSize);
+            busyNanos += handleNanos;
+            selectNanos += handleStart - selectStart;
+            ++iterations;
             // while-loop ends here
         }
+        busySince = 0;
+        StallDetector.deregister(this);
         runningThread = null; // it's not running now, set to null
         loopThreadLocal.remove(); // remove from thread local
         // do the final release
@@ -384,6 +480,11 @@ public class SelectorEventLoop {
                 THE_KEY_SET_BEFORE_SELECTOR_CLOSE = new ArrayList<>(keys.size());
                 try {
                     for (SelectionKey key : keys) {
+                        if (!key.isValid()) {
+                            // the channel is already removed and the removed callback is already called,
+                            // the key is only kept until the next select
+                            continue;
+                        }
                         THE_KEY_SET_BEFORE_SELECTOR_CLOSE.add(new Tuple<>(key.channel(), (RegisterData) key.attachment()));
                     }
                 } catch (ConcurrentModificationException ignore) {
@@ -0,0 +1,101 @@
+package vproxy.selector;
+
+import vproxy.util.ConcurrentHashSet;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+/**
+ * A watchdog thread checking whether any event loop is stuck in handling events
+ * for longer than the threshold. The stack of the loop thread is logged once for each stall.<br>
+ * The threshold is set by -Dvproxy.eventLoop.stallThreshold (milliseconds, default 1000, 0 to disable)
+ */
+public class StallDetector {
+    private static final ConcurrentHashSet<SelectorEventLoop> loops = new ConcurrentHashSet<>();
+    private static volatile int threshold = Integer.parseInt(System.getProperty("vproxy.eventLoop.stallThreshold", "1000"));
+    private static Thread thread = null;
+
+    private StallDetector() {
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param threshold milliseconds, 0 to disable
+     */
+    public static void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold should not be negative");
+        }
+        StallDetector.threshold = threshold;
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt(); // apply the new interval
+        }
+    }
+
+    static void register(SelectorEventLoop loop) {
+        loops.add(loop);
+        start();
+    }
+
+    static void deregister(SelectorEventLoop loop) {
+        loops.remove(loop);
+    }
+
+    private static synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(StallDetector::run, "vproxy-stall-detector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            int t = threshold;
+            try {
+                //noinspection BusyWait
+                Thread.sleep(t == 0 ? 1000 : Math.max(t / 4, 10));
+            } catch (InterruptedException ignore) {
+                continue;
+            }
+            if (t == 0) {
+                continue;
+            }
+            long now = System.nanoTime();
+            for (SelectorEventLoop loop : loops) {
+                check(loop, now, t);
+            }
+        }
+    }
+
+    private static void check(SelectorEventLoop loop, long now, int threshold) {
+        long since = loop.busySince;
+        if (since == 0 || since == loop.reportedBusySince) {
+            return; // not busy, or already reported
+        }
+        long busy = now - since;
+        if (busy < threshold * 1_000_000L) {
+            return;
+        }
+        Thread t = loop.runningThread;
+        if (t == null) {
+            return;
+        }
+        StackTraceElement[] stack = t.getStackTrace();
+        if (loop.busySince != since) {
+            return; // the loop finished handling when retrieving the stack
+        }
+        loop.reportedBusySince = since;
+        //noinspection NonAtomicOperationOnVolatileField
+        ++loop.stalls; // only modified by this thread
+
+        Exception e = new Exception("stack of " + t.getName());
+        e.setStackTrace(stack);
+        Logger.warn(LogType.EVENT_LOOP_STALL, "event loop " + t.getName() + " has been busy for " + (busy / 1_000_000) + "ms", e);
+    }
+}
@@ -0,0 +1,336 @@
+package vproxy.util;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log lines are put into a bounded lock-free ring by any thread,
+ * and written by one dedicated thread, so the event loops never block on the output.<br>
+ * Formatting (timestamp, colors, stack traces) is done on the writer thread.<br>
+ * When the ring is full, the line is dropped and counted.<br>
+ * Lines of each log type can be limited per second, the caller decides which lines are limited.
+ */
+public class AsyncLogWriter {
+    private static final String RESET_COLOR = "\033[0m";
+
+    public static class LogRecord {
+        final String color;
+        final long time;
+        final String threadName; // nullable
+        final String location; // nullable
+        final String prefix; // nullable, e.g. the log type
+        final String msg;
+        final Throwable t; // nullable
+
+        public LogRecord(String color, long time, String threadName, String location, String prefix, String msg, Throwable t) {
+            this.color = color;
+            this.time = time;
+            this.threadName = threadName;
+            this.location = location;
+            this.prefix = prefix;
+            this.msg = msg;
+            this.t = t;
+        }
+    }
+
+    // ---- the ring, multiple producers and one consumer ----
+    // each slot has a sequence number:
+    // seq == pos means the slot is free for the producer at pos,
+    // seq == pos + 1 means the slot is filled and ready for the consumer at pos
+    private final int mask;
+    private final LogRecord[] records;
+    private final AtomicLongArray seqs;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0; // only accessed by the writer thread
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0; // only accessed by the writer thread
+
+    private final Thread thread;
+    private volatile boolean waiting = false;
+    private volatile boolean closed = false;
+    private boolean released = false; // the output is closed, guarded by `this`
+
+    // ---- rate limit ----
+    private final int rateLimit;
+    // log type ordinal => the second of the current window
+    private final AtomicLongArray rateWindow = new AtomicLongArray(LogType.values().length);
+    // log type ordinal => lines logged in the current window
+    private final AtomicIntegerArray rateCount = new AtomicIntegerArray(LogType.values().length);
+
+    // ---- output ----
+    private final String file; // nullable
+    private final long fileMaxSize;
+    private final int fileMaxCount;
+    private PrintStream fileOut;
+    private long fileSize;
+
+    // cached timestamp prefix
+    private long cachedSecond = -1;
+    private String cachedPrefix;
+
+    /**
+     * @param capacity     max records waiting to be written, rounded up to a power of 2
+     * @param file         the file to write into, null means stdout
+     * @param fileMaxSize  rotate the file when it's larger than the size in bytes
+     * @param fileMaxCount how many rotated files to keep
+     * @param rateLimit    max lines per second for each log type, 0 means no limit
+     */
+    public AsyncLogWriter(int capacity, String file, long fileMaxSize, int fileMaxCount, int rateLimit) {
+        int cap = 1;
+        while (cap < capacity) {
+            cap <<= 1;
+        }
+        this.mask = cap - 1;
+        this.records = new LogRecord[cap];
+        this.seqs = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; ++i) {
+            seqs.set(i, i);
+        }
+
+        this.file = file;
+        this.fileMaxSize = fileMaxSize;
+        this.fileMaxCount = fileMaxCount;
+        this.rateLimit = rateLimit;
+
+        thread = new Thread(this::loop, "vproxy-logger");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "vproxy-logger-flush"));
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * check the limit before formatting anything
+     *
+     * @param logType type of the line
+     * @return true if the line should be dropped
+     */
+    public boolean rateLimited(LogType logType) {
+        if (rateLimit <= 0)
+            return false;
+        int idx = logType.ordinal();
+        long sec = System.currentTimeMillis() / 1000;
+        long window = rateWindow.get(idx);
+        if (window != sec) {
+            if (rateWindow.compareAndSet(idx, window, sec)) {
+                int last = rateCount.getAndSet(idx, 0);
+                if (last > rateLimit) {
+                    offer(new LogRecord(Logger.WARN_COLOR, System.currentTimeMillis(), null, null, LogType.ALERT + " - ",
+                        (last - rateLimit) + " lines of " + logType + " suppressed in the last second", null));
+                }
+            }
+        }
+        return rateCount.incrementAndGet(idx) > rateLimit;
+    }
+
+    public void offer(LogRecord r) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        long pos;
+        while (true) {
+            pos = tail.get();
+            int idx = (int) (pos & mask);
+            long seq = seqs.get(idx);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    records[idx] = r;
+                    seqs.set(idx, pos + 1); // publish
+                    break;
+                }
+            } else if (seq < pos) {
+                // the consumer has not freed the slot, the ring is full
+                dropped.increment();
+                return;
+            }
+            // otherwise another producer took the slot, retry
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private LogRecord poll() {
+        int idx = (int) (head & mask);
+        if (seqs.get(idx) != head + 1) {
+            return null; // nothing published
+        }
+        LogRecord r = records[idx];
+        records[idx] = null;
+        seqs.set(idx, head + mask + 1); // free the slot for the producer of the next round
+        ++head;
+        return r;
+    }
+
+    private void loop() {
+        while (!closed) {
+            if (!drain()) {
+                waiting = true;
+                // check again in case a record is offered before the flag is set
+                if (!drain()) {
+                    LockSupport.parkNanos(100_000_000);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    // the shutdown hook and the writer thread may drain at the same time
+    private synchronized boolean drain() {
+        if (released)
+            return false;
+        boolean wrote = false;
+        LogRecord r;
+        while ((r = poll()) != null) {
+            write(r);
+            wrote = true;
+        }
+        long d = dropped.sum();
+        if (d != droppedReported) {
+            write(new LogRecord(Logger.WARN_COLOR, System.currentTimeMillis(), null, null, LogType.ALERT + " - ",
+                (d - droppedReported) + " log lines dropped because the log ring is full", null));
+            droppedReported = d;
+            wrote = true;
+        }
+        if (wrote) {
+            out().flush();
+        }
+        return wrote;
+    }
+
+    /**
+     * write all records offered before
+     */
+    public void flush() {
+        drain();
+    }
+
+    /**
+     * write all records offered before, then stop the writer thread and close the file,
+     * records offered after closing are dropped
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        drain();
+        if (fileOut != null && fileOut != System.out) {
+            fileOut.close();
+        }
+        fileOut = null;
+        released = true;
+        LockSupport.unpark(thread);
+    }
+
+    private String timestamp(long time) {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            LocalDateTime d = LocalDateTime.ofEpochSecond(second, 0,
+                ZoneId.systemDefault().getRules().getOffset(java.time.Instant.ofEpochSecond(second)));
+            cachedPrefix = "[" +
+                d.getYear() + "-" +
+                fillToTen(d.getMonthValue()) + "-" +
+                fillToTen(d.getDayOfMonth()) + " " +
+                fillToTen(d.getHour()) + ":" +
+                fillToTen(d.getMinute()) + ":" +
+                fillToTen(d.getSecond()) + ".";
+            cachedSecond = second;
+        }
+        return cachedPrefix + fillToHundred((int) (time % 1000)) + "] ";
+    }
+
+    private static String fillToTen(int n) {
+        return (n < 10 ? "0" : "") + n;
+    }
+
+    private static String fillToHundred(int n) {
+        return (n < 10 ? "00" : (n < 100 ? "0" : "")) + n;
+    }
+
+    private void write(LogRecord r) {
+        StringBuilder sb = new StringBuilder();
+        if (file == null) {
+            sb.append(r.color);
+        }
+        sb.append(timestamp(r.time));
+        if (r.threadName != null) {
+            sb.append(r.threadName).append(" - ");
+        }
+        if (r.location != null) {
+            sb.append(r.location).append(" - ");
+        }
+        if (r.prefix != null) {
+            sb.append(r.prefix);
+        }
+        if (file == null) {
+            sb.append(RESET_COLOR);
+        }
+        sb.append(r.msg);
+
+        PrintStream out = out();
+        out.println(sb);
+        if (r.t != null) {
+            r.t.printStackTrace(out);
+        }
+        if (file != null) {
+            fileSize += sb.length() + 1;
+            if (r.t != null) {
+                fileSize += 1024; // estimated, the precise size is not necessary
+            }
+            if (fileSize >= fileMaxSize) {
+                rotate();
+            }
+        }
+    }
+
+    private PrintStream out() {
+        if (file == null) {
+            return System.out;
+        }
+        if (fileOut == null) {
+            openFile();
+        }
+        return fileOut;
+    }
+
+    private void openFile() {
+        File f = new File(file);
+        try {
+            fileOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(f, true)), false);
+            fileSize = f.length();
+        } catch (IOException e) {
+            System.out.println("open log file " + file + " failed, use stdout instead: " + e);
+            fileOut = System.out;
+            fileSize = Long.MIN_VALUE; // never rotate
+        }
+    }
+
+    // file -> file.1 -> file.2 ... -> file.{fileMaxCount}, the last one is removed
+    private void rotate() {
+        fileOut.close();
+        fileOut = null;
+        //noinspection ResultOfMethodCallIgnored
+        new File(file + "." + fileMaxCount).delete();
+        for (int i = fileMaxCount - 1; i >= 1; --i) {
+            File from = new File(file + "." + i);
+            if (from.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                from.renameTo(new File(file + "." + (i + 1)));
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(file).renameTo(new File(file + ".1"));
+        openFile();
+    }
+}
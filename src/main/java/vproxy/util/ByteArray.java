@@ -1,7 +1,7 @@
 package vproxy.util;
 
-import vproxy.util.bytearray.CompositeByteArray;
 import vproxy.util.bytearray.OneByteArray;
+import vproxy.util.bytearray.RopeByteArray;
 import vproxy.util.bytearray.SimpleByteArray;
 import vproxy.util.bytearray.SubByteArray;
 
@@ -45,14 +45,14 @@ public interface ByteArray {
     }
 
     default ByteArray concat(ByteArray array) {
-        return new CompositeByteArray(this, array);
+        return RopeByteArray.concat(this, array);
     }
 
     default byte[] toJavaArray() {
         int len = length();
         byte[] array = new byte[len];
-        for (int i = 0; i < len; ++i) {
-            array[i] = get(i);
+        if (len != 0) {
+            byteBufferPut(ByteBuffer.wrap(array), 0, len);
         }
         return array;
     }
@@ -0,0 +1,92 @@
+package vproxy.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A part of a file to be written to a connection.<br>
+ * When the out buffer of the connection is a {@link vproxy.util.ringbuffer.FileTransferRingBuffer},
+ * the bytes are sent with {@link FileChannel#transferTo}, i.e. from the file to the socket without copying into the buffer.
+ * Otherwise (e.g. the out buffer encrypts data with TLS) the region is read like a normal channel.<br>
+ * The file is closed when all bytes are sent or the region is closed.
+ */
+public class FileRegion implements ReadableByteChannel {
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+    private boolean closed = false;
+
+    public FileRegion(FileChannel file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    public long remaining() {
+        return remaining;
+    }
+
+    private void advance(long n) {
+        position += n;
+        remaining -= n;
+        if (remaining == 0) {
+            close();
+        }
+    }
+
+    public long transferTo(WritableByteChannel target, long maxBytes) throws IOException {
+        if (remaining == 0) {
+            return 0;
+        }
+        long n = file.transferTo(position, Math.min(remaining, maxBytes), target);
+        advance(n);
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        int lim = dst.limit();
+        if (dst.remaining() > remaining) {
+            dst.limit(dst.position() + (int) remaining);
+        }
+        int n;
+        try {
+            n = file.read(dst, position);
+        } finally {
+            dst.limit(lim);
+        }
+        if (n == -1) {
+            // the file is truncated, nothing more can be sent
+            remaining = 0;
+            close();
+            return -1;
+        }
+        advance(n);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        remaining = 0;
+        try {
+            file.close();
+        } catch (IOException e) {
+            Logger.shouldNotHappen("close file channel failed", e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package vproxy.util;
+
+import vproxy.selector.SelectorEventLoop;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free log-linear histogram, similar to the HdrHistogram:
+ * values below 8 have their own buckets, and each power of two above is split into 8 buckets,
+ * so the relative error of a bucket is at most 12.5%.<br>
+ * The counters are striped by thread, so the event loops seldom touch the same counters.
+ * A stripe is allocated when the thread first records into it, and the stripes are merged when reading.<br>
+ * A histogram created with the default constructor keeps one stripe for each event loop,
+ * which can be read separately by {@link #snapshot(Object)},
+ * other threads record into the thread stripes.<br>
+ * Recording never allocates after the stripe is created.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_MSB = 36;
+    // the last bucket is for all values >= 2^37
+    public static final int BUCKET_COUNT = (MAX_MSB - SUB_BITS + 2) * SUB_COUNT + 1;
+    private static final int SUM = BUCKET_COUNT; // index of the sum in a stripe
+
+    private static final int DEFAULT_STRIPES;
+
+    static {
+        int n = 1;
+        int cpu = Runtime.getRuntime().availableProcessors();
+        while (n < cpu && n < 64) {
+            n <<= 1;
+        }
+        DEFAULT_STRIPES = n;
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+    // event loop => its stripe, null if not striped by event loop
+    private final Map<SelectorEventLoop, AtomicLongArray> loopStripes;
+
+    /**
+     * one stripe for each event loop
+     */
+    public Histogram() {
+        this(DEFAULT_STRIPES, true);
+    }
+
+    /**
+     * @param stripes count of stripes, will be rounded up to power of 2.
+     *                use 1 when there are too many histograms and memory matters more
+     */
+    public Histogram(int stripes) {
+        this(stripes, false);
+    }
+
+    private Histogram(int stripes, boolean byLoop) {
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        this.mask = n - 1;
+        this.stripes = new AtomicReferenceArray<>(n);
+        this.loopStripes = byLoop ? new ConcurrentHashMap<>() : null;
+    }
+
+    private static AtomicLongArray newStripe(Object ignore) {
+        return new AtomicLongArray(BUCKET_COUNT + 1);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb > MAX_MSB) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = msb - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * @return the smallest value recorded into the bucket
+     */
+    public static long lowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        return ((long) (SUB_COUNT + index % SUB_COUNT)) << shift;
+    }
+
+    /**
+     * @return the smallest value which is greater than all values recorded into the bucket
+     */
+    public static long upperBound(int index) {
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(index + 1);
+    }
+
+    @ThreadSafe
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        AtomicLongArray stripe = null;
+        if (loopStripes != null) {
+            SelectorEventLoop loop = SelectorEventLoop.current();
+            if (loop != null) {
+                stripe = loopStripes.get(loop);
+                if (stripe == null) {
+                    stripe = loopStripes.computeIfAbsent(loop, Histogram::newStripe);
+                }
+            }
+        }
+        if (stripe == null) {
+            int idx = (int) Thread.currentThread().getId() & mask;
+            stripe = stripes.get(idx);
+            if (stripe == null) {
+                stripe = newStripe(null);
+                if (!stripes.compareAndSet(idx, null, stripe)) {
+                    stripe = stripes.get(idx);
+                }
+            }
+        }
+        stripe.getAndIncrement(index(value));
+        stripe.getAndAdd(SUM, value);
+    }
+
+    /**
+     * merge the stripes
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long sum = mergeInto(counts);
+        return new Snapshot(counts, sum);
+    }
+
+    /**
+     * @param loop the event loop, typed as Object because the selector package is not exported
+     * @return values recorded on the event loop, empty if the histogram is not striped by event loop
+     */
+    public Snapshot snapshot(Object loop) {
+        long[] counts = new long[BUCKET_COUNT];
+        long sum = 0;
+        AtomicLongArray stripe = loopStripes == null ? null : loopStripes.get(loop);
+        if (stripe != null) {
+            sum = addInto(stripe, counts);
+        }
+        return new Snapshot(counts, sum);
+    }
+
+    /**
+     * merge the stripes of all histograms
+     */
+    public static Snapshot snapshot(Iterable<Histogram> histograms) {
+        long[] counts = new long[BUCKET_COUNT];
+        long sum = 0;
+        for (Histogram h : histograms) {
+            sum += h.mergeInto(counts);
+        }
+        return new Snapshot(counts, sum);
+    }
+
+    // add counts into the array and return the sum
+    private long mergeInto(long[] counts) {
+        long sum = 0;
+        if (loopStripes != null) {
+            retireClosedLoops();
+            for (AtomicLongArray stripe : loopStripes.values()) {
+                sum += addInto(stripe, counts);
+            }
+        }
+        for (int i = 0; i < stripes.length(); ++i) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe == null) {
+                continue;
+            }
+            sum += addInto(stripe, counts);
+        }
+        return sum;
+    }
+
+    private static long addInto(AtomicLongArray stripe, long[] counts) {
+        for (int j = 0; j < BUCKET_COUNT; ++j) {
+            counts[j] += stripe.get(j);
+        }
+        return stripe.get(SUM);
+    }
+
+    // move the values of closed event loops into a thread stripe, so the loops are not referenced anymore
+    private void retireClosedLoops() {
+        for (Map.Entry<SelectorEventLoop, AtomicLongArray> entry : loopStripes.entrySet()) {
+            if (!entry.getKey().isClosed() || !loopStripes.remove(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+            AtomicLongArray from = entry.getValue();
+            AtomicLongArray to = stripes.get(0);
+            if (to == null) {
+                stripes.compareAndSet(0, null, newStripe(null));
+                to = stripes.get(0);
+            }
+            for (int j = 0; j <= SUM; ++j) {
+                to.getAndAdd(j, from.get(j));
+            }
+        }
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /**
+         * count of the recorded values which are surely &lt;= the bound,
+         * a bucket which contains both values greater and not greater than the bound is not counted
+         */
+        public long countNotGreaterThan(long bound) {
+            long n = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                if (upperBound(i) - 1 > bound) {
+                    break;
+                }
+                n += counts[i];
+            }
+            return n;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return the largest value of the bucket which the percentile falls in, or 0 when nothing recorded
+         */
+        public long valueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            if (target < 1) {
+                target = 1;
+            }
+            long n = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                n += counts[i];
+                if (n >= target) {
+                    return upperBound(i) - 1;
+                }
+            }
+            return upperBound(BUCKET_COUNT - 1);
+        }
+    }
+}
@@ -1,16 +1,29 @@
 package vproxy.util;
 
-import java.util.Date;
 
+/**
+ * Log lines are written asynchronously by {@link AsyncLogWriter}.<br>
+ * System properties:
+ * <ul>
+ * <li>vproxy.log.file: write logs into the file instead of stdout</li>
+ * <li>vproxy.log.file.maxSize: rotate the file when it's larger than the size in bytes, default 100MB</li>
+ * <li>vproxy.log.file.maxCount: how many rotated files to keep, default 5</li>
+ * <li>vproxy.log.bufferSize: max lines waiting to be written, default 65536, lines are dropped when full</li>
+ * <li>vproxy.log.rateLimit: max lines per second for each log type, default 1000, 0 means no limit</li>
+ * </ul>
+ * Debug, error and fatal logs are not rate limited.
+ * The call site of error and fatal logs is recorded only when debug is on.
+ */
 public class Logger {
     private static final boolean lowLevelDebugOn;
     private static final boolean lowLevelNetDebugOn;
 
-    private static final String DEBUG_COLOR = "\033[0;36m";
-    private static final String INFO_COLOR = "\033[0;32m";
-    private static final String WARN_COLOR = "\033[0;33m";
-    private static final String ERROR_COLOR = "\033[0;31m";
-    private static final String RESET_COLOR = "\033[0m";
+    static final String DEBUG_COLOR = "\033[0;36m";
+    static final String INFO_COLOR = "\033[0;32m";
+    static final String WARN_COLOR = "\033[0;33m";
+    static final String ERROR_COLOR = "\033[0;31m";
+
+    private static final AsyncLogWriter writer;
 
     static {
         {
@@ -22,32 +35,43 @@ public class Logger {
             String debug = System.getProperty("javax.net.debug");
             lowLevelNetDebugOn = "all".equals(debug) || "vproxy".equals(debug);
         }
+
+        writer = new AsyncLogWriter(
+            Integer.parseInt(System.getProperty("vproxy.log.bufferSize", "65536")),
+            System.getProperty("vproxy.log.file"),
+            Long.parseLong(System.getProperty("vproxy.log.file.maxSize", "" + (100 * 1024 * 1024))),
+            Math.max(1, Integer.parseInt(System.getProperty("vproxy.log.file.maxCount", "5"))),
+            Integer.parseInt(System.getProperty("vproxy.log.rateLimit", "1000")));
     }
 
     private Logger() {
     }
 
-    private static String fillToTen(int n) {
-        return (n < 10 ? "0" : "") + n;
+    /**
+     * @return count of lines dropped because the log buffer is full
+     */
+    public static long droppedCount() {
+        return writer.droppedCount();
+    }
+
+    /**
+     * wait until all logs offered before are written
+     */
+    public static void flush() {
+        writer.flush();
     }
 
-    private static String fillToHundred(int n) {
-        return (n < 10 ? "00" : (n < 100 ? "0" : "")) + n;
+    private static void offer(String color, String threadName, String location, String prefix, String msg, Throwable t) {
+        writer.offer(new AsyncLogWriter.LogRecord(color, System.currentTimeMillis(), threadName, location, prefix, msg, t));
     }
 
-    @SuppressWarnings("deprecation")
-    private static String current() {
-        long cur = System.currentTimeMillis();
-        Date d = new Date(cur);
-        return "[" +
-            (d.getYear() + 1900) + "-" +
-            fillToTen(d.getMonth() + 1) + "-" +
-            fillToTen(d.getDate()) + " " +
-            fillToTen(d.getHours()) + ":" +
-            fillToTen(d.getMinutes()) + ":" +
-            fillToTen(d.getSeconds()) + "." +
-            fillToHundred((int) (cur % 1000)) +
-            "] ";
+    // the caller of the method which calls this method
+    private static String location(int skip) {
+        StackWalker.StackFrame elem = StackWalker.getInstance()
+            .walk(s -> s.skip(skip + 1).findFirst()).orElse(null);
+        if (elem == null)
+            return null;
+        return elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ")";
     }
 
     // some message for debugging this project
@@ -56,60 +80,59 @@ public class Logger {
     public static boolean lowLevelDebug(String msg) {
         if (!lowLevelDebugOn)
             return true;
-        String threadName = Thread.currentThread().getName();
-        StackTraceElement elem = Thread.currentThread().getStackTrace()[2];
-        System.out.println(DEBUG_COLOR + current() + threadName + " - " + elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ") - " + RESET_COLOR + msg);
+        offer(DEBUG_COLOR, Thread.currentThread().getName(), location(1), null, msg, null);
         return true;
     }
 
     public static boolean lowLevelNetDebug(String msg) {
         if (!lowLevelNetDebugOn || !lowLevelDebugOn)
             return true;
-        String threadName = Thread.currentThread().getName();
-        StackTraceElement elem = Thread.currentThread().getStackTrace()[2];
-        System.out.println(DEBUG_COLOR + current() + threadName + " - " + elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ") - " + RESET_COLOR + msg);
+        offer(DEBUG_COLOR, Thread.currentThread().getName(), location(1), null, msg, null);
         return true;
     }
 
-    private static void privateErr(String err) {
-        String threadName = Thread.currentThread().getName();
-        StackTraceElement elem = Thread.currentThread().getStackTrace()[3];
-        System.out.println(ERROR_COLOR + current() + threadName + " - " + elem.getClassName() + "#" + elem.getMethodName() + "(" + elem.getLineNumber() + ") - " + RESET_COLOR + err);
+    // errors are never rate limited
+    // walking the stack is expensive, so the call site is only recorded when debugging
+    private static void privateErr(LogType logType, String err, Throwable ex) {
+        offer(ERROR_COLOR, Thread.currentThread().getName(), lowLevelDebugOn ? location(2) : null, null, logType + " - " + err, ex);
     }
 
     // unexpected errors, or situation should happen
     public static void fatal(LogType logType, String err) {
-        privateErr(logType + " - " + err);
+        privateErr(logType, err, null);
     }
 
     public static void fatal(LogType logType, String err, Throwable ex) {
-        privateErr(logType + " - " + err);
-        ex.printStackTrace(System.out);
+        privateErr(logType, err, ex);
     }
 
     // expected errors, but not normal condition
     public static void error(LogType logType, String err) {
-        privateErr(logType + " - " + err);
+        privateErr(logType, err, null);
     }
 
     public static void error(LogType logType, String err, Throwable ex) {
-        privateErr(logType + " - " + err);
-        ex.printStackTrace(System.out);
+        privateErr(logType, err, ex);
     }
 
     // expected errors, maybe user misuse, and we can recover
     public static void warn(LogType logType, String err) {
-        System.out.println(WARN_COLOR + current() + logType + " - " + RESET_COLOR + err);
+        if (writer.rateLimited(logType))
+            return;
+        offer(WARN_COLOR, null, null, logType + " - ", err, null);
     }
 
     public static void warn(LogType logType, String err, Throwable t) {
-        System.out.println(WARN_COLOR + current() + logType + " - " + RESET_COLOR + err);
-        t.printStackTrace();
+        if (writer.rateLimited(logType))
+            return;
+        offer(WARN_COLOR, null, null, logType + " - ", err, t);
     }
 
     // expected condition
     public static void info(LogType logType, String msg) {
-        System.out.println(INFO_COLOR + current() + logType + " - " + RESET_COLOR + msg);
+        if (writer.rateLimited(logType))
+            return;
+        offer(INFO_COLOR, null, null, logType + " - ", msg, null);
     }
 
     public static void shouldNotHappen(String msg) {
@@ -125,7 +148,7 @@ public class Logger {
     }
 
     public static boolean printStackTrace(Throwable t) {
-        t.printStackTrace(System.out);
+        offer(DEBUG_COLOR, Thread.currentThread().getName(), location(1), null, "stack trace:", t);
         return true;
     }
 }
@@ -5,7 +5,7 @@ import vproxy.app.Config;
 import java.util.PriorityQueue;
 
 public class TimeQueue<T> {
-    PriorityQueue<TimeElem<T>> queue = new PriorityQueue<>((a, b) -> (int) (a.triggerTime - b.triggerTime));
+    PriorityQueue<TimeElem<T>> queue = new PriorityQueue<>((a, b) -> Long.compare(a.triggerTime, b.triggerTime));
 
     public TimeElem<T> push(int timeout, T elem) {
         TimeElem<T> event = new TimeElem<>(Config.currentTimestamp + timeout, elem, this);
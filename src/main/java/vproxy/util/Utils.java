@@ -647,6 +647,26 @@ public class Utils {
             ;
     }
 
+    // fnv-1a, then mixed with the murmur3 finalizer to make every bit avalanche
+    public static int hash32(byte[] bytes, int off, int len) {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; ++i) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x01000193;
+        }
+        return mix32(h);
+    }
+
+    // the murmur3 fmix32
+    public static int mix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
     public static void shiftLeft(byte[] arr, int l) {
         for (int i = 0; i < arr.length; ++i) {
             int e = i + l;
@@ -0,0 +1,156 @@
+package vproxy.util.bytearray;
+
+import vproxy.util.ByteArray;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A flat list of byte array segments, which is the result of <code>concat</code>.<br>
+ * Concatenating ropes only copies the segment references, so the segments
+ * never nest, and locating an index is a binary search on the segment offsets.
+ */
+public class RopeByteArray extends AbstractByteArray implements ByteArray {
+    private final ByteArray[] segments; // not empty and not ropes
+    private final int[] offsets; // offsets[i] is the index of the first byte of segments[i]
+    private final int len;
+
+    // segments are usually visited one byte after another
+    // so record the last visited segment to avoid searching every time
+    private int lastSeg = 0;
+
+    private RopeByteArray(ByteArray[] segments, int segCount) {
+        this.segments = segCount == segments.length ? segments : Arrays.copyOf(segments, segCount);
+        this.offsets = new int[segCount];
+        int len = 0;
+        for (int i = 0; i < segCount; ++i) {
+            offsets[i] = len;
+            len += segments[i].length();
+        }
+        this.len = len;
+    }
+
+    private static int segmentCount(ByteArray arr) {
+        if (arr instanceof RopeByteArray) {
+            return ((RopeByteArray) arr).segments.length;
+        }
+        return 1;
+    }
+
+    private static int addSegments(ByteArray[] segments, int idx, ByteArray arr) {
+        if (arr instanceof RopeByteArray) {
+            ByteArray[] from = ((RopeByteArray) arr).segments;
+            System.arraycopy(from, 0, segments, idx, from.length);
+            return idx + from.length;
+        }
+        if (arr.length() == 0) {
+            return idx;
+        }
+        segments[idx] = arr;
+        return idx + 1;
+    }
+
+    public static RopeByteArray concat(ByteArray first, ByteArray second) {
+        ByteArray[] segments = new ByteArray[segmentCount(first) + segmentCount(second)];
+        int n = addSegments(segments, 0, first);
+        n = addSegments(segments, n, second);
+        return new RopeByteArray(segments, n);
+    }
+
+    private int segmentOf(int idx) {
+        int seg = lastSeg;
+        if (seg < segments.length && idx >= offsets[seg] && idx - offsets[seg] < segments[seg].length()) {
+            return seg;
+        }
+        seg = Arrays.binarySearch(offsets, idx);
+        if (seg < 0) {
+            seg = -seg - 2; // the segment before the insertion point
+        }
+        lastSeg = seg;
+        return seg;
+    }
+
+    private void checkIndex(int idx) {
+        if (idx >= len || idx < 0)
+            throw new ArrayIndexOutOfBoundsException("index=" + idx + ", length=" + len);
+    }
+
+    private void checkRange(int off, int len) {
+        if (off < 0 || len < 0 || off + len > this.len)
+            throw new ArrayIndexOutOfBoundsException("off=" + off + ", len=" + len + ", length=" + this.len);
+    }
+
+    @Override
+    public byte get(int idx) {
+        checkIndex(idx);
+        int seg = segmentOf(idx);
+        return segments[seg].get(idx - offsets[seg]);
+    }
+
+    @Override
+    public ByteArray set(int idx, byte value) {
+        checkIndex(idx);
+        int seg = segmentOf(idx);
+        segments[seg].set(idx - offsets[seg], value);
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return len;
+    }
+
+    @Override
+    public ByteArray sub(int fromInclusive, int len) {
+        checkRange(fromInclusive, len);
+        if (len == 0) {
+            return new RopeByteArray(new ByteArray[0], 0);
+        }
+        int first = segmentOf(fromInclusive);
+        int last = segmentOf(fromInclusive + len - 1);
+        int firstOff = fromInclusive - offsets[first];
+        if (first == last) {
+            return segments[first].sub(firstOff, len);
+        }
+        ByteArray[] subSegments = new ByteArray[last - first + 1];
+        subSegments[0] = segments[first].sub(firstOff, segments[first].length() - firstOff);
+        for (int i = first + 1; i < last; ++i) {
+            subSegments[i - first] = segments[i];
+        }
+        subSegments[subSegments.length - 1] = segments[last].sub(0, fromInclusive + len - offsets[last]);
+        return new RopeByteArray(subSegments, subSegments.length);
+    }
+
+    @Override
+    public ByteArray concat(ByteArray array) {
+        return concat(this, array);
+    }
+
+    @Override
+    public void byteBufferPut(ByteBuffer dst, int off, int len) {
+        checkRange(off, len);
+        if (len == 0)
+            return;
+        for (int seg = segmentOf(off); len > 0; ++seg) {
+            int segOff = off - offsets[seg];
+            int n = Math.min(len, segments[seg].length() - segOff);
+            segments[seg].byteBufferPut(dst, segOff, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void byteBufferGet(ByteBuffer src, int off, int len) {
+        checkRange(off, len);
+        if (len == 0)
+            return;
+        for (int seg = segmentOf(off); len > 0; ++seg) {
+            int segOff = off - offsets[seg];
+            int n = Math.min(len, segments[seg].length() - segOff);
+            segments[seg].byteBufferGet(src, segOff, n);
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package vproxy.util.ringbuffer;
+
+import vproxy.util.FileRegion;
+import vproxy.util.Logger;
+import vproxy.util.RingBufferETHandler;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output buffer which can send a file region directly to the channel, like the {@link ProxyOutputRingBuffer}.<br>
+ * Bytes stored before the region are written first, then the region is transferred
+ * with {@link FileRegion#transferTo} when the connection writes this buffer, and no bytes can be stored until the region is done.
+ */
+public class FileTransferRingBuffer extends AbstractRingBuffer {
+    private class DefaultBufferETHandler implements RingBufferETHandler {
+        @Override
+        public void readableET() {
+            triggerReadable();
+        }
+
+        @Override
+        public void writableET() {
+            if (region == null) {
+                triggerWritable();
+            }
+        }
+    }
+
+    private final SimpleRingBuffer defaultBuffer;
+    private final int cap;
+
+    private FileRegion region;
+
+    private FileTransferRingBuffer(SimpleRingBuffer defaultBuffer) {
+        this.defaultBuffer = defaultBuffer;
+        this.cap = defaultBuffer.capacity();
+        defaultBuffer.addHandler(new DefaultBufferETHandler());
+    }
+
+    public static FileTransferRingBuffer allocate(int cap) {
+        return new FileTransferRingBuffer(SimpleRingBuffer.allocate(cap));
+    }
+
+    public boolean isTransferring() {
+        return region != null;
+    }
+
+    public void transfer(FileRegion region) {
+        if (this.region != null)
+            throw new IllegalStateException("has a file region to transfer, remaining = " + this.region.remaining());
+        if (region.remaining() == 0) {
+            return;
+        }
+        assert Logger.lowLevelDebug("get a file region to transfer, data length is " + region.remaining());
+        this.region = region;
+        if (defaultBuffer.used() == 0) {
+            triggerReadable();
+        } // otherwise the connection is already writing the buffer
+    }
+
+    @Override
+    public int storeBytesFrom(ReadableByteChannel channel) throws IOException {
+        if (region != null)
+            throw new IllegalStateException("has a file region to transfer, remaining = " + region.remaining());
+        return defaultBuffer.storeBytesFrom(channel);
+    }
+
+    @Override
+    public int writeTo(WritableByteChannel channel, int maxBytesToWrite) throws IOException {
+        int wrote = defaultBuffer.writeTo(channel, maxBytesToWrite);
+        if (region == null || defaultBuffer.used() != 0 || wrote == maxBytesToWrite) {
+            return wrote;
+        }
+        int n = (int) region.transferTo(channel, maxBytesToWrite - wrote);
+        if (region.remaining() == 0) {
+            assert Logger.lowLevelDebug("file region transferred");
+            region = null;
+        }
+        return wrote + n;
+    }
+
+    @Override
+    public int free() {
+        return cap - used();
+    }
+
+    @Override
+    public int used() {
+        if (region == null) {
+            return defaultBuffer.used();
+        }
+        return (int) Math.min(cap, defaultBuffer.used() + region.remaining());
+    }
+
+    @Override
+    public int capacity() {
+        return cap;
+    }
+
+    @Override
+    public void clean() {
+        if (region != null) {
+            region.close();
+            region = null;
+        }
+        defaultBuffer.clean();
+    }
+
+    @Override
+    public void clear() {
+        defaultBuffer.clear();
+    }
+}
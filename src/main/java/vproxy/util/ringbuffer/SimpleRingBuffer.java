@@ -4,6 +4,7 @@ import vproxy.util.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
@@ -99,9 +100,67 @@ public class SimpleRingBuffer implements RingBuffer, ByteBufferRingBuffer {
 
     @Override
     public int writeTo(WritableByteChannel channel, int maxBytesToWrite) throws IOException {
+        if (channel instanceof GatheringByteChannel
+            && !ePosIsAfterSPos && ePos != 0 && maxBytesToWrite > retrieveLimit()) {
+            // the data is split at the end of the buffer
+            // write both parts with one call
+            return gatheringWriteTo((GatheringByteChannel) channel, maxBytesToWrite);
+        }
         return operateOnByteBufferWriteOut(maxBytesToWrite, channel::write);
     }
 
+    private int gatheringWriteTo(GatheringByteChannel channel, int maxBytesToWrite) throws IOException {
+        if (operatingBuffer) {
+            throw new IllegalStateException("this buffer is operating");
+        }
+
+        boolean firstOperator = isFirstOperate();
+        operatingBuffer = true;
+
+        boolean triggerWritable = false;
+
+        assert Logger.lowLevelNetDebug("before gathering write out, sPos=" + sPos);
+
+        try { // only use try-finally here, we do not catch
+
+            // is for triggering writable event
+            boolean triggerWritablePre = free() == 0;
+
+            int lim = retrieveLimit(); // [sPos, cap)
+            int lim2 = Math.min(ePos, maxBytesToWrite - lim); // [0, ePos)
+            ByteBuffer b1 = buffer.duplicate();
+            b1.limit(cap).position(sPos);
+            ByteBuffer b2 = buffer.duplicate();
+            b2.limit(lim2).position(0);
+
+            int write = (int) channel.write(new ByteBuffer[]{b1, b2});
+
+            triggerWritable = triggerWritablePre && write > 0;
+
+            if (write < lim) {
+                sPos += write;
+            } else {
+                sPos = write - lim;
+                ePosIsAfterSPos = true;
+                if (retrieveLimit() == 0) {
+                    resetCursors();
+                }
+            }
+            return write;
+        } finally { // do trigger here
+            assert Logger.lowLevelNetDebug("after gathering write out, sPos=" + sPos);
+
+            operatingBuffer = false;
+            if (triggerWritable) {
+                assert Logger.lowLevelNetDebug("trigger writable for " + handler.size() + " times");
+                for (RingBufferETHandler aHandler : handler) {
+                    aHandler.writableET();
+                }
+            }
+            resetFirst(firstOperator);
+        }
+    }
+
     @Override
     public int free() {
         return cap - used();
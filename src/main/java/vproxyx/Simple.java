@@ -20,7 +20,7 @@ import java.util.List;
 
 public class Simple {
     private static final List<String> supportedProtocols = Arrays.asList(
-        "tcp", "http", "h2", "http/1.x", "framed-int32", "dubbo"
+        "tcp", "http", "h2", "http/1.x", "framed-int32", "dubbo", "resp", "resp-cluster"
     );
     private static final String supportedProtocolsStr;
 
@@ -4,12 +4,22 @@ import vproxy.util.LogType;
 import vproxy.util.Logger;
 
 import java.util.*;
-import java.util.function.Function;
 
 /**
  * https://github.com/gfwlist/gfwlist/wiki/Syntax
+ * <br>
+ * The rules are compiled into lookup structures instead of being checked one by one:
+ * <ul>
+ * <li>`||` and `|` rules (and their whitelist forms) are stored in a reversed-label domain trie</li>
+ * <li>`@@|` rules are stored in a char trie for prefix matching</li>
+ * <li>simple rules (and their whitelist forms) are stored in an Aho–Corasick automaton</li>
+ * </ul>
+ * Each rule keeps its index in the rule list. When more than one rule matches,
+ * the one added first wins, which is the same as checking the rules in order.
  */
 public class ABP {
+    private static final int NOT_MATCHED = Integer.MAX_VALUE;
+
     private final Set<Character> validSimpleRuleStart = new HashSet<>() {{
         for (int i = 'a'; i <= 'z'; ++i) {
             add((char) i);
@@ -23,21 +33,34 @@ public class ABP {
         add('.');
     }};
     private final boolean defaultBlock;
-    private final List<Function<String, Boolean>> checkers = new LinkedList<>();
+    private final List<Rule> rules = new ArrayList<>();
+
+    private final LabelNode domainRoot = new LabelNode();
+    private final CharNode prefixRoot = new CharNode();
+    private final CharNode containsRoot = new CharNode();
 
     public ABP(boolean defaultBlock) {
         this.defaultBlock = defaultBlock;
     }
 
     public boolean block(String input) {
-        for (var func : checkers) {
-            Boolean result = func.apply(input);
-            if (result == null) { // null means don't know
-                continue;
-            }
-            return result;
+        int idx = matchDomain(input);
+        idx = Math.min(idx, matchPrefix(input));
+        idx = Math.min(idx, matchContains(input));
+        if (idx == NOT_MATCHED) {
+            return defaultBlock;
+        }
+        Rule rule = rules.get(idx);
+        if (rule.block) {
+            Logger.alert(input + " matches ABP " + rule.type + " rule: " + rule.rule);
+        } else {
+            assert Logger.lowLevelDebug(input + " matches ABP WHITELIST " + rule.type + " rule: " + rule.rule);
         }
-        return defaultBlock;
+        return rule.block;
+    }
+
+    public int ruleCount() {
+        return rules.size();
     }
 
     public void addBase64(String base64) {
@@ -48,6 +71,8 @@ public class ABP {
         for (String line : rule.split("\n")) {
             addRuleOneLine(line);
         }
+        // the automaton must be rebuilt after adding patterns
+        buildFailureLinks();
     }
 
     private void addRuleOneLine(String line) {
@@ -57,110 +82,150 @@ public class ABP {
             return;
         }
         if (line.startsWith("||")) {
-            addMatchingSpecificURI(line.substring("||".length()));
+            addMatchingSpecificURI(line, line.substring("||".length()), true);
         } else if (line.startsWith("|")) {
-            addMatchingFromBeginning(line.substring("|".length()));
+            addMatchingFromBeginning(line, line.substring("|".length()));
         } else if (line.startsWith("@@||")) {
-            addWhitelistRuleMatchingSpecificURI(line.substring("@@||".length()));
+            addMatchingSpecificURI(line, line.substring("@@||".length()), false);
         } else if (line.startsWith("@@|")) {
-            addWhitelistRuleMatchingFromBeginning(line.substring("@@|".length()));
+            addWhitelistRuleMatchingFromBeginning(line, line.substring("@@|".length()));
         } else if (line.startsWith("@@")) {
-            addWhitelistSimpleRule(line.substring("@@".length()));
+            addSimpleRule(line, line.substring("@@".length()), false);
         } else if (line.startsWith("/")) {
             Logger.warn(LogType.ALERT,
                 "We do not support regexp in the ABP for now, " +
                     "you may add the regexp into the vproxy config file: " + line);
         } else if (validSimpleRuleStart.contains(line.charAt(0))) {
-            addSimpleRule(line);
+            addSimpleRule(line, line, true);
         } else {
             Logger.warn(LogType.INVALID_EXTERNAL_DATA, "Unrecognized ABP rule: " + line);
         }
     }
 
-    private interface MatchingSpecificURI extends Function<String, Boolean> {
-    }
-
-    private void addMatchingSpecificURI(String rule) {
-        var host = extractHost(rule);
-        var addDot = "." + host;
-        checkers.add((MatchingSpecificURI) input -> {
-            if (input.equals(host) || (input.endsWith(addDot) && input.length() > addDot.length())) {
-                Logger.alert(input + " matches ABP matching specific uri rule: " + rule);
-                return true;
-            }
-            return null;
-        });
+    private int addRuleRecord(String rule, String type, boolean block) {
+        int idx = rules.size();
+        rules.add(new Rule(rule, type, block));
+        return idx;
     }
 
-    private interface MatchingFromBeginning extends Function<String, Boolean> {
+    // input equals host, or input ends with `.host` and there's something before the dot
+    private void addMatchingSpecificURI(String rule, String uri, boolean block) {
+        int idx = addRuleRecord(rule, "matching specific uri", block);
+        LabelNode node = domainNode(extractHost(uri));
+        node.exact = Math.min(node.exact, idx);
+        node.sub = Math.min(node.sub, idx);
     }
 
-    private void addMatchingFromBeginning(String rule) {
-        var host = extractHost(rule);
-        checkers.add((MatchingFromBeginning) input -> {
-            if (input.equals(host)) {
-                Logger.alert(input + " matches ABP matching from beginning rule: " + rule);
-                return true;
-            }
-            return null;
-        });
+    // input equals host
+    private void addMatchingFromBeginning(String rule, String uri) {
+        int idx = addRuleRecord(rule, "matching from beginning", true);
+        LabelNode node = domainNode(extractHost(uri));
+        node.exact = Math.min(node.exact, idx);
     }
 
-    private interface WhitelistRuleMatchingSpecificURI extends Function<String, Boolean> {
+    // input starts with host
+    private void addWhitelistRuleMatchingFromBeginning(String rule, String uri) {
+        int idx = addRuleRecord(rule, "matching from beginning", false);
+        CharNode node = prefixRoot;
+        for (char c : extractHost(uri).toCharArray()) {
+            node = node.child(c);
+        }
+        node.idx = Math.min(node.idx, idx);
     }
 
-    private void addWhitelistRuleMatchingSpecificURI(String rule) {
-        var host = extractHost(rule);
-        var addDot = "." + host;
-        checkers.add((WhitelistRuleMatchingSpecificURI) input -> {
-            if (input.equals(host) || (input.endsWith(addDot) || input.length() > addDot.length())) {
-                assert Logger.lowLevelDebug(input + " matches ABP WHITELIST matching specific uri rule: " + rule);
-                return false;
-            }
-            return null;
-        });
+    // input contains host
+    private void addSimpleRule(String rule, String uri, boolean block) {
+        int idx = addRuleRecord(rule, "simple", block);
+        CharNode node = containsRoot;
+        for (char c : extractHost(uri).toCharArray()) {
+            node = node.child(c);
+        }
+        node.idx = Math.min(node.idx, idx);
     }
 
-    private interface WhitelistMatchingFromBeginningRule extends Function<String, Boolean> {
+    private LabelNode domainNode(String host) {
+        String[] labels = host.split("\\.", -1);
+        LabelNode node = domainRoot;
+        for (int i = labels.length - 1; i >= 0; --i) {
+            node = node.children.computeIfAbsent(labels[i], k -> new LabelNode());
+        }
+        return node;
     }
 
-    private void addWhitelistRuleMatchingFromBeginning(String rule) {
-        var host = extractHost(rule);
-        checkers.add((WhitelistMatchingFromBeginningRule) input -> {
-            if (input.startsWith(host)) {
-                assert Logger.lowLevelDebug(input + " matches ABP WHITELIST matching from beginning rule: " + rule);
-                return false;
+    private void buildFailureLinks() {
+        Deque<CharNode> queue = new ArrayDeque<>();
+        containsRoot.fail = null;
+        containsRoot.out = containsRoot.idx;
+        for (CharNode child : containsRoot.children.values()) {
+            child.fail = containsRoot;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            CharNode node = queue.poll();
+            // the parent is handled before the node, so node.fail.out is already calculated
+            node.out = Math.min(node.idx, node.fail.out);
+            for (Map.Entry<Character, CharNode> entry : node.children.entrySet()) {
+                char c = entry.getKey();
+                CharNode child = entry.getValue();
+                CharNode f = node.fail;
+                while (f != null && !f.children.containsKey(c)) {
+                    f = f.fail;
+                }
+                child.fail = f == null ? containsRoot : f.children.get(c);
+                queue.add(child);
             }
-            return null;
-        });
-    }
-
-    private interface WhitelistSimpleRule extends Function<String, Boolean> {
+        }
     }
 
-    private void addWhitelistSimpleRule(String rule) {
-        var host = extractHost(rule);
-        checkers.add((WhitelistSimpleRule) input -> {
-            if (input.contains(host)) {
-                assert Logger.lowLevelDebug(input + " matches ABP WHITELIST simple rule: " + rule);
-                return false;
+    private int matchDomain(String input) {
+        int result = NOT_MATCHED;
+        LabelNode node = domainRoot;
+        int end = input.length();
+        while (true) {
+            int start = input.lastIndexOf('.', end - 1) + 1;
+            node = node.children.get(input.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            if (start == 0) {
+                result = Math.min(result, node.exact);
+                break;
+            }
+            // start - 1 is the dot, something must present before the dot
+            if (start - 1 > 0) {
+                result = Math.min(result, node.sub);
             }
-            return null;
-        });
+            end = start - 1;
+        }
+        return result;
     }
 
-    private interface SimpleRule extends Function<String, Boolean> {
+    private int matchPrefix(String input) {
+        int result = prefixRoot.idx;
+        CharNode node = prefixRoot;
+        for (int i = 0; i < input.length(); ++i) {
+            node = node.children.get(input.charAt(i));
+            if (node == null) {
+                break;
+            }
+            result = Math.min(result, node.idx);
+        }
+        return result;
     }
 
-    private void addSimpleRule(String rule) {
-        var host = extractHost(rule);
-        checkers.add((SimpleRule) input -> {
-            if (input.contains(host)) {
-                Logger.alert(input + " matches ABP simple rule: " + rule);
-                return true;
+    private int matchContains(String input) {
+        int result = containsRoot.out;
+        CharNode node = containsRoot;
+        for (int i = 0; i < input.length(); ++i) {
+            char c = input.charAt(i);
+            CharNode next;
+            while ((next = node.children.get(c)) == null && node.fail != null) {
+                node = node.fail;
             }
-            return null;
-        });
+            node = next == null ? containsRoot : next;
+            result = Math.min(result, node.out);
+        }
+        return result;
     }
 
     private String extractHost(String uri) {
@@ -174,4 +239,33 @@ public class ABP {
         }
         return uri;
     }
+
+    private static class Rule {
+        final String rule;
+        final String type;
+        final boolean block;
+
+        Rule(String rule, String type, boolean block) {
+            this.rule = rule;
+            this.type = type;
+            this.block = block;
+        }
+    }
+
+    private static class LabelNode {
+        final Map<String, LabelNode> children = new HashMap<>();
+        int exact = NOT_MATCHED; // a rule matching when no more labels left
+        int sub = NOT_MATCHED; // a rule matching when more labels left
+    }
+
+    private static class CharNode {
+        final Map<Character, CharNode> children = new HashMap<>();
+        int idx = NOT_MATCHED; // a rule ends at this node
+        CharNode fail; // only used in the automaton
+        int out = NOT_MATCHED; // min idx of this node and the nodes along the fail links
+
+        CharNode child(char c) {
+            return children.computeIfAbsent(c, k -> new CharNode());
+        }
+    }
 }
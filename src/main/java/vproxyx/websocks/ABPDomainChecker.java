@@ -0,0 +1,14 @@
+package vproxyx.websocks;
+
+class ABPDomainChecker implements DomainChecker {
+    private final ABP abp;
+
+    ABPDomainChecker(ABP abp) {
+        this.abp = abp;
+    }
+
+    @Override
+    public boolean needProxy(String domain, int port) {
+        return abp.block(domain);
+    }
+}
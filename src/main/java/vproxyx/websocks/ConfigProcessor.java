@@ -29,6 +29,7 @@ public class ConfigProcessor {
     private boolean verifyCert = true;
     private boolean strictMode = false;
     private int poolSize = 10;
+    private boolean mux = false;
 
     private String pacServerIp;
     private int pacServerPort;
@@ -96,6 +97,10 @@ public class ConfigProcessor {
         return poolSize;
     }
 
+    public boolean isMux() {
+        return mux;
+    }
+
     public String getPacServerIp() {
         return pacServerIp;
     }
@@ -232,6 +237,18 @@ public class ConfigProcessor {
                         throw new Exception("invalid agent.pool, should not be negative");
                     }
                     poolSize = intSize;
+                } else if (line.startsWith("agent.mux ")) {
+                    String val = line.substring("agent.mux ".length()).trim();
+                    switch (val) {
+                        case "on":
+                            mux = true;
+                            break;
+                        case "off":
+                            mux = false;
+                            break;
+                        default:
+                            throw new Exception("invalid value for agent.mux: " + val);
+                    }
                 } else if (line.startsWith("agent.gateway.pac.address ")) {
                     String val = line.substring("agent.gateway.pac.address ".length()).trim();
                     String[] split = val.split(":");
@@ -0,0 +1,149 @@
+package vproxyx.websocks;
+
+import java.util.*;
+
+/**
+ * Decides which server alias a request should be proxied to.<br>
+ * The result is the same as checking every {@link DomainChecker} of every alias in order,
+ * but suffix and port rules are compiled into lookup structures,
+ * and only the rules which may come before the best match are checked one by one.<br>
+ * Decisions are cached in a bounded LRU cache.
+ */
+public class DomainMatcher {
+    private static final int NOT_MATCHED = Integer.MAX_VALUE;
+    private static final int NO_PROXY = -1;
+    public static final int DEFAULT_CACHE_SIZE = 8192;
+
+    private final String[] aliases;
+    private final int[] aliasOfRule;
+
+    // reversed chars of suffix rules
+    private final SuffixNode suffixRoot = new SuffixNode();
+    private final Map<Integer, Integer> ports = new HashMap<>();
+    // rules which cannot be compiled, in order
+    private final List<IndexedChecker> others = new ArrayList<>();
+    // whether the decision depends on the port
+    private final boolean portSensitive;
+
+    private final int cacheSize;
+    private final LinkedHashMap<String, Integer> cache;
+
+    public DomainMatcher(LinkedHashMap<String, List<DomainChecker>> domains) {
+        this(domains, DEFAULT_CACHE_SIZE);
+    }
+
+    public DomainMatcher(LinkedHashMap<String, List<DomainChecker>> domains, int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > DomainMatcher.this.cacheSize;
+            }
+        };
+
+        aliases = domains.keySet().toArray(new String[0]);
+        int total = 0;
+        for (List<DomainChecker> ls : domains.values()) {
+            total += ls.size();
+        }
+        aliasOfRule = new int[total];
+
+        boolean portSensitive = false;
+        int idx = 0;
+        for (int a = 0; a < aliases.length; ++a) {
+            for (DomainChecker checker : domains.get(aliases[a])) {
+                aliasOfRule[idx] = a;
+                if (checker instanceof SuffixDomainChecker) {
+                    addSuffix(((SuffixDomainChecker) checker).suffix, idx);
+                } else if (checker instanceof PortChecker) {
+                    ports.putIfAbsent(((PortChecker) checker).port, idx);
+                    portSensitive = true;
+                } else {
+                    if (!(checker instanceof PatternDomainChecker) && !(checker instanceof ABPDomainChecker)) {
+                        // we do not know what the checker relies on
+                        portSensitive = true;
+                    }
+                    others.add(new IndexedChecker(idx, checker));
+                }
+                ++idx;
+            }
+        }
+        this.portSensitive = portSensitive;
+    }
+
+    private void addSuffix(String suffix, int idx) {
+        SuffixNode node = suffixRoot;
+        for (int i = suffix.length() - 1; i >= 0; --i) {
+            node = node.children.computeIfAbsent(suffix.charAt(i), k -> new SuffixNode());
+        }
+        if (node.idx > idx) {
+            node.idx = idx;
+        }
+    }
+
+    /**
+     * @return the alias of the matched server group, or null if no need to proxy
+     */
+    public String match(String domain, int port) {
+        String key = portSensitive ? domain + ":" + port : domain;
+        Integer cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached == null) {
+            cached = doMatch(domain, port);
+            synchronized (cache) {
+                cache.put(key, cached);
+            }
+        }
+        return cached == NO_PROXY ? null : aliases[cached];
+    }
+
+    private int doMatch(String domain, int port) {
+        int best = matchSuffix(domain);
+        Integer portIdx = ports.get(port);
+        if (portIdx != null && portIdx < best) {
+            best = portIdx;
+        }
+        for (IndexedChecker c : others) {
+            if (c.idx >= best) {
+                break; // the following rules will not be used even if they match
+            }
+            if (c.checker.needProxy(domain, port)) {
+                best = c.idx;
+                break;
+            }
+        }
+        return best == NOT_MATCHED ? NO_PROXY : aliasOfRule[best];
+    }
+
+    private int matchSuffix(String domain) {
+        int result = suffixRoot.idx; // empty suffix
+        SuffixNode node = suffixRoot;
+        for (int i = domain.length() - 1; i >= 0; --i) {
+            node = node.children.get(domain.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.idx < result) {
+                result = node.idx;
+            }
+        }
+        return result;
+    }
+
+    private static class SuffixNode {
+        final Map<Character, SuffixNode> children = new HashMap<>();
+        int idx = NOT_MATCHED;
+    }
+
+    private static class IndexedChecker {
+        final int idx;
+        final DomainChecker checker;
+
+        IndexedChecker(int idx, DomainChecker checker) {
+            this.idx = idx;
+            this.checker = checker;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package vproxyx.websocks;
+
+class PortChecker implements DomainChecker {
+    final int port;
+
+    PortChecker(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public boolean needProxy(String domain, int port) {
+        return port == this.port;
+    }
+}
@@ -0,0 +1,115 @@
+package vproxyx.websocks;
+
+import vproxy.socks.AddressType;
+import vproxy.util.Utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The multiplexing mode of the websocks protocol.<br>
+ * The handshake is the same as the socks5 mode, except that the client sends
+ * `Sec-WebSocket-Protocol: websocks-mux`. After the two WebSocket frames are exchanged,
+ * the connection is used as a tunnel carrying frames of many streams:
+ * <pre>
+ * +--------+-------------------------------+---------------+-----------
+ * | type 1 |          stream id 4          |   length 2    |  payload
+ * +--------+-------------------------------+---------------+-----------
+ * </pre>
+ * OPEN: sent by the client, payload: [socks5 address type][address][port]<br>
+ * OPEN_ACK: sent by the server, payload: [0 for success, otherwise failed]<br>
+ * DATA: raw tcp data of the stream<br>
+ * WINDOW: payload: [4 bytes increment], the receiver allows more data to be sent<br>
+ * FIN: the sender will not send any data on this stream<br>
+ * RST: the stream is aborted<br>
+ * PING: keep the tunnel alive, no response required<br>
+ * Each side may send at most {@link #STREAM_WINDOW} bytes of DATA before receiving WINDOW frames.
+ */
+public class WebSocksMux {
+    private WebSocksMux() {
+    }
+
+    public static final String PROTOCOL = "websocks-mux";
+
+    static final byte OPEN = 1;
+    static final byte OPEN_ACK = 2;
+    static final byte DATA = 3;
+    static final byte WINDOW = 4;
+    static final byte FIN = 5;
+    static final byte RST = 6;
+    static final byte PING = 7;
+
+    static final int HEADER_LEN = 1 + 4 + 2;
+    static final int MAX_PAYLOAD = 16384;
+    static final int STREAM_WINDOW = 65536;
+    static final int PING_INTERVAL = 20_000;
+
+    static byte[] header(byte type, int streamId, int len) {
+        byte[] b = new byte[HEADER_LEN];
+        writeHeader(b, type, streamId, len);
+        return b;
+    }
+
+    static void writeHeader(byte[] b, byte type, int streamId, int len) {
+        b[0] = type;
+        b[1] = (byte) ((streamId >> 24) & 0xff);
+        b[2] = (byte) ((streamId >> 16) & 0xff);
+        b[3] = (byte) ((streamId >> 8) & 0xff);
+        b[4] = (byte) (streamId & 0xff);
+        b[5] = (byte) ((len >> 8) & 0xff);
+        b[6] = (byte) (len & 0xff);
+    }
+
+    static byte[] frame(byte type, int streamId, byte[] payload) {
+        byte[] b = new byte[HEADER_LEN + payload.length];
+        writeHeader(b, type, streamId, payload.length);
+        System.arraycopy(payload, 0, b, HEADER_LEN, payload.length);
+        return b;
+    }
+
+    static byte[] windowFrame(int streamId, int increment) {
+        return frame(WINDOW, streamId, new byte[]{
+            (byte) ((increment >> 24) & 0xff),
+            (byte) ((increment >> 16) & 0xff),
+            (byte) ((increment >> 8) & 0xff),
+            (byte) (increment & 0xff),
+        });
+    }
+
+    static int readInt(byte[] b, int off) {
+        return (Utils.positive(b[off]) << 24)
+            | (Utils.positive(b[off + 1]) << 16)
+            | (Utils.positive(b[off + 2]) << 8)
+            | Utils.positive(b[off + 3]);
+    }
+
+    // same format as the socks5 connect request: type, address, port
+    static byte[] openPayload(AddressType type, String address, int port) {
+        byte[] addr;
+        switch (type) {
+            case ipv4:
+            case ipv6:
+                addr = Utils.parseIpString(address);
+                if (addr == null || addr.length != (type == AddressType.ipv4 ? 4 : 16)) {
+                    return null;
+                }
+                break;
+            case domain:
+                byte[] chars = address.getBytes(StandardCharsets.UTF_8);
+                if (chars.length > 255) {
+                    return null;
+                }
+                addr = new byte[1 + chars.length];
+                addr[0] = (byte) chars.length;
+                System.arraycopy(chars, 0, addr, 1, chars.length);
+                break;
+            default:
+                return null;
+        }
+        byte[] payload = new byte[1 + addr.length + 2];
+        payload[0] = type.code;
+        System.arraycopy(addr, 0, payload, 1, addr.length);
+        payload[payload.length - 2] = (byte) ((port >> 8) & 0xff);
+        payload[payload.length - 1] = (byte) (port & 0xff);
+        return payload;
+    }
+}
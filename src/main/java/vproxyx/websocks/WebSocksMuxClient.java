@@ -0,0 +1,193 @@
+package vproxyx.websocks;
+
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.SvrHandleConnector;
+import vproxy.connection.*;
+import vproxy.socks.AddressType;
+import vproxy.util.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Manages the multiplexed tunnel to one server group on one event loop.<br>
+ * The Proxy lib requires a real connection for each flow, so every stream is handed to the lib
+ * via a loopback connection, the accepted side of which is bridged to the stream.
+ * Only the tunnel goes through the network.<br>
+ * All methods should be called on the loop thread.
+ */
+public class WebSocksMuxClient implements ServerHandler {
+    private static final int STREAM_ATTACH_TIMEOUT = 10_000;
+
+    private final NetEventLoop loop;
+    private final ServerGroup group;
+    final String user;
+    final String pass;
+    private final ServerSock loopback;
+    // local port of the loopback connection => stream
+    private final Map<Integer, WebSocksMuxStream> pendingStreams = new HashMap<>();
+
+    private WebSocksMuxClientTunnel tunnel;
+
+    public WebSocksMuxClient(NetEventLoop loop, ServerGroup group, String user, String pass) throws IOException {
+        this.loop = loop;
+        this.group = group;
+        this.user = user;
+        this.pass = pass;
+
+        loopback = ServerSock.create(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+        try {
+            loop.addServer(loopback, null, this);
+        } catch (IOException e) {
+            loopback.close();
+            throw e;
+        }
+    }
+
+    public void open(AddressType type, String address, int port, Consumer<Connector> providedCallback) {
+        if (tunnel == null || !tunnel.canOpen()) {
+            tunnel = connectTunnel();
+            if (tunnel == null) {
+                providedCallback.accept(null);
+                return;
+            }
+        }
+        tunnel.open(type, address, port, providedCallback);
+    }
+
+    private WebSocksMuxClientTunnel connectTunnel() {
+        SvrHandleConnector connector = group.next(null/*we ignore the source because it's wrr*/);
+        if (connector == null) {
+            assert Logger.lowLevelDebug("no available remote server connector for now");
+            return null;
+        }
+        ConnectableConnection conn;
+        try {
+            if ((Boolean) connector.getData() /*useSSL, see ConfigProcessor*/) {
+                conn = WebSocksProxyAgentConnectorProvider.CommonProcess.makeSSLConnection(loop.getSelectorEventLoop(), connector);
+            } else {
+                conn = connector.connect(
+                    WebSocksUtils.getConnectionOpts(),
+                    RingBuffer.allocateDirect(24576), RingBuffer.allocateDirect(24576));
+            }
+        } catch (IOException e) {
+            Logger.error(LogType.CONN_ERROR, "make mux tunnel to " + connector + " failed", e);
+            return null;
+        }
+        String hostname = conn.remote.getHostString();
+        if (Utils.isIpLiteral(hostname)) {
+            hostname = null;
+        }
+        WebSocksMuxClientTunnel t = new WebSocksMuxClientTunnel(this, conn, loop, hostname);
+        try {
+            loop.addConnectableConnection(conn, null, t);
+        } catch (IOException e) {
+            Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add " + conn + " to loop failed", e);
+            conn.close();
+            return null;
+        }
+        return t;
+    }
+
+    void tunnelClosed(WebSocksMuxClientTunnel t) {
+        if (tunnel == t) {
+            tunnel = null;
+        }
+        pendingStreams.values().removeIf(s -> s.tunnel == t);
+    }
+
+    Connector connectorFor(WebSocksMuxStream stream) {
+        // reset the stream if the proxy lib does not connect in time
+        loop.getSelectorEventLoop().delay(STREAM_ATTACH_TIMEOUT, () -> {
+            if (stream.conn == null && !stream.closed) {
+                Logger.warn(LogType.CONN_ERROR, "stream " + stream + " is not attached in time");
+                stream.tunnel.resetStream(stream);
+            }
+        });
+        return new StreamConnector(stream);
+    }
+
+    class StreamConnector extends Connector {
+        private final WebSocksMuxStream stream;
+
+        StreamConnector(WebSocksMuxStream stream) {
+            super(loopback.bind);
+            this.stream = stream;
+        }
+
+        @Override
+        public ConnectableConnection connect(ConnectionOpts opts, RingBuffer in, RingBuffer out) throws IOException {
+            if (stream.closed) {
+                throw new IOException("the stream " + stream.id + " is already closed");
+            }
+            ConnectableConnection conn = ConnectableConnection.create(remote,
+                new InetSocketAddress(loopback.bind.getAddress(), 0), opts, in, out);
+            int port = ((InetSocketAddress) conn.channel.getLocalAddress()).getPort();
+            pendingStreams.put(port, stream);
+            return conn;
+        }
+
+        @Override
+        public NetEventLoop loop() {
+            return loop; // the loopback connections and the tunnel should be handled on the same loop
+        }
+
+        @Override
+        public String toString() {
+            return "StreamConnector(" + stream + ")";
+        }
+    }
+
+    // ---- the loopback server ----
+
+    @Override
+    public void acceptFail(ServerHandlerContext ctx, IOException err) {
+        Logger.error(LogType.SERVER_ACCEPT_FAIL, "accept loopback connection failed", err);
+    }
+
+    @Override
+    public void connection(ServerHandlerContext ctx, Connection connection) {
+        WebSocksMuxStream stream = pendingStreams.remove(connection.remote.getPort());
+        if (stream == null || stream.closed) {
+            connection.close(true);
+            return;
+        }
+        stream.attach(connection);
+        try {
+            loop.addConnection(connection, null, stream);
+        } catch (IOException e) {
+            Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add " + connection + " to loop failed", e);
+            stream.tunnel.resetStream(stream);
+            return;
+        }
+        // maybe the local connection already sent some data
+        stream.tunnel.pump(stream);
+    }
+
+    @Override
+    public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
+        int port;
+        try {
+            port = ((InetSocketAddress) ((SocketChannel) channel).getRemoteAddress()).getPort();
+        } catch (IOException e) {
+            return null;
+        }
+        WebSocksMuxStream stream = pendingStreams.get(port);
+        if (stream == null || stream.closed) {
+            // not connected by us, refuse it
+            return null;
+        }
+        return new Tuple<>(stream.inBuffer, stream.outBuffer);
+    }
+
+    @Override
+    public void removed(ServerHandlerContext ctx) {
+        Logger.error(LogType.IMPROPER_USE, "the loopback server " + loopback + " is removed from loop");
+    }
+}
@@ -0,0 +1,178 @@
+package vproxyx.websocks;
+
+import vproxy.connection.*;
+import vproxy.http.HttpRespParser;
+import vproxy.selector.PeriodicEvent;
+import vproxy.socks.AddressType;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The client side of a multiplexed tunnel.<br>
+ * It does the websocks handshake and then opens streams for the agent.
+ */
+public class WebSocksMuxClientTunnel extends WebSocksMuxTunnel implements ConnectableConnectionHandler {
+    private final WebSocksMuxClient client;
+    private final String domainOfProxy;
+
+    // 0: init
+    // 1: expecting http resp
+    // 2: expecting WebSocket frame
+    // 3: ready
+    private int step = 0;
+    private HttpRespParser httpRespParser;
+    private ByteArrayChannel webSocketFrame;
+    private final List<Runnable> waitingForReady = new LinkedList<>();
+    private PeriodicEvent pingEvent;
+
+    private int nextStreamId = 1;
+
+    WebSocksMuxClientTunnel(WebSocksMuxClient client, ConnectableConnection conn, NetEventLoop loop, String domainOfProxy) {
+        super(conn, loop);
+        this.client = client;
+        this.domainOfProxy = domainOfProxy;
+    }
+
+    public boolean isReady() {
+        return step == 3;
+    }
+
+    // whether new streams can be opened on this tunnel
+    boolean canOpen() {
+        return !isClosed() && nextStreamId > 0 /*not overflowed*/;
+    }
+
+    void open(AddressType type, String address, int port, Consumer<Connector> providedCallback) {
+        if (!isReady()) {
+            waitingForReady.add(() -> open(type, address, port, providedCallback));
+            return;
+        }
+        byte[] payload = WebSocksMux.openPayload(type, address, port);
+        if (payload == null) {
+            Logger.error(LogType.INVALID_EXTERNAL_DATA, "cannot build OPEN frame for " + address + ":" + port);
+            providedCallback.accept(null);
+            return;
+        }
+        int id = nextStreamId++;
+        WebSocksMuxStream stream = new WebSocksMuxStream(id, this);
+        stream.openCallback = providedCallback;
+        streams.put(id, stream);
+        sendControl(WebSocksMux.frame(WebSocksMux.OPEN, id, payload));
+    }
+
+    @Override
+    protected void handleOpenAck(int streamId, byte[] payload) {
+        WebSocksMuxStream stream = streams.get(streamId);
+        if (stream == null || stream.openCallback == null) {
+            return; // already closed or handled
+        }
+        if (payload.length != 1 || payload[0] != 0) {
+            assert Logger.lowLevelDebug("stream " + streamId + " of " + this + " is refused by the server");
+            removeStream(stream);
+            stream.close(false); // the callback is called with null
+            return;
+        }
+        stream.established = true;
+        Consumer<Connector> cb = stream.openCallback;
+        stream.openCallback = null;
+        cb.accept(client.connectorFor(stream));
+    }
+
+    @Override
+    protected void tunnelClosed() {
+        if (pingEvent != null) {
+            pingEvent.cancel();
+            pingEvent = null;
+        }
+        List<Runnable> ls = new LinkedList<>(waitingForReady);
+        waitingForReady.clear();
+        // the tunnel is closed, so the callbacks will fail
+        for (Runnable r : ls) {
+            r.run();
+        }
+        client.tunnelClosed(this);
+    }
+
+    private void ready() {
+        assert Logger.lowLevelDebug("tunnel " + this + " is ready");
+        step = 3;
+        webSocketFrame = null;
+        pingEvent = loop.getSelectorEventLoop().period(WebSocksMux.PING_INTERVAL,
+            () -> sendControl(WebSocksMux.header(WebSocksMux.PING, 0, 0)));
+        List<Runnable> ls = new LinkedList<>(waitingForReady);
+        waitingForReady.clear();
+        for (Runnable r : ls) {
+            r.run();
+        }
+    }
+
+    @Override
+    public void connected(ConnectableConnectionHandlerContext ctx) {
+        WebSocksProxyAgentConnectorProvider.CommonProcess.sendUpgrade(ctx, domainOfProxy,
+            client.user, client.pass, WebSocksMux.PROTOCOL);
+        step = 1;
+        httpRespParser = new HttpRespParser(false);
+    }
+
+    @Override
+    public void readable(ConnectionHandlerContext ctx) {
+        if (step == 1) {
+            WebSocksProxyAgentConnectorProvider.CommonProcess.parseUpgradeResp(ctx, httpRespParser,
+                /* fail */() -> {
+                    Logger.error(LogType.CONN_ERROR, "handshake for mux tunnel " + this + " failed");
+                    close();
+                },
+                /* succ */() -> {
+                    httpRespParser = null;
+                    step = 2;
+                    webSocketFrame = ByteArrayChannel.fromEmpty(WebSocksUtils.bytesToSendForWebSocketFrame.length);
+                    WebSocksUtils.sendWebSocketFrame(ctx.connection.getOutBuffer());
+                });
+            if (step == 1 || isClosed()) {
+                return;
+            }
+        }
+        if (step == 2) {
+            ctx.connection.getInBuffer().writeTo(webSocketFrame);
+            if (webSocketFrame.free() != 0) {
+                return; // want more data
+            }
+            ready();
+        }
+        onReadable();
+    }
+
+    @Override
+    public void writable(ConnectionHandlerContext ctx) {
+        if (step == 3) {
+            onWritable();
+        }
+    }
+
+    @Override
+    public void exception(ConnectionHandlerContext ctx, IOException err) {
+        Logger.error(LogType.CONN_ERROR, "mux tunnel " + this + " got exception", err);
+        close();
+    }
+
+    @Override
+    public void remoteClosed(ConnectionHandlerContext ctx) {
+        close();
+    }
+
+    @Override
+    public void closed(ConnectionHandlerContext ctx) {
+        close();
+    }
+
+    @Override
+    public void removed(ConnectionHandlerContext ctx) {
+        close();
+    }
+}
@@ -0,0 +1,129 @@
+package vproxyx.websocks;
+
+import vproxy.connection.ConnectableConnection;
+import vproxy.connection.Connection;
+import vproxy.connection.Connector;
+import vproxy.connection.HappyEyeballs;
+import vproxy.connection.NetEventLoop;
+import vproxy.socks.AddressType;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.Utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The server side of a multiplexed tunnel.<br>
+ * Each OPEN frame makes a new connection to the requested endpoint.
+ */
+public class WebSocksMuxServerTunnel extends WebSocksMuxTunnel {
+    public WebSocksMuxServerTunnel(Connection conn, NetEventLoop loop) {
+        super(conn, loop);
+    }
+
+    @Override
+    protected void handleOpen(int streamId, byte[] payload) {
+        if (streams.containsKey(streamId)) {
+            protocolError("stream " + streamId + " already exists");
+            return;
+        }
+        AddressType type;
+        String address;
+        int port;
+        if (payload.length < 1 + 2) {
+            protocolError("invalid OPEN frame");
+            return;
+        }
+        int addrLen;
+        switch (payload[0]) {
+            case 1:
+                type = AddressType.ipv4;
+                addrLen = 4;
+                break;
+            case 3:
+                type = AddressType.domain;
+                addrLen = 1 + Utils.positive(payload[1]);
+                break;
+            case 4:
+                type = AddressType.ipv6;
+                addrLen = 16;
+                break;
+            default:
+                protocolError("invalid address type in OPEN frame: " + payload[0]);
+                return;
+        }
+        if (payload.length != 1 + addrLen + 2) {
+            protocolError("invalid OPEN frame length");
+            return;
+        }
+        if (type == AddressType.domain) {
+            address = new String(payload, 2, addrLen - 1, StandardCharsets.UTF_8);
+        } else {
+            address = Utils.ipStr(Arrays.copyOfRange(payload, 1, 1 + addrLen));
+        }
+        port = (Utils.positive(payload[payload.length - 2]) << 8) | Utils.positive(payload[payload.length - 1]);
+
+        WebSocksMuxStream stream = new WebSocksMuxStream(streamId, this);
+        streams.put(streamId, stream);
+        assert Logger.lowLevelDebug("stream " + streamId + " of " + this + " requests " + address + ":" + port);
+
+        // the callback may be called on other threads
+        HappyEyeballs.directConnect(loop, type, address, port, connector ->
+            loop.getSelectorEventLoop().runOnLoop(() -> connect(stream, connector)));
+    }
+
+    private void connect(WebSocksMuxStream stream, Connector connector) {
+        if (isClosed() || stream.closed) {
+            return;
+        }
+        if (connector == null) {
+            openFailed(stream);
+            return;
+        }
+        ConnectableConnection local;
+        try {
+            local = connector.connect(WebSocksUtils.getConnectionOpts(), stream.inBuffer, stream.outBuffer);
+        } catch (IOException e) {
+            Logger.error(LogType.CONN_ERROR, "connect to " + connector + " failed", e);
+            openFailed(stream);
+            return;
+        }
+        stream.attach(local);
+        try {
+            loop.addConnectableConnection(local, null, stream);
+        } catch (IOException e) {
+            Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add " + local + " to loop failed", e);
+            openFailed(stream);
+        }
+    }
+
+    // the local connection may fail before it's connected, e.g. refused,
+    // the peer is waiting for OPEN_ACK in this case
+    @Override
+    void resetStream(WebSocksMuxStream stream) {
+        if (!stream.established && !stream.closed) {
+            openFailed(stream);
+            return;
+        }
+        super.resetStream(stream);
+    }
+
+    private void openFailed(WebSocksMuxStream stream) {
+        removeStream(stream);
+        sendControl(WebSocksMux.frame(WebSocksMux.OPEN_ACK, stream.id, new byte[]{1}));
+        stream.close(true);
+    }
+
+    @Override
+    protected void streamConnected(WebSocksMuxStream stream) {
+        if (stream.closed) {
+            return;
+        }
+        Logger.alert("proxy establishes: " + conn.remote + "->" + stream.conn.remote + " (stream " + stream.id + ")");
+        stream.established = true;
+        sendControl(WebSocksMux.frame(WebSocksMux.OPEN_ACK, stream.id, new byte[]{0}));
+        pump(stream);
+    }
+}
@@ -0,0 +1,148 @@
+package vproxyx.websocks;
+
+import vproxy.connection.*;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * One stream inside a {@link WebSocksMuxTunnel}.<br>
+ * The stream owns the buffers of the local connection it is bridged to,
+ * so data may be buffered before the local connection is attached.
+ */
+public class WebSocksMuxStream implements ConnectableConnectionHandler {
+    final int id;
+    final WebSocksMuxTunnel tunnel;
+    // bytes read from the local connection, will be sent to the tunnel
+    final RingBuffer inBuffer = RingBuffer.allocateDirect(WebSocksMux.STREAM_WINDOW);
+    // bytes received from the tunnel, will be written to the local connection
+    final RingBuffer outBuffer = RingBuffer.allocateDirect(WebSocksMux.STREAM_WINDOW);
+
+    Connection conn; // the local connection, may be null when not attached yet
+    Consumer<Connector> openCallback; // only used on client side, set to null after called
+
+    boolean established = false; // OPEN and OPEN_ACK are exchanged
+    int sendWindow = WebSocksMux.STREAM_WINDOW;
+    int recvWindow = WebSocksMux.STREAM_WINDOW;
+    boolean localEof = false;
+    boolean finSent = false;
+    boolean finReceived = false;
+    boolean queued = false; // whether it's in the pending queue of the tunnel
+    boolean closed = false;
+
+    WebSocksMuxStream(int id, WebSocksMuxTunnel tunnel) {
+        this.id = id;
+        this.tunnel = tunnel;
+    }
+
+    void attach(Connection conn) {
+        this.conn = conn;
+        if (finReceived) {
+            conn.closeWrite();
+        }
+    }
+
+    // the local connection flushed some data, we may let the peer send more
+    void grantWindow() {
+        int grant = outBuffer.capacity() - outBuffer.used() - recvWindow;
+        if (grant <= 0) {
+            return;
+        }
+        if (grant < WebSocksMux.STREAM_WINDOW / 2 && outBuffer.used() != 0) {
+            return; // wait for more space to reduce WINDOW frames
+        }
+        recvWindow += grant;
+        tunnel.sendControl(WebSocksMux.windowFrame(id, grant));
+    }
+
+    void checkDone() {
+        if (closed) {
+            return;
+        }
+        if (finSent && finReceived && outBuffer.used() == 0) {
+            assert Logger.lowLevelDebug("stream " + id + " of " + tunnel + " finished");
+            tunnel.removeStream(this);
+            close(false);
+        }
+    }
+
+    void close(boolean reset) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (openCallback != null) {
+            Consumer<Connector> cb = openCallback;
+            openCallback = null;
+            cb.accept(null);
+        }
+        if (conn != null) {
+            conn.close(reset);
+        }
+        inBuffer.clean();
+        outBuffer.clean();
+    }
+
+    @Override
+    public void connected(ConnectableConnectionHandlerContext ctx) {
+        tunnel.streamConnected(this);
+    }
+
+    @Override
+    public void readable(ConnectionHandlerContext ctx) {
+        tunnel.pump(this);
+    }
+
+    @Override
+    public void writable(ConnectionHandlerContext ctx) {
+        if (closed) {
+            return;
+        }
+        grantWindow();
+        checkDone();
+    }
+
+    @Override
+    public void exception(ConnectionHandlerContext ctx, IOException err) {
+        assert Logger.lowLevelDebug("stream " + id + " of " + tunnel + " got exception: " + err);
+        tunnel.resetStream(this);
+    }
+
+    @Override
+    public void remoteClosed(ConnectionHandlerContext ctx) {
+        localEof = true;
+        tunnel.pump(this);
+        checkDone();
+    }
+
+    @Override
+    public void closed(ConnectionHandlerContext ctx) {
+        if (closed) {
+            return;
+        }
+        if (localEof && finReceived) {
+            // both directions of the local connection are done
+            // the data left in inBuffer is still able to be sent
+            tunnel.pump(this);
+            checkDone();
+        } else {
+            tunnel.resetStream(this);
+        }
+    }
+
+    @Override
+    public void removed(ConnectionHandlerContext ctx) {
+        if (!closed) {
+            Logger.error(LogType.IMPROPER_USE, "stream connection " + ctx.connection + " removed from loop");
+            tunnel.resetStream(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocksMuxStream(" + id + ", " + conn + ")";
+    }
+}
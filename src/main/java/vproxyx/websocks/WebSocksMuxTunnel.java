@@ -0,0 +1,323 @@
+package vproxyx.websocks;
+
+import vproxy.connection.Connection;
+import vproxy.connection.NetEventLoop;
+import vproxy.util.*;
+
+import java.util.*;
+
+/**
+ * The base of client and server side multiplexed tunnels.<br>
+ * It parses and writes frames described in {@link WebSocksMux},
+ * and bridges DATA frames with buffers of {@link WebSocksMuxStream}s.<br>
+ * All methods should be called on the loop thread of the tunnel connection.
+ */
+public abstract class WebSocksMuxTunnel {
+    protected final Connection conn;
+    protected final NetEventLoop loop;
+    protected final Map<Integer, WebSocksMuxStream> streams = new HashMap<>();
+
+    // control frames waiting for the out buffer to have enough space
+    private final Deque<ByteArrayChannel> controlFrames = new LinkedList<>();
+    // streams waiting for the out buffer to have enough space
+    private final Deque<WebSocksMuxStream> pendingStreams = new LinkedList<>();
+    // we copy the payload and the header into this array to form one frame
+    // so that one frame would be wrapped into one tls record if using tls
+    private final byte[] frameBytes = new byte[WebSocksMux.HEADER_LEN + WebSocksMux.MAX_PAYLOAD];
+
+    // parser state
+    private final byte[] headerBytes = new byte[WebSocksMux.HEADER_LEN];
+    private final ByteArrayChannel headerChnl = ByteArrayChannel.fromEmpty(headerBytes);
+    private boolean readingHeader = true;
+    private byte frameType;
+    private int frameStreamId;
+    private int frameRemaining;
+    private byte[] framePayload;
+    private ByteArrayChannel framePayloadChnl;
+    private WebSocksMuxStream dataTarget;
+    private final byte[] discardBytes = new byte[WebSocksMux.MAX_PAYLOAD];
+
+    private boolean closed = false;
+
+    protected WebSocksMuxTunnel(Connection conn, NetEventLoop loop) {
+        this.conn = conn;
+        this.loop = loop;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int streamCount() {
+        return streams.size();
+    }
+
+    // ---- events from the tunnel connection ----
+
+    void onReadable() {
+        RingBuffer in = conn.getInBuffer();
+        conn.runNoQuickWrite(() -> {
+            while (!closed && in.used() != 0) {
+                if (!readFrame(in)) {
+                    break;
+                }
+            }
+        });
+    }
+
+    void onWritable() {
+        if (closed) {
+            return;
+        }
+        conn.runNoQuickWrite(() -> {
+            RingBuffer out = conn.getOutBuffer();
+            while (!controlFrames.isEmpty()) {
+                ByteArrayChannel chnl = controlFrames.peekFirst();
+                out.storeBytesFrom(chnl);
+                if (chnl.used() != 0) {
+                    return; // the out buffer is full
+                }
+                controlFrames.pollFirst();
+            }
+        });
+        int size = pendingStreams.size();
+        for (int i = 0; i < size && controlFrames.isEmpty(); ++i) {
+            WebSocksMuxStream stream = pendingStreams.pollFirst();
+            if (stream == null) {
+                break;
+            }
+            stream.queued = false;
+            pump(stream);
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        assert Logger.lowLevelDebug("closing tunnel " + this + " with " + streams.size() + " streams");
+        conn.close();
+        List<WebSocksMuxStream> ls = new ArrayList<>(streams.values());
+        streams.clear();
+        for (WebSocksMuxStream s : ls) {
+            s.close(true);
+        }
+        controlFrames.clear();
+        pendingStreams.clear();
+        tunnelClosed();
+    }
+
+    // ---- parsing ----
+
+    // return true if a frame or a part of a frame is handled
+    private boolean readFrame(RingBuffer in) {
+        if (readingHeader) {
+            in.writeTo(headerChnl);
+            if (headerChnl.free() != 0) {
+                return false; // want more data
+            }
+            headerChnl.reset();
+            frameType = headerBytes[0];
+            frameStreamId = WebSocksMux.readInt(headerBytes, 1);
+            frameRemaining = (Utils.positive(headerBytes[5]) << 8) | Utils.positive(headerBytes[6]);
+            readingHeader = false;
+            if (frameType == WebSocksMux.DATA) {
+                dataTarget = streams.get(frameStreamId);
+                if (dataTarget != null && (dataTarget.finReceived || frameRemaining > dataTarget.recvWindow)) {
+                    Logger.warn(LogType.INVALID_EXTERNAL_DATA, "stream " + frameStreamId + " of " + this +
+                        " received data exceeding the window or after fin");
+                    resetStream(dataTarget);
+                    dataTarget = null;
+                }
+                if (dataTarget != null) {
+                    dataTarget.recvWindow -= frameRemaining;
+                }
+            } else if (frameRemaining != 0) {
+                framePayload = new byte[frameRemaining];
+                framePayloadChnl = ByteArrayChannel.fromEmpty(framePayload);
+            } else {
+                framePayload = new byte[0];
+            }
+        }
+        if (frameType == WebSocksMux.DATA) {
+            if (frameRemaining != 0) {
+                if (dataTarget != null && dataTarget.closed) {
+                    dataTarget = null;
+                }
+                int n;
+                if (dataTarget == null) {
+                    ByteArrayChannel chnl = ByteArrayChannel.from(discardBytes, 0, 0, Math.min(frameRemaining, discardBytes.length));
+                    n = in.writeTo(chnl);
+                } else {
+                    n = in.writeTo(dataTarget.outBuffer, frameRemaining);
+                }
+                frameRemaining -= n;
+                if (frameRemaining != 0) {
+                    return n != 0;
+                }
+            }
+            readingHeader = true;
+            dataTarget = null;
+            return true;
+        }
+        if (framePayloadChnl != null) {
+            in.writeTo(framePayloadChnl);
+            if (framePayloadChnl.free() != 0) {
+                return false; // want more data
+            }
+        }
+        readingHeader = true;
+        byte[] payload = framePayload;
+        framePayload = null;
+        framePayloadChnl = null;
+        handleFrame(frameType, frameStreamId, payload);
+        return true;
+    }
+
+    private void handleFrame(byte type, int streamId, byte[] payload) {
+        WebSocksMuxStream stream;
+        switch (type) {
+            case WebSocksMux.OPEN:
+                handleOpen(streamId, payload);
+                break;
+            case WebSocksMux.OPEN_ACK:
+                handleOpenAck(streamId, payload);
+                break;
+            case WebSocksMux.WINDOW:
+                stream = streams.get(streamId);
+                if (stream == null) {
+                    break;
+                }
+                if (payload.length != 4) {
+                    protocolError("invalid WINDOW frame");
+                    return;
+                }
+                stream.sendWindow += WebSocksMux.readInt(payload, 0);
+                pump(stream);
+                break;
+            case WebSocksMux.FIN:
+                stream = streams.get(streamId);
+                if (stream == null) {
+                    break;
+                }
+                stream.finReceived = true;
+                if (stream.conn != null) {
+                    stream.conn.closeWrite();
+                }
+                stream.checkDone();
+                break;
+            case WebSocksMux.RST:
+                stream = streams.remove(streamId);
+                if (stream != null) {
+                    assert Logger.lowLevelDebug("stream " + streamId + " of " + this + " is reset by peer");
+                    stream.close(true);
+                }
+                break;
+            case WebSocksMux.PING:
+                assert Logger.lowLevelDebug("received PING on " + this);
+                break;
+            default:
+                protocolError("unknown frame type " + type);
+        }
+    }
+
+    protected void protocolError(String msg) {
+        Logger.error(LogType.INVALID_EXTERNAL_DATA, "tunnel " + this + " got invalid data: " + msg);
+        close();
+    }
+
+    // ---- writing ----
+
+    void sendControl(byte[] frame) {
+        if (closed) {
+            return;
+        }
+        ByteArrayChannel chnl = ByteArrayChannel.fromFull(frame);
+        if (controlFrames.isEmpty()) {
+            conn.runNoQuickWrite(() -> conn.getOutBuffer().storeBytesFrom(chnl));
+            if (chnl.used() == 0) {
+                return;
+            }
+        }
+        controlFrames.addLast(chnl);
+    }
+
+    private void enqueue(WebSocksMuxStream stream) {
+        if (stream.queued) {
+            return;
+        }
+        stream.queued = true;
+        pendingStreams.addLast(stream);
+    }
+
+    void pump(WebSocksMuxStream stream) {
+        if (closed || stream.closed || !stream.established) {
+            return;
+        }
+        if (!controlFrames.isEmpty()) {
+            enqueue(stream);
+            return;
+        }
+        RingBuffer out = conn.getOutBuffer();
+        conn.runNoQuickWrite(() -> {
+            while (stream.sendWindow > 0 && stream.inBuffer.used() > 0) {
+                int free = out.free();
+                if (free <= WebSocksMux.HEADER_LEN) {
+                    enqueue(stream);
+                    return;
+                }
+                int n = Math.min(Math.min(stream.inBuffer.used(), stream.sendWindow),
+                    Math.min(free - WebSocksMux.HEADER_LEN, WebSocksMux.MAX_PAYLOAD));
+                ByteArrayChannel chnl = ByteArrayChannel.from(frameBytes, 0, WebSocksMux.HEADER_LEN, n);
+                n = stream.inBuffer.writeTo(chnl);
+                WebSocksMux.writeHeader(frameBytes, WebSocksMux.DATA, stream.id, n);
+                out.storeBytesFrom(chnl);
+                stream.sendWindow -= n;
+            }
+        });
+        if (stream.inBuffer.used() == 0 && stream.localEof && !stream.finSent) {
+            stream.finSent = true;
+            sendControl(WebSocksMux.header(WebSocksMux.FIN, stream.id, 0));
+            stream.checkDone();
+        }
+    }
+
+    // ---- stream management ----
+
+    void removeStream(WebSocksMuxStream stream) {
+        streams.remove(stream.id);
+    }
+
+    void resetStream(WebSocksMuxStream stream) {
+        if (stream.closed) {
+            return;
+        }
+        assert Logger.lowLevelDebug("reset stream " + stream.id + " of " + this);
+        removeStream(stream);
+        sendControl(WebSocksMux.header(WebSocksMux.RST, stream.id, 0));
+        stream.close(true);
+    }
+
+    // the local connection of the stream is connected, only fired on server side
+    protected void streamConnected(WebSocksMuxStream stream) {
+        // default: do nothing
+    }
+
+    protected void handleOpen(int streamId, byte[] payload) {
+        protocolError("unexpected OPEN frame");
+    }
+
+    protected void handleOpenAck(int streamId, byte[] payload) {
+        protocolError("unexpected OPEN_ACK frame");
+    }
+
+    protected void tunnelClosed() {
+        // default: do nothing
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + conn + ", streams=" + streams.size() + ")";
+    }
+}
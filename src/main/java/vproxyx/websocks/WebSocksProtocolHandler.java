@@ -1,6 +1,7 @@
 package vproxyx.websocks;
 
 import vproxy.connection.Connector;
+import vproxy.connection.HappyEyeballs;
 import vproxy.http.HttpContext;
 import vproxy.http.HttpProtocolHandler;
 import vproxy.processor.http1.entity.Header;
@@ -25,6 +26,7 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
         @Override
         protected void request(ProtocolHandlerContext<HttpContext> ctx) {
             Request req = ctx.data.result;
+            String useProtocol;
             assert Logger.lowLevelDebug("receive new request " + req);
             if (!req.method.equals("GET")) {
                 fail(ctx, 400, "invalid http method for upgrading to WebSocket");
@@ -43,12 +45,11 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
                 return;
             }
             {
-                String useProtocol = selectProtocol(req.headers);
+                useProtocol = selectProtocol(req.headers);
                 if (useProtocol == null) {
                     fail(ctx, 400, "no supported protocol");
                     return;
                 }
-                // we only support socks5 for now, so no need to save this protocol string
             }
 
             String key = null;
@@ -68,15 +69,16 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
                 // handling on the server side
                 WebSocksHttpContext wrapCtx = (WebSocksHttpContext) ctx.data;
                 wrapCtx.webSocksProxyContext.step = 2; // next step is WebSocket
+                wrapCtx.webSocksProxyContext.useMux = useProtocol.equals(WebSocksMux.PROTOCOL);
                 int expectingLen = WebSocksUtils.bytesToSendForWebSocketFrame.length;
                 byte[] foo = new byte[expectingLen];
                 wrapCtx.webSocksProxyContext.webSocketBytes = ByteArrayChannel.fromEmpty(foo);
             }
-            ctx.write(response(101, accept)); // respond to the client about the upgrading
+            ctx.write(response(101, accept, useProtocol)); // respond to the client about the upgrading
         }
 
         // it's ordered with `-priority`, smaller the index is, higher priority it has
-        private final List<String> supportedProtocols = Collections.singletonList("socks5");
+        private final List<String> supportedProtocols = Arrays.asList("socks5", WebSocksMux.PROTOCOL);
 
         private String selectProtocol(List<Header> headers) {
             List<String> protocols = new ArrayList<>();
@@ -176,6 +178,10 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
         }};
 
         private byte[] response(int statusCode, String msg) {
+            return response(statusCode, msg, null);
+        }
+
+        private byte[] response(int statusCode, String msg, String protocol) {
             String statusMsg = STATUS_MSG.get(statusCode);
             Response resp = new Response();
             resp.version = "HTTP/1.1";
@@ -186,7 +192,7 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
                 resp.headers.add(new Header("Upgrade", "websocket"));
                 resp.headers.add(new Header("Connection", "Upgrade"));
                 resp.headers.add(new Header("Sec-Websocket-Accept", msg));
-                resp.headers.add(new Header("Sec-WebSocket-Protocol", "socks5"));
+                resp.headers.add(new Header("Sec-WebSocket-Protocol", protocol));
             } else {
                 if (statusCode == 401) {
                     resp.headers.add(new Header("WWW-Authenticate", "Basic"));
@@ -205,7 +211,7 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
 
     private final Socks5ProxyProtocolHandler socks5Handler = new Socks5ProxyProtocolHandler(
         (accepted, type, address, port, providedCallback) ->
-            Utils.directConnect(type, address, port, providedCallback));
+            HappyEyeballs.directConnect(accepted.getEventLoop(), type, address, port, providedCallback));
 
     private final Map<String, String> auth;
     private final Supplier<SSLEngine> engineSupplier;
@@ -271,6 +277,8 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
             httpProtocolHandler.readable(ctx.data.left.httpContext);
         } else if (ctx.data.left.step == 2) { // WebSocket
             handleWebSocket(ctx);
+        } else if (ctx.data.left.step == 4) { // mux
+            ctx.data.left.muxTunnel.onReadable();
         } else { // socks5 step
             socks5Handler.readable(ctx.data.left.socks5Context);
         }
@@ -303,8 +311,14 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
             return; // need more data
         }
         assert Logger.lowLevelDebug("web socket data receiving done");
-        ctx.data.left.step = 3; // socks5
         WebSocksUtils.sendWebSocketFrame(ctx.connection.getOutBuffer());
+        if (ctx.data.left.useMux) {
+            assert Logger.lowLevelDebug("the connection is used as a multiplexed tunnel");
+            ctx.data.left.step = 4; // mux
+            ctx.data.left.muxTunnel = new WebSocksMuxServerTunnel(ctx.connection, ctx.connection.getEventLoop());
+        } else {
+            ctx.data.left.step = 3; // socks5
+        }
         if (ctx.inBuffer.used() != 0) {
             // still have data
             // let's call readable to handle the socks step
@@ -312,6 +326,13 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
         }
     }
 
+    @Override
+    public void writable(ProtocolHandlerContext<Tuple<WebSocksProxyContext, Callback<Connector, IOException>>> ctx) {
+        if (ctx.data.left.step == 4) { // mux
+            ctx.data.left.muxTunnel.onWritable();
+        }
+    }
+
     @Override
     public void exception(ProtocolHandlerContext<Tuple<WebSocksProxyContext, Callback<Connector, IOException>>> ctx, Throwable err) {
         // connection should be closed by the protocol lib
@@ -324,12 +345,17 @@ public class WebSocksProtocolHandler implements ProtocolHandler<Tuple<WebSocksPr
         // connection is closed by the protocol lib
         // we ignore the event here
         assert Logger.lowLevelDebug("WebSocks end " + ctx.connectionId);
+        if (ctx.data.left.muxTunnel != null) {
+            ctx.data.left.muxTunnel.close();
+        }
     }
 
     @Override
     public boolean closeOnRemoval(ProtocolHandlerContext<Tuple<WebSocksProxyContext, Callback<Connector, IOException>>> ctx) {
         if (ctx.data.left.step == 1 || ctx.data.left.step == 2) { // http step or WebSocket frame step
             return true; // proxy not established yet, so close the connection
+        } else if (ctx.data.left.step == 4) { // mux step
+            return true; // the tunnel is only handled in this handler
         } else { // socks5 step
             return socks5Handler.closeOnRemoval(ctx.data.left.socks5Context);
         }
@@ -19,6 +19,7 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvider {
@@ -531,6 +532,10 @@ public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvi
         }
 
         static void sendUpgrade(ConnectableConnectionHandlerContext ctx, String domainOfProxy, String user, String pass) {
+            sendUpgrade(ctx, domainOfProxy, user, pass, "socks5");
+        }
+
+        static void sendUpgrade(ConnectableConnectionHandlerContext ctx, String domainOfProxy, String user, String pass, String protocol) {
             // send http upgrade on connection
             byte[] bytes = ("" +
                 "GET / HTTP/1.1\r\n" +
@@ -539,7 +544,7 @@ public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvi
                 "Host: " + domainOfProxy + "\r\n" +
                 "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" + // copied from rfc 6455, we don't care in the protocol
                 "Sec-WebSocket-Version: 13\r\n" +
-                "Sec-WebSocket-Protocol: socks5\r\n" + // for now, we support socks5 only
+                "Sec-WebSocket-Protocol: " + protocol + "\r\n" + // socks5 or websocks-mux
                 "Authorization: Basic " +
                 Base64.getEncoder().encodeToString((user + ":" + WebSocksUtils.calcPass(pass, Utils.currentMinute())).getBytes()) +
                 "\r\n" +
@@ -583,21 +588,28 @@ public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvi
     }
 
     private final boolean strictMode;
-    private final LinkedHashMap<String, List<DomainChecker>> proxyDomains;
+    private final DomainMatcher domainMatcher;
     private final Map<String, ServerGroup> servers;
     private final String user;
     private final String pass;
     private final Map<String, ConnectionPool> pool;
+    private final boolean mux;
+    // loop => alias => mux client, only used when mux is enabled
+    private final Map<NetEventLoop, Map<String, WebSocksMuxClient>> muxClients = new ConcurrentHashMap<>();
 
     public WebSocksProxyAgentConnectorProvider(NetEventLoop eventLoop,
                                                ConfigProcessor config) {
         this.strictMode = config.isStrictMode();
-        this.proxyDomains = config.getDomains();
+        this.domainMatcher = new DomainMatcher(config.getDomains());
         this.servers = config.getServers();
         this.user = config.getUser();
         this.pass = config.getPass();
+        this.mux = config.isMux();
 
         pool = new HashMap<>();
+        if (mux) {
+            return; // the pool is not used when mux is enabled
+        }
         for (String alias : config.getServers().keySet()) {
             final String finalAlias = alias;
             pool.put(alias, new ConnectionPool(eventLoop,
@@ -607,14 +619,7 @@ public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvi
     }
 
     private String getProxy(String address, int port) {
-        for (Map.Entry<String, List<DomainChecker>> entry : proxyDomains.entrySet()) {
-            for (DomainChecker checker : entry.getValue()) {
-                if (checker.needProxy(address, port)) {
-                    return entry.getKey();
-                }
-            }
-        }
-        return null;
+        return domainMatcher.match(address, port);
     }
 
     @Override
@@ -624,7 +629,7 @@ public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvi
         if (serverAlias == null) {
             Logger.alert("directly request " + address + ":" + port);
             // just directly connect to the endpoint
-            Utils.directConnect(type, address, port, providedCallback);
+            HappyEyeballs.directConnect(accepted.getEventLoop(), type, address, port, providedCallback);
             return;
         }
 
@@ -638,6 +643,24 @@ public class WebSocksProxyAgentConnectorProvider implements Socks5ConnectorProvi
             return;
         }
 
+        if (mux) {
+            // the mux client is bound to the loop, and the loop is handled by only one thread
+            Map<String, WebSocksMuxClient> clients = muxClients.computeIfAbsent(loop, l -> new HashMap<>());
+            WebSocksMuxClient client = clients.get(serverAlias);
+            if (client == null) {
+                try {
+                    client = new WebSocksMuxClient(loop, servers.get(serverAlias), user, pass);
+                } catch (IOException e) {
+                    Logger.error(LogType.CONN_ERROR, "creating mux client for " + serverAlias + " failed", e);
+                    providedCallback.accept(null);
+                    return;
+                }
+                clients.put(serverAlias, client);
+            }
+            client.open(type, address, port, providedCallback);
+            return;
+        }
+
         // try to fetch an existing connection from pool
         pool.get(serverAlias).get(loop.getSelectorEventLoop(), conn -> {
             boolean isPooledConn = conn != null;
@@ -15,6 +15,8 @@ public class WebSocksProxyContext {
 
     final ProtocolHandlerContext<HttpContext> httpContext;
     ByteArrayChannel webSocketBytes;
+    boolean useMux = false;
+    WebSocksMuxServerTunnel muxTunnel;
     final ProtocolHandlerContext<Tuple<Socks5ProxyContext, Callback<Connector, IOException>>> socks5Context;
 
     public WebSocksProxyContext(ProtocolHandlerContext<HttpContext> httpContext,
@@ -0,0 +1,16 @@
+package vserver;
+
+import vproxy.util.ByteArray;
+
+/**
+ * Receives the body of a streaming request part by part.
+ */
+public interface BodyHandler {
+    void chunk(ByteArray data);
+
+    /**
+     * the body ends, trailers (if any) can be read from the headers of the context.<br>
+     * Not called if the body is invalid or the connection closes before the body ends.
+     */
+    void end();
+}
@@ -0,0 +1,17 @@
+package vserver;
+
+/**
+ * The body of a request handled by a route registered with {@link HttpServer#stream}.<br>
+ * The body is read from the connection only when the handler is set and the stream is not paused,
+ * so a paused stream fills the in buffer of the connection, and then the connection stops reading.
+ */
+public interface BodyStream {
+    /**
+     * set the handler, data is not read before the handler is set
+     */
+    void handler(BodyHandler handler);
+
+    void pause();
+
+    void resume();
+}
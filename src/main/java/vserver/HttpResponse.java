@@ -2,6 +2,9 @@ package vserver;
 
 import vjson.JSON;
 import vproxy.util.ByteArray;
+import vproxy.util.FileRegion;
+
+import java.nio.channels.ReadableByteChannel;
 
 public interface HttpResponse {
     default HttpResponse status(int code) {
@@ -26,4 +29,25 @@ public interface HttpResponse {
     }
 
     void end(ByteArray body);
+
+    /**
+     * Send a part of the body with chunked transfer encoding.
+     * The status and headers are sent with the first chunk,
+     * and the response is finished by any of the <code>end</code> methods.
+     */
+    HttpResponse sendChunk(ByteArray chunk);
+
+    /**
+     * Send the body pulled from the channel with chunked transfer encoding.
+     * Data is pulled only when the out buffer of the connection has free space,
+     * see {@link vproxy.http.ChunkedEncodingChannel} for the requirements of the channel.
+     */
+    void end(ReadableByteChannel body);
+
+    /**
+     * Send a region of a file as the body.
+     * The bytes are sent from the file to the socket without copying when possible,
+     * and the file is closed after it's sent.
+     */
+    void end(FileRegion file);
 }
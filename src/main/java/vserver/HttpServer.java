@@ -42,6 +42,17 @@ public interface HttpServer {
 
     HttpServer handle(HttpMethod[] methods, Route route, RoutingHandler handler);
 
+    default HttpServer stream(HttpMethod method, String route, RoutingHandler handler) {
+        return stream(new HttpMethod[]{method}, Route.create(route), handler);
+    }
+
+    /**
+     * The handler chain of a request matching a streaming route runs as soon as the headers are received,
+     * and the body is read via {@link RoutingContext#bodyStream()} instead of being buffered,
+     * so {@link RoutingContext#body()} returns null for all handlers of the request.
+     */
+    HttpServer stream(HttpMethod[] methods, Route route, RoutingHandler handler);
+
     default void listen(int port) throws IOException {
         listen(port, "0.0.0.0");
     }
@@ -29,6 +29,13 @@ public interface Route {
 
     boolean match(String route);
 
+    /**
+     * match the path segment at [start, end) of the uri, without extracting the segment
+     */
+    default boolean match(String uri, int start, int end) {
+        return match(uri.substring(start, end));
+    }
+
     boolean currentSame(Route r);
 
     void fill(RoutingContext ctx, String route);
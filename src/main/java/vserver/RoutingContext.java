@@ -12,6 +12,7 @@ public class RoutingContext {
     private final Map<String, String> query;
     private final Map<String, String> headers;
     private final ByteArray body;
+    private final BodyStream bodyStream;
     private final Map<String, String> params = new HashMap<>();
     private final Map<StorageKey, Object> storage = new HashMap<>();
     private final HttpResponse response;
@@ -28,11 +29,23 @@ public class RoutingContext {
                           ByteArray body,
                           HttpResponse response,
                           HandlerChain chain) {
+        this(method, uri, query, headers, body, null, response, chain);
+    }
+
+    public RoutingContext(HttpMethod method,
+                          String uri,
+                          Map<String, String> query,
+                          Map<String, String> headers,
+                          ByteArray body,
+                          BodyStream bodyStream,
+                          HttpResponse response,
+                          HandlerChain chain) {
         this.method = method;
         this.uri = uri;
         this.query = Collections.unmodifiableMap(query);
         this.headers = Collections.unmodifiableMap(headers);
         this.body = body;
+        this.bodyStream = bodyStream;
         this.response = response;
         this.chain = chain;
     }
@@ -76,6 +89,13 @@ public class RoutingContext {
         return body;
     }
 
+    /**
+     * @return the body stream when the request is handled by a streaming route, otherwise null
+     */
+    public BodyStream bodyStream() {
+        return bodyStream;
+    }
+
     public void next() {
         chain.next();
     }
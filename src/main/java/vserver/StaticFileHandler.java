@@ -0,0 +1,435 @@
+package vserver;
+
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.ByteArray;
+import vproxy.util.FileRegion;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves files under a directory, e.g.
+ * <code>server.handle(new HttpMethod[]{GET, HEAD}, "/static/*", new StaticFileHandler("/static", "/var/www"))</code><br>
+ * Files are sent from the file to the socket directly with {@link FileRegion},
+ * and small files are kept in an LRU cache limited by the total bytes.
+ * Conditional requests (ETag/Last-Modified) and single byte ranges are supported.<br>
+ * Symbolic links are followed only when the target is still under the root.<br>
+ * The file system calls (attributes, opening and reading small files) may block,
+ * so they run on a worker thread shared by all handlers, and the response is sent on the loop of the connection.
+ * The region of a large file is pulled only when the out buffer of the connection has free space.
+ */
+public class StaticFileHandler implements RoutingHandler {
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_CACHED_FILE_SIZE = 64 * 1024;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH)
+        .withZone(ZoneOffset.UTC);
+    private static final long[] UNSATISFIABLE = new long[0];
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+        Map.entry("html", "text/html; charset=utf-8"),
+        Map.entry("htm", "text/html; charset=utf-8"),
+        Map.entry("css", "text/css; charset=utf-8"),
+        Map.entry("js", "application/javascript; charset=utf-8"),
+        Map.entry("json", "application/json"),
+        Map.entry("txt", "text/plain; charset=utf-8"),
+        Map.entry("xml", "application/xml"),
+        Map.entry("pac", "application/x-ns-proxy-autoconfig"),
+        Map.entry("png", "image/png"),
+        Map.entry("jpg", "image/jpeg"),
+        Map.entry("jpeg", "image/jpeg"),
+        Map.entry("gif", "image/gif"),
+        Map.entry("svg", "image/svg+xml"),
+        Map.entry("ico", "image/x-icon"),
+        Map.entry("woff", "font/woff"),
+        Map.entry("woff2", "font/woff2"),
+        Map.entry("wasm", "application/wasm"),
+        Map.entry("pdf", "application/pdf"),
+        Map.entry("zip", "application/zip"),
+        Map.entry("mp4", "video/mp4")
+    );
+
+    private static class CachedFile {
+        final long size;
+        final long lastModified;
+        final ByteArray content;
+
+        CachedFile(long size, long lastModified, ByteArray content) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+
+    private final String prefix;
+    private final Path root;
+    private volatile Path realRoot; // resolved when the first request comes, the dir may not exist yet
+    private final long cacheBytes;
+    private final int maxCachedFileSize;
+    // the handler may run on multiple loops, access it with synchronized
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    public StaticFileHandler(String prefix, String dir) {
+        this(prefix, dir, DEFAULT_CACHE_BYTES, DEFAULT_MAX_CACHED_FILE_SIZE);
+    }
+
+    /**
+     * @param prefix            the prefix of the request path which is removed to get the file path
+     * @param dir               the root directory of the files
+     * @param cacheBytes        max total bytes of cached files
+     * @param maxCachedFileSize files larger than this are never cached
+     */
+    public StaticFileHandler(String prefix, String dir, long cacheBytes, int maxCachedFileSize) {
+        this.prefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        this.root = Paths.get(dir).toAbsolutePath().normalize();
+        this.cacheBytes = cacheBytes;
+        this.maxCachedFileSize = maxCachedFileSize;
+    }
+
+    // the blocking file system calls run on this loop
+    private static class Worker {
+        static final SelectorEventLoop loop = start();
+
+        private static SelectorEventLoop start() {
+            SelectorEventLoop loop;
+            try {
+                loop = SelectorEventLoop.open();
+            } catch (IOException e) {
+                Logger.shouldNotHappen("creating the static file worker failed", e);
+                throw new RuntimeException(e);
+            }
+            loop.loop(r -> {
+                Thread t = new Thread(r, "vproxy-static-file");
+                t.setDaemon(true);
+                return t;
+            });
+            return loop;
+        }
+    }
+
+    @Override
+    public void accept(RoutingContext rctx) {
+        if (rctx.method() != HttpMethod.GET && rctx.method() != HttpMethod.HEAD) {
+            rctx.response().status(405).header("Allow", "GET, HEAD").end();
+            return;
+        }
+        String path = rctx.uri();
+        int q = path.indexOf('?');
+        if (q != -1) {
+            path = path.substring(0, q);
+        }
+        if (!path.startsWith(prefix)) {
+            notFound(rctx);
+            return;
+        }
+        String rel = path.substring(prefix.length());
+        while (rel.startsWith("/")) {
+            rel = rel.substring(1);
+        }
+        Path file = root.resolve(rel).normalize();
+        if (!file.startsWith(root)) {
+            notFound(rctx); // do not expose anything out of the root
+            return;
+        }
+        SelectorEventLoop loop = SelectorEventLoop.current();
+        Worker.loop.runOnLoop(() -> lookup(rctx, file, loop));
+    }
+
+    // run on the worker
+    private void lookup(RoutingContext rctx, Path file, SelectorEventLoop loop) {
+        BasicFileAttributes attrs;
+        Path real;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                file = file.resolve("index.html");
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+            // the path is normalized without following links, check the target as well
+            real = file.toRealPath();
+            if (!real.startsWith(realRoot())) {
+                assert Logger.lowLevelDebug("file " + file + " links to " + real + " out of the root " + root);
+                reply(loop, () -> notFound(rctx));
+                return;
+            }
+        } catch (IOException e) {
+            reply(loop, () -> notFound(rctx));
+            return;
+        }
+        if (!attrs.isRegularFile()) {
+            reply(loop, () -> notFound(rctx));
+            return;
+        }
+        serve(rctx, real, attrs.size(), attrs.lastModifiedTime().toMillis(), loop);
+    }
+
+    private Path realRoot() throws IOException {
+        Path p = realRoot;
+        if (p == null) {
+            p = root.toRealPath();
+            realRoot = p;
+        }
+        return p;
+    }
+
+    /**
+     * run the response on the loop of the connection
+     *
+     * @return false if the loop is already closed
+     */
+    private static boolean reply(SelectorEventLoop loop, Runnable r) {
+        if (loop == null) {
+            r.run();
+            return true;
+        }
+        if (loop.isClosed()) {
+            return false;
+        }
+        loop.runOnLoop(r);
+        return true;
+    }
+
+    // run on the worker
+    private void serve(RoutingContext rctx, Path file, long size, long lastModified, SelectorEventLoop loop) {
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+        if (notModified(rctx, etag, lastModified)) {
+            reply(loop, () -> headers(rctx, file, etag, lastModified).status(304).end());
+            return;
+        }
+
+        long off = 0;
+        long len = size;
+        long[] range = null;
+        if (rangeApplies(rctx.header("if-range"), etag, lastModified)) {
+            range = parseRange(rctx.header("range"), size);
+            if (range == UNSATISFIABLE) {
+                reply(loop, () -> headers(rctx, file, etag, lastModified).status(416).header("Content-Range", "bytes */" + size).end());
+                return;
+            }
+            if (range != null) {
+                off = range[0];
+                len = range[1] - range[0] + 1;
+            }
+        }
+
+        // prepare the body before sending anything, the file may be removed after reading its attributes
+        ByteArray content = null;
+        FileChannel chnl = null;
+        if (rctx.method() != HttpMethod.HEAD) {
+            if (size <= maxCachedFileSize) {
+                content = cached(file, size, lastModified);
+            }
+            if (content == null || content.length() != size) {
+                content = null;
+                try {
+                    chnl = FileChannel.open(file, StandardOpenOption.READ);
+                } catch (IOException e) {
+                    assert Logger.lowLevelDebug("opening file " + file + " failed: " + e);
+                    reply(loop, () -> notFound(rctx));
+                    return;
+                }
+            }
+        }
+
+        long[] fRange = range;
+        long fOff = off;
+        long fLen = len;
+        ByteArray fContent = content;
+        FileChannel fChnl = chnl;
+        boolean replied = reply(loop, () -> {
+            HttpResponse response = headers(rctx, file, etag, lastModified);
+            if (fRange != null) {
+                response.status(206).header("Content-Range", "bytes " + fRange[0] + "-" + fRange[1] + "/" + size);
+            }
+            if (fContent != null) {
+                response.end(fContent.sub((int) fOff, (int) fLen));
+            } else if (fChnl != null) {
+                response.end(new FileRegion(fChnl, fOff, fLen));
+            } else { // HEAD
+                response.header("Content-Length", Long.toString(fLen)).end();
+            }
+        });
+        if (!replied && chnl != null) {
+            // the connection is gone with its loop
+            try {
+                chnl.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static HttpResponse headers(RoutingContext rctx, Path file, String etag, long lastModified) {
+        return rctx.response()
+            .header("Accept-Ranges", "bytes")
+            .header("ETag", etag)
+            .header("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)))
+            .header("Content-Type", contentType(file));
+    }
+
+    private static void notFound(RoutingContext rctx) {
+        rctx.response().status(404).end("Cannot " + rctx.method() + " " + rctx.uri() + "\r\n");
+    }
+
+    private static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        int idx = name.lastIndexOf('.');
+        String type = idx == -1 ? null : CONTENT_TYPES.get(name.substring(idx + 1).toLowerCase());
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    private static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static boolean notModified(RoutingContext rctx, String etag, long lastModified) {
+        String inm = rctx.header("if-none-match");
+        if (inm != null) {
+            for (String tag : inm.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2); // weak comparison
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false; // If-Modified-Since is ignored when If-None-Match exists
+        }
+        String ims = rctx.header("if-modified-since");
+        if (ims == null) {
+            return false;
+        }
+        long since = parseDate(ims);
+        return since != -1 && lastModified / 1000 <= since / 1000;
+    }
+
+    private static boolean rangeApplies(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false; // weak tags cannot be used for ranges
+        }
+        long date = parseDate(ifRange);
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * @return {first, last} of the range, null to send the whole file, or UNSATISFIABLE
+     */
+    private static long[] parseRange(String range, long size) {
+        if (range == null) {
+            return null;
+        }
+        range = range.trim();
+        if (!range.startsWith("bytes=")) {
+            return null; // unknown unit
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        if (spec.contains(",")) {
+            return null; // multiple ranges are not supported, the whole file is sent
+        }
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        long start;
+        long end;
+        try {
+            if (first.isEmpty()) {
+                // suffix: the last n bytes
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long n = Long.parseLong(last);
+                if (n == 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, size - n);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (last.isEmpty()) {
+                    end = size - 1;
+                } else {
+                    end = Long.parseLong(last);
+                    if (end < start) {
+                        return null; // invalid range is ignored
+                    }
+                    end = Math.min(end, size - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (start >= size) {
+            return UNSATISFIABLE;
+        }
+        return new long[]{start, end};
+    }
+
+    private ByteArray cached(Path file, long size, long lastModified) {
+        synchronized (cache) {
+            CachedFile f = cache.get(file);
+            if (f != null) {
+                if (f.size == size && f.lastModified == lastModified) {
+                    return f.content;
+                }
+                // modified
+                cache.remove(file);
+                cachedBytes -= f.content.length();
+            }
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            assert Logger.lowLevelDebug("reading file " + file + " failed: " + e);
+            return null;
+        }
+        ByteArray content = ByteArray.from(bytes);
+        if (bytes.length > cacheBytes) {
+            return content;
+        }
+        synchronized (cache) {
+            CachedFile old = cache.put(file, new CachedFile(size, lastModified, content));
+            if (old != null) {
+                cachedBytes -= old.content.length();
+            }
+            cachedBytes += bytes.length;
+            // evict the least recently used files
+            var ite = cache.values().iterator();
+            while (cachedBytes > cacheBytes && ite.hasNext()) {
+                CachedFile evicted = ite.next();
+                ite.remove();
+                cachedBytes -= evicted.content.length();
+            }
+        }
+        return content;
+    }
+}
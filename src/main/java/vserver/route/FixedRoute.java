@@ -22,6 +22,11 @@ public class FixedRoute implements Route {
         return this.route.equals(route);
     }
 
+    @Override
+    public boolean match(String uri, int start, int end) {
+        return end - start == route.length() && uri.regionMatches(start, route, 0, route.length());
+    }
+
     @Override
     public boolean currentSame(Route r) {
         return r instanceof FixedRoute && ((FixedRoute) r).route.equals(route);
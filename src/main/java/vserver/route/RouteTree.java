@@ -0,0 +1,201 @@
+package vserver.route;
+
+import vproxy.util.Tree;
+import vserver.Route;
+import vserver.RoutingContext;
+import vserver.RoutingHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The routes of one http method, compiled into an immutable tree of path segments.<br>
+ * The uri is matched in place: path segments are located by index,
+ * and variables only record where their values are in the uri.<br>
+ * Handlers are matched in the same order as they are recorded in the source tree,
+ * so a handler registered earlier runs earlier in the handler chain.
+ */
+public class RouteTree {
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final RoutingHandler[] NO_HANDLERS = new RoutingHandler[0];
+
+    private static class Node {
+        final Route route;
+        final boolean isWildcard;
+        final boolean fillsValue; // variables or custom routes
+        final Node[] children;
+        final RoutingHandler[] handlers;
+
+        Node(Route route, Node[] children, RoutingHandler[] handlers) {
+            this.route = route;
+            this.isWildcard = route instanceof WildcardRoute;
+            this.fillsValue = route != null && !(route instanceof FixedRoute) && !isWildcard;
+            this.children = children;
+            this.handlers = handlers;
+        }
+    }
+
+    // values of the variables on the matched path, the last one is the head of the list
+    private static class Param {
+        final Param parent;
+        final Route route;
+        final String uri;
+        final int start;
+        final int end;
+
+        Param(Param parent, Route route, String uri, int start, int end) {
+            this.parent = parent;
+            this.route = route;
+            this.uri = uri;
+            this.start = start;
+            this.end = end;
+        }
+
+        void fill(RoutingContext ctx) {
+            if (parent != null) {
+                parent.fill(ctx); // fill from the root, the same as the route
+            }
+            route.fill(ctx, uri.substring(start, end));
+        }
+    }
+
+    public static class Match {
+        public final RoutingHandler handler;
+        private final Param param;
+
+        /**
+         * a match without path variables
+         */
+        public Match(RoutingHandler handler) {
+            this(handler, null);
+        }
+
+        Match(RoutingHandler handler, Param param) {
+            this.handler = handler;
+            this.param = param;
+        }
+
+        /**
+         * fill the path variables of this match into the context
+         */
+        public void fill(RoutingContext ctx) {
+            if (param != null) {
+                param.fill(ctx);
+            }
+        }
+    }
+
+    private final Node root;
+
+    private RouteTree(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * record the route into the source tree, which is compiled later
+     */
+    public static void record(Tree<Route, RoutingHandler> tree, Route route, RoutingHandler handler) {
+        if (route == null) {
+            tree.leaf(handler);
+            return;
+        }
+        var last = tree.lastBranch();
+        if (last != null && last.data.currentSame(route)) {
+            // can use the last node
+            record(last, route.next(), handler);
+            return;
+        }
+        // must be new route
+        var br = tree.branch(route);
+        record(br, route.next(), handler);
+    }
+
+    public static RouteTree compile(Tree<Route, RoutingHandler> tree) {
+        return new RouteTree(compile(null, tree));
+    }
+
+    private static Node compile(Route route, Tree<Route, RoutingHandler> tree) {
+        List<Node> children = new ArrayList<>();
+        for (var br : tree.branches()) {
+            children.add(compile(br.data, br));
+        }
+        List<RoutingHandler> handlers = new ArrayList<>();
+        for (var h : tree.leafData()) {
+            handlers.add(h);
+        }
+        return new Node(route,
+            children.isEmpty() ? NO_CHILDREN : children.toArray(NO_CHILDREN),
+            handlers.isEmpty() ? NO_HANDLERS : handlers.toArray(NO_HANDLERS));
+    }
+
+    /**
+     * match the path part of the uri
+     *
+     * @param uri the uri
+     * @param end end of the path part, exclusive, e.g. the index of '?'
+     * @return matched handlers in order, empty if the path does not have any segment
+     */
+    public List<Match> match(String uri, int end) {
+        List<Match> ret = new ArrayList<>();
+        match(root, uri, 0, end, null, ret);
+        return ret;
+    }
+
+    private static boolean isBlank(char c) {
+        return c <= ' '; // the same as String.trim()
+    }
+
+    private static boolean hasSegment(String uri, int off, int end) {
+        for (int i = off; i < end; ++i) {
+            char c = uri.charAt(i);
+            if (c != '/' && !isBlank(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void match(Node node, String uri, int off, int end, Param param, List<Match> ret) {
+        // locate the next segment, blank segments are ignored
+        int start;
+        int segEnd;
+        while (true) {
+            while (off < end && uri.charAt(off) == '/') {
+                ++off;
+            }
+            if (off >= end) {
+                return; // no more segments
+            }
+            int slash = uri.indexOf('/', off);
+            int next = (slash == -1 || slash > end) ? end : slash;
+            start = off;
+            segEnd = next;
+            while (start < segEnd && isBlank(uri.charAt(start))) {
+                ++start;
+            }
+            while (segEnd > start && isBlank(uri.charAt(segEnd - 1))) {
+                --segEnd;
+            }
+            off = next;
+            if (start < segEnd) {
+                break;
+            }
+        }
+        boolean isLast = !hasSegment(uri, off, end);
+
+        for (Node child : node.children) {
+            if (!child.route.match(uri, start, segEnd)) {
+                continue;
+            }
+            Param p = child.fillsValue ? new Param(param, child.route, uri, start, segEnd) : param;
+            if (isLast || child.isWildcard) {
+                for (RoutingHandler h : child.handlers) {
+                    ret.add(new Match(h, p));
+                }
+            }
+            if (!isLast) {
+                match(child, uri, off, end, p, ret);
+            }
+        }
+    }
+}
@@ -22,6 +22,11 @@ public class VariableRoute implements Route {
         return true;
     }
 
+    @Override
+    public boolean match(String uri, int start, int end) {
+        return true;
+    }
+
     @Override
     public boolean currentSame(Route r) {
         return r instanceof VariableRoute && ((VariableRoute) r).variable.equals(variable);
@@ -20,6 +20,11 @@ public class WildcardRoute implements Route {
         return true;
     }
 
+    @Override
+    public boolean match(String uri, int start, int end) {
+        return true;
+    }
+
     @Override
     public boolean currentSame(Route r) {
         return r instanceof WildcardRoute;
@@ -1,12 +1,21 @@
 package vserver.server;
 
 import vjson.JSON;
+import vjson.util.StreamingSerializer;
 import vproxy.app.Application;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopGroupAttach;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.exception.AlreadyExistException;
+import vproxy.component.exception.ClosedException;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.proxy.NetEventLoopProvider;
 import vproxy.connection.NetEventLoop;
 import vproxy.connection.ServerSock;
+import vproxy.http.ChunkedEncodingChannel;
 import vproxy.http.HttpContext;
 import vproxy.http.HttpProtocolHandler;
-import vproxy.processor.http1.entity.Chunk;
+import vproxy.http.HttpReqParser;
 import vproxy.processor.http1.entity.Header;
 import vproxy.processor.http1.entity.Request;
 import vproxy.processor.http1.entity.Response;
@@ -16,55 +25,217 @@ import vproxy.protocol.ProtocolServerHandler;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.util.*;
 import vserver.*;
-import vserver.route.WildcardRoute;
+import vserver.route.RouteTree;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static vserver.HttpMethod.ALL_METHODS;
 
 public class Http1ServerImpl implements HttpServer {
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    class GroupAttach implements EventLoopGroupAttach {
+        @Override
+        public String id() {
+            return "HttpServer:" + Utils.ipport(bindAddress);
+        }
+
+        @Override
+        public void onEventLoopAdd() {
+            try {
+                bindGroup();
+            } catch (IOException e) {
+                Logger.error(LogType.SERVER_ACCEPT_FAIL, "binding http server " + bindAddress + " on the new event loop failed", e);
+            }
+        }
+
+        @Override
+        public void onClose() {
+            close();
+        }
+    }
+
+    // the state of a connection
+    private static class ServerContext extends HttpContext {
+        HttpReqParser current; // parser of the current request, the body is read with it after the headers
+        RequestBody body; // body of the current request, not null when the body is being read
+    }
+
+    private class ServerHandler extends HttpProtocolHandler {
+        ServerHandler() {
+            super(false); // the body is read by the server
+        }
+
+        @Override
+        public void init(ProtocolHandlerContext<HttpContext> pctx) {
+            pctx.data = new ServerContext();
+            connections.add(pctx);
+        }
+
+        @Override
+        public void end(ProtocolHandlerContext<HttpContext> pctx) {
+            connections.remove(pctx);
+            super.end(pctx);
+        }
+
+        @Override
+        public void readable(ProtocolHandlerContext<HttpContext> pctx) {
+            ServerContext ctx = (ServerContext) pctx.data;
+            if (ctx.body != null) {
+                readBody(pctx, ctx);
+                return;
+            }
+            if (ctx.parser == null) {
+                ctx.parser = new HttpReqParser(false);
+            }
+            ctx.current = ctx.parser;
+            super.readable(pctx);
+        }
+
+        @Override
+        protected void request(ProtocolHandlerContext<HttpContext> pctx) {
+            // headers done
+            ServerContext ctx = (ServerContext) pctx.data;
+            HttpReqParser parser = ctx.current;
+            ctx.current = null;
+            handle(pctx, parser);
+        }
+
+        private void readBody(ProtocolHandlerContext<HttpContext> pctx, ServerContext ctx) {
+            RequestBody body = ctx.body;
+            if (body.handler == null || body.paused) {
+                return; // keep the data in the in buffer
+            }
+            int res = body.parser.feedBody(pctx.inBuffer, data -> {
+                body.handler.chunk(data);
+                return !body.paused;
+            });
+            if (res == 1) {
+                return; // paused
+            }
+            if (res == -1) {
+                String errMsg = body.parser.getErrorMessage();
+                if (errMsg != null) {
+                    ctx.body = null;
+                    sendError(pctx, errMsg);
+                } // otherwise means want more data
+                return;
+            }
+            // body done
+            ctx.body = null;
+            Request request = body.parser.getResult();
+            if (request.trailers != null) {
+                for (Header h : request.trailers) {
+                    body.headers.put(h.key.toLowerCase(), h.value);
+                }
+            }
+            body.handler.end();
+            // the next request may be already in the buffer
+            pctx.loop.nextTick(pctx::readable);
+        }
+
+        @Override
+        public boolean closeOnRemoval(ProtocolHandlerContext<HttpContext> pctx) {
+            return super.closeOnRemoval(pctx) || ((ServerContext) pctx.data).body != null;
+        }
+    }
+
+    private static class RequestBody implements BodyStream {
+        private final ProtocolHandlerContext<HttpContext> pctx;
+        private final HttpReqParser parser; // null if the request does not have a body
+        private final Map<String, String> headers; // trailers are added when the body ends
+        private volatile BodyHandler handler;
+        private volatile boolean paused = false;
+
+        RequestBody(ProtocolHandlerContext<HttpContext> pctx, HttpReqParser parser, Map<String, String> headers) {
+            this.pctx = pctx;
+            this.parser = parser;
+            this.headers = headers;
+        }
+
+        @Override
+        public void handler(BodyHandler handler) {
+            if (this.handler != null) {
+                throw new IllegalStateException("The body handler is already set");
+            }
+            this.handler = handler;
+            if (parser == null) {
+                pctx.loop.nextTick(handler::end);
+            } else {
+                // data may be already in the buffer
+                // always run in the next tick, so it's not called when reading the body
+                pctx.loop.nextTick(pctx::readable);
+            }
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+            if (parser != null) {
+                pctx.loop.nextTick(pctx::readable);
+            }
+        }
+    }
+
     private boolean started = false;
     private boolean closed = false;
+    // the routes are only recorded before the server starts
     private final Map<HttpMethod, Tree<Route, RoutingHandler>> routes = new HashMap<>(HttpMethod.values().length) {{
         for (HttpMethod m : HttpMethod.values()) {
             put(m, new Tree<>());
         }
     }};
+    // compiled when the server starts, then shared by all loops and only read
+    private final Map<HttpMethod, RouteTree> compiledRoutes = new EnumMap<>(HttpMethod.class);
+    private final RouteTree.Match notFound = new RouteTree.Match(this::handle404);
+    // handlers of streaming routes, requests matching any of them are dispatched before reading the body
+    private final Set<RoutingHandler> streamHandlers = Collections.newSetFromMap(new IdentityHashMap<>());
     private NetEventLoop loop;
     private final boolean noInputLoop;
-    private ServerSock server;
+    private final EventLoopGroup group; // null when running on only one loop
+    private final GroupAttach attach = new GroupAttach();
+    private InetSocketAddress bindAddress;
+    private final Map<NetEventLoop, ServerSock> servers = new ConcurrentHashMap<>();
+    // accepted connections, closed with the server so that keep-alive clients stop using them
+    private final Set<ProtocolHandlerContext<HttpContext>> connections = ConcurrentHashMap.newKeySet();
 
     public Http1ServerImpl() {
-        this(null);
+        this((NetEventLoop) null);
     }
 
     public Http1ServerImpl(NetEventLoop loop) {
         this.loop = loop;
+        this.group = null;
         noInputLoop = loop == null;
     }
 
-    private void record(Tree<Route, RoutingHandler> tree, Route route, RoutingHandler handler) {
-        if (route == null) {
-            tree.leaf(handler);
-            return;
-        }
-        var last = tree.lastBranch();
-        if (last != null && last.data.currentSame(route)) {
-            // can use the last node
-            record(last, route.next(), handler);
-            return;
-        }
-        // must be new route
-        var br = tree.branch(route);
-        record(br, route.next(), handler);
+    /**
+     * run the server on all loops of the <code>group</code>.<br>
+     * Each loop binds its own listening socket with SO_REUSEPORT, so the kernel shards new connections.
+     * When SO_REUSEPORT is not supported, one loop accepts and the connections are handled by all loops in turn.
+     */
+    public Http1ServerImpl(EventLoopGroup group) {
+        this.loop = null;
+        this.group = group;
+        noInputLoop = false;
     }
 
     private void record(HttpMethod[] methods, Route route, RoutingHandler handler) {
         for (HttpMethod m : methods) {
-            record(routes.get(m), route, handler);
+            RouteTree.record(routes.get(m), route, handler);
         }
     }
 
@@ -77,6 +248,13 @@ public class Http1ServerImpl implements HttpServer {
         return this;
     }
 
+    @Override
+    public HttpServer stream(HttpMethod[] methods, Route route, RoutingHandler handler) {
+        handle(methods, route, handler);
+        streamHandlers.add(handler);
+        return this;
+    }
+
     @Override
     public void listen(InetSocketAddress addr) throws IOException {
         if (started) {
@@ -84,27 +262,107 @@ public class Http1ServerImpl implements HttpServer {
         }
         started = true;
         record(ALL_METHODS, Route.create("/*"), this::handle404);
+        for (HttpMethod m : HttpMethod.values()) {
+            compiledRoutes.put(m, RouteTree.compile(routes.get(m)));
+        }
+        bindAddress = addr;
+
+        if (group != null) {
+            bindGroup();
+            try {
+                group.attachResource(attach);
+            } catch (AlreadyExistException | ClosedException e) {
+                close();
+                throw new IOException("attaching http server " + Utils.ipport(bindAddress) + " to event loop group " + group.alias + " failed", e);
+            }
+            return;
+        }
 
         initLoop();
 
-        server = ServerSock.create(addr);
-        ProtocolServerHandler.apply(loop, server,
-            new ProtocolServerConfig().setInBufferSize(4096).setOutBufferSize(4096),
-            new HttpProtocolHandler(true) {
-                @Override
-                protected void request(ProtocolHandlerContext<HttpContext> ctx) {
-                    handle(ctx);
-                }
-            });
+        ServerSock server = ServerSock.create(addr);
+        applyProtocol(loop, null, server);
+        servers.put(loop, server);
     }
 
-    @Override
-    public void close() {
+    private void applyProtocol(NetEventLoop acceptLoop, NetEventLoopProvider handleLoopProvider, ServerSock server) throws IOException {
+        ProtocolServerHandler.apply(acceptLoop, handleLoopProvider, server,
+            new ProtocolServerConfig().setInBufferSize(4096).setOutBufferSize(4096).setFileTransfer(true),
+            new ServerHandler());
+    }
+
+    private synchronized void bindGroup() throws IOException {
         if (closed) {
             return;
         }
-        closed = true;
+        // the servers are closed when their loops are removed from the group
+        servers.values().removeIf(ServerSock::isClosed);
+
+        List<EventLoopWrapper> loops = group.list();
+        if (loops.isEmpty()) {
+            assert Logger.lowLevelDebug("no event loop in group " + group.alias + ", will bind later");
+            return;
+        }
+        if (!ServerSock.supportReusePort()) {
+            if (!servers.isEmpty()) {
+                return; // the only listening socket already handles all loops
+            }
+            EventLoopWrapper w = loops.get(0);
+            ServerSock server = ServerSock.create(bindAddress);
+            try {
+                applyProtocol(w, acceptLoop -> group.next(), server);
+            } catch (IOException e) {
+                server.close();
+                throw e;
+            }
+            servers.put(w, server);
+            bindAddress = server.bind;
+            Logger.alert("http server " + Utils.ipport(bindAddress) + " accepts on loop " + w.alias
+                + " and dispatches connections to event loop group " + group.alias);
+            return;
+        }
+        for (EventLoopWrapper w : loops) {
+            if (servers.containsKey(w)) {
+                continue;
+            }
+            ServerSock server = ServerSock.create(bindAddress);
+            try {
+                applyProtocol(w, null, server);
+            } catch (IOException e) {
+                server.close();
+                throw e;
+            }
+            servers.put(w, server);
+            // the port may be chosen by the system, other loops should use the same port
+            bindAddress = server.bind;
+            Logger.alert("http server " + Utils.ipport(bindAddress) + " starts on loop: " + w.alias);
+        }
+    }
 
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        if (group != null) {
+            try {
+                group.detachResource(attach);
+            } catch (NotFoundException ignore) {
+                // not attached or already detached
+            }
+        }
+        for (ServerSock server : servers.values()) {
+            server.close();
+        }
+        servers.clear();
+        for (ProtocolHandlerContext<HttpContext> pctx : connections) {
+            pctx.loop.runOnLoop(() -> pctx.connection.close());
+        }
+        connections.clear();
         if (noInputLoop) {
             // should stop the event loop because it's created from inside
             if (loop != null) {
@@ -115,9 +373,6 @@ public class Http1ServerImpl implements HttpServer {
                 }
             }
         }
-        if (server != null) {
-            server.close();
-        }
     }
 
     private void handle404(RoutingContext ctx) {
@@ -165,7 +420,17 @@ public class Http1ServerImpl implements HttpServer {
         _pctx.write(response.toByteArray().toJavaArray());
     }
 
-    private void handle(ProtocolHandlerContext<HttpContext> _pctx) {
+    private void sendResponse(ProtocolHandlerContext<HttpContext> _pctx, Response response, ReadableByteChannel body, long length) {
+        assert response.body == null;
+        if (response.headers == null) {
+            response.headers = new ArrayList<>(2);
+        }
+        response.headers.add(new Header("Content-Length", Long.toString(length)));
+        sendResponse(_pctx, response); // headers
+        _pctx.write(body);
+    }
+
+    private void handle(ProtocolHandlerContext<HttpContext> _pctx, HttpReqParser parser) {
         Request request = _pctx.data.result;
         RoutingContext[] ctx = new RoutingContext[1];
         {
@@ -173,12 +438,12 @@ public class Http1ServerImpl implements HttpServer {
             final Map<String, String> headers = new HashMap<>();
             final String uri = unescape(request.uri);
             final Map<String, String> query = new HashMap<>();
-            final ByteArray body;
             final HttpResponse response;
             final HandlerChain chain;
+            boolean streaming = false;
 
-            final List<String> paths;
-            { // paths and query
+            int pathEnd;
+            { // path and query
                 if (uri == null) {
                     Response resp = new Response();
                     resp.statusCode = 400;
@@ -187,21 +452,11 @@ public class Http1ServerImpl implements HttpServer {
                     sendResponse(_pctx, resp);
                     return;
                 }
-                String path = uri;
-                String queryPart = "";
-                if (path.contains("?")) {
-                    queryPart = path.substring(path.indexOf('?') + 1);
-                    path = path.substring(0, path.indexOf('?'));
-                }
-                paths = Arrays.stream(path.split("/")).map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
-                var queryList = Arrays.stream(queryPart.split("&")).filter(s -> !s.isBlank()).collect(Collectors.toList());
-                for (var qkv : queryList) {
-                    if (qkv.indexOf('=') == -1) {
-                        query.put(qkv, "");
-                    } else {
-                        int idx = qkv.indexOf('=');
-                        query.put(qkv.substring(0, idx), qkv.substring(idx + 1));
-                    }
+                pathEnd = uri.indexOf('?');
+                if (pathEnd == -1) {
+                    pathEnd = uri.length();
+                } else {
+                    parseQuery(uri, pathEnd + 1, query);
                 }
             }
 
@@ -239,33 +494,20 @@ public class Http1ServerImpl implements HttpServer {
                     }
                 }
             }
-            { // body
-                if (request.body != null) {
-                    body = request.body;
-                } else if (request.chunks != null) {
-                    ByteArray foo = null;
-                    for (Chunk c : request.chunks) {
-                        if (foo == null) {
-                            foo = c.content;
-                        } else {
-                            foo = foo.concat(c.content);
-                        }
-                    }
-                    body = foo;
-                } else {
-                    body = null;
-                }
-            }
             { // response
                 response = new HttpResponse() {
                     Response response = new Response();
                     boolean isEnd = false;
+                    boolean chunked = false; // the headers are sent and the body is being sent in chunks
 
                     @Override
                     public HttpResponse status(int code, String msg) {
                         if (isEnd) {
                             throw new IllegalStateException("This response is already ended");
                         }
+                        if (chunked) {
+                            throw new IllegalStateException("The headers of this response are already sent");
+                        }
                         response.statusCode = code;
                         response.reason = msg;
                         return this;
@@ -276,6 +518,9 @@ public class Http1ServerImpl implements HttpServer {
                         if (isEnd) {
                             throw new IllegalStateException("This response is already ended");
                         }
+                        if (chunked) {
+                            throw new IllegalStateException("The headers of this response are already sent");
+                        }
                         if (response.headers == null) {
                             response.headers = new LinkedList<>();
                         }
@@ -285,13 +530,24 @@ public class Http1ServerImpl implements HttpServer {
 
                     @Override
                     public void end(JSON.Instance inst) {
+                        if (chunked) {
+                            // the headers are already sent, send the json as the rest of the body
+                            end(new StreamingSerializer(inst));
+                            return;
+                        }
                         header("Content-Type", "application/json");
                         String ua = headers.get("user-agent");
                         if (ua != null && ua.startsWith("curl/")) {
                             // use pretty
                             end(inst.pretty() + "\r\n");
                         } else {
-                            end(inst.stringify());
+                            // serialize into the out buffer directly
+                            // so large bodies do not have to be built in memory
+                            if (isEnd) {
+                                throw new IllegalStateException("This response is already ended");
+                            }
+                            isEnd = true;
+                            sendResponse(_pctx, response, new StreamingSerializer(inst), StreamingSerializer.length(inst));
                         }
                     }
 
@@ -300,23 +556,118 @@ public class Http1ServerImpl implements HttpServer {
                         if (isEnd) {
                             throw new IllegalStateException("This response is already ended");
                         }
+                        if (chunked) {
+                            if (body != null) {
+                                sendChunk(body);
+                            }
+                            isEnd = true;
+                            _pctx.write(LAST_CHUNK);
+                            return;
+                        }
                         isEnd = true;
                         response.body = body;
                         sendResponse(_pctx, response);
                     }
+
+                    private void startChunked() {
+                        header("Transfer-Encoding", "chunked");
+                        chunked = true;
+                        sendResponse(_pctx, response); // headers
+                    }
+
+                    @Override
+                    public HttpResponse sendChunk(ByteArray chunk) {
+                        if (isEnd) {
+                            throw new IllegalStateException("This response is already ended");
+                        }
+                        if (!chunked) {
+                            startChunked();
+                        }
+                        if (chunk.length() == 0) {
+                            return this; // an empty chunk is the last chunk
+                        }
+                        byte[] size = (Integer.toHexString(chunk.length()) + "\r\n").getBytes();
+                        _pctx.write(ByteArray.from(size).concat(chunk).concat(ByteArray.from(CRLF)).toJavaArray());
+                        return this;
+                    }
+
+                    @Override
+                    public void end(FileRegion file) {
+                        if (isEnd) {
+                            throw new IllegalStateException("This response is already ended");
+                        }
+                        if (chunked) {
+                            // the headers are already sent, send the file as the rest of the body
+                            end((ReadableByteChannel) file);
+                            return;
+                        }
+                        isEnd = true;
+                        sendResponse(_pctx, response, file, file.remaining());
+                    }
+
+                    @Override
+                    public void end(ReadableByteChannel body) {
+                        if (isEnd) {
+                            throw new IllegalStateException("This response is already ended");
+                        }
+                        if (!chunked) {
+                            startChunked();
+                        }
+                        isEnd = true;
+                        _pctx.write(new ChunkedEncodingChannel(body));
+                    }
                 };
             }
             { // chain
-                var list = buildHandlerChain(routes.get(method), paths).iterator();
+                var matches = compiledRoutes.get(method).match(uri, pathEnd);
+                if (matches.isEmpty()) {
+                    // no path segments
+                    matches.add(notFound);
+                }
+                var ite = matches.iterator();
                 chain = () -> {
-                    var tup = list.next();
-                    tup.left.forEach(pre -> pre.accept(ctx[0])); // pre process
-                    tup.right.accept(ctx[0]);
+                    var m = ite.next();
+                    m.fill(ctx[0]); // path variables
+                    m.handler.accept(ctx[0]);
                 };
+                for (var m : matches) {
+                    if (streamHandlers.contains(m.handler)) {
+                        streaming = true;
+                        break;
+                    }
+                }
             }
 
             // build ctx
-            ctx[0] = new RoutingContext(method, uri, query, headers, body, response, chain);
+            boolean hasBody = parser.isBodyPending();
+            if (streaming) {
+                RequestBody stream = new RequestBody(_pctx, hasBody ? parser : null, headers);
+                if (hasBody) {
+                    ((ServerContext) _pctx.data).body = stream;
+                }
+                ctx[0] = new RoutingContext(method, uri, query, headers, null, stream, response, chain);
+            } else if (hasBody) {
+                // read the whole body before running the handlers
+                RequestBody body = new RequestBody(_pctx, parser, headers);
+                ((ServerContext) _pctx.data).body = body;
+                body.handler(new BodyHandler() {
+                    private ByteArray buf = null;
+
+                    @Override
+                    public void chunk(ByteArray data) {
+                        buf = buf == null ? data : buf.concat(data);
+                    }
+
+                    @Override
+                    public void end() {
+                        ctx[0] = new RoutingContext(method, uri, query, headers, buf, response, chain);
+                        ctx[0].next();
+                    }
+                });
+                return;
+            } else {
+                ctx[0] = new RoutingContext(method, uri, query, headers, null, response, chain);
+            }
         }
         ctx[0].next();
     }
@@ -360,42 +711,22 @@ public class Http1ServerImpl implements HttpServer {
         }
     }
 
-    private List<Tuple<List<RoutingHandler>, RoutingHandler>> buildHandlerChain(Tree<Route, RoutingHandler> tree, List<String> paths) {
-        var ls = new LinkedList<Tuple<List<RoutingHandler>, RoutingHandler>>();
-        var pre = Collections.<RoutingHandler>emptyList();
-        if (paths.isEmpty()) {
-            ls.add(new Tuple<>(Collections.singletonList(rctx -> {
-            }), this::handle404));
-        } else {
-            buildHandlerChain(ls, pre, tree, paths, 0);
-        }
-        assert !ls.isEmpty(); // 404 handler would had already been added
-        return ls;
-    }
-
-    private void buildHandlerChain(List<Tuple<List<RoutingHandler>, RoutingHandler>> ret,
-                                   List<RoutingHandler> preHandlers,
-                                   Tree<Route, RoutingHandler> tree,
-                                   List<String> paths,
-                                   int pathIdx) {
-        if (pathIdx >= paths.size()) {
-            return;
-        }
-        String path = paths.get(pathIdx);
-        boolean isLast = pathIdx + 1 == paths.size();
-        for (var br : tree.branches()) {
-            RoutingHandler preHandler = rctx -> br.data.fill(rctx, path);
-            if (br.data.match(path)) {
-                var newPathIdx = pathIdx + 1;
-                var newPreHandlers = new AppendingList<>(preHandlers, preHandler);
-
-                if (isLast || br.data instanceof WildcardRoute) {
-                    for (var h : br.leafData()) {
-                        ret.add(new Tuple<>(newPreHandlers, h));
-                    }
-                }
-
-                buildHandlerChain(ret, newPreHandlers, br, paths, newPathIdx);
+    private static void parseQuery(String uri, int off, Map<String, String> query) {
+        while (off < uri.length()) {
+            int next = uri.indexOf('&', off);
+            if (next == -1) {
+                next = uri.length();
+            }
+            String qkv = uri.substring(off, next);
+            off = next + 1;
+            if (qkv.isBlank()) {
+                continue;
+            }
+            int idx = qkv.indexOf('=');
+            if (idx == -1) {
+                query.put(qkv, "");
+            } else {
+                query.put(qkv.substring(0, idx), qkv.substring(idx + 1));
             }
         }
     }
@@ -1,28 +1,35 @@
 package vserver.util;
 
-import vjson.CharStream;
+import vjson.cs.AbstractUTF8CharStream;
 import vproxy.util.ByteArray;
 
-public class ByteArrayCharStream implements CharStream {
+import java.nio.ByteBuffer;
+
+public class ByteArrayCharStream extends AbstractUTF8CharStream {
     private final ByteArray array;
-    private int idx = -1;
+    private final int length;
 
     public ByteArrayCharStream(ByteArray array) {
         this.array = array;
+        this.length = array.length();
     }
 
     @Override
-    public boolean hasNext(int i) {
-        return idx + i < array.length();
+    protected int byteLength() {
+        return length;
     }
 
     @Override
-    public char moveNextAndGet() {
-        return (char) array.get(++idx);
+    protected byte byteAt(int idx) {
+        return array.get(idx);
     }
 
     @Override
-    public char peekNext(int i) {
-        return (char) array.get(idx + i);
+    protected byte[] copyBytes(int from, int len) {
+        byte[] bytes = new byte[len];
+        if (len != 0) {
+            array.byteBufferPut(ByteBuffer.wrap(bytes), from, len);
+        }
+        return bytes;
     }
 }
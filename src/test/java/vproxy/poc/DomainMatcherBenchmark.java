@@ -0,0 +1,133 @@
+package vproxy.poc;
+
+import vproxyx.websocks.ABP;
+import vproxyx.websocks.DomainChecker;
+import vproxyx.websocks.DomainMatcher;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * usage: DomainMatcherBenchmark [path to gfwlist.txt (base64)]<br>
+ * If the gfwlist is not provided, a generated list of the same size and shape will be used.
+ */
+public class DomainMatcherBenchmark {
+    private static final int LOOKUPS = 2_000_000;
+
+    public static void main(String[] args) throws Exception {
+        String rules;
+        if (args.length > 0) {
+            String base64 = String.join("", Files.readAllLines(Path.of(args[0])));
+            rules = new String(Base64.getDecoder().decode(base64));
+        } else {
+            rules = generateRules();
+        }
+
+        long start = System.nanoTime();
+        ABP abp = new ABP(false);
+        abp.addRule(rules);
+        long cost = System.nanoTime() - start;
+        System.out.println("loaded " + abp.ruleCount() + " rules in " + (cost / 1_000_000) + "ms");
+
+        List<String> domains = generateDomains(rules);
+
+        LinkedHashMap<String, List<DomainChecker>> map = new LinkedHashMap<>();
+        map.put("DEFAULT", Collections.singletonList((domain, port) -> abp.block(domain)));
+        DomainMatcher matcher = new DomainMatcher(map);
+
+        // the ABP logs every matched domain, do not let the output affect the result
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long abpOps;
+        long matcherOps;
+        try {
+            // warm up
+            run(domains, LOOKUPS / 4, abp::block);
+            abpOps = run(domains, LOOKUPS, abp::block);
+            run(domains, LOOKUPS / 4, d -> matcher.match(d, 443) != null);
+            matcherOps = run(domains, LOOKUPS, d -> matcher.match(d, 443) != null);
+        } finally {
+            System.setOut(stdout);
+        }
+        System.out.println("ABP.block: " + abpOps + " lookups/s");
+        System.out.println("DomainMatcher.match (with cache): " + matcherOps + " lookups/s");
+    }
+
+    private static long run(List<String> domains, int times, java.util.function.Predicate<String> f) {
+        int matched = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < times; ++i) {
+            if (f.test(domains.get(i % domains.size()))) {
+                ++matched;
+            }
+        }
+        long cost = System.nanoTime() - start;
+        if (matched < 0) {
+            System.out.println("should not happen, just keep the result alive");
+        }
+        return (long) (times / (cost / 1_000_000_000d));
+    }
+
+    private static String randomLabel(Random rand) {
+        int len = 3 + rand.nextInt(10);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; ++i) {
+            sb.append((char) ('a' + rand.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    private static final String[] TLD = {"com", "net", "org", "io", "jp", "hk", "tw"};
+
+    // about 6000 rules, mostly `||` and `|http://` rules with some simple and whitelist rules
+    private static String generateRules() {
+        Random rand = new Random(1);
+        StringBuilder sb = new StringBuilder("[AutoProxy 0.2.9]\n! generated\n");
+        for (int i = 0; i < 6000; ++i) {
+            String domain = randomLabel(rand) + "." + TLD[rand.nextInt(TLD.length)];
+            int n = rand.nextInt(100);
+            if (n < 55) {
+                sb.append("||").append(domain);
+            } else if (n < 75) {
+                sb.append("|http://").append(domain).append("/");
+            } else if (n < 95) {
+                sb.append(".").append(domain);
+            } else if (n < 98) {
+                sb.append("@@||").append(domain);
+            } else {
+                sb.append("@@|http://").append(domain);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    // half of the domains are taken from the rules
+    private static List<String> generateDomains(String rules) {
+        Random rand = new Random(2);
+        List<String> hosts = new ArrayList<>();
+        for (String line : rules.split("\n")) {
+            line = line.replaceAll("^[@|.]*(https?://)?", "");
+            if (line.isEmpty() || line.startsWith("!") || line.startsWith("[") || line.startsWith("/")) {
+                continue;
+            }
+            int idx = line.indexOf('/');
+            if (idx != -1) {
+                line = line.substring(0, idx);
+            }
+            hosts.add(line);
+        }
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 4_000; ++i) {
+            if (i % 2 == 0 && !hosts.isEmpty()) {
+                domains.add("www." + hosts.get(rand.nextInt(hosts.size())));
+            } else {
+                domains.add(randomLabel(rand) + "." + randomLabel(rand) + "." + TLD[rand.nextInt(TLD.length)]);
+            }
+        }
+        return domains;
+    }
+}
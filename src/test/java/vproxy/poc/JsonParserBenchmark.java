@@ -0,0 +1,67 @@
+package vproxy.poc;
+
+import vjson.CharStream;
+import vjson.JSON;
+import vjson.util.ArrayBuilder;
+import vjson.util.ObjectBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Compares parsing utf-8 bytes by decoding into String first
+ * with parsing the bytes directly.
+ */
+public class JsonParserBenchmark {
+    private static final int ROUNDS = 20_000;
+
+    public static void main(String[] args) {
+        // something like the server-group detail response
+        ArrayBuilder servers = new ArrayBuilder();
+        for (int i = 0; i < 200; ++i) {
+            int finalI = i;
+            servers.addObject(o -> o
+                .put("name", "svr" + finalI)
+                .put("address", "10.0.0." + (finalI % 250) + ":" + (8000 + finalI))
+                .put("weight", 10)
+                .put("currentIp", "10.0.0." + (finalI % 250))
+                .put("status", finalI % 3 == 0 ? "DOWN" : "UP")
+                .put("hostName", "backend-" + finalI + ".example.com"));
+        }
+        String json = new ObjectBuilder()
+            .put("name", "sg0")
+            .put("timeout", 1000)
+            .put("period", 5000)
+            .put("method", "wrr")
+            .putInst("serverList", servers.build())
+            .build().stringify();
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        System.out.println("payload size: " + bytes.length + " bytes");
+
+        Consumer<byte[]> decodeThenParse = b -> JSON.parse(new String(b, StandardCharsets.UTF_8));
+        Consumer<byte[]> parseBytes = b -> JSON.parse(CharStream.from(ByteBuffer.wrap(b)));
+        Consumer<byte[]> parseBytesAndReadAll = b -> JSON.parse(CharStream.from(ByteBuffer.wrap(b))).toJavaObject();
+
+        // warm up all of them before measuring
+        // both kinds of char streams are used in the real world, so the call sites are not monomorphic
+        for (int i = 0; i < ROUNDS / 4; ++i) {
+            decodeThenParse.accept(bytes);
+            parseBytes.accept(bytes);
+            parseBytesAndReadAll.accept(bytes);
+        }
+        run("decode then parse", bytes, decodeThenParse);
+        run("parse bytes", bytes, parseBytes);
+        run("parse bytes and read all", bytes, parseBytesAndReadAll);
+    }
+
+    private static void run(String name, byte[] bytes, Consumer<byte[]> f) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            f.accept(bytes);
+        }
+        long cost = System.nanoTime() - start;
+        System.out.println(name + ": " + (long) (ROUNDS / (cost / 1_000_000_000d)) + " ops/s, " +
+            (long) ((double) bytes.length * ROUNDS / (cost / 1_000_000_000d) / 1024 / 1024) + " MB/s");
+    }
+}
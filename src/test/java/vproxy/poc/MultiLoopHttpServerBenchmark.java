@@ -0,0 +1,110 @@
+package vproxy.poc;
+
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.util.ByteArray;
+import vserver.HttpServer;
+import vserver.server.Http1ServerImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * usage: MultiLoopHttpServerBenchmark [connections] [seconds]<br>
+ * Works like wrk: keep-alive connections send requests one after another for a fixed duration.
+ * The same server is started on 1, 2, 4 ... event loops (up to the number of cpus),
+ * and the requests per second of each round are printed.
+ */
+public class MultiLoopHttpServerBenchmark {
+    private static final int PORT = 30090;
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        long base = 0;
+        for (int loops = 1; loops <= Math.max(1, cpus / 2); loops *= 2) {
+            long rps = run(loops, connections, seconds);
+            if (base == 0) {
+                base = rps;
+            }
+            System.out.printf("loops=%d connections=%d requests/s=%d scale=%.2f%n",
+                loops, connections, rps, (double) rps / base);
+        }
+    }
+
+    private static long run(int loops, int connections, int seconds) throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("benchmark");
+        for (int i = 0; i < loops; ++i) {
+            elg.add("el" + i);
+        }
+        HttpServer server = new Http1ServerImpl(elg);
+        server.get("/hello", rctx -> rctx.response().end(ByteArray.from("hello world\r\n".getBytes())));
+        server.listen(PORT, "127.0.0.1");
+
+        LongAdder count = new LongAdder();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; ++i) {
+            Thread t = new Thread(() -> {
+                try (Socket sock = new Socket("127.0.0.1", PORT)) {
+                    sock.setTcpNoDelay(true);
+                    OutputStream out = sock.getOutputStream();
+                    InputStream in = sock.getInputStream();
+                    byte[] buf = new byte[4096];
+                    while (System.currentTimeMillis() < end) {
+                        out.write(REQUEST);
+                        readResponse(in, buf);
+                        count.increment();
+                    }
+                } catch (IOException e) {
+                    System.out.println("connection failed: " + e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        server.close();
+        elg.close();
+        return count.sum() / seconds;
+    }
+
+    // the response is small, so the whole response is expected in the buffer
+    private static void readResponse(InputStream in, byte[] buf) throws IOException {
+        int len = 0;
+        int bodyEnd = -1;
+        while (bodyEnd == -1 || len < bodyEnd) {
+            int n = in.read(buf, len, buf.length - len);
+            if (n == -1)
+                throw new IOException("unexpected eof");
+            len += n;
+            if (bodyEnd == -1) {
+                bodyEnd = bodyEnd(buf, len);
+            }
+        }
+    }
+
+    private static int bodyEnd(byte[] buf, int len) {
+        String head = new String(buf, 0, len);
+        int idx = head.indexOf("\r\n\r\n");
+        if (idx == -1)
+            return -1;
+        int contentLength = 0;
+        for (String line : head.substring(0, idx).split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        return idx + 4 + contentLength;
+    }
+}
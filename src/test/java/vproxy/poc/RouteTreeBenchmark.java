@@ -0,0 +1,236 @@
+package vproxy.poc;
+
+import vproxy.util.AppendingList;
+import vproxy.util.Tree;
+import vproxy.util.Tuple;
+import vserver.HttpMethod;
+import vserver.Route;
+import vserver.RoutingHandler;
+import vserver.route.RouteTree;
+import vserver.route.WildcardRoute;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * usage: RouteTreeBenchmark<br>
+ * Match request uris against the routes of the http controller,
+ * with the compiled route tree and with the former way which splits the uri and walks the source tree.
+ */
+public class RouteTreeBenchmark {
+    private static final int MATCHES = 2_000_000;
+
+    // routes registered in HttpController, in the same order
+    private static final String[] ROUTES = {
+        "ALL /api/*",
+        "GET /api/v1/module/all",
+        "GET /api/v1/module/tcp-lb/:tl/detail",
+        "GET /api/v1/module/tcp-lb/:tl",
+        "GET /api/v1/module/tcp-lb",
+        "POST /api/v1/module/tcp-lb",
+        "PUT /api/v1/module/tcp-lb/:tl",
+        "DELETE /api/v1/module/tcp-lb/:tl",
+        "GET /api/v1/module/socks5-server/:socks5/detail",
+        "GET /api/v1/module/socks5-server/:socks5",
+        "GET /api/v1/module/socks5-server",
+        "POST /api/v1/module/socks5-server",
+        "PUT /api/v1/module/socks5-server/:socks5",
+        "DELETE /api/v1/module/socks5-server/:socks5",
+        "GET /api/v1/module/event-loop-group/:elg/event-loop/:el/detail",
+        "GET /api/v1/module/event-loop-group/:elg/event-loop/:el",
+        "GET /api/v1/module/event-loop-group/:elg/event-loop",
+        "POST /api/v1/module/event-loop-group/:elg/event-loop",
+        "DELETE /api/v1/module/event-loop-group/:elg/event-loop/:el",
+        "GET /api/v1/module/event-loop-group/:elg/detail",
+        "GET /api/v1/module/event-loop-group/:elg",
+        "GET /api/v1/module/event-loop-group",
+        "POST /api/v1/module/event-loop-group",
+        "DELETE /api/v1/module/event-loop-group/:elg",
+        "GET /api/v1/module/server-groups/:sgs/server-group/:sg/detail",
+        "GET /api/v1/module/server-groups/:sgs/server-group/:sg",
+        "GET /api/v1/module/server-groups/:sgs/server-group",
+        "POST /api/v1/module/server-groups/:sgs/server-group",
+        "PUT /api/v1/module/server-groups/:sgs/server-group/:sg",
+        "DELETE /api/v1/module/server-groups/:sgs/server-group/:sg",
+        "GET /api/v1/module/server-groups/:sgs/detail",
+        "GET /api/v1/module/server-groups/:sgs",
+        "GET /api/v1/module/server-groups",
+        "POST /api/v1/module/server-groups",
+        "DELETE /api/v1/module/server-groups/:sgs",
+        "GET /api/v1/module/server-group/:sg/server/:svr/detail",
+        "GET /api/v1/module/server-group/:sg/server/:svr",
+        "GET /api/v1/module/server-group/:sg/server",
+        "POST /api/v1/module/server-group/:sg/server",
+        "PUT /api/v1/module/server-group/:sg/server/:svr",
+        "DELETE /api/v1/module/server-group/:sg/server/:svr",
+        "GET /api/v1/module/server-group/:sg/detail",
+        "GET /api/v1/module/server-group/:sg",
+        "GET /api/v1/module/server-group",
+        "POST /api/v1/module/server-group",
+        "PUT /api/v1/module/server-group/:sg",
+        "DELETE /api/v1/module/server-group/:sg",
+        "GET /api/v1/module/security-group/:secg/security-group-rule/:secgr/detail",
+        "GET /api/v1/module/security-group/:secg/security-group-rule/:secgr",
+        "GET /api/v1/module/security-group/:secg/security-group-rule",
+        "POST /api/v1/module/security-group/:secg/security-group-rule",
+        "DELETE /api/v1/module/security-group/:secg/security-group-rule/:secgr",
+        "GET /api/v1/module/security-group/:secg/detail",
+        "GET /api/v1/module/security-group/:secg",
+        "GET /api/v1/module/security-group",
+        "POST /api/v1/module/security-group",
+        "PUT /api/v1/module/security-group/:secg",
+        "DELETE /api/v1/module/security-group/:secg",
+        "GET /api/v1/module/smart-group-delegate/:sgd/detail",
+        "GET /api/v1/module/smart-group-delegate/:sgd",
+        "GET /api/v1/module/smart-group-delegate",
+        "POST /api/v1/module/smart-group-delegate",
+        "DELETE /api/v1/module/smart-group-delegate/:sgd",
+        "GET /api/v1/module/smart-node-delegate/:snd/detail",
+        "GET /api/v1/module/smart-node-delegate/:snd",
+        "GET /api/v1/module/smart-node-delegate",
+        "POST /api/v1/module/smart-node-delegate",
+        "DELETE /api/v1/module/smart-node-delegate/:snd",
+        "GET /api/v1/module/cert-key/:ck/detail",
+        "GET /api/v1/module/cert-key/:ck",
+        "GET /api/v1/module/cert-key",
+        "POST /api/v1/module/cert-key",
+        "DELETE /api/v1/module/cert-key/:ck",
+        "GET /api/v1/channel/event-loop-groups/:elgs/event-loop/:el/server-sock",
+        "GET /api/v1/channel/tcp-lb/:tl/server-sock",
+        "GET /api/v1/channel/socks5-server/:socks5/server-sock",
+        "GET /api/v1/channel/event-loop-groups/:elgs/event-loop/:el/conn",
+        "GET /api/v1/channel/tcp-lb/:tl/conn",
+        "GET /api/v1/channel/socks5-server/:socks5/conn",
+        "GET /api/v1/channel/server-group/:sg/server/:svr/conn",
+        "DELETE /api/v1/channel/event-loop-groups/:elgs/event-loop/:el/conn/:l4addr-act/:l4addr-pas",
+        "DELETE /api/v1/channel/tcp-lb/:tl/conn/:l4addr-act/:l4addr-pas",
+        "DELETE /api/v1/channel/socks5-server/:socks5/conn/:l4addr-act/:l4addr-pas",
+        "DELETE /api/v1/channel/server-group/:sg/server/:svr/conn/:l4addr-act/:l4addr-pas",
+        "DELETE /api/v1/channel/event-loop-groups/:elgs/event-loop/:el/conn/:regexp",
+        "DELETE /api/v1/channel/tcp-lb/:tl/conn/:regexp",
+        "DELETE /api/v1/channel/socks5-server/:socks5/conn/:regexp",
+        "DELETE /api/v1/channel/server-group/:sg/server/:svr/conn/:regexp",
+        "GET /api/v1/channel/tcp-lb/:tl/session",
+        "GET /api/v1/channel/socks5-server/:socks5/session",
+        "DELETE /api/v1/channel/tcp-lb/:tl/session/:front-act/:front-pas/:back-act/:back-pas",
+        "DELETE /api/v1/channel/socks5-server/:socks5/session/:front-act/:front-pas/:back-act/:back-pas",
+        "DELETE /api/v1/channel/tcp-lb/:tl/session/:regexp",
+        "DELETE /api/v1/channel/socks5-server/:socks5/session/:regexp",
+        "GET /api/v1/state/dns-cache",
+        "GET /api/v1/statistics/tcp-lb/:tl/server-sock/:l4addr/bytes-in",
+        "GET /api/v1/statistics/socks5-server/:socks5/server-sock/:l4addr/bytes-in",
+        "GET /api/v1/statistics/event-loop-group/:elg/event-loop/:el/conn/:l4addr-act/:l4addr-pas/bytes-in",
+        "GET /api/v1/statistics/tcp-lb/:tl/conn/:l4addr-act/:l4addr-pas/bytes-in",
+        "GET /api/v1/statistics/socks5-server/:socks5/conn/:l4addr-act/:l4addr-pas/bytes-in",
+        "GET /api/v1/statistics/server-group/:sg/server/:svr/conn/:l4addr-act/:l4addr-pas/bytes-in",
+        "GET /api/v1/statistics/server-group/:sg/server/:svr/bytes-in",
+        "GET /api/v1/statistics/tcp-lb/:tl/server-sock/:l4addr/bytes-out",
+        "GET /api/v1/statistics/socks5-server/:socks5/server-sock/:l4addr/bytes-out",
+        "GET /api/v1/statistics/event-loop-group/:elg/event-loop/:el/conn/:l4addr-act/:l4addr-pas/bytes-out",
+        "GET /api/v1/statistics/tcp-lb/:tl/conn/:l4addr-act/:l4addr-pas/bytes-out",
+        "GET /api/v1/statistics/socks5-server/:socks5/conn/:l4addr-act/:l4addr-pas/bytes-out",
+        "GET /api/v1/statistics/server-group/:sg/server/:svr/conn/:l4addr-act/:l4addr-pas/bytes-out",
+        "GET /api/v1/statistics/server-group/:sg/server/:svr/bytes-out",
+        "GET /api/v1/statistics/tcp-lb/:tl/server-sock/:l4addr/accepted-conn",
+        "GET /api/v1/statistics/socks5-server/:socks5/server-sock/:l4addr/accepted-conn",
+    };
+
+    public static void main(String[] args) {
+        Map<HttpMethod, Tree<Route, RoutingHandler>> trees = new EnumMap<>(HttpMethod.class);
+        for (HttpMethod m : HttpMethod.values()) {
+            trees.put(m, new Tree<>());
+        }
+        List<String> uris = new ArrayList<>();
+        for (String r : ROUTES) {
+            String method = r.substring(0, r.indexOf(' '));
+            String path = r.substring(r.indexOf(' ') + 1);
+            RoutingHandler handler = rctx -> {
+            };
+            HttpMethod[] methods = method.equals("ALL") ? HttpMethod.ALL_METHODS : new HttpMethod[]{HttpMethod.valueOf(method)};
+            for (HttpMethod m : methods) {
+                RouteTree.record(trees.get(m), Route.create(path), handler);
+            }
+            if (method.equals("GET")) {
+                uris.add(path.replaceAll(":[a-z0-9-]+", "value") + "?pretty");
+            }
+        }
+        for (HttpMethod m : HttpMethod.ALL_METHODS) {
+            RouteTree.record(trees.get(m), Route.create("/*"), rctx -> {
+            });
+        }
+        uris.add("/not/found");
+        System.out.println(ROUTES.length + " routes, " + uris.size() + " uris");
+
+        Tree<Route, RoutingHandler> tree = trees.get(HttpMethod.GET);
+        RouteTree compiled = RouteTree.compile(tree);
+
+        for (String uri : uris) {
+            if (legacyMatch(tree, uri) != compiledMatch(compiled, uri)) {
+                throw new IllegalStateException("results differ for " + uri);
+            }
+        }
+
+        // warm up
+        run(uris, MATCHES / 4, uri -> legacyMatch(tree, uri));
+        long legacyOps = run(uris, MATCHES, uri -> legacyMatch(tree, uri));
+        run(uris, MATCHES / 4, uri -> compiledMatch(compiled, uri));
+        long compiledOps = run(uris, MATCHES, uri -> compiledMatch(compiled, uri));
+
+        System.out.println("split and walk the tree: " + legacyOps + " matches/s");
+        System.out.println("compiled route tree: " + compiledOps + " matches/s");
+    }
+
+    private static long run(List<String> uris, int times, java.util.function.ToIntFunction<String> f) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < times; ++i) {
+            sum += f.applyAsInt(uris.get(i % uris.size()));
+        }
+        long cost = System.nanoTime() - start;
+        if (sum == 0) {
+            throw new IllegalStateException("nothing matched");
+        }
+        return times * 1_000_000_000L / cost;
+    }
+
+    private static int compiledMatch(RouteTree tree, String uri) {
+        int end = uri.indexOf('?');
+        return tree.match(uri, end == -1 ? uri.length() : end).size();
+    }
+
+    // the way routes were matched before the tree is compiled
+    private static int legacyMatch(Tree<Route, RoutingHandler> tree, String uri) {
+        String path = uri;
+        if (path.contains("?")) {
+            path = path.substring(0, path.indexOf('?'));
+        }
+        List<String> paths = Arrays.stream(path.split("/")).map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+        var ls = new LinkedList<Tuple<List<RoutingHandler>, RoutingHandler>>();
+        legacyMatch(ls, Collections.emptyList(), tree, paths, 0);
+        return ls.size();
+    }
+
+    private static void legacyMatch(List<Tuple<List<RoutingHandler>, RoutingHandler>> ret,
+                                    List<RoutingHandler> preHandlers,
+                                    Tree<Route, RoutingHandler> tree,
+                                    List<String> paths,
+                                    int pathIdx) {
+        if (pathIdx >= paths.size()) {
+            return;
+        }
+        String path = paths.get(pathIdx);
+        boolean isLast = pathIdx + 1 == paths.size();
+        for (var br : tree.branches()) {
+            RoutingHandler preHandler = rctx -> br.data.fill(rctx, path);
+            if (br.data.match(path)) {
+                var newPreHandlers = new AppendingList<>(preHandlers, preHandler);
+                if (isLast || br.data instanceof WildcardRoute) {
+                    for (var h : br.leafData()) {
+                        ret.add(new Tuple<>(newPreHandlers, h));
+                    }
+                }
+                legacyMatch(ret, newPreHandlers, br, paths, pathIdx + 1);
+            }
+        }
+    }
+}
@@ -20,6 +20,22 @@ import vproxy.test.cases.*;
     TestSSL.class,
     TestProtocols.class,
     TestHttp1Parser.class,
+    TestDomainMatcher.class,
+    TestJsonUTF8Parser.class,
+    TestJsonStreamingSerializer.class,
+    TestAccessLog.class,
+    TestMetrics.class,
+    TestRESPProcessor.class,
+    TestByteArray.class,
+    TestHttpServer.class,
+    TestHttpClient.class,
+    TestHappyEyeballs.class,
+    TestEventLoopGroup.class,
+    TestSessionMigration.class,
+    TestLoopLocalSet.class,
+    TestWebSocksMux.class,
+    TestConfigLoader.class,
+    TestLogger.class,
 
     AfterAll.class
 })
@@ -0,0 +1,327 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.app.Config;
+import vproxy.component.accesslog.AccessLog;
+import vproxy.component.accesslog.AccessLogReader;
+import vproxy.component.app.TcpLB;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.secure.SecurityGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.ServerGroups;
+import vproxy.processor.HttpEventListener;
+import vproxy.processor.http1.HttpContext;
+import vproxy.processor.http1.HttpProcessor;
+import vproxy.processor.http1.HttpSubContext;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.test.tool.Client;
+import vproxy.test.tool.EchoServer;
+import vproxy.util.ByteArray;
+import vserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestAccessLog {
+    private static final int lbPort = 18090;
+    private static final int echoPort = 20090;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("vproxy-access-log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private static List<String> read(String file) throws Exception {
+        List<String> lines = new ArrayList<>();
+        AccessLogReader.read(file, lines::add);
+        return lines;
+    }
+
+    // remove the timestamp
+    private static String content(String line) {
+        return line.substring("yyyy-MM-dd HH:mm:ss.SSS ".length());
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        String file = dir.getAbsolutePath() + "/access.log";
+        AccessLog log = new AccessLog(file, 1024 * 1024, 3);
+
+        AccessLog.Entry e = log.entry();
+        e.kind = AccessLog.KIND_TCP;
+        e.startTime = System.currentTimeMillis();
+        e.connectNanos = 1_000;
+        e.firstByteNanos = 2_000;
+        e.totalNanos = 3_000_000;
+        e.bytesIn = 10;
+        e.bytesOut = 20;
+        e.client = new InetSocketAddress(InetAddress.getByName("1.2.3.4"), 1234);
+        e.backend = new InetSocketAddress(InetAddress.getByName("::1"), 80);
+        e.lb = "lb0";
+        e.group = "sg0";
+        e.server = "svr0";
+        log.log(e);
+
+        e = log.entry();
+        e.kind = AccessLog.KIND_HTTP;
+        e.startTime = System.currentTimeMillis();
+        e.firstByteNanos = 5_000;
+        e.totalNanos = 6_000;
+        e.bytesIn = 30;
+        e.bytesOut = 40;
+        e.client = new InetSocketAddress(InetAddress.getByName("1.2.3.4"), 1234);
+        e.lb = "lb0";
+        e.status = 200;
+        e.stream = 3;
+        e.method = "GET";
+        e.host = "example.com";
+        e.path = "/a/very/long/path/" + "x".repeat(200);
+        log.log(e);
+
+        List<String> lines = read(file);
+        assertEquals(2, lines.size());
+        assertEquals("tcp lb=lb0 client=1.2.3.4:1234 backend=[0000:0000:0000:0000:0000:0000:0000:0001]:80 server=sg0/svr0 " +
+                "connect=1us first-byte=2us total=3000us in=10 out=20",
+            content(lines.get(0)));
+        assertEquals("http lb=lb0 client=1.2.3.4:1234 backend=- server=- stream=3 method=GET host=example.com " +
+                "path=" + ("/a/very/long/path/" + "x".repeat(200)).substring(0, 143) + " status=200 " +
+                "connect=- first-byte=5us total=6us in=30 out=40",
+            content(lines.get(1)));
+    }
+
+    @Test
+    public void rotate() throws Exception {
+        String file = dir.getAbsolutePath() + "/access.log";
+        AccessLog log = new AccessLog(file, AccessLog.HEADER_SIZE + 4 * AccessLog.RECORD_SIZE, 2);
+
+        for (int round = 0; round < 3; ++round) {
+            // wait until the next file is prepared
+            long start = System.currentTimeMillis();
+            while (!new File(file + ".next").exists()) {
+                assertTrue("the next file is not prepared", System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 4; ++i) {
+                AccessLog.Entry e = log.entry();
+                e.kind = AccessLog.KIND_TCP;
+                e.lb = "round" + round;
+                log.log(e);
+            }
+            Thread.sleep(100);
+        }
+        // the third round triggers the second rotation
+        Thread.sleep(500);
+
+        assertEquals(0, log.droppedCount());
+        List<String> lines = read(file);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).contains("lb=round2"));
+        lines = read(file + ".1");
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).contains("lb=round1"));
+        lines = read(file + ".2");
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).contains("lb=round0"));
+    }
+
+    @Test
+    public void tcpLB() throws Exception {
+        SelectorEventLoop serverLoop = SelectorEventLoop.open();
+        serverLoop.loop(r -> new Thread(r, "serverLoop"));
+        new EchoServer(serverLoop, echoPort);
+
+        EventLoopGroup elg = new EventLoopGroup("elg-access-log");
+        elg.add("el0");
+        ServerGroup sg = new ServerGroup("sgEcho", elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("echo", new InetSocketAddress("127.0.0.1", echoPort), 10);
+        for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+            h.healthy = true;
+        }
+        ServerGroups sgs = new ServerGroups("sgs-access-log");
+        sgs.add(sg, 10);
+
+        String file = dir.getAbsolutePath() + "/access.log";
+        TcpLB lb = new TcpLB("lb-access-log", elg, elg, new InetSocketAddress("127.0.0.1", lbPort), sgs,
+            Config.tcpTimeout, 16384, 16384, SecurityGroup.allowAll());
+        lb.accessLog = new AccessLog(file, 1024 * 1024, 1);
+        lb.start();
+
+        try {
+            Client client = new Client(lbPort);
+            client.connect();
+            assertEquals("hello there", client.sendAndRecv("hello there", 11));
+            client.close();
+
+            List<String> lines = new ArrayList<>();
+            long start = System.currentTimeMillis();
+            while (lines.isEmpty()) {
+                assertTrue("no access log recorded", System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+                lines = read(file);
+            }
+            String line = content(lines.get(0));
+            assertTrue(line, line.startsWith("tcp lb=lb-access-log client=127.0.0.1:"));
+            assertTrue(line, line.contains(" backend=127.0.0.1:" + echoPort + " server=sgEcho/echo "));
+            assertTrue(line, line.endsWith(" in=11 out=11"));
+            assertFalse(line, line.contains("connect=-"));
+            assertFalse(line, line.contains("first-byte=-"));
+        } finally {
+            lb.destroy();
+            elg.close();
+            serverLoop.close();
+        }
+    }
+
+    // read one response with content-length
+    private static byte[] readResponse(InputStream in) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while (!baos.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            assertNotEquals("unexpected eof", -1, b);
+            baos.write(b);
+        }
+        String headers = baos.toString().toLowerCase();
+        int idx = headers.indexOf("content-length:");
+        assertNotEquals(headers, -1, idx);
+        int len = Integer.parseInt(headers.substring(idx + "content-length:".length(), headers.indexOf("\r\n", idx)).trim());
+        for (int i = 0; i < len; ++i) {
+            int b = in.read();
+            assertNotEquals("unexpected eof", -1, b);
+            baos.write(b);
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void http1Bytes() throws Exception {
+        HttpServer server = HttpServer.create();
+        server.get("/hello", rctx -> rctx.response().end(ByteArray.from("hello world".getBytes())));
+        server.get("/bigger", rctx -> rctx.response().end(ByteArray.from("x".repeat(1000).getBytes())));
+        server.listen(echoPort + 1, "127.0.0.1");
+
+        EventLoopGroup elg = new EventLoopGroup("elg-access-log-http");
+        elg.add("el0");
+        ServerGroup sg = new ServerGroup("sgHttp", elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("http", new InetSocketAddress("127.0.0.1", echoPort + 1), 10);
+        for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+            h.healthy = true;
+        }
+        ServerGroups sgs = new ServerGroups("sgs-access-log-http");
+        sgs.add(sg, 10);
+
+        String file = dir.getAbsolutePath() + "/access.log";
+        TcpLB lb = new TcpLB("lb-access-log-http", elg, elg, new InetSocketAddress("127.0.0.1", lbPort), sgs,
+            Config.tcpTimeout, 16384, 16384, "http/1.x", null, null, SecurityGroup.allowAll());
+        lb.accessLog = new AccessLog(file, 1024 * 1024, 1);
+        lb.start();
+
+        try {
+            String[] requests = {
+                "GET /hello HTTP/1.1\r\nHost: example.com\r\n\r\n",
+                "GET /bigger HTTP/1.1\r\nHost: example.com\r\nUser-Agent: test\r\n\r\n",
+            };
+            int[] responseLengths = new int[requests.length];
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                for (int i = 0; i < requests.length; ++i) {
+                    sock.getOutputStream().write(requests[i].getBytes());
+                    sock.getOutputStream().flush();
+                    responseLengths[i] = readResponse(sock.getInputStream()).length;
+                }
+            }
+
+            List<String> lines = new ArrayList<>();
+            long start = System.currentTimeMillis();
+            while (lines.size() < 3) {
+                assertTrue("access logs not recorded: " + lines, System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+                lines = read(file);
+            }
+            for (int i = 0; i < requests.length; ++i) {
+                String line = content(lines.get(i));
+                assertTrue(line, line.startsWith("http lb=lb-access-log-http "));
+                assertTrue(line, line.contains(" server=sgHttp/http "));
+                assertTrue(line, line.endsWith(" in=" + requests[i].length() + " out=" + responseLengths[i]));
+            }
+            String line = content(lines.get(2));
+            assertTrue(line, line.startsWith("conn lb=lb-access-log-http "));
+            assertTrue(line, line.endsWith(" in=" + (requests[0].length() + requests[1].length())
+                + " out=" + (responseLengths[0] + responseLengths[1])));
+        } finally {
+            lb.destroy();
+            elg.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void http1Events() throws Exception {
+        HttpProcessor p = new HttpProcessor();
+        HttpContext ctx = p.init(new InetSocketAddress("127.0.0.1", 1234));
+        HttpSubContext front = p.initSub(ctx, 0, null);
+        HttpSubContext back = p.initSub(ctx, 1, null);
+        List<String> events = new ArrayList<>();
+        p.setHttpEventListener(ctx, new HttpEventListener() {
+            @Override
+            public void request(int stream, String method, String host, String path) {
+                events.add("request " + stream + " " + method + " " + host + " " + path);
+            }
+
+            @Override
+            public void response(int connId, int stream, int status) {
+                events.add("response " + connId + " " + stream + " " + status);
+            }
+
+            @Override
+            public void responseEnd(int connId, int stream) {
+                events.add("responseEnd " + connId + " " + stream);
+            }
+        });
+
+        for (int i = 0; i < 2; ++i) {
+            front.feed(ByteArray.from(("" +
+                "GET /hello" + i + " HTTP/1.1\r\n" +
+                "Host: example" + i + ".com\r\n" +
+                "\r\n").getBytes()));
+            back.feed(ByteArray.from(("" +
+                "HTTP/1.1 20" + i + " OK\r\n" +
+                "Content-Length: 0\r\n" +
+                "\r\n").getBytes()));
+        }
+        assertEquals(List.of(
+            "request 0 GET example0.com /hello0",
+            "response 1 0 200",
+            "responseEnd 1 0",
+            "request 0 GET example1.com /hello1",
+            "response 1 0 201",
+            "responseEnd 1 0"
+        ), events);
+    }
+}
@@ -0,0 +1,114 @@
+package vproxy.test.cases;
+
+import org.junit.Test;
+import vproxy.util.ByteArray;
+import vproxy.util.ByteArrayChannel;
+import vproxy.util.RingBuffer;
+import vproxy.util.bytearray.RopeByteArray;
+import vproxy.util.ringbuffer.SimpleRingBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TestByteArray {
+    private static ByteArray str(String s) {
+        return ByteArray.from(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void concat() {
+        ByteArray arr = str("GET / HTTP/1.1\r\n")
+            .concat(ByteArray.from((byte) 'H'))
+            .concat(str("ost: example.com\r\n"))
+            .concat(str("").concat(str("\r\n")));
+        assertTrue(arr instanceof RopeByteArray);
+        String expected = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n";
+        assertEquals(expected.length(), arr.length());
+        for (int i = 0; i < expected.length(); ++i) {
+            assertEquals(expected.charAt(i), (char) arr.get(i));
+        }
+        // visit backwards, which does not hit the last visited segment
+        for (int i = expected.length() - 1; i >= 0; --i) {
+            assertEquals(expected.charAt(i), (char) arr.get(i));
+        }
+        assertEquals(expected, new String(arr.toJavaArray(), StandardCharsets.UTF_8));
+        assertEquals(str(expected), arr);
+
+        arr.set(16, (byte) 'h');
+        assertEquals("host", new String(arr.sub(16, 4).toJavaArray(), StandardCharsets.UTF_8));
+
+        try {
+            arr.get(expected.length());
+            fail();
+        } catch (ArrayIndexOutOfBoundsException ignore) {
+        }
+    }
+
+    @Test
+    public void sub() {
+        ByteArray arr = str("abc").concat(str("def")).concat(str("ghi"));
+        assertEquals("cdefg", new String(arr.sub(2, 5).toJavaArray(), StandardCharsets.UTF_8));
+        assertEquals("ef", new String(arr.sub(4, 2).toJavaArray(), StandardCharsets.UTF_8));
+        assertEquals(0, arr.sub(9, 0).length());
+
+        // insert into the middle, like what the http processor does
+        ByteArray inserted = arr.sub(0, 3).concat(str("-")).concat(arr.sub(3, 6));
+        assertEquals("abc-defghi", new String(inserted.toJavaArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void channel() {
+        ByteArray arr = str("hello").concat(str(" ")).concat(str("world"));
+        ByteArrayChannel chnl = arr.toChannel();
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        StringBuilder sb = new StringBuilder();
+        while (chnl.used() != 0) {
+            buf.clear();
+            chnl.read(buf);
+            buf.flip();
+            sb.append(StandardCharsets.UTF_8.decode(buf));
+        }
+        assertEquals("hello world", sb.toString());
+
+        ByteArray target = ByteArray.allocate(4).concat(ByteArray.allocate(3));
+        target.byteBufferGet(ByteBuffer.wrap("1234567".getBytes()), 0, 7);
+        assertEquals("1234567", new String(target.toJavaArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void gatheringWrite() throws Exception {
+        SimpleRingBuffer rb = RingBuffer.allocate(8);
+        byte[] out = new byte[8];
+        ByteArrayChannel outChnl = ByteArrayChannel.fromEmpty(out);
+
+        // make the data wrap around the end of the buffer
+        rb.storeBytesFrom(ByteArrayChannel.fromFull("012345".getBytes()));
+        rb.writeTo(outChnl, 4);
+        rb.storeBytesFrom(ByteArrayChannel.fromFull("6789".getBytes()));
+        assertEquals(6, rb.used());
+
+        Pipe pipe = Pipe.open();
+        try {
+            int n = rb.writeTo(pipe.sink());
+            assertEquals(6, n);
+            assertEquals(0, rb.used());
+
+            ByteBuffer buf = ByteBuffer.allocate(6);
+            while (buf.hasRemaining()) {
+                pipe.source().read(buf);
+            }
+            assertEquals("456789", new String(buf.array(), StandardCharsets.UTF_8));
+
+            // the buffer can be used again
+            rb.storeBytesFrom(ByteArrayChannel.fromFull("abcdefgh".getBytes()));
+            assertEquals(8, rb.used());
+            assertEquals("abcdefgh", new String(rb.getBytes(), StandardCharsets.UTF_8));
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+}
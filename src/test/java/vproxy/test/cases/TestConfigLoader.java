@@ -0,0 +1,170 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import vproxy.app.Application;
+import vproxy.component.app.Shutdown;
+import vproxy.component.exception.NotFoundException;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.util.BlockCallback;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestConfigLoader {
+    private static final int SERVERS = 200;
+
+    private final List<File> files = new ArrayList<>();
+
+    @BeforeClass
+    public static void classSetUp() throws Exception {
+        if (Application.get() != null) {
+            return;
+        }
+        Method create = Application.class.getDeclaredMethod("create");
+        create.setAccessible(true);
+        create.invoke(null);
+        Application.get().controlEventLoop.loop();
+    }
+
+    @After
+    public void tearDown() {
+        Application app = Application.get();
+        try {
+            app.tcpLBHolder.removeAndStop("lb0");
+        } catch (NotFoundException ignore) {
+        }
+        try {
+            app.serverGroupsHolder.remove("sgs0");
+        } catch (NotFoundException ignore) {
+        }
+        for (String sg : new String[]{"sg0", "sg1", "sg2"}) {
+            try {
+                app.serverGroupHolder.removeAndClear(sg);
+            } catch (NotFoundException ignore) {
+            }
+        }
+        try {
+            app.eventLoopGroupHolder.removeAndClose("elg0");
+        } catch (NotFoundException ignore) {
+        }
+        for (File f : files) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+    }
+
+    private static List<String> config() {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Generated by vproxy " + Application.VERSION);
+        lines.add("add event-loop-group elg0");
+        lines.add("add event-loop el0 to event-loop-group elg0");
+        lines.add("add server-group sg0 timeout 1000 period 60000 up 2 down 3 method wrr event-loop-group elg0");
+        lines.add("add server-group sg1 timeout 1000 period 60000 up 2 down 3 method wlc event-loop-group elg0");
+        lines.add("add server-groups sgs0");
+        lines.add("add server-group sg0 to server-groups sgs0 weight 10");
+        lines.add("add server-group sg1 to server-groups sgs0 weight 10");
+        lines.add("add tcp-lb lb0 acceptor-elg elg0 event-loop-group elg0 address 127.0.0.1:18900 server-groups sgs0" +
+            " timeout 900000 in-buffer-size 16384 out-buffer-size 16384 protocol tcp");
+        // servers are added after the tcp-lb, the same as the saved file
+        for (int i = 0; i < SERVERS; ++i) {
+            lines.add("add server svr" + i + " to server-group sg" + (i % 2) + " address 127.0.0.1:" + (20000 + i) + " weight 10");
+        }
+        return lines;
+    }
+
+    private String write(List<String> lines) throws Exception {
+        File f = File.createTempFile("vproxy-test-config", ".conf");
+        files.add(f);
+        try (FileOutputStream fos = new FileOutputStream(f)) {
+            fos.write((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return f.getAbsolutePath();
+    }
+
+    private static void load(String path) throws Throwable {
+        BlockCallback<String, Throwable> cb = new BlockCallback<>();
+        Shutdown.load(path, cb);
+        cb.block();
+    }
+
+    private static int serverCount(String group) throws Exception {
+        ServerGroup sg = Application.get().serverGroupHolder.get(group);
+        return sg.getServerHandles().size();
+    }
+
+    @Test
+    public void load() throws Throwable {
+        List<String> lines = config();
+        load(write(lines));
+
+        assertEquals(SERVERS / 2, serverCount("sg0"));
+        assertEquals(SERVERS / 2, serverCount("sg1"));
+        assertTrue(Application.get().tcpLBHolder.names().contains("lb0"));
+
+        // the loaded resources are saved again
+        String current = Shutdown.currentConfig();
+        for (String line : lines) {
+            if (line.startsWith("#") || line.startsWith("add tcp-lb ")) {
+                continue; // the tcp-lb line carries more default values when saved
+            }
+            assertTrue("missing `" + line + "`", current.contains(line + "\n"));
+        }
+    }
+
+    @Test
+    public void brokenLine() throws Throwable {
+        List<String> lines = config();
+        // a broken line in the middle of the servers
+        lines.add(lines.size() - SERVERS / 2, "add server svr-broken to server-group sg0 address");
+        String path = write(lines);
+
+        try {
+            load(path);
+            fail("loading a broken config should fail");
+        } catch (Exception expected) {
+        }
+        // the lines are parsed before any command runs, nothing is applied
+        assertFalse(Application.get().eventLoopGroupHolder.names().contains("elg0"));
+        assertFalse(Application.get().serverGroupHolder.names().contains("sg0"));
+        assertFalse(Application.get().tcpLBHolder.names().contains("lb0"));
+    }
+
+    @Test
+    public void reload() throws Throwable {
+        String path = write(config());
+        load(path);
+        assertEquals(SERVERS / 2, serverCount("sg0"));
+
+        // loading the same config again fails because the resources already exist
+        try {
+            load(path);
+            fail("loading existing resources should fail");
+        } catch (Exception expected) {
+        }
+        assertEquals(SERVERS / 2, serverCount("sg0"));
+        assertEquals(SERVERS / 2, serverCount("sg1"));
+
+        // load more resources on top of the loaded ones
+        List<String> more = new ArrayList<>();
+        more.add("add server-group sg2 timeout 1000 period 60000 up 2 down 3 method source event-loop-group elg0");
+        more.add("add server-group sg2 to server-groups sgs0 weight 5");
+        for (int i = SERVERS; i < SERVERS + 10; ++i) {
+            more.add("add server svr" + i + " to server-group sg0 address 127.0.0.1:" + (20000 + i) + " weight 10");
+            more.add("add server svr" + i + " to server-group sg2 address 127.0.0.1:" + (20000 + i) + " weight 10");
+        }
+        load(write(more));
+
+        assertEquals(SERVERS / 2 + 10, serverCount("sg0"));
+        assertEquals(SERVERS / 2, serverCount("sg1"));
+        assertEquals(10, serverCount("sg2"));
+        assertEquals(3, Application.get().serverGroupsHolder.get("sgs0").getServerGroups().size());
+    }
+}
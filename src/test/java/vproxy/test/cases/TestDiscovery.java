@@ -3,21 +3,34 @@ package vproxy.test.cases;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import vjson.JSON;
+import vjson.util.ObjectBuilder;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.exception.NoException;
 import vproxy.discovery.*;
+import vproxy.redis.Serializer;
 import vproxy.test.tool.DiscoveryHolder;
 import vproxy.util.BlockCallback;
 import vproxy.util.IPType;
-import vserver.HttpServer;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class TestDiscovery {
     private DiscoveryHolder holder;
+    private final List<FakeNode> fakeNodes = new ArrayList<>();
 
     @Before
     public void setUp() {
@@ -27,6 +40,159 @@ public class TestDiscovery {
     @After
     public void tearDown() {
         holder.release();
+        for (FakeNode f : fakeNodes) {
+            f.close();
+        }
+    }
+
+    // a node speaking the gossip messages on a udp socket, how it replies is controlled by the test
+    private static class FakeNode {
+        final String name;
+        final int udpPort;
+        final int tcpPort;
+        final DatagramSocket sock;
+        final ConcurrentLinkedQueue<JSON.Object> received = new ConcurrentLinkedQueue<>();
+        volatile boolean replyPing = true;
+        volatile String replyPingReq = null; // ack, nack or null for not replying
+        volatile int incarnation = 0;
+
+        FakeNode(String name, int udpPort, int tcpPort) throws IOException {
+            this.name = name;
+            this.udpPort = udpPort;
+            this.tcpPort = tcpPort;
+            sock = new DatagramSocket(new InetSocketAddress("127.0.0.1", udpPort));
+            new Thread(this::receive, "FakeNode:" + name).start();
+        }
+
+        private void receive() {
+            byte[] buf = new byte[65536];
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    sock.receive(packet);
+                } catch (IOException e) {
+                    return; // closed
+                }
+                // resp bulk string: $len\r\n{json}\r\n
+                String str = new String(buf, 0, packet.getLength(), StandardCharsets.UTF_8);
+                JSON.Object msg = (JSON.Object) JSON.parse(str.substring(str.indexOf("\r\n") + 2, str.length() - 2));
+                if (!msg.containsKey("seq"))
+                    continue; // search messages
+                received.add(msg);
+                String type = msg.getString("type");
+                if (type.equals("ping") && replyPing) {
+                    send("ack", msg.getInt("seq"), msg.getInt("udpPort"), null);
+                } else if (type.equals("ping-req") && replyPingReq != null) {
+                    send(replyPingReq, msg.getInt("seq"), msg.getInt("udpPort"), null);
+                }
+            }
+        }
+
+        void send(String type, int seq, int port, FakeNode target, JSON.Object... updates) {
+            ObjectBuilder ob = new ObjectBuilder()
+                .put("version", 1)
+                .put("type", type)
+                .put("nodeName", name)
+                .put("udpPort", udpPort)
+                .put("tcpPort", tcpPort)
+                .put("incarnation", incarnation)
+                .put("seq", seq);
+            if (target != null) {
+                ob.putObject("target", o -> o
+                    .put("nodeName", target.name)
+                    .put("address", "127.0.0.1")
+                    .put("udpPort", target.udpPort)
+                    .put("tcpPort", target.tcpPort));
+            }
+            ob.putArray("updates", a -> {
+                for (JSON.Object u : updates) {
+                    a.addInst(u);
+                }
+            });
+            byte[] bytes = Serializer.from(ob.build().stringify());
+            try {
+                sock.send(new DatagramPacket(bytes, bytes.length, new InetSocketAddress("127.0.0.1", port)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        boolean receivedMsg(Predicate<JSON.Object> p) {
+            return received.stream().anyMatch(p);
+        }
+
+        // whether a piggybacked update about the node is received
+        boolean receivedUpdate(FakeNode about, String state, int incarnation) {
+            return receivedMsg(m -> {
+                JSON.Array updates = m.getArray("updates");
+                for (int i = 0; i < updates.length(); ++i) {
+                    JSON.Object u = updates.getObject(i);
+                    if (u.getInt("udpPort") == about.udpPort
+                        && u.getString("state").equals(state)
+                        && u.getInt("incarnation") == incarnation)
+                        return true;
+                }
+                return false;
+            });
+        }
+
+        void close() {
+            sock.close();
+        }
+    }
+
+    private static JSON.Object update(String name, int udpPort, int tcpPort, String state, int incarnation) {
+        return new ObjectBuilder()
+            .put("nodeName", name)
+            .put("address", "127.0.0.1")
+            .put("udpPort", udpPort)
+            .put("tcpPort", tcpPort)
+            .put("state", state)
+            .put("incarnation", incarnation)
+            .build();
+    }
+
+    private FakeNode fakeNode(String name, int udpPort) throws IOException {
+        FakeNode f = new FakeNode(name, udpPort, udpPort + 10);
+        fakeNodes.add(f);
+        return f;
+    }
+
+    private static boolean waitFor(BooleanSupplier cond, int timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static Optional<Node> nodeOf(Discovery d, FakeNode f) {
+        return d.getNodes().stream().filter(n -> n.udpPort == f.udpPort).findFirst();
+    }
+
+    private static boolean healthy(Discovery d, FakeNode f) {
+        return nodeOf(d, f).map(n -> n.healthy).orElse(false);
+    }
+
+    // probe period 500ms, ping timeout 200ms, up 2, down 3, so the suspicion timeout is 1500ms with 3 nodes
+    private Discovery swimNode() throws Exception {
+        Discovery d0 = new Discovery("d0",
+            new DiscoveryConfig(
+                "lo0", IPType.v4, 17080, 18080, 18080,
+                32, 18080, 18082,
+                new TimeConfig(5, Integer.MAX_VALUE, 5, Integer.MAX_VALUE, 60000),
+                new HealthCheckConfig(200, 500, 2, 3)
+            ));
+        holder.add(d0);
+        return d0;
+    }
+
+    // the fake node pings d0, then d0 records it and makes it up with direct pings
+    private static void join(Discovery d0, FakeNode f) throws Exception {
+        f.send("ping", 1, d0.config.udpPort, null);
+        assertTrue(f.name + " should be up", waitFor(() -> healthy(d0, f), 3000));
     }
 
     @Test
@@ -237,13 +403,13 @@ public class TestDiscovery {
         assertEquals(0, downAlert[0]);
         assertEquals(0, removeAlert[0]);
         Thread.sleep(100);
-        // close the d1 socket but do not close it, use reflect
-        Field httpServerF = Discovery.class.getDeclaredField("httpServer");
-        httpServerF.setAccessible(true);
-        HttpServer httpServer = (HttpServer) httpServerF.get(d1);
-        httpServer.close();
-        // wait for 1500 ms, d1 should be down
-        Thread.sleep(1550);
+        // close the d1 udp socket but do not close it, use reflect
+        Field udpServerF = Discovery.class.getDeclaredField("udpBlockingServer");
+        udpServerF.setAccessible(true);
+        DatagramSocket udpServer = (DatagramSocket) udpServerF.get(d1);
+        udpServer.close();
+        // wait for 2600 ms, d1 should be suspected (500 ms) then down (1500 ms)
+        Thread.sleep(2600);
         assertEquals(1, upAlert[0]);
         assertEquals("should be down now", 1, downAlert[0]);
         assertEquals(0, removeAlert[0]);
@@ -253,4 +419,117 @@ public class TestDiscovery {
         assertEquals(1, downAlert[0]);
         assertEquals("should be removed", 1, removeAlert[0]);
     }
+
+    @Test
+    public void swimPingAck() throws Exception {
+        Discovery d0 = swimNode();
+        FakeNode f = fakeNode("f", 18081);
+
+        // ping is replied with an ack carrying the same seq
+        f.send("ping", 100, 18080, null);
+        assertTrue(waitFor(() -> f.receivedMsg(m -> m.getString("type").equals("ack") && m.getInt("seq") == 100), 1000));
+        // the sender is recorded, and pinged directly until it's up
+        assertTrue(nodeOf(d0, f).isPresent());
+        assertTrue(waitFor(() -> healthy(d0, f), 3000));
+        assertTrue(f.receivedMsg(m -> m.getString("type").equals("ping")));
+
+        // the sender out of the search range is acked but not recorded
+        FakeNode o = fakeNode("o", 18090);
+        o.send("ping", 200, 18080, null);
+        assertTrue(waitFor(() -> o.receivedMsg(m -> m.getString("type").equals("ack") && m.getInt("seq") == 200), 1000));
+        Thread.sleep(500);
+        assertFalse(nodeOf(d0, o).isPresent());
+        assertFalse(o.receivedMsg(m -> m.getString("type").equals("ping")));
+
+        // ping-req for a node which is not a member is ignored
+        f.send("ping-req", 300, 18080, o);
+        Thread.sleep(500);
+        assertFalse(o.receivedMsg(m -> m.getString("type").equals("ping")));
+        assertFalse(f.receivedMsg(m -> m.getInt("seq") == 300));
+    }
+
+    @Test
+    public void swimIndirectProbe() throws Exception {
+        Discovery d0 = swimNode();
+        FakeNode f = fakeNode("f", 18081);
+        FakeNode r = fakeNode("r", 18082);
+        join(d0, f);
+        join(d0, r);
+
+        // f does not reply d0, but r is able to reach f
+        f.replyPing = false;
+        r.replyPingReq = "ack";
+        assertTrue(waitFor(() -> r.receivedMsg(m -> m.getString("type").equals("ping-req")
+            && m.getObject("target").getInt("udpPort") == f.udpPort), 3000));
+        // longer than the suspicion timeout
+        Thread.sleep(2000);
+        assertTrue(healthy(d0, f));
+        assertFalse(r.receivedUpdate(f, "suspect", 0));
+
+        // r does not reply at all, d0 might be the one which cannot receive packets, so f is not suspected
+        r.replyPingReq = null;
+        r.received.clear();
+        assertTrue(waitFor(() -> r.receivedMsg(m -> m.getString("type").equals("ping-req")), 3000));
+        Thread.sleep(2000);
+        assertTrue(healthy(d0, f));
+        assertFalse(r.receivedUpdate(f, "suspect", 0));
+
+        // r cannot reach f either
+        r.replyPingReq = "nack";
+        assertTrue("f should be suspected", waitFor(() -> r.receivedUpdate(f, "suspect", 0), 3000));
+    }
+
+    @Test
+    public void swimSuspicionTimeout() throws Exception {
+        Discovery d0 = swimNode();
+        FakeNode f = fakeNode("f", 18081);
+        FakeNode r = fakeNode("r", 18082);
+        join(d0, f);
+        join(d0, r);
+
+        f.replyPing = false;
+        r.replyPingReq = "nack";
+        assertTrue("f should be suspected", waitFor(() -> r.receivedUpdate(f, "suspect", 0), 3000));
+        // a suspected node is still up
+        assertTrue(healthy(d0, f));
+
+        // not refuted in the suspicion timeout
+        assertTrue("f should be down", waitFor(() -> !healthy(d0, f), 2000));
+        assertTrue(waitFor(() -> r.receivedUpdate(f, "dead", 0), 2000));
+        assertTrue(healthy(d0, r));
+    }
+
+    @Test
+    public void swimRefute() throws Exception {
+        Discovery d0 = swimNode();
+        FakeNode f = fakeNode("f", 18081);
+        FakeNode r = fakeNode("r", 18082);
+        join(d0, f);
+        join(d0, r);
+
+        // r spreads the suspicion of f
+        r.send("ping", 500, 18080, null, update("f", f.udpPort, f.tcpPort, "suspect", 0));
+        assertTrue("f should be suspected", waitFor(() -> r.receivedUpdate(f, "suspect", 0) || f.receivedUpdate(f, "suspect", 0), 2000));
+
+        // f refutes with a larger incarnation
+        f.incarnation = 1;
+        f.send("ping", 501, 18080, null);
+        assertTrue(waitFor(() -> r.receivedUpdate(f, "alive", 1), 2000));
+        // the suspicion with a smaller incarnation is ignored
+        r.send("ping", 502, 18080, null, update("f", f.udpPort, f.tcpPort, "suspect", 0));
+
+        // longer than the suspicion timeout
+        Thread.sleep(2000);
+        assertTrue(healthy(d0, f));
+        assertFalse(r.receivedUpdate(f, "dead", 0));
+        assertFalse(r.receivedUpdate(f, "dead", 1));
+
+        // d0 refutes the suspicion about itself
+        r.received.clear();
+        r.send("ping", 503, 18080, null, update("d0", 18080, 18080, "suspect", 0));
+        assertTrue(waitFor(() -> r.receivedMsg(m -> m.getString("nodeName").equals("d0") && m.getInt("incarnation") == 1), 2000));
+        Thread.sleep(2000);
+        assertTrue(healthy(d0, r));
+        assertTrue(healthy(d0, f));
+    }
 }
@@ -0,0 +1,136 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxyx.websocks.ABP;
+import vproxyx.websocks.ConfigProcessor;
+import vproxyx.websocks.DomainMatcher;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class TestDomainMatcher {
+    private EventLoopGroup elg;
+    private File conf;
+    private File abpFile;
+
+    @Before
+    public void setUp() throws Exception {
+        elg = new EventLoopGroup("elg");
+        elg.add("el");
+        conf = File.createTempFile("websocks-agent", ".conf");
+        abpFile = File.createTempFile("gfwlist", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        elg.close();
+        //noinspection ResultOfMethodCallIgnored
+        conf.delete();
+        //noinspection ResultOfMethodCallIgnored
+        abpFile.delete();
+    }
+
+    @Test
+    public void abpRules() {
+        ABP abp = new ABP(false);
+        abp.addRule("" +
+            "! comment\n" +
+            "[AutoProxy 0.2.9]\n" +
+            "@@||allowed.example.com\n" +
+            "||example.com\n" +
+            "|http://exact.org/path\n" +
+            "@@|white\n" +
+            "whitelisted-later.net\n" +
+            "@@keyword\n" +
+            "keyword\n" +
+            ".blocked.io\n" +
+            "");
+        assertEquals(8, abp.ruleCount());
+
+        // ||
+        assertTrue(abp.block("example.com"));
+        assertTrue(abp.block("www.example.com"));
+        assertFalse(abp.block("notexample.com"));
+        assertFalse(abp.block("example.com.cn"));
+        // @@|| comes first
+        assertFalse(abp.block("allowed.example.com"));
+        assertFalse(abp.block("a.allowed.example.com"));
+        // |
+        assertTrue(abp.block("exact.org"));
+        assertFalse(abp.block("www.exact.org"));
+        // @@| comes before the simple rule
+        assertFalse(abp.block("whitelisted-later.net"));
+        assertTrue(abp.block("x.whitelisted-later.net"));
+        // @@ comes before the simple rule
+        assertFalse(abp.block("a.keyword.com"));
+        // simple rule
+        assertTrue(abp.block("x.blocked.io"));
+        assertTrue(abp.block("x.blocked.iox"));
+        assertFalse(abp.block("blocked.io"));
+    }
+
+    @Test
+    public void abpDefaultBlock() {
+        ABP abp = new ABP(true);
+        abp.addBase64(Base64.getEncoder().encodeToString("@@||example.com\n".getBytes()));
+        assertFalse(abp.block("example.com"));
+        assertTrue(abp.block("example.org"));
+    }
+
+    @Test
+    public void matchInOrder() throws Exception {
+        Files.writeString(abpFile.toPath(), Base64.getEncoder().encodeToString(("" +
+            "@@||direct.abp.com\n" +
+            "||abp.com\n" +
+            "").getBytes()));
+        Files.writeString(conf.toPath(), "" +
+            "proxy.server.auth alice:pasSw0rD\n" +
+            "proxy.server.list.start\n" +
+            "websocks://127.0.0.1:18686\n" +
+            "proxy.server.list.end\n" +
+            "proxy.server.list.start TEST\n" +
+            "websocks://127.0.0.1:18687\n" +
+            "proxy.server.list.end\n" +
+            "proxy.domain.list.start\n" +
+            "google.com\n" +
+            ":443\n" +
+            "[" + abpFile.getAbsolutePath() + "]\n" +
+            "proxy.domain.list.end\n" +
+            "proxy.domain.list.start TEST\n" +
+            "test.google.com\n" +
+            "/.*\\.regexp\\.com$/\n" +
+            ":8443\n" +
+            "proxy.domain.list.end\n" +
+            "");
+        ConfigProcessor config = new ConfigProcessor(conf.getAbsolutePath(), elg);
+        config.parse();
+        DomainMatcher matcher = new DomainMatcher(config.getDomains(), 2);
+
+        // DEFAULT list is always checked last
+        assertEquals("TEST", matcher.match("test.google.com", 80));
+        assertEquals("DEFAULT", matcher.match("www.google.com", 80));
+        // suffix does not align to labels
+        assertEquals("TEST", matcher.match("mytest.google.com", 80));
+        assertEquals("TEST", matcher.match("a.regexp.com", 443));
+        assertEquals("TEST", matcher.match("a.regexp.com", 80));
+        assertEquals("TEST", matcher.match("x.com", 8443));
+        assertEquals("DEFAULT", matcher.match("www.abp.com", 80));
+        // the abp list blocks by default, unless whitelisted
+        assertEquals("DEFAULT", matcher.match("x.com", 80));
+        assertEquals("DEFAULT", matcher.match("direct.abp.com", 443));
+        assertNull(matcher.match("direct.abp.com", 80));
+
+        // the cache should not change the result
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("TEST", matcher.match("x.com", 8443));
+            assertEquals("DEFAULT", matcher.match("direct.abp.com", 443));
+            assertNull(matcher.match("direct.abp.com", 80));
+        }
+    }
+}
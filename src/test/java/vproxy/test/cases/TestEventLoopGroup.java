@@ -0,0 +1,203 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.elgroup.SelectMethod;
+import vproxy.connection.*;
+import vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestEventLoopGroup {
+    private static final int LOOPS = 4;
+    private static final int SESSIONS = 40;
+
+    private EventLoopGroup elg;
+    private ServerSocket server;
+    private final List<Socket> accepted = new ArrayList<>();
+    private final List<Connection> conns = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        elg = new EventLoopGroup("elg0");
+        for (int i = 0; i < LOOPS; ++i) {
+            elg.add("el" + i);
+        }
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        new Thread(() -> {
+            while (true) {
+                try {
+                    Socket s = server.accept();
+                    synchronized (accepted) {
+                        accepted.add(s);
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Connection c : conns) {
+            c.close();
+        }
+        server.close();
+        synchronized (accepted) {
+            for (Socket s : accepted) {
+                s.close();
+            }
+        }
+        elg.close();
+    }
+
+    private static void waitForCount(EventLoopWrapper el, int count) throws Exception {
+        long start = System.currentTimeMillis();
+        while (el.connectionCount() != count) {
+            if (System.currentTimeMillis() - start > 2000) {
+                fail("expecting " + count + " connections in " + el.alias + ", but got " + el.connectionCount());
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private Connection connect(EventLoopWrapper el) throws Exception {
+        ConnectableConnection conn = ConnectableConnection.create(
+            new InetSocketAddress("127.0.0.1", server.getLocalPort()), new ConnectionOpts(),
+            RingBuffer.allocate(16), RingBuffer.allocate(16));
+        int count = el.connectionCount();
+        CountDownLatch connected = new CountDownLatch(1);
+        el.addConnectableConnection(conn, null, new ConnectableConnectionHandler() {
+            @Override
+            public void connected(ConnectableConnectionHandlerContext ctx) {
+                connected.countDown();
+            }
+
+            @Override
+            public void readable(ConnectionHandlerContext ctx) {
+            }
+
+            @Override
+            public void writable(ConnectionHandlerContext ctx) {
+            }
+
+            @Override
+            public void exception(ConnectionHandlerContext ctx, IOException err) {
+            }
+
+            @Override
+            public void remoteClosed(ConnectionHandlerContext ctx) {
+            }
+
+            @Override
+            public void closed(ConnectionHandlerContext ctx) {
+            }
+
+            @Override
+            public void removed(ConnectionHandlerContext ctx) {
+            }
+        });
+        assertTrue(connected.await(2, TimeUnit.SECONDS));
+        waitForCount(el, count + 1);
+        return conn;
+    }
+
+    // every LOOPS-th session lives long, others are closed at once
+    private int[] runSkewedSessions() throws Exception {
+        for (int i = 0; i < SESSIONS; ++i) {
+            EventLoopWrapper el = elg.next();
+            Connection conn = connect(el);
+            if (i % LOOPS == 0) {
+                conns.add(conn);
+            } else {
+                int count = el.connectionCount();
+                conn.close();
+                waitForCount(el, count - 1);
+            }
+        }
+        int[] counts = new int[LOOPS];
+        for (int i = 0; i < LOOPS; ++i) {
+            counts[i] = elg.get("el" + i).connectionCount();
+        }
+        return counts;
+    }
+
+    private static int max(int[] counts) {
+        int n = Integer.MIN_VALUE;
+        for (int c : counts) {
+            n = Math.max(n, c);
+        }
+        return n;
+    }
+
+    private static int min(int[] counts) {
+        int n = Integer.MAX_VALUE;
+        for (int c : counts) {
+            n = Math.min(n, c);
+        }
+        return n;
+    }
+
+    @Test
+    public void roundRobinSkewed() throws Exception {
+        assertEquals(SelectMethod.rr, elg.getMethod());
+        int[] counts = runSkewedSessions();
+        // all long-lived sessions are on one loop
+        assertEquals(SESSIONS / LOOPS, max(counts));
+        assertEquals(0, min(counts));
+    }
+
+    @Test
+    public void leastConn() throws Exception {
+        elg.setMethod(SelectMethod.leastconn);
+        int[] counts = runSkewedSessions();
+        assertTrue("balanced: " + max(counts) + " - " + min(counts), max(counts) - min(counts) <= 1);
+    }
+
+    @Test
+    public void powerOfTwoChoices() throws Exception {
+        elg.setMethod(SelectMethod.p2c);
+        int[] counts = runSkewedSessions();
+        assertTrue("balanced: " + max(counts), max(counts) <= SESSIONS / LOOPS / 2);
+    }
+
+    @Test
+    public void leastBusy() throws Exception {
+        elg.setMethod(SelectMethod.leastbusy);
+        EventLoopWrapper busy = elg.get("el0");
+        // keep el0 busy for a while
+        for (int i = 0; i < 6; ++i) {
+            busy.getSelectorEventLoop().nextTick(() -> {
+                long start = System.currentTimeMillis();
+                //noinspection StatementWithEmptyBody
+                while (System.currentTimeMillis() - start < 50) ;
+            });
+        }
+        Thread.sleep(400);
+        for (int i = 0; i < LOOPS * 2; ++i) {
+            assertNotSame(busy, elg.next());
+        }
+    }
+
+    @Test
+    public void hint() throws Exception {
+        elg.setMethod(SelectMethod.leastconn);
+        EventLoopWrapper el = elg.get("el1");
+        connect(el);
+        assertSame("the caller loop is used if it's in the group", el, elg.next(el));
+    }
+}
@@ -0,0 +1,110 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.connection.ConnectableConnection;
+import vproxy.connection.ConnectionOpts;
+import vproxy.connection.Connector;
+import vproxy.connection.HappyEyeballs;
+import vproxy.connection.NetEventLoop;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.BlockCallback;
+import vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestHappyEyeballs {
+    private NetEventLoop loop;
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws Exception {
+        loop = new NetEventLoop(SelectorEventLoop.open());
+        loop.getSelectorEventLoop().loop(r -> new Thread(r, "TestHappyEyeballs"));
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        loop.getSelectorEventLoop().close();
+    }
+
+    private Connector connect(List<InetAddress> addresses) throws Exception {
+        BlockCallback<Connector, RuntimeException> cb = new BlockCallback<>();
+        HappyEyeballs.connect(loop, addresses, server.getLocalPort(), new ConnectionOpts().setTimeout(3000), cb::succeeded);
+        return cb.block();
+    }
+
+    private void checkConnected(Connector connector) throws IOException {
+        assertNotNull(connector);
+        assertEquals(new InetSocketAddress("127.0.0.1", server.getLocalPort()), connector.remote);
+        assertSame(loop, connector.loop());
+        ConnectableConnection conn = connector.connect(new ConnectionOpts(), RingBuffer.allocate(1024), RingBuffer.allocate(1024));
+        try (Socket accepted = server.accept()) {
+            assertEquals(conn.getLocal(), accepted.getRemoteSocketAddress());
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void firstAddressRefused() throws Exception {
+        // nothing listens on 127.0.0.2
+        Connector connector = connect(Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1")));
+        checkConnected(connector);
+
+        // the refused address is tried last this time
+        connector = connect(Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1")));
+        checkConnected(connector);
+    }
+
+    @Test
+    public void firstAddressNoResponse() throws Exception {
+        // fill the accept queue of a server which never accepts, so new connections get no response
+        List<Socket> blocked = new ArrayList<>();
+        try (ServerSocket blocker = new ServerSocket()) {
+            blocker.bind(new InetSocketAddress("127.0.0.2", server.getLocalPort()), 1);
+            boolean full = false;
+            for (int i = 0; i < 64 && !full; ++i) {
+                Socket sock = new Socket();
+                blocked.add(sock);
+                try {
+                    sock.connect(blocker.getLocalSocketAddress(), 200);
+                } catch (SocketTimeoutException e) {
+                    full = true;
+                }
+            }
+            assertTrue("the accept queue should be full", full);
+
+            // the next address is tried without waiting for the timeout
+            long start = System.currentTimeMillis();
+            Connector connector = connect(Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1")));
+            long cost = System.currentTimeMillis() - start;
+            checkConnected(connector);
+            assertTrue("cost " + cost + "ms", cost >= HappyEyeballs.CONNECTION_ATTEMPT_DELAY && cost < 2000);
+        } finally {
+            for (Socket sock : blocked) {
+                sock.close();
+            }
+        }
+    }
+
+    @Test
+    public void allFailed() throws Exception {
+        Connector connector = connect(Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.3")));
+        assertNull(connector);
+    }
+}
@@ -0,0 +1,375 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vclient.HttpClient;
+import vclient.HttpResponse;
+import vproxy.util.BlockCallback;
+import vserver.HttpMethod;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestHttpClient {
+    // a blocking server which responds the uri of each request in order
+    private static class Server extends Thread {
+        final ServerSocket sock;
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger pipelined = new AtomicInteger(); // requests already received when responding the previous one
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger(); // requests being handled
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger drop = new AtomicInteger(); // close the connection without responding the next n requests
+        volatile int delay = 0;
+        volatile boolean closeAfterResponse = false;
+        volatile boolean sayClose = false;
+        final List<Socket> conns = new ArrayList<>();
+
+        Server() throws IOException {
+            sock = new ServerSocket();
+            sock.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        @Override
+        public void run() {
+            while (!sock.isClosed()) {
+                Socket s;
+                try {
+                    s = sock.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                accepted.incrementAndGet();
+                synchronized (conns) {
+                    conns.add(s);
+                }
+                new Thread(() -> handle(s)).start();
+            }
+        }
+
+        private void handle(Socket s) {
+            try (s) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                while (true) {
+                    String uri = readRequest(in);
+                    if (uri == null) {
+                        return;
+                    }
+                    received.incrementAndGet();
+                    if (drop.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                        return;
+                    }
+                    int n = active.incrementAndGet();
+                    maxActive.accumulateAndGet(n, Math::max);
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    if (in.available() > 0) {
+                        pipelined.incrementAndGet();
+                    }
+                    // read the flags once, they may be changed when the client gets the response
+                    boolean sayClose = this.sayClose;
+                    boolean close = sayClose || closeAfterResponse;
+                    out.write(("HTTP/1.1 200 OK\r\n" +
+                        (sayClose ? "Connection: close\r\n" : "") +
+                        "Content-Length: " + uri.length() + "\r\n" +
+                        "\r\n" + uri).getBytes());
+                    out.flush();
+                    active.decrementAndGet();
+                    if (close) {
+                        return;
+                    }
+                }
+            } catch (IOException | InterruptedException ignore) {
+            }
+        }
+
+        // return the uri, or null when the connection is closed
+        private static String readRequest(InputStream in) throws IOException {
+            String first = readLine(in);
+            if (first == null) {
+                return null;
+            }
+            int contentLength = 0;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+                }
+            }
+            if (line == null) {
+                return null;
+            }
+            for (int i = 0; i < contentLength; ++i) {
+                if (in.read() == -1) {
+                    return null;
+                }
+            }
+            return first.split(" ")[1];
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    return sb.toString().trim();
+                }
+                sb.append((char) b);
+            }
+            return null;
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress("127.0.0.1", sock.getLocalPort());
+        }
+
+        void shutdown() throws IOException {
+            sock.close();
+            synchronized (conns) {
+                for (Socket s : conns) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    private Server server;
+    private HttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Server();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        server.shutdown();
+    }
+
+    private static BlockCallback<HttpResponse, IOException> get(HttpClient client, String uri) {
+        BlockCallback<HttpResponse, IOException> cb = new BlockCallback<>();
+        client.get(uri).send((err, resp) -> {
+            if (err != null) {
+                cb.failed(err);
+            } else {
+                cb.succeeded(resp);
+            }
+        });
+        return cb;
+    }
+
+    private static BlockCallback<HttpResponse, IOException> send(HttpClient client, HttpMethod method, String uri) {
+        BlockCallback<HttpResponse, IOException> cb = new BlockCallback<>();
+        client.request(method, uri).send("body", (err, resp) -> {
+            if (err != null) {
+                cb.failed(err);
+            } else {
+                cb.succeeded(resp);
+            }
+        });
+        return cb;
+    }
+
+    private static void check(BlockCallback<HttpResponse, IOException> cb, String uri) throws IOException {
+        HttpResponse resp = cb.block();
+        assertEquals(200, resp.status());
+        assertEquals(uri, resp.bodyAsString());
+    }
+
+    @Test
+    public void keepAlive() throws Exception {
+        client = HttpClient.to(server.address(), new HttpClient.Options().setMaxConnections(2));
+        for (int i = 0; i < 10; ++i) {
+            check(get(client, "/seq/" + i), "/seq/" + i);
+        }
+        assertEquals("sequential requests should use one connection", 1, server.accepted.get());
+
+        server.delay = 20;
+        List<BlockCallback<HttpResponse, IOException>> cbs = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            cbs.add(get(client, "/concurrent/" + i));
+        }
+        for (int i = 0; i < 10; ++i) {
+            check(cbs.get(i), "/concurrent/" + i);
+        }
+        assertEquals("connections should be bounded", 2, server.accepted.get());
+        assertEquals("requests should not be pipelined by default", 0, server.pipelined.get());
+    }
+
+    @Test
+    public void pipelining() throws Exception {
+        client = HttpClient.to(server.address(),
+            new HttpClient.Options().setMaxConnections(1).setPipelineDepth(4));
+        // the connection is only used for pipelining after it's kept alive by the server
+        check(get(client, "/first"), "/first");
+
+        server.delay = 50;
+        List<BlockCallback<HttpResponse, IOException>> cbs = new ArrayList<>();
+        for (int i = 0; i < 12; ++i) {
+            cbs.add(get(client, "/pipelined/" + i));
+        }
+        for (int i = 0; i < 12; ++i) {
+            check(cbs.get(i), "/pipelined/" + i);
+        }
+        assertEquals(1, server.accepted.get());
+        assertTrue("requests should be pipelined", server.pipelined.get() > 0);
+    }
+
+    @Test
+    public void connectionClose() throws Exception {
+        client = HttpClient.to(server.address(),
+            new HttpClient.Options().setMaxConnections(1).setPipelineDepth(4));
+        check(get(client, "/first"), "/first");
+
+        // requests pipelined after the closing response are sent again on a new connection
+        server.delay = 20;
+        server.sayClose = true;
+        List<BlockCallback<HttpResponse, IOException>> cbs = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            cbs.add(get(client, "/close/" + i));
+        }
+        for (int i = 0; i < 5; ++i) {
+            check(cbs.get(i), "/close/" + i);
+        }
+        assertTrue("requests should be pipelined", server.pipelined.get() > 0);
+        // the first connection serves /close/0, others are served by new connections
+        assertEquals(5, server.accepted.get());
+    }
+
+    @Test
+    public void closedByServerWhenIdle() throws Exception {
+        client = HttpClient.to(server.address(), new HttpClient.Options().setMaxConnections(1));
+        server.closeAfterResponse = true; // without telling the client
+        for (int i = 0; i < 5; ++i) {
+            check(get(client, "/idle/" + i), "/idle/" + i);
+        }
+        assertEquals(5, server.accepted.get());
+    }
+
+    @Test
+    public void queueAtMaxConnections() throws Exception {
+        client = HttpClient.to(server.address(), new HttpClient.Options().setMaxConnections(2));
+        server.delay = 100;
+        List<BlockCallback<HttpResponse, IOException>> cbs = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            cbs.add(get(client, "/queued/" + i));
+        }
+        long start = System.currentTimeMillis();
+        while (server.received.get() < 2) {
+            assertTrue("the requests are not received", System.currentTimeMillis() - start < 5000);
+            Thread.sleep(1);
+        }
+        // only the requests on the two connections reach the server, others wait in the client
+        assertEquals(2, server.accepted.get());
+        assertEquals(2, server.received.get());
+        for (int i = 0; i < 6; ++i) {
+            check(cbs.get(i), "/queued/" + i);
+        }
+        assertEquals(2, server.accepted.get());
+        assertEquals(6, server.received.get());
+        assertEquals(2, server.maxActive.get());
+
+        // the queued requests take new connections when the pooled ones are closed
+        server.sayClose = true;
+        cbs.clear();
+        for (int i = 0; i < 6; ++i) {
+            cbs.add(get(client, "/queued-close/" + i));
+        }
+        for (int i = 0; i < 6; ++i) {
+            check(cbs.get(i), "/queued-close/" + i);
+        }
+        // the first two requests are sent on the pooled connections, others on new ones
+        assertEquals(2 + 4, server.accepted.get());
+        assertEquals(2, server.maxActive.get());
+    }
+
+    @Test
+    public void retryOnDeadConnection() throws Exception {
+        client = HttpClient.to(server.address(), new HttpClient.Options().setMaxConnections(1));
+        check(get(client, "/first"), "/first");
+        assertEquals(1, server.accepted.get());
+
+        // the pooled connection is closed by the server when it receives the request
+        server.drop.set(1);
+        check(get(client, "/retry"), "/retry");
+        assertEquals("the request should be sent again on a new connection", 2, server.accepted.get());
+        assertEquals(3, server.received.get());
+
+        // a request is retried only once
+        server.drop.set(2);
+        try {
+            get(client, "/retry-twice").block();
+            fail("the request should fail when the retry fails as well");
+        } catch (IOException expected) {
+        }
+        assertEquals(3, server.accepted.get());
+        assertEquals(5, server.received.get());
+
+        // a request which is not idempotent is never retried
+        check(get(client, "/warm-up"), "/warm-up");
+        server.drop.set(1);
+        try {
+            send(client, HttpMethod.POST, "/post").block();
+            fail("the post request should not be retried");
+        } catch (IOException expected) {
+        }
+        assertEquals(4, server.accepted.get());
+        assertEquals(7, server.received.get());
+
+        // neither is a patch request
+        check(get(client, "/warm-up"), "/warm-up");
+        server.drop.set(1);
+        try {
+            send(client, HttpMethod.PATCH, "/patch").block();
+            fail("the patch request should not be retried");
+        } catch (IOException expected) {
+        }
+        assertEquals(5, server.accepted.get());
+        assertEquals(9, server.received.get());
+
+        // the client still works
+        check(get(client, "/after"), "/after");
+        assertEquals(6, server.accepted.get());
+    }
+
+    @Test
+    public void idleTimeout() throws Exception {
+        client = HttpClient.to(server.address(), new HttpClient.Options().setIdleTimeout(200));
+        check(get(client, "/a"), "/a");
+        check(get(client, "/b"), "/b");
+        assertEquals(1, server.accepted.get());
+        Thread.sleep(500);
+        check(get(client, "/c"), "/c");
+        assertEquals(2, server.accepted.get());
+    }
+
+    @Test
+    public void closed() throws Exception {
+        client = HttpClient.to(server.address(), new HttpClient.Options());
+        check(get(client, "/a"), "/a");
+        client.close();
+        try {
+            get(client, "/b").block();
+            fail();
+        } catch (IOException e) {
+            assertEquals("the http client is closed", e.getMessage());
+        }
+    }
+}
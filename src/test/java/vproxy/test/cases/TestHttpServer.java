@@ -0,0 +1,463 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vclient.HttpClient;
+import vclient.HttpResponse;
+import vclient.StreamingResponseHandler;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.util.BlockCallback;
+import vproxy.util.ByteArray;
+import vproxy.util.FileRegion;
+import vserver.BodyHandler;
+import vserver.BodyStream;
+import vserver.HttpMethod;
+import vserver.HttpServer;
+import vserver.RoutingContext;
+import vserver.StaticFileHandler;
+import vserver.server.Http1ServerImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TestHttpServer {
+    private static final int PORT = 30082;
+
+    private EventLoopGroup elg;
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        elg = new EventLoopGroup("elg-http-server");
+        elg.add("el0");
+        elg.add("el1");
+        elg.add("el2");
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+        elg.close();
+    }
+
+    // send a request and return the body
+    static String request(Socket sock, String uri) throws IOException {
+        OutputStream out = sock.getOutputStream();
+        out.write(("GET " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes());
+        out.flush();
+        return readResponse(sock);
+    }
+
+    // read a response with content-length and return the body
+    static String readResponse(Socket sock) throws IOException {
+        return readResponse(sock, true)[1];
+    }
+
+    // return the head and the body of a response
+    static String[] readResponse(Socket sock, boolean hasBody) throws IOException {
+        InputStream in = sock.getInputStream();
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1)
+                throw new IOException("unexpected eof");
+            head.append((char) b);
+        }
+        int len = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                len = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        byte[] body = hasBody ? in.readNBytes(len) : new byte[0];
+        return new String[]{head.toString(), new String(body, StandardCharsets.UTF_8)};
+    }
+
+    private static String[] send(Socket sock, String method, String uri, String... headers) throws IOException {
+        StringBuilder sb = new StringBuilder(method + " " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+        for (String h : headers) {
+            sb.append(h).append("\r\n");
+        }
+        sb.append("\r\n");
+        sock.getOutputStream().write(sb.toString().getBytes());
+        sock.getOutputStream().flush();
+        return readResponse(sock, !method.equals("HEAD"));
+    }
+
+    private static String header(String head, String key) {
+        for (String line : head.split("\r\n")) {
+            int idx = line.indexOf(':');
+            if (idx != -1 && line.substring(0, idx).trim().equalsIgnoreCase(key)) {
+                return line.substring(idx + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void multiLoop() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        server = new Http1ServerImpl(elg);
+        server.get("/hello/:name", rctx -> {
+            threads.add(Thread.currentThread());
+            rctx.response().end(ByteArray.from(("hello " + rctx.param("name")).getBytes()));
+        });
+        server.listen(PORT, "127.0.0.1");
+
+        for (int i = 0; i < 30; ++i) {
+            try (Socket sock = new Socket("127.0.0.1", PORT)) {
+                assertEquals("hello " + i, request(sock, "/hello/" + i));
+                // keep-alive
+                assertEquals("hello again", request(sock, "/hello/again"));
+            }
+        }
+        assertTrue("connections should be handled on more than one loop, but got " + threads, threads.size() > 1);
+    }
+
+    @Test
+    public void loopAddedAfterListen() throws Exception {
+        server = new Http1ServerImpl(elg);
+        server.get("/ping", rctx -> rctx.response().end(ByteArray.from("ok".getBytes())));
+        server.listen(PORT, "127.0.0.1");
+
+        elg.add("el3");
+        elg.remove("el0");
+
+        for (int i = 0; i < 10; ++i) {
+            try (Socket sock = new Socket("127.0.0.1", PORT)) {
+                assertEquals("ok", request(sock, "/ping"));
+            }
+        }
+    }
+
+    @Test
+    public void routes() throws Exception {
+        server = new Http1ServerImpl(elg);
+        server.all("/api/*", rctx -> {
+            rctx.put(TRACE, "all");
+            rctx.next();
+        });
+        server.get("/api/v1/module/:mod/item/:item", rctx -> rctx.response().end(ByteArray.from(
+            (rctx.get(TRACE) + " " + rctx.param("mod") + " " + rctx.param("item") + " " + rctx.query("a") + " " + rctx.query("b")).getBytes())));
+        server.get("/api/v1/module/:mod", rctx -> rctx.response().end(ByteArray.from(
+            (rctx.get(TRACE) + " mod " + rctx.param("mod")).getBytes())));
+        server.get("/api/v1/module/fixed", rctx -> rctx.response().end(ByteArray.from("never".getBytes())));
+        server.get("/static/*", rctx -> rctx.response().end(ByteArray.from("static".getBytes())));
+        server.listen(PORT, "127.0.0.1");
+
+        try (Socket sock = new Socket("127.0.0.1", PORT)) {
+            assertEquals("all m0 i0 1 ", request(sock, "/api/v1/module/m0/item/i0?a=1&b&&"));
+            // blank segments are ignored
+            assertEquals("all m1 i1 null null", request(sock, "//api/v1//module/m1/item/i1/"));
+            // the variable route is registered before the fixed one, so it's handled first
+            assertEquals("all mod fixed", request(sock, "/api/v1/module/fixed"));
+            assertEquals("all mod a%b", request(sock, "/api/v1/module/a%25b"));
+            assertEquals("static", request(sock, "/static/a/b/c.txt"));
+            assertEquals("Cannot GET /static\r\n", request(sock, "/static"));
+            assertEquals("Cannot GET /\r\n", request(sock, "/"));
+            assertEquals("Cannot GET /api/v2\r\n", request(sock, "/api/v2"));
+        }
+    }
+
+    private static final RoutingContext.StorageKey<String> TRACE = new RoutingContext.StorageKey<>() {
+    };
+
+    // produces `total` bytes of 'a' to 'z' in turn
+    private static class Generator implements ReadableByteChannel {
+        private final long total;
+        private long produced = 0;
+
+        Generator(long total) {
+            this.total = total;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (produced == total) {
+                return -1;
+            }
+            int n = 0;
+            while (dst.hasRemaining() && produced < total) {
+                dst.put((byte) ('a' + produced % 26));
+                ++produced;
+                ++n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return produced < total;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void checkGenerated(ByteArray data, long offset) {
+        for (int i = 0; i < data.length(); ++i) {
+            assertEquals((byte) ('a' + (offset + i) % 26), data.get(i));
+        }
+    }
+
+    @Test
+    public void streamRequestBody() throws Exception {
+        int chunkCount = 256;
+        int chunkSize = 4000;
+        server = new Http1ServerImpl(elg);
+        server.stream(HttpMethod.POST, "/upload", rctx -> {
+            assertNull(rctx.body());
+            BodyStream stream = rctx.bodyStream();
+            long[] received = {0};
+            stream.handler(new BodyHandler() {
+                @Override
+                public void chunk(ByteArray data) {
+                    checkGenerated(data, received[0]);
+                    received[0] += data.length();
+                    // pause for a while to let the data pile up
+                    stream.pause();
+                    new Thread(() -> {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ignore) {
+                        }
+                        stream.resume();
+                    }).start();
+                }
+
+                @Override
+                public void end() {
+                    rctx.response().end(received[0] + " " + rctx.header("x-trailer"));
+                }
+            });
+        });
+        server.pst("/buffered", rctx -> {
+            checkGenerated(rctx.body(), 0);
+            rctx.response().end(rctx.body().length() + " " + rctx.header("x-trailer"));
+        });
+        server.listen(PORT, "127.0.0.1");
+
+        for (String uri : new String[]{"/upload", "/buffered"}) {
+            try (Socket sock = new Socket("127.0.0.1", PORT)) {
+                OutputStream out = sock.getOutputStream();
+                out.write(("POST " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes());
+                Generator gen = new Generator((long) chunkCount * chunkSize);
+                ByteBuffer buf = ByteBuffer.allocate(chunkSize);
+                for (int i = 0; i < chunkCount; ++i) {
+                    buf.clear();
+                    gen.read(buf);
+                    out.write((Integer.toHexString(chunkSize) + "\r\n").getBytes());
+                    out.write(buf.array());
+                    out.write("\r\n".getBytes());
+                }
+                out.write("0\r\nx-trailer: t\r\n\r\n".getBytes());
+                out.flush();
+                assertEquals(((long) chunkCount * chunkSize) + " t", readResponse(sock));
+
+                // content-length body on the same connection
+                byte[] body = new byte[100_000];
+                new Generator(body.length).read(ByteBuffer.wrap(body));
+                out.write(("POST " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes());
+                out.write(body);
+                out.flush();
+                assertEquals(body.length + " null", readResponse(sock));
+
+                if (uri.equals("/upload")) {
+                    // no body
+                    out.write(("POST " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes());
+                    out.flush();
+                    assertEquals("0 null", readResponse(sock));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void streamResponseBody() throws Exception {
+        long total = 3_000_000;
+        server = new Http1ServerImpl(elg);
+        server.get("/download", rctx -> rctx.response().end(new Generator(total)));
+        server.get("/chunks", rctx -> rctx.response()
+            .header("x-test", "chunks")
+            .sendChunk(ByteArray.from("hello".getBytes()))
+            .sendChunk(ByteArray.from(new byte[0]))
+            .sendChunk(ByteArray.from(" ".getBytes()))
+            .end("world"));
+        server.listen(PORT, "127.0.0.1");
+
+        HttpClient client = HttpClient.to("127.0.0.1", PORT);
+        try {
+            BlockCallback<Long, IOException> cb = new BlockCallback<>();
+            AtomicLong received = new AtomicLong();
+            client.get("/download").send(new StreamingResponseHandler() {
+                @Override
+                public void headers(HttpResponse response) {
+                    assertEquals(200, response.status());
+                    assertEquals("chunked", response.header("transfer-encoding"));
+                    assertNull(response.body());
+                }
+
+                @Override
+                public void chunk(ByteArray data) {
+                    checkGenerated(data, received.get());
+                    received.addAndGet(data.length());
+                }
+
+                @Override
+                public void end() {
+                    cb.succeeded(received.get());
+                }
+
+                @Override
+                public void exception(IOException err) {
+                    cb.failed(err);
+                }
+            });
+            assertEquals(total, cb.block().longValue());
+
+            BlockCallback<HttpResponse, IOException> cb2 = new BlockCallback<>();
+            client.get("/chunks").send((err, resp) -> {
+                if (err != null) {
+                    cb2.failed(err);
+                } else {
+                    cb2.succeeded(resp);
+                }
+            });
+            HttpResponse resp = cb2.block();
+            assertEquals("chunks", resp.header("x-test"));
+            assertEquals("hello world", resp.bodyAsString());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void staticFiles() throws Exception {
+        Path dir = Files.createTempDirectory("vproxy-static");
+        Path small = dir.resolve("small.txt");
+        Path large = dir.resolve("large.bin");
+        Path secret = Files.createTempFile("vproxy-secret", ".txt");
+        Path outside = Files.createTempDirectory("vproxy-outside");
+        Path outsideFile = outside.resolve("outside.txt");
+        Path linkToSecret = dir.resolve("secret.txt");
+        Path linkToOutside = dir.resolve("outside");
+        Path linkToSmall = dir.resolve("small-link.txt");
+        Path linkRoot = Files.createTempDirectory("vproxy-link-root").resolve("root");
+        try {
+            Files.write(small, "hello static".getBytes());
+            Files.write(secret, "secret".getBytes());
+            Files.write(outsideFile, "outside".getBytes());
+            Files.createSymbolicLink(linkToSecret, secret);
+            Files.createSymbolicLink(linkToOutside, outside);
+            Files.createSymbolicLink(linkToSmall, small);
+            Files.createSymbolicLink(linkRoot, dir);
+            byte[] largeContent = new byte[2 * 1024 * 1024 + 17];
+            new Generator(largeContent.length).read(ByteBuffer.wrap(largeContent));
+            Files.write(large, largeContent);
+            String expectedLarge = new String(largeContent, StandardCharsets.UTF_8);
+
+            server = new Http1ServerImpl(elg);
+            server.handle(new HttpMethod[]{HttpMethod.GET, HttpMethod.HEAD}, "/static/*",
+                new StaticFileHandler("/static", dir.toString(), 1024, 64));
+            server.handle(new HttpMethod[]{HttpMethod.GET}, "/linked/*",
+                new StaticFileHandler("/linked", linkRoot.toString()));
+            server.listen(PORT, "127.0.0.1");
+
+            try (Socket sock = new Socket("127.0.0.1", PORT)) {
+                String[] resp = send(sock, "GET", "/static/small.txt");
+                assertTrue(resp[0].startsWith("HTTP/1.1 200"));
+                assertEquals("hello static", resp[1]);
+                assertEquals("text/plain; charset=utf-8", header(resp[0], "content-type"));
+                String etag = header(resp[0], "etag");
+                String lastModified = header(resp[0], "last-modified");
+                assertNotNull(etag);
+                assertNotNull(lastModified);
+                // served from the cache
+                assertEquals("hello static", send(sock, "GET", "/static/small.txt")[1]);
+
+                resp = send(sock, "GET", "/static/small.txt", "If-None-Match: " + etag);
+                assertTrue(resp[0].startsWith("HTTP/1.1 304"));
+                resp = send(sock, "GET", "/static/small.txt", "If-Modified-Since: " + lastModified);
+                assertTrue(resp[0].startsWith("HTTP/1.1 304"));
+                resp = send(sock, "GET", "/static/small.txt", "Range: bytes=6-");
+                assertTrue(resp[0].startsWith("HTTP/1.1 206"));
+                assertEquals("static", resp[1]);
+                assertEquals("bytes 6-11/12", header(resp[0], "content-range"));
+
+                resp = send(sock, "GET", "/static/large.bin");
+                assertEquals(expectedLarge, resp[1]);
+                resp = send(sock, "GET", "/static/large.bin", "Range: bytes=1000-1999");
+                assertEquals("bytes 1000-1999/" + largeContent.length, header(resp[0], "content-range"));
+                assertEquals(expectedLarge.substring(1000, 2000), resp[1]);
+                resp = send(sock, "GET", "/static/large.bin", "Range: bytes=-5");
+                assertEquals(expectedLarge.substring(largeContent.length - 5), resp[1]);
+                // the range is ignored when the file changed
+                resp = send(sock, "GET", "/static/large.bin", "Range: bytes=0-9", "If-Range: \"0-0\"");
+                assertTrue(resp[0].startsWith("HTTP/1.1 200"));
+                assertEquals(largeContent.length, resp[1].length());
+                resp = send(sock, "GET", "/static/large.bin", "Range: bytes=" + largeContent.length + "-");
+                assertTrue(resp[0].startsWith("HTTP/1.1 416"));
+                assertEquals("bytes */" + largeContent.length, header(resp[0], "content-range"));
+
+                resp = send(sock, "HEAD", "/static/large.bin");
+                assertEquals("" + largeContent.length, header(resp[0], "content-length"));
+
+                resp = send(sock, "GET", "/static/../" + secret.getFileName());
+                assertTrue(resp[0].startsWith("HTTP/1.1 404"));
+                resp = send(sock, "GET", "/static/not-exist");
+                assertTrue(resp[0].startsWith("HTTP/1.1 404"));
+                // links pointing out of the root are not followed
+                resp = send(sock, "GET", "/static/secret.txt");
+                assertTrue(resp[0].startsWith("HTTP/1.1 404"));
+                resp = send(sock, "GET", "/static/outside/outside.txt");
+                assertTrue(resp[0].startsWith("HTTP/1.1 404"));
+                // links inside the root are followed
+                assertEquals("hello static", send(sock, "GET", "/static/small-link.txt")[1]);
+                // the root itself may be a link
+                assertEquals("hello static", send(sock, "GET", "/linked/small.txt")[1]);
+                resp = send(sock, "GET", "/linked/secret.txt");
+                assertTrue(resp[0].startsWith("HTTP/1.1 404"));
+                // still works after all the responses above
+                assertEquals("hello static", send(sock, "GET", "/static/small.txt")[1]);
+            }
+
+            // read without transferTo, e.g. when the out buffer is not able to transfer
+            FileRegion region = new FileRegion(FileChannel.open(large, StandardOpenOption.READ), 10, 20);
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            while (region.read(buf) != -1) {
+            }
+            assertFalse(region.isOpen());
+            assertEquals(expectedLarge.substring(10, 30), new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(linkToSecret);
+            Files.deleteIfExists(linkToOutside);
+            Files.deleteIfExists(linkToSmall);
+            Files.deleteIfExists(linkRoot);
+            Files.deleteIfExists(linkRoot.getParent());
+            Files.deleteIfExists(outsideFile);
+            Files.deleteIfExists(outside);
+            Files.deleteIfExists(small);
+            Files.deleteIfExists(large);
+            Files.deleteIfExists(dir);
+            Files.deleteIfExists(secret);
+        }
+    }
+}
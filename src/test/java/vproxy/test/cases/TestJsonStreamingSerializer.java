@@ -0,0 +1,144 @@
+package vproxy.test.cases;
+
+import org.junit.Test;
+import vclient.HttpClient;
+import vjson.JSON;
+import vjson.simple.SimpleNull;
+import vjson.simple.SimpleObject;
+import vjson.simple.SimpleObjectEntry;
+import vjson.simple.SimpleString;
+import vjson.util.ArrayBuilder;
+import vjson.util.ObjectBuilder;
+import vjson.util.StreamingSerializer;
+import vserver.HttpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestJsonStreamingSerializer {
+    private static final int PORT = 30081;
+
+    private static JSON.Instance sample() {
+        return new ObjectBuilder()
+            .put("name", "vproxy")
+            .put("escaped", "a\"b\\c\n\r\t\b\f\u0001\u007f")
+            .put("non-ascii", "\u4e2d\u6587 \ud83d\ude00 \u00e9")
+            .put("int", 1)
+            .put("long", 10000000000L)
+            .put("double", 2.5)
+            .put("bool", true)
+            .putInst("null", new SimpleNull())
+            .putArray("empty-array", a -> {
+            })
+            .putObject("empty-object", o -> {
+            })
+            .putArray("list", a -> a
+                .add(1)
+                .add("x")
+                .addObject(o -> o.put("k", "v"))
+                .addArray(aa -> aa.add(false)))
+            .build();
+    }
+
+    private static String serialize(JSON.Instance inst, int bufferSize) {
+        StreamingSerializer s = new StreamingSerializer(inst);
+        ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+        StringBuilder sb = new StringBuilder();
+        while (!s.isFinished()) {
+            buf.clear();
+            s.serialize(buf);
+            buf.flip();
+            sb.append(StandardCharsets.US_ASCII.decode(buf));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void sameAsStringify() {
+        JSON.Instance inst = sample();
+        String expected = inst.stringify();
+        for (int size : new int[]{1, 2, 3, 5, 7, 64, 4096}) {
+            assertEquals("buffer size " + size, expected, serialize(inst, size));
+        }
+        assertEquals(expected.length(), StreamingSerializer.length(inst));
+
+        for (JSON.Instance scalar : Arrays.asList(
+            new SimpleString("\u4e2d\""), JSON.parse("1"), JSON.parse("-1.5e3"), JSON.parse("null"))) {
+            assertEquals(scalar.stringify(), serialize(scalar, 1));
+            assertEquals(scalar.stringify().length(), StreamingSerializer.length(scalar));
+        }
+    }
+
+    @Test
+    public void duplicatedKeys() {
+        JSON.Object obj = new SimpleObject(Arrays.asList(
+            new SimpleObjectEntry<>("a", new SimpleString("1")),
+            new SimpleObjectEntry<>("b", new SimpleString("2")),
+            new SimpleObjectEntry<>("a", new SimpleString("3"))
+        ));
+        assertEquals(obj.stringify(), serialize(obj, 3));
+        assertEquals(obj.stringify().length(), StreamingSerializer.length(obj));
+    }
+
+    @Test
+    public void readAsChannel() throws Exception {
+        JSON.Instance inst = sample();
+        StreamingSerializer s = new StreamingSerializer(inst);
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        StringBuilder sb = new StringBuilder();
+        int n;
+        while ((n = s.read(buf)) != -1) {
+            assertTrue(n > 0);
+            buf.flip();
+            sb.append(StandardCharsets.US_ASCII.decode(buf));
+            buf.clear();
+        }
+        assertFalse(s.isOpen());
+        assertEquals(inst.stringify(), sb.toString());
+    }
+
+    private static JSON.Instance large() {
+        ArrayBuilder builder = new ArrayBuilder();
+        for (int i = 0; i < 60; ++i) {
+            int n = i;
+            builder.addObject(o -> o
+                .put("name", "server" + n)
+                .put("address", "10.0.0." + (n % 256) + ":80")
+                .put("weight", n)
+                .put("currentIp", "\u4e2d\u6587"));
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void httpBody() throws Exception {
+        JSON.Instance inst = large();
+        // larger than the out buffers of both server and client
+        assertTrue(StreamingSerializer.length(inst) > 4096);
+
+        HttpServer server = HttpServer.create();
+        server.put("/echo", rctx -> rctx.response().end(JSON.parse(new String(rctx.body().toJavaArray()))));
+        server.listen(PORT);
+        HttpClient client = HttpClient.to("127.0.0.1", PORT);
+
+        CompletableFuture<JSON.Instance> f = new CompletableFuture<>();
+        client.put("/echo").send(inst, (err, resp) -> {
+            if (err != null) {
+                f.completeExceptionally(err);
+                return;
+            }
+            f.complete(resp.bodyAsJson());
+        });
+        try {
+            assertEquals(inst, f.get(10, TimeUnit.SECONDS));
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+}
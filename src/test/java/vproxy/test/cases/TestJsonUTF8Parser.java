@@ -0,0 +1,164 @@
+package vproxy.test.cases;
+
+import org.junit.Test;
+import vjson.CharStream;
+import vjson.JSON;
+import vjson.ex.JsonParseException;
+import vjson.listener.AbstractParserListener;
+import vjson.parser.ParserOptions;
+import vjson.parser.StringParser;
+import vjson.simple.LazyString;
+import vproxy.util.ByteArray;
+import vserver.util.ByteArrayCharStream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class TestJsonUTF8Parser {
+    private static final String JSON_STR = "" +
+        "{\"name\":\"vproxy\",\"desc\":\"\u4e2d\u6587 and \ud83d\ude00\",\"escaped\":\"a\\\"b\\u4e2dc\\n\"," +
+        "\"list\":[1, 2.5, true, null, \"\u00e9\"], \"obj\" : { \"k\" : \"v\" } }";
+
+    private static ByteBuffer utf8(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void parseByteBuffer() {
+        JSON.Object expected = (JSON.Object) JSON.parse(JSON_STR);
+
+        JSON.Object heap = (JSON.Object) JSON.parse(CharStream.from(utf8(JSON_STR)));
+        assertEquals(expected, heap);
+        assertTrue(heap.get("name") instanceof LazyString);
+        assertFalse(heap.get("escaped") instanceof LazyString);
+        assertEquals("\u4e2d\u6587 and \ud83d\ude00", heap.getString("desc"));
+        assertEquals("a\"b\u4e2dc\n", heap.getString("escaped"));
+        assertEquals("\u00e9", heap.getArray("list").getString(4));
+
+        byte[] bytes = JSON_STR.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+        direct.put(new byte[]{1, 2, 3}).put(bytes).flip().position(3);
+        JSON.Object d = (JSON.Object) JSON.parse(CharStream.from(direct));
+        assertEquals(expected, d);
+        assertEquals(3, direct.position());
+    }
+
+    @Test
+    public void parseByteArray() {
+        ByteArray arr = ByteArray.from("{\"a\":".getBytes(StandardCharsets.UTF_8))
+            .concat(ByteArray.from("\"\u4e2d\u6587\"}".getBytes(StandardCharsets.UTF_8)));
+        JSON.Object o = (JSON.Object) JSON.parse(new ByteArrayCharStream(arr));
+        assertEquals("\u4e2d\u6587", o.getString("a"));
+
+        //noinspection unchecked
+        Map<String, Object> map = (Map<String, Object>) JSON.parseToJavaObject(new ByteArrayCharStream(ByteArray.from(
+            JSON_STR.getBytes(StandardCharsets.UTF_8))));
+        assertEquals(JSON.parseToJavaObject(JSON_STR), map);
+    }
+
+    @Test
+    public void modifySourceAfterParsing() {
+        JSON.Object expected = (JSON.Object) JSON.parse(JSON_STR);
+        byte[] bytes = JSON_STR.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes.clone());
+        JSON.Object h = (JSON.Object) JSON.parse(CharStream.from(heap));
+        Arrays.fill(heap.array(), (byte) 'x');
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        JSON.Object d = (JSON.Object) JSON.parse(CharStream.from(direct));
+        direct.clear();
+        while (direct.hasRemaining()) {
+            direct.put((byte) 'x');
+        }
+
+        byte[] arrBytes = bytes.clone();
+        JSON.Object a = (JSON.Object) JSON.parse(new ByteArrayCharStream(ByteArray.from(arrBytes)));
+        Arrays.fill(arrBytes, (byte) 'x');
+
+        // the lazy strings are not decoded before the source is modified
+        assertEquals(expected, h);
+        assertEquals(expected, d);
+        assertEquals(expected, a);
+    }
+
+    @Test
+    public void concurrentDecode() throws Exception {
+        JSON.Instance<?> expected = ((JSON.Object) JSON.parse(JSON_STR)).get("desc");
+        for (int n = 0; n < 100; ++n) {
+            JSON.Object o = (JSON.Object) JSON.parse(CharStream.from(utf8(JSON_STR)));
+            JSON.Instance<?> desc = o.get("desc");
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> errors = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                Thread t = new Thread(() -> {
+                    try {
+                        assertEquals(expected.toJavaObject(), desc.toJavaObject());
+                        assertEquals(expected.stringify(), desc.stringify());
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertEquals(List.of(), errors);
+        }
+    }
+
+    @Test
+    public void peekAndSurrogates() {
+        CharStream cs = CharStream.from(utf8("a\ud83d\ude00b"));
+        assertTrue(cs.hasNext(4));
+        assertFalse(cs.hasNext(5));
+        assertEquals('\uDE00', cs.peekNext(3));
+        assertEquals('a', cs.moveNextAndGet());
+        assertEquals('\uD83D', cs.moveNextAndGet());
+        assertEquals('b', cs.peekNext(2));
+        assertEquals('\uDE00', cs.moveNextAndGet());
+        assertEquals('b', cs.moveNextAndGet());
+        assertFalse(cs.hasNext());
+
+        // malformed
+        cs = CharStream.from(ByteBuffer.wrap(new byte[]{'x', (byte) 0xe4, 'y'}));
+        assertEquals('x', cs.moveNextAndGet());
+        assertEquals('\ufffd', cs.moveNextAndGet());
+        assertEquals('y', cs.moveNextAndGet());
+    }
+
+    @Test
+    public void listenerAndErrors() {
+        StringBuilder sb = new StringBuilder();
+        StringParser parser = new StringParser(new ParserOptions().setListener(new AbstractParserListener() {
+            @Override
+            public void onStringChar(StringParser string, char c) {
+                sb.append(c);
+            }
+        }));
+        JSON.String s = parser.last(CharStream.from(utf8("\"\u4e2d\u6587\"")));
+        assertEquals("\u4e2d\u6587", s.toJavaObject());
+        assertEquals("\u4e2d\u6587", sb.toString());
+
+        try {
+            JSON.parse(CharStream.from(utf8("\"a\tb\"")));
+            fail();
+        } catch (JsonParseException ignore) {
+        }
+        try {
+            JSON.parse(CharStream.from(utf8("\"abc")));
+            fail();
+        } catch (JsonParseException ignore) {
+        }
+    }
+}
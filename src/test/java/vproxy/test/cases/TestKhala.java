@@ -24,8 +24,13 @@ import vserver.HttpServer;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.net.DatagramSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -319,14 +324,15 @@ public class TestKhala {
         assertEquals(1, nodes2.get(d1.localNode).size());
         assertEquals(1, nodes2.get(d2.localNode).size());
 
-        // close the d1 socket but do not close it, use reflect
-        Field httpServerF = Discovery.class.getDeclaredField("httpServer");
-        httpServerF.setAccessible(true);
-        HttpServer httpServer = (HttpServer) httpServerF.get(d1);
-        httpServer.close();
+        // close the d1 udp socket but do not close it, use reflect
+        Field udpServerF = Discovery.class.getDeclaredField("udpBlockingServer");
+        udpServerF.setAccessible(true);
+        DatagramSocket udpServer = (DatagramSocket) udpServerF.get(d1);
+        udpServer.close();
 
-        // wait for 3000ms, the node should be DOWN
-        Thread.sleep(4000);
+        // wait for 7000ms, the node should be probed (at most 2000ms), suspected (1000ms) then DOWN (3000ms)
+        // d1 cannot receive the acks or nacks, so it does not suspect other nodes
+        Thread.sleep(7000);
         nodes0 = k0.getNodeToKhalaNodesMap();
         nodes1 = k1.getNodeToKhalaNodesMap();
         nodes2 = k2.getNodeToKhalaNodesMap();
@@ -458,21 +464,162 @@ public class TestKhala {
             }).build());
         });
         server.listen(18081);
+        try {
+            Thread.sleep(1000);
+
+            k0.sync();
+            Thread.sleep(1000);
+            assertEquals(1, hashCnt[0]);
+            assertEquals(0, syncCnt[0]);
+
+            hashCnt[0] = 0;
+            syncCnt[0] = 0;
+
+            respHash[0] = "abc";
+            k0.sync();
+            Thread.sleep(1000);
+            assertEquals(1, hashCnt[0]);
+            assertEquals(1, syncCnt[0]);
+        } finally {
+            server.close();
+        }
+    }
 
-        Thread.sleep(1000);
+    private static String sha256(String s) throws Exception {
+        return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
 
-        k0.sync();
-        Thread.sleep(1000);
-        assertEquals(1, hashCnt[0]);
-        assertEquals(0, syncCnt[0]);
+    private static JSON.Object digestOf(String nodeName, int port, String hash) {
+        return new ObjectBuilder()
+            .putObject("node", o -> o
+                .put("nodeName", nodeName)
+                .put("address", "127.0.0.1")
+                .put("udpPort", port)
+                .put("tcpPort", port)
+            )
+            .put("hash", hash)
+            .build();
+    }
+
+    private static Set<String> diffNames(HttpResponse resp) {
+        assertEquals(200, resp.status());
+        JSON.Array diff = ((JSON.Object) resp.bodyAsJson()).getArray("diff");
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < diff.length(); ++i) {
+            names.add(diff.getObject(i).getString("nodeName"));
+        }
+        return names;
+    }
+
+    private static HttpResponse exchange(HttpClient client, String type, JSON.Instance body) throws IOException {
+        var cb = new BlockCallback<HttpResponse, IOException>();
+        client.put("/discovery/api/v1/exchange/" + type).send(body, (err, resp) -> {
+            if (err != null) cb.failed(err);
+            else cb.succeeded(resp);
+        });
+        return cb.block();
+    }
+
+    @Test
+    public void digest() throws Exception {
+        Discovery d0 = new Discovery("d0", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17080, 18080, 18080,
+            32, 18080, 18082,
+            new TimeConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 1000, 2, 3)
+        ));
+        holder.add(d0);
+        Khala k0 = new Khala(d0, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        Discovery d1 = new Discovery("d1", new DiscoveryConfig(
+            "lo0", IPType.v4,
+            17081, 18081, 18081,
+            32, 18080, 18082,
+            new TimeConfig(
+                200, Integer.MAX_VALUE,
+                200, Integer.MAX_VALUE,
+                3000),
+            new HealthCheckConfig(200, 1000, 2, 3)
+        ));
+        holder.add(d1);
+        Khala k1 = new Khala(d1, new KhalaConfig(Integer.MAX_VALUE /*disable the periodic sync for test*/));
+        k0.addLocal(new KhalaNode("s0", "z0", "127.0.0.0", 9990, new SimpleObject(Collections.emptyMap())));
+        k1.addLocal(new KhalaNode("s0", "z0", "127.0.0.1", 9991, new SimpleObject(Collections.emptyMap())));
 
-        hashCnt[0] = 0;
-        syncCnt[0] = 0;
+        Thread.sleep(2500); // wait for sync
 
-        respHash[0] = "abc";
+        HttpClient client0 = HttpClient.to("127.0.0.1", 18080);
+        // the digest is sha256 of the sorted khala nodes
+        String h0 = sha256("s0,z0,127.0.0.0,9990,");
+        String h1 = sha256("s0,z0,127.0.0.1,9991,");
+
+        // same digests
+        HttpResponse resp = exchange(client0, "khala.digest", new ArrayBuilder()
+            .addInst(digestOf("d0", 18080, h0))
+            .addInst(digestOf("d1", 18081, h1))
+            .build());
+        assertEquals(Collections.emptySet(), diffNames(resp));
+
+        // one discovery node differs, only that node is in the diff
+        resp = exchange(client0, "khala.digest", new ArrayBuilder()
+            .addInst(digestOf("d0", 18080, h0))
+            .addInst(digestOf("d1", 18081, "not-the-digest"))
+            .build());
+        assertEquals(Collections.singleton("d1"), diffNames(resp));
+
+        // one discovery node missing in the request
+        resp = exchange(client0, "khala.digest", new ArrayBuilder()
+            .addInst(digestOf("d1", 18081, h1))
+            .build());
+        assertEquals(Collections.singleton("d0"), diffNames(resp));
+
+        // the khala is not changed by the requests
+        assertEquals(k0.getNodeToKhalaNodesMap(), k1.getNodeToKhalaNodesMap());
+
+        // the root digests match, no digest or full sync is made
         k0.sync();
         Thread.sleep(1000);
-        assertEquals(1, hashCnt[0]);
-        assertEquals(1, syncCnt[0]);
+        assertEquals(1, k0.getSyncCount());
+        assertEquals(0, k0.getFullSyncCount());
+
+        // replace d1 with a node of the older version
+        Field httpServerF = Discovery.class.getDeclaredField("httpServer");
+        httpServerF.setAccessible(true);
+        HttpServer httpServer = (HttpServer) httpServerF.get(d1);
+        httpServer.close();
+
+        HttpServer server = HttpServer.create();
+        int[] hashCnt = {0};
+        int[] syncCnt = {0};
+        server.put("/discovery/api/v1/exchange/khala.hash", rctx -> {
+            ++hashCnt[0];
+            // the older version calculates the hash differently
+            rctx.response().end(new ObjectBuilder().put("hash", "czAsejAsMTI3LjAuMC4wLDk5OTAs").build());
+        });
+        server.put("/discovery/api/v1/exchange/khala.sync", rctx -> {
+            ++syncCnt[0];
+            rctx.response().end(new ObjectBuilder().putArray("diff", a -> {
+            }).build());
+        });
+        // khala.digest is not supported
+        server.listen(18081);
+        try {
+            Thread.sleep(1000);
+
+            // always fall back to the full sync
+            k0.sync();
+            Thread.sleep(1000);
+            k0.sync();
+            Thread.sleep(1000);
+            assertEquals(2, hashCnt[0]);
+            assertEquals(2, syncCnt[0]);
+            assertEquals(3, k0.getSyncCount());
+            assertEquals(2, k0.getFullSyncCount());
+        } finally {
+            server.close();
+        }
     }
 }
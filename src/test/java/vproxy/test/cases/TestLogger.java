@@ -0,0 +1,133 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.util.AsyncLogWriter;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestLogger {
+    private File file;
+    private AsyncLogWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("vproxy-test-log", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        if (writer != null) {
+            writer.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static AsyncLogWriter.LogRecord record(String msg) {
+        return new AsyncLogWriter.LogRecord("", System.currentTimeMillis(), null, null, null, msg, null);
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readAllLines(file.toPath());
+    }
+
+    private static long count(List<String> lines, String s) {
+        return lines.stream().filter(l -> l.contains(s)).count();
+    }
+
+    // start at the beginning of a second, so that the loop does not cross the rate limit window
+    private static void waitForNextSecond() throws Exception {
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 10);
+    }
+
+    @Test
+    public void overflow() throws Exception {
+        writer = new AsyncLogWriter(4, file.getAbsolutePath(), Long.MAX_VALUE, 1, 0);
+        int total = 20000;
+        for (int i = 0; i < total; ++i) {
+            writer.offer(record("overflow-" + i));
+        }
+        writer.flush();
+
+        long dropped = writer.droppedCount();
+        assertTrue("the ring of 4 records should overflow", dropped > 0);
+        List<String> lines = lines();
+        // every record is either written or dropped
+        assertEquals(total, count(lines, "overflow-") + dropped);
+        assertTrue(count(lines, "log lines dropped because the log ring is full") > 0);
+    }
+
+    @Test
+    public void rateLimit() throws Exception {
+        writer = new AsyncLogWriter(1024, file.getAbsolutePath(), Long.MAX_VALUE, 1, 10);
+        waitForNextSecond();
+        int passed = 0;
+        for (int i = 0; i < 30; ++i) {
+            if (!writer.rateLimited(LogType.ALERT)) {
+                ++passed;
+            }
+        }
+        assertEquals(10, passed);
+        // other types are limited separately
+        assertFalse(writer.rateLimited(LogType.DISCOVERY_EVENT));
+
+        // the suppressed count is reported in the next window
+        waitForNextSecond();
+        assertFalse(writer.rateLimited(LogType.ALERT));
+        writer.flush();
+        assertEquals(1, count(lines(), "20 lines of " + LogType.ALERT + " suppressed in the last second"));
+    }
+
+    @Test
+    public void errorsNotRateLimited() throws Exception {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Logger.flush();
+        System.setOut(new PrintStream(baos, true));
+        int total = 3000; // more than the default limit
+        try {
+            waitForNextSecond();
+            for (int i = 0; i < total; ++i) {
+                Logger.error(LogType.UNEXPECTED, "error-not-limited-" + i);
+                Logger.info(LogType.UNEXPECTED, "info-limited-" + i);
+            }
+            Logger.flush();
+        } finally {
+            System.setOut(stdout);
+        }
+        List<String> lines = List.of(baos.toString(StandardCharsets.UTF_8).split("\n"));
+        assertEquals(total, count(lines, "error-not-limited-"));
+        assertTrue(count(lines, "info-limited-") < total);
+    }
+
+    @Test
+    public void flushOnClose() throws Exception {
+        writer = new AsyncLogWriter(65536, file.getAbsolutePath(), Long.MAX_VALUE, 1, 0);
+        int total = 10000;
+        for (int i = 0; i < total; ++i) {
+            writer.offer(record("close-" + i));
+        }
+        writer.close();
+
+        List<String> lines = lines();
+        assertEquals(total, count(lines, "close-"));
+        assertEquals(0, writer.droppedCount());
+
+        // records offered after closing are dropped
+        writer.offer(record("after-close"));
+        assertEquals(1, writer.droppedCount());
+        writer.flush();
+        assertEquals(0, count(lines(), "after-close"));
+    }
+}
@@ -0,0 +1,187 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.connection.ConnectableConnection;
+import vproxy.connection.ConnectionOpts;
+import vproxy.connection.Connection;
+import vproxy.selector.LoopLocalSet;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.BlockCallback;
+import vproxy.util.RingBuffer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TestLoopLocalSet {
+    private SelectorEventLoop loop;
+
+    @Before
+    public void setUp() throws Exception {
+        loop = SelectorEventLoop.open();
+        loop.loop(r -> new Thread(r, "EventLoop"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (loop != null) {
+            loop.close();
+        }
+    }
+
+    private <T> T onLoop(Supplier<T> f) throws Exception {
+        BlockCallback<T, RuntimeException> cb = new BlockCallback<>();
+        loop.runOnLoop(() -> cb.succeeded(f.get()));
+        return cb.block();
+    }
+
+    @Test
+    public void addRemoveOnLoop() throws Exception {
+        LoopLocalSet<String> set = new LoopLocalSet<>(loop);
+        List<String> copy = onLoop(() -> {
+            assertTrue(set.add("a"));
+            assertTrue(set.add("b"));
+            assertFalse(set.add("a"));
+            assertTrue(set.remove("b"));
+            assertFalse(set.remove("b"));
+            List<String> ls = new ArrayList<>();
+            assertTrue(set.copyTo(ls));
+            return ls;
+        });
+        assertEquals(List.of("a"), copy);
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void copyFromAnotherThread() throws Exception {
+        LoopLocalSet<String> set = new LoopLocalSet<>(loop);
+        onLoop(() -> set.add("a") && set.add("b") && set.add("c"));
+        assertEquals(3, set.size());
+
+        Set<String> copy = new HashSet<>();
+        assertTrue(set.copyTo(copy));
+        assertEquals(Set.of("a", "b", "c"), copy);
+
+        onLoop(() -> set.remove("b"));
+        assertEquals(2, set.size());
+        copy.clear();
+        assertTrue(set.copyTo(copy));
+        assertEquals(Set.of("a", "c"), copy);
+    }
+
+    @Test
+    public void copyWhenLoopStalled() throws Exception {
+        LoopLocalSet<String> set = new LoopLocalSet<>(loop);
+        onLoop(() -> set.add("a"));
+        List<String> copy = new ArrayList<>();
+        assertTrue(set.copyTo(copy));
+
+        onLoop(() -> set.add("b"));
+        CountDownLatch stall = new CountDownLatch(1);
+        loop.runOnLoop(() -> {
+            try {
+                stall.await();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        try {
+            copy.clear();
+            long start = System.currentTimeMillis();
+            assertFalse(set.copyTo(copy, start + 200));
+            long cost = System.currentTimeMillis() - start;
+            assertTrue("waited for " + cost + "ms", cost < 1000);
+            // the last copy is returned
+            assertEquals(List.of("a"), copy);
+        } finally {
+            stall.countDown();
+        }
+
+        // the loop recovers
+        copy.clear();
+        assertTrue(set.copyTo(copy));
+        assertEquals(Set.of("a", "b"), new HashSet<>(copy));
+    }
+
+    @Test
+    public void copyWhenLoopClosed() throws Exception {
+        LoopLocalSet<String> set = new LoopLocalSet<>(loop);
+        onLoop(() -> set.add("a"));
+        SelectorEventLoop loop = this.loop;
+        this.loop = null;
+        loop.close(); // joins the loop thread
+
+        // nothing modifies the set after the loop thread exits, so it's copied directly
+        List<String> copy = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        assertTrue(set.copyTo(copy));
+        assertTrue(System.currentTimeMillis() - start < LoopLocalSet.COPY_TIMEOUT);
+        assertEquals(List.of("a"), copy);
+    }
+
+    @Test
+    public void serverHandleConnections() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg");
+        elg.add("el0");
+        try {
+            ServerGroup sg = new ServerGroup("sg", elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+            sg.add("svr", new InetSocketAddress("127.0.0.1", 19091), 10);
+            ServerGroup.ServerHandle h = sg.getServerHandles().get(0);
+
+            // made on the loop
+            List<ConnectableConnection> conns = onLoop(() -> {
+                List<ConnectableConnection> ls = new ArrayList<>();
+                try {
+                    for (int i = 0; i < 3; ++i) {
+                        ls.add(h.makeConnector().connect(ConnectionOpts.getDefault(), RingBuffer.allocate(16), RingBuffer.allocate(16)));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return ls;
+            });
+            // made out of any loop
+            ConnectableConnection other = h.makeConnector().connect(ConnectionOpts.getDefault(), RingBuffer.allocate(16), RingBuffer.allocate(16));
+            assertEquals(4, h.connectionCount());
+
+            Set<Connection> copy = new HashSet<>();
+            h.copyConnections(copy);
+            Set<Connection> expected = new HashSet<>(conns);
+            expected.add(other);
+            assertEquals(expected, copy);
+
+            // closed on the loop
+            onLoop(() -> {
+                conns.get(0).close();
+                return null;
+            });
+            assertEquals(3, h.connectionCount());
+            // closed from another thread, removed on the loop
+            conns.get(1).close();
+            onLoop(() -> null); // wait for the removal
+            assertEquals(2, h.connectionCount());
+            other.close();
+            assertEquals(1, h.connectionCount());
+
+            copy.clear();
+            h.copyConnections(copy);
+            assertEquals(Set.of(conns.get(2)), copy);
+            conns.get(2).close();
+            onLoop(() -> null);
+            assertEquals(0, h.connectionCount());
+        } finally {
+            elg.close();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package vproxy.test.cases;
+
+import org.junit.Test;
+import vproxy.app.Config;
+import vproxy.component.app.PrometheusMetrics;
+import vproxy.component.app.TcpLB;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.secure.SecurityGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.ServerGroups;
+import vproxy.connection.*;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.selector.StallDetector;
+import vproxy.test.tool.Client;
+import vproxy.test.tool.EchoServer;
+import vproxy.util.BlockCallback;
+import vproxy.util.Histogram;
+import vproxy.util.RingBuffer;
+import vproxy.util.Tuple;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.NetworkChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestMetrics {
+    private static final int lbPort = 18091;
+    private static final int echoPort = 20091;
+
+    @Test
+    public void bucketBounds() {
+        Random rand = new Random();
+        for (int i = 0; i < 100_000; ++i) {
+            long v = i < 1000 ? i : (rand.nextLong() >>> (1 + rand.nextInt(40)));
+            Histogram h = new Histogram(1);
+            h.record(v);
+            Histogram.Snapshot s = h.snapshot();
+            long value = s.valueAtPercentile(100);
+            assertTrue(v + " => " + value, value >= v);
+            if (v < (1L << 37)) {
+                assertTrue(v + " => " + value, value - v <= v / 8);
+            }
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; ++i) {
+            h.record(i);
+        }
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(1000, s.count);
+        assertEquals(500500, s.sum);
+        long p50 = s.valueAtPercentile(50);
+        assertTrue("p50 = " + p50, p50 >= 500 && p50 <= 500 * 9 / 8);
+        long p99 = s.valueAtPercentile(99);
+        assertTrue("p99 = " + p99, p99 >= 990 && p99 <= 990 * 9 / 8);
+        assertEquals(7, s.countNotGreaterThan(7)); // values below 8 have their own buckets
+        assertEquals(1000, s.countNotGreaterThan(10_000));
+    }
+
+    @Test
+    public void concurrentRecord() throws Exception {
+        Histogram h = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            Thread t = new Thread(() -> {
+                for (int j = 0; j < 100_000; ++j) {
+                    h.record(j % 100);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Histogram.Snapshot s = h.snapshot();
+        assertEquals(800_000, s.count);
+        assertEquals(8 * 1000 * (99 * 100 / 2), s.sum);
+    }
+
+    private static void recordOnLoop(SelectorEventLoop loop, Histogram h, int times, long value) throws Exception {
+        BlockCallback<Void, RuntimeException> cb = new BlockCallback<>();
+        loop.runOnLoop(() -> {
+            for (int i = 0; i < times; ++i) {
+                h.record(value);
+            }
+            cb.succeeded(null);
+        });
+        cb.block();
+    }
+
+    @Test
+    public void perLoop() throws Exception {
+        SelectorEventLoop loop0 = SelectorEventLoop.open();
+        loop0.loop(r -> new Thread(r, "metrics-loop0"));
+        SelectorEventLoop loop1 = SelectorEventLoop.open();
+        loop1.loop(r -> new Thread(r, "metrics-loop1"));
+        try {
+            Histogram h = new Histogram();
+            recordOnLoop(loop0, h, 100, 10);
+            recordOnLoop(loop1, h, 20, 1000);
+            h.record(5); // not on any event loop
+
+            Histogram.Snapshot s0 = h.snapshot(loop0);
+            assertEquals(100, s0.count);
+            assertEquals(1000, s0.sum);
+            Histogram.Snapshot s1 = h.snapshot(loop1);
+            assertEquals(20, s1.count);
+            assertEquals(20_000, s1.sum);
+            Histogram.Snapshot all = h.snapshot();
+            assertEquals(121, all.count);
+            assertEquals(21_005, all.sum);
+
+            // histograms striped by thread do not keep the values by loop
+            Histogram byThread = new Histogram(4);
+            recordOnLoop(loop0, byThread, 10, 10);
+            assertEquals(0, byThread.snapshot(loop0).count);
+            assertEquals(10, byThread.snapshot().count);
+
+            // values of a closed loop are still counted in the merged snapshot
+            loop1.close();
+            all = h.snapshot();
+            assertEquals(121, all.count);
+            assertEquals(21_005, all.sum);
+            assertEquals(0, h.snapshot(loop1).count);
+        } finally {
+            loop0.close();
+            if (!loop1.isClosed()) {
+                loop1.close();
+            }
+        }
+    }
+
+    static class SlowTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void eventLoopStats() throws Exception {
+        int threshold = StallDetector.getThreshold();
+        StallDetector.setThreshold(100);
+        SelectorEventLoop loop = SelectorEventLoop.open();
+        // the loop is not started, so the task runs on the current thread, which is not recorded
+        loop.runOnLoop(new SlowTask());
+        assertEquals(0, loop.getLongestCallbackNanos());
+        assertNull(loop.getLongestCallbackClass());
+        loop.loop(r -> new Thread(r, "stall-loop"));
+        try {
+            loop.runOnLoop(new SlowTask());
+            long start = System.currentTimeMillis();
+            while (loop.getStalls() == 0) {
+                assertTrue("the stall is not detected", System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+            }
+            // the stall is reported only once
+            Thread.sleep(500);
+            // the select time is recorded when select returns, so wake up the loop
+            loop.runOnLoop(() -> {
+            });
+            Thread.sleep(100);
+            assertEquals(1, loop.getStalls());
+            assertEquals(SlowTask.class, loop.getLongestCallbackClass());
+            assertTrue(loop.getLongestCallbackNanos() >= 300_000_000L);
+            assertTrue(loop.getBusyNanos() >= 300_000_000L);
+            assertTrue(loop.getSelectNanos() > 0);
+            assertTrue(loop.getIterations() > 0);
+            assertEquals(0, loop.getBacklog());
+        } finally {
+            loop.close();
+            StallDetector.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void acceptBudget() throws Exception {
+        ServerSock server = ServerSock.create(new InetSocketAddress("127.0.0.1", 0));
+        server.setAcceptBudget(4);
+        // the connections wait in the accept queue before the server is added into the loop
+        List<Socket> socks = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Socket sock = new Socket();
+            sock.connect(server.bind);
+            socks.add(sock);
+        }
+        NetEventLoop loop = new NetEventLoop(SelectorEventLoop.open());
+        loop.getSelectorEventLoop().loop(r -> new Thread(r, "accept-loop"));
+        List<Integer> batches = new ArrayList<>();
+        int[] current = {0};
+        try {
+            loop.addServer(server, null, new ServerHandler() {
+                @Override
+                public void acceptFail(ServerHandlerContext ctx, IOException err) {
+                }
+
+                @Override
+                public void connection(ServerHandlerContext ctx, Connection connection) {
+                    ++current[0];
+                    connection.close();
+                }
+
+                @Override
+                public void acceptEnd(ServerHandlerContext ctx) {
+                    synchronized (batches) {
+                        batches.add(current[0]);
+                    }
+                    current[0] = 0;
+                }
+
+                @Override
+                public Tuple<RingBuffer, RingBuffer> getIOBuffers(NetworkChannel channel) {
+                    return new Tuple<>(RingBuffer.allocate(16), RingBuffer.allocate(16));
+                }
+
+                @Override
+                public void removed(ServerHandlerContext ctx) {
+                }
+            });
+            long start = System.currentTimeMillis();
+            while (server.getHistoryAcceptedConnectionCount() != 10) {
+                assertTrue("the connections are not accepted", System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+            }
+            Thread.sleep(100); // the last acceptEnd
+            synchronized (batches) {
+                assertEquals(List.of(4, 4, 2), batches);
+            }
+            assertEquals(2, server.getAcceptBudgetExhaustedCount());
+            Histogram.Snapshot s = server.acceptBatch.snapshot();
+            assertEquals(3, s.count);
+            assertEquals(10, s.sum);
+        } finally {
+            loop.getSelectorEventLoop().close();
+            server.close();
+            for (Socket sock : socks) {
+                sock.close();
+            }
+        }
+    }
+
+    @Test
+    public void tcpLB() throws Exception {
+        SelectorEventLoop serverLoop = SelectorEventLoop.open();
+        serverLoop.loop(r -> new Thread(r, "serverLoop"));
+        new EchoServer(serverLoop, echoPort);
+
+        EventLoopGroup elg = new EventLoopGroup("elg-metrics");
+        elg.add("el0");
+        ServerGroup sg = new ServerGroup("sgEcho", elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("echo", new InetSocketAddress("127.0.0.1", echoPort), 10);
+        ServerGroup.ServerHandle handle = sg.getServerHandles().get(0);
+        handle.healthy = true;
+        ServerGroups sgs = new ServerGroups("sgs-metrics");
+        sgs.add(sg, 10);
+
+        TcpLB lb = new TcpLB("lb-metrics", elg, elg, new InetSocketAddress("127.0.0.1", lbPort), sgs,
+            Config.tcpTimeout, 16384, 16384, SecurityGroup.allowAll());
+        lb.start();
+
+        try {
+            Client client = new Client(lbPort);
+            client.connect();
+            assertEquals("hello there", client.sendAndRecv("hello there", 11));
+            assertEquals(1, lb.metrics.getActiveSessions());
+            assertEquals(1, handle.metrics.getActiveSessions());
+            client.close();
+
+            long start = System.currentTimeMillis();
+            while (lb.metrics.getActiveSessions() != 0) {
+                assertTrue("the session is not ended", System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+            }
+            assertEquals(1, lb.metrics.connectTime.snapshot().count);
+            assertEquals(1, lb.metrics.firstByteTime.snapshot().count);
+            assertEquals(1, lb.metrics.sessionDuration.snapshot().count);
+            assertEquals(0, lb.metrics.getConnectionErrors());
+            assertEquals(0, handle.metrics.getActiveSessions());
+            assertEquals(1, handle.metrics.connectTime.snapshot().count);
+            assertEquals(1, handle.metrics.firstByteTime.snapshot().count);
+            assertEquals(1, handle.metrics.sessionDuration.snapshot().count);
+            // the first health check is done immediately
+            assertTrue(handle.healthCheckRtt.snapshot().count >= 1);
+
+            String text = PrometheusMetrics.export(List.of(lb), List.of(sg), List.of(elg));
+            assertTrue(text, text.contains("# TYPE vproxy_tcp_lb_connect_seconds histogram\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_active_sessions{tcp_lb=\"lb-metrics\"} 0\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_session_duration_seconds_count{tcp_lb=\"lb-metrics\"} 1\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_session_duration_seconds_bucket{tcp_lb=\"lb-metrics\",le=\"+Inf\"} 1\n"));
+            assertTrue(text, text.contains("# TYPE vproxy_tcp_lb_event_loop_session_duration_seconds histogram\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_event_loop_session_duration_seconds_count{tcp_lb=\"lb-metrics\",event_loop_group=\"elg-metrics\",event_loop=\"el0\"} 1\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_event_loop_connect_seconds_count{tcp_lb=\"lb-metrics\",event_loop_group=\"elg-metrics\",event_loop=\"el0\"} 1\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_accept_batch_sum{tcp_lb=\"lb-metrics\"} 1\n"));
+            assertTrue(text, text.contains("vproxy_tcp_lb_accept_budget_exhausted_total{tcp_lb=\"lb-metrics\"} 0\n"));
+            assertTrue(text, text.contains("vproxy_server_group_connect_seconds_count{server_group=\"sgEcho\"} 1\n"));
+            assertTrue(text, text.contains("vproxy_server_healthy{server_group=\"sgEcho\",server=\"echo\"} 1\n"));
+            assertTrue(text, text.contains("vproxy_server_connect_seconds_bucket{server_group=\"sgEcho\",server=\"echo\",le=\"0.0001\"} "));
+            assertTrue(text, text.contains("vproxy_event_loop_iteration_seconds_count{event_loop_group=\"elg-metrics\",event_loop=\"el0\"} "));
+            assertTrue(text, text.contains("vproxy_event_loop_queue_depth_bucket{event_loop_group=\"elg-metrics\",event_loop=\"el0\",le=\"0\"} "));
+        } finally {
+            lb.destroy();
+            elg.close();
+            serverLoop.close();
+        }
+    }
+}
@@ -0,0 +1,755 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.app.Config;
+import vproxy.component.app.TcpLB;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.secure.SecurityGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.ServerGroups;
+import vproxy.component.svrgroup.SvrHandleConnector;
+import vproxy.processor.Hint;
+import vproxy.processor.ProcessorProvider;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestRESPProcessor {
+    private static final int lbPort = 18092;
+    private static final int redisPort = 20092;
+
+    private final List<FakeRedis> servers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        // the first one is slow, so that replies from different servers arrive out of order
+        servers.add(new FakeRedis("r0", redisPort, 20));
+        servers.add(new FakeRedis("r1", redisPort + 1, 0));
+        servers.add(new FakeRedis("r2", redisPort + 2, 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (FakeRedis r : servers) {
+            r.close();
+        }
+    }
+
+    private static ServerGroup serverGroup(EventLoopGroup elg, String alias) throws Exception {
+        ServerGroup sg = new ServerGroup(alias, elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        for (int i = 0; i < 3; ++i) {
+            sg.add("r" + i, new InetSocketAddress("127.0.0.1", redisPort + i), 10);
+        }
+        for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+            h.healthy = true;
+        }
+        return sg;
+    }
+
+    private static String server(ServerGroup sg, String key) {
+        byte[] bytes = key.getBytes();
+        return sg.next(new InetSocketAddress("127.0.0.1", 1234), Hint.ofKey(bytes, 0, bytes.length).hash).getServerAlias();
+    }
+
+    @Test
+    public void consistentHash() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-hash");
+        try {
+            ServerGroup sg = serverGroup(elg, "sg-resp-hash");
+            Map<String, String> before = new HashMap<>();
+            Map<String, Integer> counts = new HashMap<>();
+            for (int i = 0; i < 3000; ++i) {
+                String svr = server(sg, "key" + i);
+                before.put("key" + i, svr);
+                counts.merge(svr, 1, Integer::sum);
+            }
+            assertEquals(3, counts.size());
+            for (int c : counts.values()) {
+                assertTrue("unbalanced: " + counts, c > 700 && c < 1300);
+            }
+
+            // the same ring on another instance
+            ServerGroup sg2 = serverGroup(elg, "sg-resp-hash2");
+            for (int i = 0; i < 3000; ++i) {
+                assertEquals(before.get("key" + i), server(sg2, "key" + i));
+            }
+
+            // only keys of the unhealthy server move
+            for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+                if (h.alias.equals("r1")) {
+                    h.healthy = false;
+                }
+            }
+            for (int i = 0; i < 3000; ++i) {
+                String svr = server(sg, "key" + i);
+                assertNotEquals("r1", svr);
+                if (!before.get("key" + i).equals("r1")) {
+                    assertEquals(before.get("key" + i), svr);
+                }
+            }
+        } finally {
+            elg.close();
+        }
+    }
+
+    private TcpLB lb(EventLoopGroup elg, ServerGroup sg, String alias, int port, String protocol) throws Exception {
+        return lb(elg, sg, alias, port, protocol, Config.tcpTimeout);
+    }
+
+    private TcpLB lb(EventLoopGroup elg, ServerGroup sg, String alias, int port, String protocol, int timeout) throws Exception {
+        ServerGroups sgs = new ServerGroups("sgs-" + alias);
+        sgs.add(sg, 10);
+        // small buffers to make sure the replies are in order when the frontend is not writable
+        TcpLB lb = new TcpLB(alias, elg, elg, new InetSocketAddress("127.0.0.1", port), sgs,
+            timeout, 256, 256, protocol, null, null, SecurityGroup.allowAll());
+        lb.start();
+        return lb;
+    }
+
+    @Test
+    public void reorder() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-reorder");
+        elg.add("el0");
+        TcpLB lb = lb(elg, serverGroup(elg, "sg-resp-reorder"), "lb-resp-reorder", lbPort, "resp");
+        for (FakeRedis r : servers) {
+            r.data.put("b", "bbb");
+        }
+
+        try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+            sock.setSoTimeout(5000);
+            sock.setTcpNoDelay(true);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            String input = "" +
+                "*2\r\n$3\r\nGET\r\n$1\r\na\r\n" +
+                "PING\r\n" +
+                "*3\r\n$3\r\nSET\r\n$6\r\n{a}bcd\r\n$5\r\nhello\r\n" +
+                "*1\r\n$5\r\nMULTI\r\n" +
+                "GET b\r\n";
+            // the commands are split into many parts
+            for (byte b : input.getBytes()) {
+                out.write(b);
+                out.flush();
+            }
+            assertNull(readReply(in));
+            assertEquals("PONG", readReply(in));
+            assertEquals("OK", readReply(in));
+            assertEquals("-ERR command 'MULTI' is not supported by the proxy", readReply(in));
+            assertEquals("bbb", readReply(in));
+            // hash tag
+            assertEquals(server(lb, "a"), servers.stream().filter(r -> r.data.containsKey("{a}bcd")).findFirst().orElseThrow().id);
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    private static String server(TcpLB lb, String key) {
+        byte[] bytes = key.getBytes();
+        return ((SvrHandleConnector) lb.backends.next(new InetSocketAddress("127.0.0.1", 1234), Hint.ofKey(bytes, 0, bytes.length).hash)).getServerAlias();
+    }
+
+    @Test
+    public void crossSlot() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-crossslot");
+        elg.add("el0");
+        TcpLB lb = lb(elg, serverGroup(elg, "sg-resp-crossslot"), "lb-resp-crossslot", lbPort, "resp");
+
+        try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+            sock.setSoTimeout(5000);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            // keys with the same hash tag
+            out.write((command("MSET", "{t}a", "1", "{t}b", "2") + command("MGET", "{t}a", "{t}b")).getBytes());
+            out.flush();
+            assertEquals("OK", readReply(in));
+            assertEquals("[1,2]", readReply(in));
+
+            // keys on different servers
+            List<String> keys = new ArrayList<>();
+            Set<String> used = new HashSet<>();
+            for (int i = 0; used.size() < 2; ++i) {
+                keys.add("key" + i);
+                used.add(server(lb, "key" + i));
+            }
+            List<String> mget = new ArrayList<>(List.of("MGET"));
+            mget.addAll(keys);
+            List<String> del = new ArrayList<>(List.of("DEL"));
+            del.addAll(keys);
+            out.write((command(mget.toArray(new String[0])) + command(del.toArray(new String[0]))).getBytes());
+            out.flush();
+            assertEquals("-CROSSSLOT Keys in request don't hash to the same server", readReply(in));
+            assertEquals("-CROSSSLOT Keys in request don't hash to the same server", readReply(in));
+
+            // keys on the same server
+            String k0 = keys.get(0);
+            String k1 = null;
+            for (int i = 0; k1 == null; ++i) {
+                if (!("x" + i).equals(k0) && server(lb, "x" + i).equals(server(lb, k0))) {
+                    k1 = "x" + i;
+                }
+            }
+            out.write((command("MSET", k0, "v0", k1, "v1") + command("MGET", k0, k1)).getBytes());
+            out.flush();
+            assertEquals("OK", readReply(in));
+            assertEquals("[v0,v1]", readReply(in));
+
+            // the keys of EVAL are after numkeys
+            out.write((command("EVAL", "return 1", "0") + command("EVAL", "return 1", "2", k0)).getBytes());
+            out.flush();
+            assertEquals("-ERR command 'EVAL' without keys is not supported by the proxy", readReply(in));
+            assertEquals("-ERR wrong number of arguments for 'eval' command", readReply(in));
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    @Test
+    public void quit() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-quit");
+        elg.add("el0");
+        TcpLB lb = lb(elg, serverGroup(elg, "sg-resp-quit"), "lb-resp-quit", lbPort, "resp");
+
+        try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+            sock.setSoTimeout(5000);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            // the commands after QUIT are ignored
+            out.write((command("SET", "key0", "value0") + "QUIT\r\n" + command("SET", "key1", "value1")).getBytes());
+            out.flush();
+            assertEquals("OK", readReply(in));
+            assertEquals("OK", readReply(in));
+            assertEquals(-1, in.read());
+            for (FakeRedis r : servers) {
+                assertFalse(r.data.containsKey("key1"));
+            }
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    @Test
+    public void sharedBackends() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-shared");
+        elg.add("el0");
+        TcpLB lb = lb(elg, serverGroup(elg, "sg-resp-shared"), "lb-resp-shared", lbPort, "resp");
+
+        // r0 replies slowly, and the commands of all clients are queued on one connection
+        int clients = 10;
+        int n = 10;
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (int c = 0; c < clients; ++c) {
+                int fc = c;
+                Thread t = new Thread(() -> {
+                    try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                        sock.setSoTimeout(5000);
+                        OutputStream out = sock.getOutputStream();
+                        InputStream in = new BufferedInputStream(sock.getInputStream());
+                        StringBuilder sb = new StringBuilder();
+                        for (int i = 0; i < n; ++i) {
+                            sb.append(command("SET", "c" + fc + "-" + i, "v" + fc + "-" + i));
+                            sb.append(command("GET", "c" + fc + "-" + i));
+                        }
+                        out.write(sb.toString().getBytes());
+                        out.flush();
+                        for (int i = 0; i < n; ++i) {
+                            assertEquals("OK", readReply(in));
+                            assertEquals("v" + fc + "-" + i, readReply(in));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertEquals(List.of(), errors);
+            // all clients on the loop share one connection of each server
+            for (FakeRedis r : servers) {
+                assertEquals(1, r.served.get());
+            }
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    @Test
+    public void backendsByTimeout() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-timeout");
+        elg.add("el0");
+        ServerGroup sg = serverGroup(elg, "sg-resp-timeout");
+        TcpLB lb0 = lb(elg, sg, "lb-resp-timeout0", lbPort, "resp", Config.tcpTimeout);
+        TcpLB lb1 = lb(elg, sg, "lb-resp-timeout1", lbPort + 1, "resp", Config.tcpTimeout);
+        TcpLB lb2 = lb(elg, sg, "lb-resp-timeout2", lbPort + 2, "resp", Config.tcpTimeout / 2);
+        try {
+            // the multiplex processor is not a processor driven by the lib
+            assertNull(lb0.processor);
+            assertEquals("resp", lb0.multiplexProcessor.name());
+            try {
+                ProcessorProvider.getInstance().get("resp");
+                fail("resp should not be registered as a processor");
+            } catch (NoSuchElementException expected) {
+            }
+
+            FakeRedis owner = servers.stream().filter(r -> r.id.equals(server(lb0, "k"))).findFirst().orElseThrow();
+            for (int port = lbPort; port <= lbPort + 2; ++port) {
+                try (Socket sock = new Socket("127.0.0.1", port)) {
+                    sock.setSoTimeout(5000);
+                    sock.getOutputStream().write(command("SET", "k", "v" + port).getBytes());
+                    sock.getOutputStream().flush();
+                    assertEquals("OK", readReply(new BufferedInputStream(sock.getInputStream())));
+                }
+            }
+            // lb0 and lb1 share the connection, lb2 uses another one because its timeout is different
+            assertEquals(2, owner.served.get());
+        } finally {
+            lb0.destroy();
+            lb1.destroy();
+            lb2.destroy();
+            elg.close();
+        }
+    }
+
+    @Test
+    public void proxy() throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg-resp");
+        elg.add("el0");
+        TcpLB lb = lb(elg, serverGroup(elg, "sg-resp"), "lb-resp", lbPort, "resp");
+
+        try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+            sock.setSoTimeout(5000);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            // pipeline all commands in one write
+            int n = 200;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; ++i) {
+                sb.append(command("SET", "key" + i, "value" + i));
+            }
+            for (int i = 0; i < n; ++i) {
+                sb.append(command("GET", "key" + i));
+                sb.append(command("WHO", "key" + i));
+            }
+            sb.append("PING\r\n");
+            out.write(sb.toString().getBytes());
+            out.flush();
+
+            for (int i = 0; i < n; ++i) {
+                assertEquals("OK", readReply(in));
+            }
+            Set<String> used = new HashSet<>();
+            for (int i = 0; i < n; ++i) {
+                assertEquals("value" + i, readReply(in));
+                String who = readReply(in);
+                assertEquals("value" + i, servers.get(who.charAt(1) - '0').data.get("key" + i));
+                used.add(who);
+            }
+            assertEquals("PONG", readReply(in));
+            assertEquals(3, used.size());
+
+            // the same key always goes to the same server
+            out.write(command("GET", "key0").getBytes());
+            out.flush();
+            assertEquals("value0", readReply(in));
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    private static int crc16(byte[] bytes) {
+        int crc = 0;
+        for (byte b : bytes) {
+            crc ^= (b & 0xff) << 8;
+            for (int i = 0; i < 8; ++i) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            crc &= 0xffff;
+        }
+        return crc;
+    }
+
+    private static int slot(String key) {
+        return crc16(key.getBytes()) & 16383;
+    }
+
+    @Test
+    public void cluster() throws Exception {
+        assertEquals(0x31c3, crc16("123456789".getBytes()));
+        assertEquals(12182, slot("foo"));
+
+        int[] owners = new int[16384];
+        for (int i = 0; i < owners.length; ++i) {
+            owners[i] = i <= 5460 ? 0 : (i <= 10922 ? 1 : 2);
+        }
+        for (FakeRedis r : servers) {
+            r.owners = owners;
+        }
+
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-cluster");
+        elg.add("el0");
+        // only one seed in the group
+        ServerGroup sg = new ServerGroup("sg-resp-cluster", elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("r0", new InetSocketAddress("127.0.0.1", redisPort), 10);
+        sg.getServerHandles().get(0).healthy = true;
+        TcpLB lb = lb(elg, sg, "lb-resp-cluster", lbPort + 1, "resp-cluster");
+
+        try (Socket sock = new Socket("127.0.0.1", lbPort + 1)) {
+            sock.setSoTimeout(5000);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            // the commands before the slot table is retrieved may be redirected
+            int n = 100;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; ++i) {
+                sb.append(command("SET", "key" + i, "value" + i));
+            }
+            out.write(sb.toString().getBytes());
+            out.flush();
+            for (int i = 0; i < n; ++i) {
+                assertEquals("OK", readReply(in));
+            }
+            for (int i = 0; i < n; ++i) {
+                assertEquals("value" + i, servers.get(owners[slot("key" + i)]).data.get("key" + i));
+            }
+
+            // the commands are sent directly to the owner once the slot table is retrieved
+            for (FakeRedis r : servers) {
+                r.moved.set(0);
+            }
+            sb = new StringBuilder();
+            for (int i = 0; i < n; ++i) {
+                sb.append(command("GET", "key" + i));
+                sb.append(command("WHO", "key" + i));
+            }
+            out.write(sb.toString().getBytes());
+            out.flush();
+            for (int i = 0; i < n; ++i) {
+                assertEquals("value" + i, readReply(in));
+                assertEquals("r" + owners[slot("key" + i)], readReply(in));
+            }
+            for (FakeRedis r : servers) {
+                assertEquals(0, r.moved.get());
+            }
+            int slotsRequests = servers.stream().mapToInt(r -> r.slotsRequests.get()).sum();
+            assertEquals(1, slotsRequests);
+
+            // move the slot of key0 to another server
+            int slot0 = slot("key0");
+            int oldOwner = owners[slot0];
+            int newOwner = (oldOwner + 1) % 3;
+            servers.get(newOwner).data.put("key0", "value0");
+            owners[slot0] = newOwner;
+            Thread.sleep(1100); // the slot table is refreshed at most once a second
+
+            out.write((command("GET", "key0") + command("WHO", "key0")).getBytes());
+            out.flush();
+            assertEquals("value0", readReply(in));
+            assertEquals("r" + newOwner, readReply(in));
+            // both commands are pipelined to the old owner
+            assertEquals(2, servers.get(oldOwner).moved.get());
+            // the slot is updated by the redirection, and the table is refreshed by the next command
+            out.write(command("WHO", "key0").getBytes());
+            out.flush();
+            assertEquals("r" + newOwner, readReply(in));
+            assertEquals(2, servers.get(oldOwner).moved.get());
+            assertEquals(slotsRequests + 1, servers.stream().mapToInt(r -> r.slotsRequests.get()).sum());
+
+            // the slot of key1 is being migrated
+            int slot1 = slot("key1");
+            FakeRedis owner1 = servers.get(owners[slot1]);
+            int target = (owners[slot1] + 1) % 3;
+            owner1.askSlot = slot1;
+            owner1.askTo = target;
+            out.write((command("WHO", "key1") + command("WHO", "key1")).getBytes());
+            out.flush();
+            assertEquals("r" + target, readReply(in));
+            assertEquals("r" + target, readReply(in));
+            // the slot is not moved
+            owner1.askSlot = -1;
+            out.write(command("WHO", "key1").getBytes());
+            out.flush();
+            assertEquals("r" + owners[slot1], readReply(in));
+
+            // all keys must be in the same slot
+            out.write((command("MGET", "key0", "key1") + command("MSET", "{k}1", "v1", "{k}2", "v2") + command("MGET", "{k}1", "{k}2")).getBytes());
+            out.flush();
+            assertEquals("-CROSSSLOT Keys in request don't hash to the same slot", readReply(in));
+            assertEquals("OK", readReply(in));
+            assertEquals("[v1,v2]", readReply(in));
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    @Test
+    public void clusterHostNames() throws Exception {
+        int[] owners = new int[16384];
+        for (int i = 0; i < owners.length; ++i) {
+            owners[i] = i % 3;
+        }
+        for (FakeRedis r : servers) {
+            r.owners = owners;
+            r.host = "localhost";
+        }
+
+        EventLoopGroup elg = new EventLoopGroup("elg-resp-cluster-host");
+        elg.add("el0");
+        ServerGroup sg = new ServerGroup("sg-resp-cluster-host", elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("r0", new InetSocketAddress("127.0.0.1", redisPort), 10);
+        sg.getServerHandles().get(0).healthy = true;
+        TcpLB lb = lb(elg, sg, "lb-resp-cluster-host", lbPort + 1, "resp-cluster");
+
+        try (Socket sock = new Socket("127.0.0.1", lbPort + 1)) {
+            sock.setSoTimeout(5000);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+
+            out.write(command("SET", "key0", "value0").getBytes());
+            out.flush();
+            assertEquals("OK", readReply(in));
+            assertEquals(1, servers.get(0).slotsRequests.get());
+            Thread.sleep(500); // the host names are resolved asynchronously
+
+            // the nodes announced with host names are used after resolved
+            for (FakeRedis r : servers) {
+                r.moved.set(0);
+            }
+            int n = 30;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; ++i) {
+                sb.append(command("WHO", "key" + i));
+            }
+            out.write(sb.toString().getBytes());
+            out.flush();
+            for (int i = 0; i < n; ++i) {
+                assertEquals("r" + owners[slot("key" + i)], readReply(in));
+            }
+            for (FakeRedis r : servers) {
+                assertEquals(0, r.moved.get());
+            }
+        } finally {
+            lb.destroy();
+            elg.close();
+        }
+    }
+
+    private static String command(String... args) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*").append(args.length).append("\r\n");
+        for (String a : args) {
+            sb.append("$").append(a.length()).append("\r\n").append(a).append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException();
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
+    // only supports the types used in this test
+    private static String readReply(InputStream in) throws IOException {
+        String line = readLine(in);
+        switch (line.charAt(0)) {
+            case '+':
+                return line.substring(1);
+            case '-':
+                return line;
+            case '$':
+                int len = Integer.parseInt(line.substring(1));
+                if (len < 0)
+                    return null;
+                byte[] bytes = in.readNBytes(len + 2);
+                return new String(bytes, 0, len, StandardCharsets.UTF_8);
+            case '*':
+                int n = Integer.parseInt(line.substring(1));
+                List<String> elems = new ArrayList<>();
+                for (int i = 0; i < n; ++i) {
+                    elems.add(readReply(in));
+                }
+                return "[" + String.join(",", elems) + "]";
+            default:
+                throw new IOException("unexpected reply " + line);
+        }
+    }
+
+    // a blocking redis server which supports SET, GET, MSET, MGET and WHO (returns its id),
+    // and acts as a cluster node when the owners of slots are set
+    private static class FakeRedis {
+        final String id;
+        final int index;
+        final Map<String, String> data = new ConcurrentHashMap<>();
+        volatile int[] owners = null; // slot => index of the server
+        volatile int askSlot = -1;
+        volatile int askTo = -1;
+        volatile String host = "127.0.0.1"; // host of the nodes in CLUSTER SLOTS
+        final AtomicInteger moved = new AtomicInteger();
+        final AtomicInteger slotsRequests = new AtomicInteger();
+        final AtomicInteger served = new AtomicInteger(); // connections which sent commands, health checks are not counted
+        private final ServerSocket server;
+        private final Set<Socket> socks = ConcurrentHashMap.newKeySet();
+        private final int delay;
+
+        FakeRedis(String id, int port, int delay) throws IOException {
+            this.id = id;
+            this.index = port - redisPort;
+            this.delay = delay;
+            this.server = new ServerSocket();
+            this.server.setReuseAddress(true);
+            // connections of the previous case may still be closing
+            this.server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            this.server.bind(new InetSocketAddress("127.0.0.1", port));
+            new Thread(this::accept, "fake-redis-" + id).start();
+        }
+
+        private void accept() {
+            while (true) {
+                Socket sock;
+                try {
+                    sock = server.accept();
+                } catch (IOException e) {
+                    return; // closed
+                }
+                socks.add(sock);
+                new Thread(() -> handle(sock)).start();
+            }
+        }
+
+        private void handle(Socket sock) {
+            try (sock) {
+                InputStream in = new BufferedInputStream(sock.getInputStream());
+                OutputStream out = sock.getOutputStream();
+                boolean asking = false;
+                boolean first = true;
+                while (true) {
+                    String line = readLine(in);
+                    if (first) {
+                        first = false;
+                        served.incrementAndGet();
+                    }
+                    int argc = Integer.parseInt(line.substring(1));
+                    List<String> args = new ArrayList<>();
+                    for (int i = 0; i < argc; ++i) {
+                        args.add(readReply(in));
+                    }
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    String reply = cluster(args, asking);
+                    asking = args.get(0).equals("ASKING");
+                    if (reply != null) {
+                        out.write(reply.getBytes());
+                        out.flush();
+                        continue;
+                    }
+                    switch (args.get(0)) {
+                        case "SET":
+                            data.put(args.get(1), args.get(2));
+                            reply = "+OK\r\n";
+                            break;
+                        case "GET":
+                            String v = data.get(args.get(1));
+                            reply = v == null ? "$-1\r\n" : "$" + v.length() + "\r\n" + v + "\r\n";
+                            break;
+                        case "MSET":
+                            for (int i = 1; i + 1 < args.size(); i += 2) {
+                                data.put(args.get(i), args.get(i + 1));
+                            }
+                            reply = "+OK\r\n";
+                            break;
+                        case "MGET":
+                            StringBuilder sb = new StringBuilder("*" + (args.size() - 1) + "\r\n");
+                            for (int i = 1; i < args.size(); ++i) {
+                                String s = data.get(args.get(i));
+                                sb.append(s == null ? "$-1\r\n" : "$" + s.length() + "\r\n" + s + "\r\n");
+                            }
+                            reply = sb.toString();
+                            break;
+                        case "WHO":
+                            reply = "+" + id + "\r\n";
+                            break;
+                        default:
+                            reply = "-ERR unknown command\r\n";
+                    }
+                    out.write(reply.getBytes());
+                    out.flush();
+                }
+            } catch (Exception ignore) {
+                // connection closed
+            }
+        }
+
+        // return null if the command should be handled as a normal command
+        private String cluster(List<String> args, boolean asking) {
+            int[] owners = this.owners;
+            if (owners == null)
+                return null;
+            if (args.get(0).equals("ASKING"))
+                return "+OK\r\n";
+            if (args.get(0).equals("CLUSTER") && args.get(1).equals("SLOTS")) {
+                slotsRequests.incrementAndGet();
+                List<String> ranges = new ArrayList<>();
+                int start = 0;
+                for (int i = 1; i <= owners.length; ++i) {
+                    if (i == owners.length || owners[i] != owners[start]) {
+                        ranges.add("*3\r\n:" + start + "\r\n:" + (i - 1) + "\r\n" +
+                            "*3\r\n$" + host.length() + "\r\n" + host + "\r\n:" + (redisPort + owners[start]) + "\r\n$2\r\nr" + owners[start] + "\r\n");
+                        start = i;
+                    }
+                }
+                return "*" + ranges.size() + "\r\n" + String.join("", ranges);
+            }
+            int slot = slot(args.get(1));
+            if (slot == askSlot)
+                return "-ASK " + slot + " 127.0.0.1:" + (redisPort + askTo) + "\r\n";
+            if (owners[slot] != index && !asking) {
+                moved.incrementAndGet();
+                return "-MOVED " + slot + " 127.0.0.1:" + (redisPort + owners[slot]) + "\r\n";
+            }
+            return null;
+        }
+
+        void close() throws IOException {
+            server.close();
+            for (Socket sock : socks) {
+                sock.close();
+            }
+        }
+    }
+}
@@ -55,6 +55,25 @@ public class TestResolver {
         assertEquals("[0000:0000:0000:0000:0000:0000:0000:0001]", Utils.ipStr(address.getAddress()));
     }
 
+    @Test
+    public void resolveAll() throws Exception {
+        BlockCallback<List<InetAddress>, UnknownHostException> cb = new BlockCallback<>();
+        resolver.resolveAll("localhost", cb);
+        List<InetAddress> addresses = cb.block();
+        assertEquals("127.0.0.1", Utils.ipStr(addresses.get(0).getAddress()));
+
+        // from the cache
+        cb = new BlockCallback<>();
+        resolver.resolveAll("localhost", cb);
+        assertEquals(addresses, cb.block());
+
+        cb = new BlockCallback<>();
+        resolver.resolveAll("10.1.2.3", cb);
+        addresses = cb.block();
+        assertEquals(1, addresses.size());
+        assertEquals("10.1.2.3", Utils.ipStr(addresses.get(0).getAddress()));
+    }
+
     @Test
     public void resolveCache() throws Exception {
         resolver.ttl = 2000;
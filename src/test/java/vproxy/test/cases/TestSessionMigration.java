@@ -0,0 +1,229 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.app.Config;
+import vproxy.component.app.TcpLB;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.proxy.Proxy;
+import vproxy.component.proxy.Session;
+import vproxy.component.secure.SecurityGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.ServerGroups;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.test.tool.Client;
+import vproxy.test.tool.EchoServer;
+import vproxy.util.BlockCallback;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestSessionMigration {
+    private static final int lbPort = 18093;
+    private static final int echoPort = 20093;
+
+    private SelectorEventLoop serverLoop;
+    private EventLoopGroup acceptor;
+    private EventLoopGroup worker;
+    private TcpLB lb;
+    private final List<Client> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        serverLoop = SelectorEventLoop.open();
+        serverLoop.loop(r -> new Thread(r, "serverLoop"));
+        new EchoServer(serverLoop, echoPort);
+
+        // the health check runs on the acceptor group, so only the sessions are on the worker loops
+        acceptor = new EventLoopGroup("acceptor");
+        acceptor.add("acceptor0");
+        worker = new EventLoopGroup("worker");
+        worker.add("el0");
+        ServerGroup sg = new ServerGroup("sgEcho", acceptor, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.add("echo", new InetSocketAddress("127.0.0.1", echoPort), 10);
+        sg.getServerHandles().get(0).healthy = true;
+        ServerGroups sgs = new ServerGroups("sgs");
+        sgs.add(sg, 10);
+
+        lb = new TcpLB("lb", acceptor, worker, new InetSocketAddress("127.0.0.1", lbPort), sgs,
+            Config.tcpTimeout, 16384, 16384, SecurityGroup.allowAll());
+        lb.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client c : clients) {
+            c.close();
+        }
+        lb.destroy();
+        worker.close();
+        acceptor.close();
+        serverLoop.close();
+    }
+
+    private void connect(int n) throws Exception {
+        for (int i = 0; i < n; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            assertEquals("hello", client.sendAndRecv("hello", 5));
+            clients.add(client);
+        }
+        long start = System.currentTimeMillis();
+        while (lb.sessionCount() != clients.size()) {
+            assertTrue("the sessions are not recorded", System.currentTimeMillis() - start < 2000);
+            Thread.sleep(1);
+        }
+    }
+
+    private void checkClients() throws Exception {
+        for (Client client : clients) {
+            assertEquals("hello again", client.sendAndRecv("hello again", 11));
+        }
+    }
+
+    private static void waitForCount(EventLoopWrapper el, int count) throws Exception {
+        long start = System.currentTimeMillis();
+        while (el.connectionCount() != count) {
+            assertTrue("expecting " + count + " connections in " + el.alias + ", but got " + el.connectionCount(),
+                System.currentTimeMillis() - start < 2000);
+            Thread.sleep(1);
+        }
+    }
+
+    private Session onlySession() {
+        List<Session> sessions = new ArrayList<>();
+        lb.copySessions(sessions);
+        assertEquals(1, sessions.size());
+        return sessions.get(0);
+    }
+
+    private boolean migrate(Session session, EventLoopWrapper target) throws Exception {
+        Proxy proxy = lb.servers.values().iterator().next();
+        BlockCallback<Boolean, RuntimeException> cb = new BlockCallback<>();
+        proxy.migrate(session, target, cb::succeeded);
+        return cb.block();
+    }
+
+    @Test
+    public void migrate() throws Exception {
+        worker.add("el1");
+        EventLoopWrapper el0 = worker.get("el0");
+        EventLoopWrapper el1 = worker.get("el1");
+        connect(1);
+
+        Session session = onlySession();
+        EventLoopWrapper from = session.passive.getEventLoop() == el0 ? el0 : el1;
+        EventLoopWrapper to = from == el0 ? el1 : el0;
+        waitForCount(from, 2);
+
+        assertTrue(migrate(session, to));
+        assertSame(to, session.active.getEventLoop());
+        assertSame(to, session.passive.getEventLoop());
+        waitForCount(from, 0);
+        waitForCount(to, 2);
+        checkClients();
+
+        // and back again
+        assertTrue(migrate(session, from));
+        waitForCount(from, 2);
+        waitForCount(to, 0);
+        checkClients();
+
+        // the session ends normally
+        clients.remove(0).close();
+        long start = System.currentTimeMillis();
+        while (lb.metrics.getActiveSessions() != 0) {
+            assertTrue("the session is not ended", System.currentTimeMillis() - start < 2000);
+            Thread.sleep(1);
+        }
+        assertEquals(0, lb.sessionCount());
+        waitForCount(from, 0);
+    }
+
+    @Test
+    public void notQuiescent() throws Exception {
+        worker.add("el1");
+        connect(1);
+        Session session = onlySession();
+        EventLoopWrapper from = (EventLoopWrapper) session.passive.getEventLoop();
+        EventLoopWrapper to = from == worker.get("el0") ? worker.get("el1") : worker.get("el0");
+
+        // the client half closes the session
+        clients.get(0).socket.shutdownOutput();
+        long start = System.currentTimeMillis();
+        while (!session.active.isRemoteClosed()) {
+            assertTrue("the fin is not received", System.currentTimeMillis() - start < 2000);
+            Thread.sleep(1);
+        }
+        assertFalse(migrate(session, to));
+        assertNotSame(to, session.passive.getEventLoop());
+    }
+
+    @Test
+    public void rebalanceWhenLoopAdded() throws Exception {
+        lb.setRebalancePeriod(60_000); // only rebalance when the loop is added
+        connect(8);
+        EventLoopWrapper el0 = worker.get("el0");
+        waitForCount(el0, 16);
+
+        worker.add("el1");
+        waitForCount(worker.get("el1"), 8);
+        waitForCount(el0, 8);
+        checkClients();
+    }
+
+    @Test
+    public void drainBeforeRemoval() throws Exception {
+        lb.setRebalancePeriod(60_000);
+        connect(8);
+        worker.add("el1");
+        EventLoopWrapper el1 = worker.get("el1");
+        waitForCount(el1, 8);
+
+        worker.remove("el0");
+        waitForCount(el1, 16);
+        assertEquals(8, lb.sessionCount());
+        checkClients();
+    }
+
+    @Test
+    public void drainSeveralLBs() throws Exception {
+        TcpLB lb2 = new TcpLB("lb2", acceptor, worker, new InetSocketAddress("127.0.0.1", lbPort + 1), lb.backends,
+            Config.tcpTimeout, 16384, 16384, SecurityGroup.allowAll());
+        lb2.start();
+        try {
+            lb.setRebalancePeriod(60_000);
+            lb2.setRebalancePeriod(60_000);
+            connect(4);
+            for (int i = 0; i < 4; ++i) {
+                Client client = new Client(lbPort + 1);
+                client.connect();
+                assertEquals("hello", client.sendAndRecv("hello", 5));
+                clients.add(client);
+            }
+            EventLoopWrapper el0 = worker.get("el0");
+            waitForCount(el0, 16);
+            worker.add("el1");
+            EventLoopWrapper el1 = worker.get("el1");
+
+            // both lbs drain at the same time on their own threads
+            long start = System.currentTimeMillis();
+            worker.remove("el0");
+            long cost = System.currentTimeMillis() - start;
+            assertTrue("removing cost " + cost + "ms", cost < 2000);
+            waitForCount(el1, 16);
+            assertEquals(4, lb.sessionCount());
+            assertEquals(4, lb2.sessionCount());
+            checkClients();
+        } finally {
+            lb2.destroy();
+        }
+    }
+}
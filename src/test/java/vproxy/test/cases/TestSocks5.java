@@ -137,4 +137,17 @@ public class TestSocks5 {
         assertTrue("weight same, so two count and three count should be the same",
             three - two > -2 && two - three < 2);
     }
+
+    @Test
+    public void nonBackendDomain() throws Exception {
+        socks5.allowNonBackend = true;
+        for (int i = 0; i < 10; ++i) {
+            Socks5Client client = new Socks5Client(lbPort);
+            // the domain is resolved and connected directly
+            client.connect(AddressType.domain, "localhost", 19080);
+            String res = client.sendAndRecv("anything", 1);
+            assertEquals("the result will always be 0", "0", res);
+            client.close();
+        }
+    }
 }
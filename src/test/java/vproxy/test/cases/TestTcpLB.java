@@ -5,6 +5,8 @@ import vproxy.app.Config;
 import vproxy.component.app.TcpLB;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopWrapper;
+import vproxy.component.elgroup.SelectMethod;
 import vproxy.component.proxy.Session;
 import vproxy.component.secure.SecurityGroup;
 import vproxy.component.secure.SecurityGroupRule;
@@ -20,13 +22,16 @@ import vproxy.test.tool.CaseUtils;
 import vproxy.test.tool.Client;
 import vproxy.test.tool.EchoServer;
 import vproxy.test.tool.IdServer;
+import vproxy.util.Histogram;
 import vproxy.util.Utils;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.LinkedList;
-import java.util.List;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -713,4 +718,131 @@ public class TestTcpLB {
         assertNotSame("the old server is removed", old, list.get(0));
         assertFalse("the new server is not logic deleted", list.get(0).isLogicDelete());
     }
+
+    @Test
+    public void replaceIpByHostName() throws Exception {
+        ServerGroup sgHost = new ServerGroup("sgHost", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        try {
+            // the servers are replaced with an address which is reachable, so they will not be restored by health check
+            sgHost.add("h1", "svr.vproxy.test", new InetSocketAddress("127.0.0.1", 19082), 10);
+            sgHost.add("h2", "svr.vproxy.test", new InetSocketAddress("127.0.0.1", 19082), 10);
+            sgHost.add("h3", "other.vproxy.test", new InetSocketAddress("127.0.0.1", 19083), 10);
+            sgHost.add("h4", "127.0.0.1", new InetSocketAddress("127.0.0.1", 19084), 10); // ip is not indexed
+
+            Map<ServerGroup, List<ServerGroup.ServerHandle>> map = ServerGroup.getServerHandlesByHostName("svr.vproxy.test");
+            assertEquals(Set.of(sgHost), map.keySet());
+            List<ServerGroup.ServerHandle> handles = map.get(sgHost);
+            assertEquals(Set.of("h1", "h2"), handles.stream().map(h -> h.alias).collect(Collectors.toSet()));
+            assertTrue(ServerGroup.getServerHandlesByHostName("127.0.0.1").isEmpty());
+
+            // replace in one batch
+            Map<ServerGroup.ServerHandle, InetAddress> toReplace = new HashMap<>();
+            for (ServerGroup.ServerHandle h : handles) {
+                toReplace.put(h, InetAddress.getByName(addressOtherThan127));
+            }
+            assertEquals(2, sgHost.replaceIp(toReplace));
+            assertEquals(6, sgHost.getServerHandles().size());
+            for (ServerGroup.ServerHandle h : handles) {
+                assertTrue(h.isLogicDelete());
+            }
+            // the replaced servers are not returned
+            List<ServerGroup.ServerHandle> replaced = ServerGroup.getServerHandlesByHostName("svr.vproxy.test").get(sgHost);
+            assertEquals(2, replaced.size());
+            for (ServerGroup.ServerHandle h : replaced) {
+                assertEquals(InetAddress.getByName(addressOtherThan127), h.server.getAddress());
+                assertFalse(h.isLogicDelete());
+            }
+            // already replaced
+            assertEquals(0, sgHost.replaceIp(toReplace));
+
+            sgHost.remove("h1");
+            assertEquals(List.of("h2"), ServerGroup.getServerHandlesByHostName("svr.vproxy.test").get(sgHost).stream().map(h -> h.alias).collect(Collectors.toList()));
+        } finally {
+            sgHost.destroy();
+        }
+        assertTrue(ServerGroup.getServerHandlesByHostName("svr.vproxy.test").isEmpty());
+        assertTrue(ServerGroup.getServerHandlesByHostName("other.vproxy.test").isEmpty());
+    }
+
+    @Test
+    public void acceptInBatches() throws Exception {
+        EventLoopGroup acceptor = new EventLoopGroup("acceptor");
+        acceptor.add("acceptor0");
+        EventLoopGroup worker = new EventLoopGroup("worker");
+        worker.setMethod(SelectMethod.leastconn);
+        for (int i = 0; i < 4; ++i) {
+            worker.add("worker" + i);
+        }
+        List<Socket> socks = new ArrayList<>();
+        try {
+            ServerGroup sg = new ServerGroup("sgBatch", acceptor, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+            sg.add("echo", new InetSocketAddress("127.0.0.1", 20080), 10);
+            sg.getServerHandles().get(0).healthy = true;
+            ServerGroups sgs = new ServerGroups("sgsBatch");
+            sgs.add(sg, 10);
+            TcpLB lb = new TcpLB("lbBatch", acceptor, worker, new InetSocketAddress("127.0.0.1", lbPort + 2), sgs,
+                Config.tcpTimeout, 16384, 16384, SecurityGroup.allowAll());
+            lb.start();
+            ServerSock server = lb.servers.keySet().iterator().next();
+            server.setAcceptBudget(8);
+
+            // stall the accept loop, so that the connections wait in the accept queue
+            CountDownLatch stall = new CountDownLatch(1);
+            acceptor.get("acceptor0").getSelectorEventLoop().runOnLoop(() -> {
+                try {
+                    stall.await();
+                } catch (InterruptedException ignore) {
+                }
+            });
+            int total = 40;
+            for (int i = 0; i < total; ++i) {
+                Socket sock = new Socket();
+                sock.connect(new InetSocketAddress("127.0.0.1", lbPort + 2));
+                socks.add(sock);
+            }
+            stall.countDown();
+
+            long start = System.currentTimeMillis();
+            while (lb.sessionCount() != total) {
+                assertTrue("only " + lb.sessionCount() + " sessions registered", System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+            }
+            // the connections are accepted in batches of the budget
+            Histogram.Snapshot batches = server.acceptBatch.snapshot();
+            assertEquals(total, batches.sum);
+            assertTrue("accepted in " + batches.count + " batches", batches.count >= total / 8);
+            assertTrue(server.getAcceptBudgetExhaustedCount() >= total / 8 - 1);
+
+            // every session works
+            for (Socket sock : socks) {
+                sock.getOutputStream().write("hello".getBytes());
+            }
+            for (Socket sock : socks) {
+                byte[] b = new byte[5];
+                int n = 0;
+                while (n < b.length) {
+                    int r = sock.getInputStream().read(b, n, b.length - n);
+                    assertTrue(r > 0);
+                    n += r;
+                }
+                assertEquals("hello", new String(b));
+            }
+
+            // the connections dispatched in one batch are counted when choosing the next loop,
+            // so the leastconn spread holds: about 10 sessions (20 connections) on each loop.
+            // the active connection of a session is added after the passive one is connected,
+            // so the loads may differ by one session when the loop is chosen
+            for (EventLoopWrapper w : worker.list()) {
+                int n = w.connectionCount();
+                assertTrue("connections in " + w.alias + ": " + n, 18 <= n && n <= 22);
+            }
+            lb.destroy();
+        } finally {
+            for (Socket sock : socks) {
+                sock.close();
+            }
+            worker.close();
+            acceptor.close();
+        }
+    }
 }
@@ -0,0 +1,501 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.proxy.ConnectorGen;
+import vproxy.component.proxy.Proxy;
+import vproxy.component.proxy.ProxyNetConfig;
+import vproxy.connection.Connection;
+import vproxy.connection.Connector;
+import vproxy.connection.ServerSock;
+import vproxy.protocol.ProtocolHandler;
+import vproxy.util.Callback;
+import vproxy.util.Tuple;
+import vproxy.util.Utils;
+import vproxyx.websocks.WebSocksMux;
+import vproxyx.websocks.WebSocksProtocolHandler;
+import vproxyx.websocks.WebSocksProxyContext;
+import vproxyx.websocks.WebSocksUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestWebSocksMux {
+    private static final int serverPort = 18100;
+    private static final String user = "alice";
+    private static final String pass = "pasSw0rD";
+
+    // same values as WebSocksMux
+    private static final byte OPEN = 1;
+    private static final byte OPEN_ACK = 2;
+    private static final byte DATA = 3;
+    private static final byte WINDOW = 4;
+    private static final byte FIN = 5;
+    private static final byte RST = 6;
+    private static final int MAX_PAYLOAD = 16384;
+    private static final int STREAM_WINDOW = 65536;
+
+    private EventLoopGroup acceptor;
+    private EventLoopGroup worker;
+    private ServerSock server;
+    private Proxy proxy;
+    private final List<Closeable> closeables = new ArrayList<>();
+
+    private Socket sock;
+    private DataInputStream in;
+    private OutputStream out;
+
+    private static class Frame {
+        final byte type;
+        final int streamId;
+        final byte[] payload;
+
+        Frame(byte type, int streamId, byte[] payload) {
+            this.type = type;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        acceptor = new EventLoopGroup("acceptor");
+        acceptor.add("acceptor");
+        worker = new EventLoopGroup("worker");
+        worker.add("worker");
+
+        server = ServerSock.create(new InetSocketAddress("127.0.0.1", serverPort));
+        WebSocksProtocolHandler handler = new WebSocksProtocolHandler(Collections.singletonMap(user, pass), null);
+        proxy = new Proxy(
+            new ProxyNetConfig()
+                .setAcceptLoop(acceptor.next())
+                .setInBufferSize(24576)
+                .setOutBufferSize(24576)
+                .setHandleLoopProvider(worker::next)
+                .setServer(server)
+                .setConnGen(new ConnectorGen<WebSocksProxyContext>() {
+                    @Override
+                    public Type type() {
+                        return Type.handler;
+                    }
+
+                    @Override
+                    public ProtocolHandler<Tuple<WebSocksProxyContext, Callback<Connector, IOException>>> handler() {
+                        return handler;
+                    }
+
+                    @Override
+                    public Connector genConnector(Connection accepted) {
+                        return null;
+                    }
+                }),
+            s -> {
+            });
+        proxy.handle();
+
+        connectTunnel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (sock != null) {
+            sock.close();
+        }
+        for (Closeable c : closeables) {
+            c.close();
+        }
+        proxy.stop();
+        server.close();
+        acceptor.close();
+        worker.close();
+    }
+
+    // make the http upgrade and the WebSocket frame exchange, then the socket carries mux frames
+    private void connectTunnel() throws Exception {
+        sock = new Socket("127.0.0.1", serverPort);
+        sock.setSoTimeout(5000);
+        in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        out = sock.getOutputStream();
+
+        out.write(("" +
+            "GET / HTTP/1.1\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Host: 127.0.0.1\r\n" +
+            "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+            "Sec-WebSocket-Version: 13\r\n" +
+            "Sec-WebSocket-Protocol: " + WebSocksMux.PROTOCOL + "\r\n" +
+            "Authorization: Basic " +
+            Base64.getEncoder().encodeToString((user + ":" + WebSocksUtils.calcPass(pass, Utils.currentMinute())).getBytes()) +
+            "\r\n" +
+            "\r\n").getBytes());
+        out.flush();
+
+        StringBuilder resp = new StringBuilder();
+        while (!resp.toString().endsWith("\r\n\r\n")) {
+            resp.append((char) in.readUnsignedByte());
+        }
+        assertTrue(resp.toString(), resp.toString().startsWith("HTTP/1.1 101 "));
+        assertTrue(resp.toString(), resp.toString().contains("Sec-WebSocket-Protocol: " + WebSocksMux.PROTOCOL));
+
+        // the server responds its WebSocket frame after receiving the one from the client
+        out.write(WebSocksUtils.bytesToSendForWebSocketFrame);
+        out.flush();
+        in.readFully(new byte[WebSocksUtils.bytesToSendForWebSocketFrame.length]);
+    }
+
+    // ---- frames ----
+
+    private static byte[] frame(byte type, int streamId, byte[] payload) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(b);
+        try {
+            d.writeByte(type);
+            d.writeInt(streamId);
+            d.writeShort(payload.length);
+            d.write(payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return b.toByteArray();
+    }
+
+    private static byte[] openPayload(int port) {
+        return new byte[]{1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port};
+    }
+
+    private static byte[] intPayload(int n) {
+        return new byte[]{(byte) (n >> 24), (byte) (n >> 16), (byte) (n >> 8), (byte) n};
+    }
+
+    private void send(byte type, int streamId, byte[] payload) throws IOException {
+        out.write(frame(type, streamId, payload));
+        out.flush();
+    }
+
+    private Frame read() throws IOException {
+        byte type = in.readByte();
+        int streamId = in.readInt();
+        int len = in.readUnsignedShort();
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        return new Frame(type, streamId, payload);
+    }
+
+    // WINDOW frames are sent whenever the target consumes data, skip them when flow control is not checked
+    private Frame readSkipWindow() throws IOException {
+        while (true) {
+            Frame f = read();
+            if (f.type != WINDOW) {
+                return f;
+            }
+        }
+    }
+
+    private void open(int streamId, int port) throws IOException {
+        send(OPEN, streamId, openPayload(port));
+        Frame f = readSkipWindow();
+        assertEquals(OPEN_ACK, f.type);
+        assertEquals(streamId, f.streamId);
+        assertArrayEquals(new byte[]{0}, f.payload);
+    }
+
+    // ---- targets ----
+
+    private ServerSocket listen() throws IOException {
+        ServerSocket ss = new ServerSocket();
+        ss.bind(new InetSocketAddress("127.0.0.1", 0));
+        closeables.add(ss);
+        return ss;
+    }
+
+    private ServerSocket echoServer() throws IOException {
+        ServerSocket ss = listen();
+        new Thread(() -> {
+            while (true) {
+                Socket s;
+                try {
+                    s = ss.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread(() -> {
+                    try (s) {
+                        InputStream i = s.getInputStream();
+                        OutputStream o = s.getOutputStream();
+                        byte[] buf = new byte[8192];
+                        int n;
+                        while ((n = i.read(buf)) != -1) {
+                            o.write(buf, 0, n);
+                        }
+                    } catch (IOException ignore) {
+                    }
+                }).start();
+            }
+        }).start();
+        return ss;
+    }
+
+    private static byte[] content(int seed, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            b[i] = (byte) (seed * 31 + i);
+        }
+        return b;
+    }
+
+    // ---- cases ----
+
+    @Test
+    public void frameEncodeDecode() throws Exception {
+        ServerSocket echo = echoServer();
+
+        // the OPEN frame is split into single bytes, the header and the payload are assembled by the tunnel
+        for (byte b : frame(OPEN, 1, openPayload(echo.getLocalPort()))) {
+            out.write(b);
+            out.flush();
+            Thread.sleep(1);
+        }
+        Frame f = readSkipWindow();
+        assertEquals(OPEN_ACK, f.type);
+        assertEquals(1, f.streamId);
+        assertArrayEquals(new byte[]{0}, f.payload);
+
+        // two frames in one write, the second one is split after the header
+        byte[] data = "hello".getBytes();
+        byte[] first = frame(DATA, 1, data);
+        byte[] second = frame(DATA, 1, "world".getBytes());
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        out.write(both, 0, first.length + 7);
+        out.flush();
+        Thread.sleep(10);
+        out.write(both, first.length + 7, second.length - 7);
+        out.flush();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < 10) {
+            f = readSkipWindow();
+            assertEquals(DATA, f.type);
+            assertEquals(1, f.streamId);
+            received.write(f.payload);
+        }
+        assertEquals("helloworld", new String(received.toByteArray(), StandardCharsets.UTF_8));
+
+        // nothing listens on the port
+        ServerSocket closed = listen();
+        int port = closed.getLocalPort();
+        closed.close();
+        send(OPEN, 3, openPayload(port));
+        f = readSkipWindow();
+        assertEquals(OPEN_ACK, f.type);
+        assertEquals(3, f.streamId);
+        assertArrayEquals(new byte[]{1}, f.payload);
+
+        // an unknown frame type closes the tunnel
+        send((byte) 99, 5, new byte[0]);
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void manyStreams() throws Exception {
+        ServerSocket echo = echoServer();
+        final int streams = 20;
+        final int chunks = 3;
+        final int chunkLen = 1000;
+
+        for (int i = 0; i < streams; ++i) {
+            send(OPEN, i * 2 + 1, openPayload(echo.getLocalPort()));
+        }
+        Set<Integer> acked = new HashSet<>();
+        while (acked.size() < streams) {
+            Frame f = readSkipWindow();
+            assertEquals(OPEN_ACK, f.type);
+            assertArrayEquals(new byte[]{0}, f.payload);
+            assertTrue(acked.add(f.streamId));
+        }
+
+        // the data of all streams is interleaved on the tunnel
+        for (int c = 0; c < chunks; ++c) {
+            for (int i = 0; i < streams; ++i) {
+                int id = i * 2 + 1;
+                byte[] all = content(id, chunks * chunkLen);
+                send(DATA, id, Arrays.copyOfRange(all, c * chunkLen, (c + 1) * chunkLen));
+            }
+        }
+
+        Map<Integer, ByteArrayOutputStream> received = new HashMap<>();
+        int total = 0;
+        while (total < streams * chunks * chunkLen) {
+            Frame f = readSkipWindow();
+            assertEquals(DATA, f.type);
+            received.computeIfAbsent(f.streamId, k -> new ByteArrayOutputStream()).write(f.payload);
+            total += f.payload.length;
+        }
+        assertEquals(streams, received.size());
+        for (int i = 0; i < streams; ++i) {
+            int id = i * 2 + 1;
+            assertArrayEquals("stream " + id, content(id, chunks * chunkLen), received.get(id).toByteArray());
+        }
+    }
+
+    @Test
+    public void flowControl() throws Exception {
+        // the target sends more than one window at once
+        final int floodLen = STREAM_WINDOW + 40000;
+        ServerSocket flood = listen();
+        new Thread(() -> {
+            try (Socket s = flood.accept()) {
+                s.getOutputStream().write(content(7, floodLen));
+                //noinspection ResultOfMethodCallIgnored
+                s.getInputStream().read();
+            } catch (IOException ignore) {
+            }
+        }).start();
+
+        open(1, flood.getLocalPort());
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < STREAM_WINDOW) {
+            Frame f = read();
+            assertEquals(DATA, f.type);
+            assertTrue(f.payload.length <= MAX_PAYLOAD);
+            received.write(f.payload);
+        }
+        assertEquals(STREAM_WINDOW, received.size());
+
+        // the window is used up, the tunnel must wait for a WINDOW frame
+        sock.setSoTimeout(500);
+        try {
+            Frame f = read();
+            fail("unexpected frame " + f.type + " when the window is used up");
+        } catch (SocketTimeoutException expected) {
+        }
+        sock.setSoTimeout(5000);
+
+        send(WINDOW, 1, intPayload(STREAM_WINDOW));
+        while (received.size() < floodLen) {
+            Frame f = read();
+            assertEquals(DATA, f.type);
+            received.write(f.payload);
+        }
+        assertArrayEquals(content(7, floodLen), received.toByteArray());
+    }
+
+    @Test
+    public void flowControlBothDirections() throws Exception {
+        ServerSocket echo = echoServer();
+        open(1, echo.getLocalPort());
+
+        // more than a few windows, the client only sends when the tunnel grants more window
+        final int total = STREAM_WINDOW * 4;
+        byte[] data = content(3, total);
+        int sent = 0;
+        int sendWindow = STREAM_WINDOW;
+        int windowGranted = 0;
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < total) {
+            if (sent < total && sendWindow > 0) {
+                int n = Math.min(Math.min(total - sent, sendWindow), MAX_PAYLOAD);
+                send(DATA, 1, Arrays.copyOfRange(data, sent, sent + n));
+                sent += n;
+                sendWindow -= n;
+                continue;
+            }
+            Frame f = read();
+            assertEquals(1, f.streamId);
+            if (f.type == WINDOW) {
+                int inc = ((f.payload[0] & 0xff) << 24) | ((f.payload[1] & 0xff) << 16) | ((f.payload[2] & 0xff) << 8) | (f.payload[3] & 0xff);
+                assertTrue(inc > 0);
+                sendWindow += inc;
+                windowGranted += inc;
+            } else {
+                assertEquals(DATA, f.type);
+                received.write(f.payload);
+                // consumed, let the tunnel send more
+                send(WINDOW, 1, intPayload(f.payload.length));
+            }
+        }
+        assertArrayEquals(data, received.toByteArray());
+        assertTrue("window granted: " + windowGranted, windowGranted >= total - STREAM_WINDOW);
+    }
+
+    @Test
+    public void peerReset() throws Exception {
+        ServerSocket target = listen();
+        Socket[] accepted = new Socket[1];
+        Thread t = new Thread(() -> {
+            try {
+                accepted[0] = target.accept();
+            } catch (IOException ignore) {
+            }
+        });
+        t.start();
+
+        open(1, target.getLocalPort());
+        t.join(5000);
+        Socket s = accepted[0];
+        assertNotNull(s);
+        closeables.add(s);
+        s.setSoTimeout(5000);
+
+        send(DATA, 1, "hello".getBytes());
+        byte[] b = new byte[5];
+        new DataInputStream(s.getInputStream()).readFully(b);
+        assertEquals("hello", new String(b));
+
+        // RST from the peer closes the target connection
+        send(RST, 1, new byte[0]);
+        try {
+            assertEquals(-1, s.getInputStream().read());
+        } catch (IOException expected) {
+            // connection reset
+        }
+
+        // the stream is removed, the data is discarded and the id can be opened again
+        send(DATA, 1, "discarded".getBytes());
+        ServerSocket echo = echoServer();
+        open(1, echo.getLocalPort());
+        send(DATA, 1, "again".getBytes());
+        Frame f = readSkipWindow();
+        assertEquals(DATA, f.type);
+        assertEquals("again", new String(f.payload));
+
+        // DATA after FIN makes the tunnel reset the stream
+        // both frames are written at once so that they are handled before the echo server closes
+        byte[] fin = frame(FIN, 1, new byte[0]);
+        byte[] late = frame(DATA, 1, "late".getBytes());
+        byte[] both = new byte[fin.length + late.length];
+        System.arraycopy(fin, 0, both, 0, fin.length);
+        System.arraycopy(late, 0, both, fin.length, late.length);
+        out.write(both);
+        out.flush();
+        while (true) {
+            f = readSkipWindow();
+            if (f.type == FIN) {
+                continue; // the echo server closes its side after reading the eof
+            }
+            assertEquals(RST, f.type);
+            assertEquals(1, f.streamId);
+            break;
+        }
+
+        // the tunnel still works for other streams
+        open(3, echo.getLocalPort());
+        send(DATA, 3, "still".getBytes());
+        f = readSkipWindow();
+        assertEquals(DATA, f.type);
+        assertEquals(3, f.streamId);
+        assertEquals("still", new String(f.payload));
+    }
+}